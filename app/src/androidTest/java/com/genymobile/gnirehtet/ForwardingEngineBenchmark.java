@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2017 Genymobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.genymobile.gnirehtet;
+
+import android.net.LocalServerSocket;
+import android.net.LocalSocket;
+import android.os.Bundle;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructPollfd;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.DataOutputStream;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Compare the forwarding engines end to end, on real file descriptors.
+ * <p>
+ * A {@link Forwarder} reads and writes one side of a {@code SOCK_SEQPACKET} socket pair, which keeps the packet
+ * boundaries like a TUN device, and connects to a relay server played by the test on the same abstract socket as the
+ * real one. So the packets cross the JNI boundary and the threads exactly as on the VPN interface, which is what the
+ * engines differ on.
+ * <p>
+ * The benchmark only runs if requested, and reports the throughputs through the instrumentation status:
+ * <pre>
+ * ./gradlew connectedAndroidTest -Pandroid.testInstrumentationRunnerArguments.benchmark=true
+ * </pre>
+ * The relay server socket must not be bound, so "adb reverse" must be disabled meanwhile.
+ */
+@RunWith(AndroidJUnit4.class)
+@SuppressWarnings("checkstyle:MagicNumber")
+public class ForwardingEngineBenchmark {
+
+    private static final String RELAY_SOCKET_NAME = "gnirehtet";
+
+    // IPv4 + UDP headers
+    private static final int HEADERS_LENGTH = 28;
+
+    private static final long BYTES_PER_RUN = 64L << 20;
+    private static final int TIMEOUT_MS = 10_000;
+
+    // the STREAM engine copies through a temporary buffer when the packets do not fit on the JNI stack (8 KiB)
+    private static final int[] PACKET_LENGTHS = {1400, 16_000};
+
+    private LocalServerSocket relayServer;
+    private final FileDescriptor vpnFd = new FileDescriptor();
+    private final FileDescriptor deviceFd = new FileDescriptor();
+
+    @Before
+    public void setUp() throws ErrnoException {
+        Bundle arguments = InstrumentationRegistry.getArguments();
+        Assume.assumeTrue("Benchmark not requested", "true".equals(arguments.getString("benchmark")));
+        try {
+            relayServer = new LocalServerSocket(RELAY_SOCKET_NAME);
+        } catch (IOException e) {
+            Assume.assumeNoException("Relay socket already bound (adb reverse?)", e);
+        }
+        Os.socketpair(OsConstants.AF_UNIX, OsConstants.SOCK_SEQPACKET, 0, vpnFd, deviceFd);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (relayServer != null) {
+            relayServer.close();
+        }
+        closeQuietly(vpnFd);
+        closeQuietly(deviceFd);
+    }
+
+    @Test
+    public void benchmarkStream() throws Exception {
+        benchmark(ForwardingEngine.STREAM);
+    }
+
+    @Test
+    public void benchmarkDirectBuffer() throws Exception {
+        benchmark(ForwardingEngine.DIRECT_BUFFER);
+    }
+
+    @Test
+    public void benchmarkPoll() throws Exception {
+        benchmark(ForwardingEngine.POLL);
+    }
+
+    private void benchmark(ForwardingEngine engine) throws Exception {
+        ForwarderOptions options = new ForwarderOptions();
+        options.setEngine(engine);
+        Forwarder forwarder = new Forwarder(null, vpnFd, null, options);
+        forwarder.forward();
+        try (LocalSocket relay = relayServer.accept()) {
+            // the relay server sends the client id first
+            new DataOutputStream(relay.getOutputStream()).writeInt(1);
+
+            Bundle results = new Bundle();
+            for (int length : PACKET_LENGTHS) {
+                byte[] packet = createPacket(length);
+                int count = (int) (BYTES_PER_RUN / length);
+                // warm up
+                runUpstream(relay, packet, count / 8);
+                runDownstream(relay, packet, count / 8);
+
+                double upstream = runUpstream(relay, packet, count);
+                double downstream = runDownstream(relay, packet, count);
+                results.putDouble(engine + "_upstream_" + length + "_MBps", upstream);
+                results.putDouble(engine + "_downstream_" + length + "_MBps", downstream);
+            }
+            // INST_STATUS_IN_PROGRESS, like the androidx benchmarks, so that it is not mistaken for a test result
+            InstrumentationRegistry.getInstrumentation().sendStatus(2, results);
+        } finally {
+            forwarder.stop();
+        }
+    }
+
+    /**
+     * Write the packets to the VPN interface, and receive them on the relay side.
+     *
+     * @return the throughput, in MB/s
+     */
+    private double runUpstream(LocalSocket relay, byte[] packet, int count) throws Exception {
+        long total = (long) packet.length * count;
+        InputStream in = relay.getInputStream();
+        long[] received = new long[1];
+        Throwable[] error = new Throwable[1];
+        Thread reader = new Thread(() -> {
+            byte[] buffer = new byte[0x10000];
+            try {
+                while (received[0] < total) {
+                    int r = in.read(buffer);
+                    if (r == -1) {
+                        break;
+                    }
+                    received[0] += r;
+                }
+            } catch (IOException e) {
+                error[0] = e;
+            }
+        });
+        long start = System.nanoTime();
+        reader.start();
+        for (int i = 0; i < count; ++i) {
+            Os.write(deviceFd, packet, 0, packet.length);
+        }
+        reader.join(TIMEOUT_MS);
+        long elapsed = System.nanoTime() - start;
+        Assert.assertFalse("Upstream timed out", reader.isAlive());
+        Assert.assertNull(error[0]);
+        Assert.assertEquals(total, received[0]);
+        return total * 1000.0 / elapsed;
+    }
+
+    /**
+     * Send the packets from the relay side, and read them from the VPN interface.
+     *
+     * @return the throughput, in MB/s
+     */
+    private double runDownstream(LocalSocket relay, byte[] packet, int count) throws Exception {
+        long total = (long) packet.length * count;
+        OutputStream out = relay.getOutputStream();
+        Throwable[] error = new Throwable[1];
+        Thread writer = new Thread(() -> {
+            try {
+                for (int i = 0; i < count; ++i) {
+                    out.write(packet);
+                }
+            } catch (IOException e) {
+                error[0] = e;
+            }
+        });
+        byte[] buffer = new byte[0x10000];
+        StructPollfd[] pollfds = {Poll.createPollfd(deviceFd)};
+        long start = System.nanoTime();
+        writer.start();
+        for (int i = 0; i < count; ++i) {
+            Assert.assertTrue("Downstream timed out", Poll.poll(pollfds, TIMEOUT_MS));
+            // one packet per read
+            Assert.assertEquals(packet.length, Os.read(deviceFd, buffer, 0, buffer.length));
+        }
+        long elapsed = System.nanoTime() - start;
+        writer.join(TIMEOUT_MS);
+        Assert.assertNull(error[0]);
+        return total * 1000.0 / elapsed;
+    }
+
+    /**
+     * Create a valid IPv4/UDP packet, which no interceptor handles locally.
+     */
+    private static byte[] createPacket(int length) {
+        ByteBuffer packet = ByteBuffer.allocate(length);
+        packet.put((byte) 0x45); // version 4, IHL 5
+        packet.put((byte) 0);
+        packet.putShort((short) length);
+        packet.putInt(0); // identification, flags, fragment offset
+        packet.put((byte) 64); // TTL
+        packet.put((byte) IPPackets.PROTOCOL_UDP);
+        packet.putShort((short) 0); // checksum, computed below
+        packet.putInt(0x0a000002); // 10.0.0.2
+        packet.putInt(0xc6336401); // 198.51.100.1
+        int sum = 0;
+        for (int i = 0; i < 20; i += 2) {
+            sum += packet.getShort(i) & 0xffff;
+        }
+        while ((sum >> 16) != 0) {
+            sum = (sum & 0xffff) + (sum >> 16);
+        }
+        packet.putShort(10, (short) ~sum);
+        packet.putShort((short) 40000);
+        packet.putShort((short) 9); // discard
+        packet.putShort((short) (length - 20));
+        packet.putShort((short) 0); // no checksum
+        Assert.assertEquals(HEADERS_LENGTH, packet.position());
+        return packet.array();
+    }
+
+    private static void closeQuietly(FileDescriptor fd) {
+        if (fd.valid()) {
+            try {
+                Os.close(fd);
+            } catch (ErrnoException e) {
+                // ignore
+            }
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2017 Genymobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.genymobile.gnirehtet;
+
+import android.os.Build;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Hold the UIDs of the apps blocked while the VPN is running.
+ * <p>
+ * The apps blocked when the VPN starts are excluded from it ({@code addDisallowedApplication()}), but changing this list
+ * requires to establish a new VPN interface. Instead, the apps blocked afterwards are added here, and their packets are
+ * rejected by {@link AppFirewallInterceptor}, until the next restart reconciles the list.
+ */
+public final class AppFirewall {
+
+    private static final String TAG = AppFirewall.class.getSimpleName();
+
+    // sorted
+    private static volatile int[] blockedUids = new int[0];
+
+    private AppFirewall() {
+        // not instantiable
+    }
+
+    /**
+     * Indicate whether the owner of the connections can be found, which is required to block apps without restarting.
+     */
+    public static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q;
+    }
+
+    public static boolean isEmpty() {
+        return blockedUids.length == 0;
+    }
+
+    public static boolean isBlocked(int uid) {
+        int[] uids = blockedUids;
+        return uids.length != 0 && Arrays.binarySearch(uids, uid) >= 0;
+    }
+
+    /**
+     * Replace the blocked UIDs, applying immediately to the running VPN.
+     *
+     * @param uids the UIDs
+     */
+    public static synchronized void setBlockedUids(int[] uids) {
+        int[] sorted = uids.clone();
+        Arrays.sort(sorted);
+        blockedUids = sorted;
+        Log.i(TAG, "Blocked UIDs: " + Arrays.toString(sorted));
+    }
+
+    /**
+     * Unblock the UIDs, applying immediately to the running VPN.
+     *
+     * @param uids the UIDs to remove, blocked or not
+     */
+    public static synchronized void removeBlockedUids(Collection<Integer> uids) {
+        if (uids.isEmpty()) {
+            return;
+        }
+        int[] remaining = new int[blockedUids.length];
+        int count = 0;
+        for (int uid : blockedUids) {
+            if (!uids.contains(uid)) {
+                remaining[count++] = uid;
+            }
+        }
+        blockedUids = Arrays.copyOf(remaining, count);
+        Log.i(TAG, "Blocked UIDs: " + Arrays.toString(blockedUids));
+    }
+
+    public static synchronized void clear() {
+        blockedUids = new int[0];
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2017 Genymobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.genymobile.gnirehtet;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * Reject locally the packets of the apps blocked by the {@link AppFirewall}.
+ * <p>
+ * Finding the owner of a connection is a binder call, so it is done once per flow: the UIDs are kept in a 4-way
+ * set-associative cache of primitive arrays, keyed by the 5-tuple packed and hashed as in the {@link FlowTable}. A TCP
+ * SYN resolves the owner again, since the 5-tuple may have been reused by another app, unless it is a retransmission
+ * (same initial sequence number).
+ * <p>
+ * The owner is resolved on the forwarding thread: resolving it asynchronously would let the first packets of a blocked
+ * app through.
+ */
+@SuppressWarnings("checkstyle:MagicNumber")
+public class AppFirewallInterceptor implements PacketInterceptor {
+
+    private static final int WAYS = 4;
+    private static final int SETS = 1 << 10; // must be a power of 2
+    private static final int CACHE_SIZE = WAYS * SETS;
+
+    // distinguish IPv6 keys, above the protocol
+    private static final long KEY_IPV6 = 1L << 40;
+    // the addresses are packed into 4 longs (IPv4 only uses the first one)
+    private static final int ADDRESS_LONGS = 4;
+    private static final long NO_SYN = -1;
+
+    private final UidResolver resolver;
+    private final PacketSink deviceSink;
+    private final ForwarderStats stats;
+    private final ByteBuffer reply = ByteBuffer.allocate(IcmpPackets.MAX_ERROR_LENGTH);
+
+    // 0 for an empty entry, the protocol is never 0
+    private final long[] cachedProtocolAndPorts = new long[CACHE_SIZE];
+    private final long[] cachedAddresses = new long[CACHE_SIZE * ADDRESS_LONGS];
+    private final int[] cachedUids = new int[CACHE_SIZE];
+    // the initial sequence number of the SYN which resolved the entry (unsigned), or NO_SYN
+    private final long[] cachedSyns = new long[CACHE_SIZE];
+    // for LRU replacement within a set
+    private final long[] lastUsed = new long[CACHE_SIZE];
+    private long useCounter;
+
+    public AppFirewallInterceptor(UidResolver resolver, PacketSink deviceSink, ForwarderStats stats) {
+        this.resolver = resolver;
+        this.deviceSink = deviceSink;
+        this.stats = stats;
+    }
+
+    @Override
+    public boolean intercept(ByteBuffer packet, PacketSink upstream) throws IOException {
+        if (AppFirewall.isEmpty()) {
+            return false;
+        }
+        int index = packet.position();
+        int length = packet.remaining();
+        int uid = getOwnerUid(packet, index, length);
+        if (uid == UidResolver.UNKNOWN_UID || !AppFirewall.isBlocked(uid)) {
+            return false;
+        }
+        if (IcmpPackets.canReplyWithError(packet, index, length)) {
+            IcmpPackets.buildUnreachable(packet, index, length, IcmpPackets.UNREACHABLE_PROHIBITED, reply);
+            deviceSink.write(reply);
+        }
+        stats.onFirewalledPacket();
+        return true;
+    }
+
+    private int getOwnerUid(ByteBuffer packet, int index, int length) {
+        if (length == 0) {
+            return UidResolver.UNKNOWN_UID;
+        }
+        int version = IPPackets.readVersion(packet, index);
+        boolean ipv6 = version == 6;
+        int minLength = ipv6 ? IPPackets.IPV6_HEADER_LENGTH : IPPackets.IPV4_MIN_HEADER_LENGTH;
+        if ((version != 4 && !ipv6) || length < minLength) {
+            return UidResolver.UNKNOWN_UID;
+        }
+        int protocol = IPPackets.readProtocol(packet, index);
+        int headerLength;
+        if (protocol == IPPackets.PROTOCOL_TCP) {
+            headerLength = TcpPackets.TCP_HEADER_LENGTH;
+        } else if (protocol == IPPackets.PROTOCOL_UDP) {
+            headerLength = UdpPackets.UDP_HEADER_LENGTH;
+        } else {
+            return UidResolver.UNKNOWN_UID;
+        }
+        int transport = IPPackets.getTransportIndex(packet, index, length);
+        if (transport == -1 || transport + headerLength > index + length) {
+            return UidResolver.UNKNOWN_UID;
+        }
+        boolean syn = protocol == IPPackets.PROTOCOL_TCP
+                && (TcpPackets.readFlags(packet, transport) & TcpPackets.FLAG_SYN) != 0;
+        long synSequenceNumber = syn ? TcpPackets.readSequenceNumber(packet, transport) & 0xffffffffL : NO_SYN;
+
+        int ports = packet.getInt(transport);
+        long protocolAndPorts = FlowTable.packProtocolAndPorts(protocol, ports);
+        long a0;
+        long a1 = 0;
+        long a2 = 0;
+        long a3 = 0;
+        if (ipv6) {
+            protocolAndPorts |= KEY_IPV6;
+            a0 = packet.getLong(index + 8);
+            a1 = packet.getLong(index + 16);
+            a2 = packet.getLong(index + 24);
+            a3 = packet.getLong(index + 32);
+        } else {
+            a0 = FlowTable.packAddresses(packet.getInt(index + 12), packet.getInt(index + 16));
+        }
+        int hash = FlowTable.hash(a0 ^ Long.rotateLeft(a1, 16) ^ Long.rotateLeft(a2, 32) ^ Long.rotateLeft(a3, 48),
+                protocolAndPorts);
+
+        int first = (hash & (SETS - 1)) * WAYS;
+        int victim = first;
+        for (int slot = first; slot < first + WAYS; ++slot) {
+            if (cachedProtocolAndPorts[slot] == protocolAndPorts && matches(slot, a0, a1, a2, a3)) {
+                if (!syn || cachedSyns[slot] == synSequenceNumber) {
+                    lastUsed[slot] = ++useCounter;
+                    return cachedUids[slot];
+                }
+                // a new connection reusing the 5-tuple
+                victim = slot;
+                break;
+            }
+            if (lastUsed[slot] < lastUsed[victim]) {
+                // empty entries are never used, so they are replaced first
+                victim = slot;
+            }
+        }
+
+        int uid = resolve(packet, index, ipv6, protocol, ports);
+        cachedProtocolAndPorts[victim] = protocolAndPorts;
+        int addressSlot = victim * ADDRESS_LONGS;
+        cachedAddresses[addressSlot] = a0;
+        cachedAddresses[addressSlot + 1] = a1;
+        cachedAddresses[addressSlot + 2] = a2;
+        cachedAddresses[addressSlot + 3] = a3;
+        cachedUids[victim] = uid;
+        cachedSyns[victim] = synSequenceNumber;
+        lastUsed[victim] = ++useCounter;
+        return uid;
+    }
+
+    private boolean matches(int slot, long a0, long a1, long a2, long a3) {
+        int addressSlot = slot * ADDRESS_LONGS;
+        return cachedAddresses[addressSlot] == a0 && cachedAddresses[addressSlot + 1] == a1
+                && cachedAddresses[addressSlot + 2] == a2 && cachedAddresses[addressSlot + 3] == a3;
+    }
+
+    private int resolve(ByteBuffer packet, int index, boolean ipv6, int protocol, int ports) {
+        InetAddress source;
+        InetAddress destination;
+        if (ipv6) {
+            source = Net.toInetAddress(readAddress6(packet, index + 8));
+            destination = Net.toInetAddress(readAddress6(packet, index + 24));
+        } else {
+            source = Net.toInetAddress(packet.getInt(index + 12));
+            destination = Net.toInetAddress(packet.getInt(index + 16));
+        }
+        InetSocketAddress local = new InetSocketAddress(source, ports >>> 16);
+        InetSocketAddress remote = new InetSocketAddress(destination, ports & 0xffff);
+        return resolver.getOwnerUid(protocol, local, remote);
+    }
+
+    private static byte[] readAddress6(ByteBuffer packet, int addressIndex) {
+        byte[] address = new byte[16];
+        for (int i = 0; i < address.length; ++i) {
+            address[i] = packet.get(addressIndex + i);
+        }
+        return address;
+    }
+}
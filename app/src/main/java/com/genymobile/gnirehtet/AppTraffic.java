@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2017 Genymobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.genymobile.gnirehtet;
+
+import java.util.Locale;
+
+/**
+ * Immutable traffic of an application (a UID) during a session.
+ */
+public final class AppTraffic {
+
+    private final int uid;
+    private final long upstreamBytes;
+    private final long downstreamBytes;
+    // in bytes per second
+    private final long upstreamRate;
+    private final long downstreamRate;
+
+    AppTraffic(int uid, long upstreamBytes, long downstreamBytes, long upstreamRate, long downstreamRate) {
+        this.uid = uid;
+        this.upstreamBytes = upstreamBytes;
+        this.downstreamBytes = downstreamBytes;
+        this.upstreamRate = upstreamRate;
+        this.downstreamRate = downstreamRate;
+    }
+
+    public int getUid() {
+        return uid;
+    }
+
+    public long getUpstreamBytes() {
+        return upstreamBytes;
+    }
+
+    public long getDownstreamBytes() {
+        return downstreamBytes;
+    }
+
+    public long getUpstreamRate() {
+        return upstreamRate;
+    }
+
+    public long getDownstreamRate() {
+        return downstreamRate;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "uid %d: up=%dB (%dB/s) down=%dB (%dB/s)", uid, upstreamBytes, upstreamRate, downstreamBytes,
+                downstreamRate);
+    }
+}
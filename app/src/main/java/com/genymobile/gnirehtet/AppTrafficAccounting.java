@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2017 Genymobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.genymobile.gnirehtet;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Attribute the traffic of the flows to the applications owning them.
+ * <p>
+ * The owner of a flow is resolved once, on the first {@link #update(List, long)} where it appears, and kept in a bounded
+ * cache keyed by the 5-tuple, so that the (slow) {@link UidResolver} is never called on the per-packet path. Every update
+ * accounts the bytes transferred by each flow since the previous one.
+ */
+@SuppressWarnings("checkstyle:MagicNumber")
+public class AppTrafficAccounting {
+
+    private static final int DEFAULT_MAX_FLOWS = 4096;
+
+    private final UidResolver resolver;
+    private final Map<FlowKey, FlowOwner> owners;
+    private final Map<Integer, Counters> apps = new HashMap<>();
+    private long lastUpdate = -1;
+
+    public AppTrafficAccounting(UidResolver resolver) {
+        this(resolver, DEFAULT_MAX_FLOWS);
+    }
+
+    public AppTrafficAccounting(UidResolver resolver, int maxFlows) {
+        this.resolver = resolver;
+        // the least recently updated flows are evicted first, they are probably closed
+        owners = new LinkedHashMap<FlowKey, FlowOwner>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<FlowKey, FlowOwner> eldest) {
+                return size() > maxFlows;
+            }
+        };
+    }
+
+    /**
+     * Account the traffic of the current flows.
+     *
+     * @param flows the flows of the {@link FlowTable}
+     * @param nowMs the current time
+     * @return the traffic of every application since the start of the session
+     */
+    public synchronized List<AppTraffic> update(List<FlowSnapshot> flows, long nowMs) {
+        for (Counters counters : apps.values()) {
+            counters.resetDeltas();
+        }
+        for (FlowSnapshot flow : flows) {
+            FlowKey key = new FlowKey(flow);
+            FlowOwner owner = owners.get(key);
+            if (owner == null || owner.firstSeen != flow.getFirstSeen()) {
+                // new flow, or the 5-tuple has been reused by another connection
+                owner = new FlowOwner(resolveOwner(flow), flow.getFirstSeen());
+                owners.put(key, owner);
+            }
+            long up = flow.getUpstreamBytes() - owner.upstreamBytes;
+            long down = flow.getDownstreamBytes() - owner.downstreamBytes;
+            owner.upstreamBytes = flow.getUpstreamBytes();
+            owner.downstreamBytes = flow.getDownstreamBytes();
+            if (up != 0 || down != 0) {
+                Counters counters = apps.get(owner.uid);
+                if (counters == null) {
+                    counters = new Counters();
+                    apps.put(owner.uid, counters);
+                }
+                counters.add(up, down);
+            }
+        }
+        long elapsed = lastUpdate == -1 ? 0 : nowMs - lastUpdate;
+        lastUpdate = nowMs;
+        List<AppTraffic> result = new ArrayList<>(apps.size());
+        for (Map.Entry<Integer, Counters> entry : apps.entrySet()) {
+            Counters counters = entry.getValue();
+            long upRate = elapsed > 0 ? counters.upstreamDelta * 1000 / elapsed : 0;
+            long downRate = elapsed > 0 ? counters.downstreamDelta * 1000 / elapsed : 0;
+            result.add(new AppTraffic(entry.getKey(), counters.upstreamBytes, counters.downstreamBytes, upRate, downRate));
+        }
+        return result;
+    }
+
+    private int resolveOwner(FlowSnapshot flow) {
+        InetSocketAddress local = new InetSocketAddress(Net.toInetAddress(flow.getSourceAddress()), flow.getSourcePort());
+        InetSocketAddress remote = new InetSocketAddress(Net.toInetAddress(flow.getDestinationAddress()), flow.getDestinationPort());
+        return resolver.getOwnerUid(flow.getProtocol(), local, remote);
+    }
+
+    private static final class FlowKey {
+        private final int protocol;
+        private final int sourceAddress;
+        private final int destinationAddress;
+        // source port in the high 16 bits, destination port in the low 16 bits
+        private final int ports;
+
+        @SuppressWarnings("checkstyle:MagicNumber")
+        FlowKey(FlowSnapshot flow) {
+            protocol = flow.getProtocol();
+            sourceAddress = flow.getSourceAddress();
+            destinationAddress = flow.getDestinationAddress();
+            ports = (flow.getSourcePort() << 16) | flow.getDestinationPort();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof FlowKey)) {
+                return false;
+            }
+            FlowKey that = (FlowKey) o;
+            return protocol == that.protocol && sourceAddress == that.sourceAddress && destinationAddress == that.destinationAddress
+                    && ports == that.ports;
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = protocol;
+            hash = 31 * hash + sourceAddress;
+            hash = 31 * hash + destinationAddress;
+            hash = 31 * hash + ports;
+            return hash;
+        }
+    }
+
+    private static final class FlowOwner {
+        private final int uid;
+        private final long firstSeen;
+        // the bytes already accounted
+        private long upstreamBytes;
+        private long downstreamBytes;
+
+        FlowOwner(int uid, long firstSeen) {
+            this.uid = uid;
+            this.firstSeen = firstSeen;
+        }
+    }
+
+    private static final class Counters {
+        private long upstreamBytes;
+        private long downstreamBytes;
+        // since the previous update
+        private long upstreamDelta;
+        private long downstreamDelta;
+
+        void add(long up, long down) {
+            upstreamBytes += up;
+            downstreamBytes += down;
+            upstreamDelta += up;
+            downstreamDelta += down;
+        }
+
+        void resetDeltas() {
+            upstreamDelta = 0;
+            downstreamDelta = 0;
+        }
+    }
+}
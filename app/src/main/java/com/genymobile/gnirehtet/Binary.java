@@ -16,6 +16,8 @@
 
 package com.genymobile.gnirehtet;
 
+import java.nio.ByteBuffer;
+
 @SuppressWarnings("checkstyle:MagicNumber")
 public final class Binary {
 
@@ -53,4 +55,22 @@ public final class Binary {
         }
         return builder.toString();
     }
+
+    public static String buildPacketString(ByteBuffer buffer) {
+        int len = buffer.remaining();
+        int limit = Math.min(MAX_STRING_PACKET_SIZE, len);
+        StringBuilder builder = new StringBuilder();
+        builder.append('[').append(len).append(" bytes] ");
+        for (int i = 0; i < limit; ++i) {
+            if (i != 0) {
+                String sep = i % 4 == 0 ? "  " : " ";
+                builder.append(sep);
+            }
+            builder.append(String.format("%02X", buffer.get(buffer.position() + i) & 0xff));
+        }
+        if (limit < len) {
+            builder.append(" ... +").append(len - limit).append(" bytes");
+        }
+        return builder.toString();
+    }
 }
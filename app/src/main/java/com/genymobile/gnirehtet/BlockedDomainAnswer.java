@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2017 Genymobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.genymobile.gnirehtet;
+
+/**
+ * How the DNS queries for blocked domains are answered.
+ */
+public enum BlockedDomainAnswer {
+
+    /**
+     * The domain does not exist.
+     */
+    NXDOMAIN("NXDOMAIN"),
+
+    /**
+     * The domain resolves to the unspecified address (0.0.0.0 or ::).
+     */
+    NULL_ADDRESS("0.0.0.0");
+
+    private final String displayName;
+
+    BlockedDomainAnswer(String displayName) {
+        this.displayName = displayName;
+    }
+
+    public String getDisplayName() {
+        return displayName;
+    }
+}
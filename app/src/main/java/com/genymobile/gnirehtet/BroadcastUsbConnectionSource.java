@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2017 Genymobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.genymobile.gnirehtet;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * Detect the USB cable attachments from the USB state and power broadcasts.
+ * <p>
+ * The USB state broadcast is not public API and may not be sent on every device, so the power connection is also
+ * watched. Both may be reported for the same attachment.
+ */
+public class BroadcastUsbConnectionSource implements UsbConnectionSource {
+
+    private static final String TAG = BroadcastUsbConnectionSource.class.getSimpleName();
+
+    // hidden in UsbManager
+    private static final String ACTION_USB_STATE = "android.hardware.usb.action.USB_STATE";
+    private static final String EXTRA_USB_CONNECTED = "connected";
+
+    private final Context context;
+    private BroadcastReceiver receiver;
+    private boolean usbConnected;
+
+    public BroadcastUsbConnectionSource(Context context) {
+        this.context = context;
+    }
+
+    @Override
+    public void start(Listener listener) {
+        if (receiver != null) {
+            return;
+        }
+        receiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                if (ACTION_USB_STATE.equals(intent.getAction())) {
+                    boolean connected = intent.getBooleanExtra(EXTRA_USB_CONNECTED, false);
+                    boolean attached = connected && !usbConnected;
+                    usbConnected = connected;
+                    // the sticky broadcast only reports the current state
+                    if (attached && !isInitialStickyBroadcast()) {
+                        Log.d(TAG, "USB connected");
+                        listener.onUsbConnected();
+                    }
+                } else if (Intent.ACTION_POWER_CONNECTED.equals(intent.getAction())) {
+                    Log.d(TAG, "Power connected");
+                    listener.onUsbConnected();
+                }
+            }
+        };
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(ACTION_USB_STATE);
+        filter.addAction(Intent.ACTION_POWER_CONNECTED);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+            // system broadcasts are received anyway
+            context.registerReceiver(receiver, filter, Context.RECEIVER_NOT_EXPORTED);
+        } else {
+            context.registerReceiver(receiver, filter);
+        }
+    }
+
+    @Override
+    public void stop() {
+        if (receiver != null) {
+            context.unregisterReceiver(receiver);
+            receiver = null;
+        }
+    }
+}
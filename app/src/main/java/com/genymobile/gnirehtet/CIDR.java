@@ -22,6 +22,7 @@ import android.util.Log;
 
 import androidx.annotation.NonNull;
 
+import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 
@@ -54,9 +55,12 @@ public class CIDR implements Parcelable {
             if (slashIndex != -1) {
                 address = Net.toInetAddress(cidr.substring(0, slashIndex));
                 prefix = Integer.parseInt(cidr.substring(slashIndex + 1));
+                if (prefix < 0 || prefix > getMaxPrefixLength(address)) {
+                    throw new IllegalArgumentException("Invalid prefix length: " + prefix);
+                }
             } else {
                 address = Net.toInetAddress(cidr);
-                prefix = 32;
+                prefix = getMaxPrefixLength(address);
             }
             return new CIDR(address, prefix);
         } catch (IllegalArgumentException e) {
@@ -68,6 +72,15 @@ public class CIDR implements Parcelable {
         }
     }
 
+    @SuppressWarnings("checkstyle:MagicNumber")
+    private static int getMaxPrefixLength(InetAddress address) {
+        return address instanceof Inet6Address ? 128 : 32;
+    }
+
+    public boolean isIPv6() {
+        return address instanceof Inet6Address;
+    }
+
     public InetAddress getAddress() {
         return address;
     }
@@ -76,6 +89,24 @@ public class CIDR implements Parcelable {
         return prefixLength;
     }
 
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        CIDR cidr = (CIDR) o;
+        return prefixLength == cidr.prefixLength && address.equals(cidr.address);
+    }
+
+    @Override
+    @SuppressWarnings("checkstyle:MagicNumber")
+    public int hashCode() {
+        return 31 * address.hashCode() + prefixLength;
+    }
+
     @NonNull
     @Override
     public String toString() {
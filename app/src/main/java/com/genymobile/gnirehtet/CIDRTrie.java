@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2017 Genymobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.genymobile.gnirehtet;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Immutable set of {@link CIDR} blocks of a single address family, to match addresses directly in a buffer.
+ * <p>
+ * The blocks are stored in a compressed binary trie (a node having a single child and no block is merged with its
+ * child), flattened into arrays. A lookup walks down the trie comparing each bit of the address at most once, so it
+ * costs O(prefix length) whatever the number of blocks, and never allocates.
+ */
+@SuppressWarnings("checkstyle:MagicNumber")
+public final class CIDRTrie {
+
+    private final int addressLength;
+    private final int nodeCount;
+    // the number of leading bits of the address covered by the node
+    private final int[] depths;
+    // the children of the node i are children[2 * i] and children[2 * i + 1], or -1
+    private final int[] children;
+    // whether the node is a block (its subtree is never stored, it is already matched)
+    private final boolean[] blocks;
+    // the key of the node i, an address matching its depths[i] first bits, is stored at keys[i * addressLength]
+    private final byte[] keys;
+
+    private CIDRTrie(int addressLength, int nodeCount) {
+        this.addressLength = addressLength;
+        this.nodeCount = nodeCount;
+        depths = new int[nodeCount];
+        children = new int[nodeCount * 2];
+        blocks = new boolean[nodeCount];
+        keys = new byte[nodeCount * addressLength];
+    }
+
+    /**
+     * Build a trie from blocks of the same address family.
+     *
+     * @param addressLength the length of the addresses, in bytes (4 or 16)
+     * @param cidrs the blocks
+     * @return the trie
+     */
+    public static CIDRTrie build(int addressLength, List<CIDR> cidrs) {
+        BuildNode root = new BuildNode(new byte[addressLength], 0);
+        for (CIDR cidr : cidrs) {
+            byte[] address = cidr.getAddress().getAddress();
+            if (address.length != addressLength) {
+                throw new IllegalArgumentException("Unexpected address family: " + cidr);
+            }
+            insert(root, address, cidr.getPrefixLength());
+        }
+        CIDRTrie trie = new CIDRTrie(addressLength, root.isEmpty() ? 0 : countNodes(root));
+        if (trie.nodeCount != 0) {
+            trie.flatten(root, new int[1]);
+        }
+        return trie;
+    }
+
+    private static void insert(BuildNode root, byte[] address, int prefixLength) {
+        BuildNode node = root;
+        for (int depth = 0; depth < prefixLength; ++depth) {
+            if (node.block) {
+                // a larger block already contains this one
+                return;
+            }
+            int bit = bitAt(address, 0, depth);
+            if (node.children[bit] == null) {
+                node.children[bit] = new BuildNode(address, depth + 1);
+            }
+            node = node.children[bit];
+        }
+        node.block = true;
+        // the smaller blocks are contained in this one
+        node.children[0] = null;
+        node.children[1] = null;
+    }
+
+    private static BuildNode skipSingleChildren(BuildNode node) {
+        while (!node.block) {
+            BuildNode child0 = node.children[0];
+            BuildNode child1 = node.children[1];
+            if (child0 != null && child1 == null) {
+                node = child0;
+            } else if (child0 == null && child1 != null) {
+                node = child1;
+            } else {
+                break;
+            }
+        }
+        return node;
+    }
+
+    private static int countNodes(BuildNode node) {
+        node = skipSingleChildren(node);
+        int count = 1;
+        for (BuildNode child : node.children) {
+            if (child != null) {
+                count += countNodes(child);
+            }
+        }
+        return count;
+    }
+
+    private int flatten(BuildNode node, int[] next) {
+        node = skipSingleChildren(node);
+        int i = next[0]++;
+        depths[i] = node.depth;
+        blocks[i] = node.block;
+        System.arraycopy(node.key, 0, keys, i * addressLength, addressLength);
+        for (int bit = 0; bit < 2; ++bit) {
+            BuildNode child = node.children[bit];
+            children[2 * i + bit] = child == null ? -1 : flatten(child, next);
+        }
+        return i;
+    }
+
+    private static int bitAt(byte[] keys, int keyIndex, int bit) {
+        return (keys[keyIndex + (bit >> 3)] >> (7 - (bit & 7))) & 1;
+    }
+
+    private static int bitAt(ByteBuffer buffer, int addressIndex, int bit) {
+        return (buffer.get(addressIndex + (bit >> 3)) >> (7 - (bit & 7))) & 1;
+    }
+
+    public boolean isEmpty() {
+        return nodeCount == 0;
+    }
+
+    /**
+     * Indicate whether the address stored at {@code addressIndex} belongs to one of the blocks.
+     *
+     * @param buffer the buffer
+     * @param addressIndex the absolute position of the address
+     * @return {@code true} if the address matches
+     */
+    public boolean matches(ByteBuffer buffer, int addressIndex) {
+        int node = nodeCount == 0 ? -1 : 0;
+        int checked = 0;
+        while (node != -1) {
+            int depth = depths[node];
+            // the bits merged into this node have not been compared yet
+            if (!equalBits(node * addressLength, buffer, addressIndex, checked, depth)) {
+                return false;
+            }
+            if (blocks[node]) {
+                return true;
+            }
+            if (depth == addressLength * 8) {
+                return false;
+            }
+            int bit = bitAt(buffer, addressIndex, depth);
+            node = children[2 * node + bit];
+            // the bit selecting the child is compared
+            checked = depth + 1;
+        }
+        return false;
+    }
+
+    /**
+     * Compare the bits {@code [from, to)} of a key and of an address, a byte at a time.
+     */
+    private boolean equalBits(int keyIndex, ByteBuffer buffer, int addressIndex, int from, int to) {
+        int bit = from;
+        while (bit < to) {
+            int byteIndex = bit >> 3;
+            int first = bit & 7;
+            int end = Math.min(to, (byteIndex + 1) << 3);
+            int last = first + end - bit; // exclusive
+            int mask = (0xff >> first) & (0xff << (8 - last));
+            if (((keys[keyIndex + byteIndex] ^ buffer.get(addressIndex + byteIndex)) & mask) != 0) {
+                return false;
+            }
+            bit = end;
+        }
+        return true;
+    }
+
+    private static final class BuildNode {
+        private final byte[] key;
+        private final int depth;
+        private final BuildNode[] children = new BuildNode[2];
+        private boolean block;
+
+        BuildNode(byte[] key, int depth) {
+            // the addresses are never modified, they may be shared
+            this.key = key;
+            this.depth = depth;
+        }
+
+        boolean isEmpty() {
+            return !block && children[0] == null && children[1] == null;
+        }
+    }
+}
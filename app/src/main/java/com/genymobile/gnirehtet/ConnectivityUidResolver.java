@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2017 Genymobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.genymobile.gnirehtet;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.util.Log;
+
+import java.net.InetSocketAddress;
+
+/**
+ * Find the owner of the connections through the VPN, using {@link ConnectivityManager#getConnectionOwnerUid(int,
+ * InetSocketAddress, InetSocketAddress)}.
+ * <p>
+ * Only the active VPN service is allowed to call it, for its own connections.
+ */
+@TargetApi(29)
+public class ConnectivityUidResolver implements UidResolver {
+
+    private static final String TAG = ConnectivityUidResolver.class.getSimpleName();
+
+    private final ConnectivityManager connectivityManager;
+
+    public ConnectivityUidResolver(Context context) {
+        connectivityManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+    }
+
+    @Override
+    public int getOwnerUid(int protocol, InetSocketAddress local, InetSocketAddress remote) {
+        try {
+            return connectivityManager.getConnectionOwnerUid(protocol, local, remote);
+        } catch (SecurityException | IllegalArgumentException e) {
+            Log.w(TAG, "Cannot find the owner of " + local + " -> " + remote, e);
+            return UNKNOWN_UID;
+        }
+    }
+}
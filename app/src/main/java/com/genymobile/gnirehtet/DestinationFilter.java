@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2017 Genymobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.genymobile.gnirehtet;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable set of destination address blocks, IPv4 and IPv6.
+ */
+public final class DestinationFilter {
+
+    private static final String TAG = DestinationFilter.class.getSimpleName();
+
+    private static final int IPV4_ADDRESS_LENGTH = 4;
+    private static final int IPV6_ADDRESS_LENGTH = 16;
+
+    public static final DestinationFilter EMPTY = new DestinationFilter(Collections.emptyList());
+
+    private final List<CIDR> cidrs;
+    private final CIDRTrie ipv4;
+    private final CIDRTrie ipv6;
+
+    public DestinationFilter(List<CIDR> cidrs) {
+        this.cidrs = Collections.unmodifiableList(new ArrayList<>(cidrs));
+        List<CIDR> ipv4Cidrs = new ArrayList<>();
+        List<CIDR> ipv6Cidrs = new ArrayList<>();
+        for (CIDR cidr : cidrs) {
+            (cidr.isIPv6() ? ipv6Cidrs : ipv4Cidrs).add(cidr);
+        }
+        ipv4 = CIDRTrie.build(IPV4_ADDRESS_LENGTH, ipv4Cidrs);
+        ipv6 = CIDRTrie.build(IPV6_ADDRESS_LENGTH, ipv6Cidrs);
+    }
+
+    /**
+     * Parse a list of blocks separated by commas or whitespaces, like "10.0.0.0/8, 2001:db8::/32".
+     * <p>
+     * Invalid blocks are ignored.
+     *
+     * @param rules the list
+     * @return the filter
+     */
+    public static DestinationFilter parse(String rules) {
+        List<CIDR> cidrs = new ArrayList<>();
+        for (String token : rules.split("[,\\s]+")) {
+            if (token.isEmpty()) {
+                continue;
+            }
+            try {
+                cidrs.add(CIDR.parse(token));
+            } catch (InvalidCIDRException e) {
+                Log.w(TAG, "Ignore invalid destination filter: " + token);
+            }
+        }
+        return new DestinationFilter(cidrs);
+    }
+
+    public List<CIDR> getCidrs() {
+        return cidrs;
+    }
+
+    public boolean isEmpty() {
+        return cidrs.isEmpty();
+    }
+
+    /**
+     * Indicate whether the destination of the IP packet starting at {@code index} belongs to one of the blocks.
+     *
+     * @param packet the buffer
+     * @param index the absolute position of the packet
+     * @param length the packet length
+     * @return {@code true} if the destination matches
+     */
+    public boolean matchesDestination(ByteBuffer packet, int index, int length) {
+        int version = IPPackets.readVersion(packet, index);
+        if (version == 4 && length >= IPPackets.IPV4_MIN_HEADER_LENGTH) {
+            return ipv4.matches(packet, IPPackets.getDestinationAddressIndex(packet, index));
+        }
+        if (version == 6 && length >= IPPackets.IPV6_HEADER_LENGTH) {
+            return ipv6.matches(packet, IPPackets.getDestinationAddressIndex(packet, index));
+        }
+        return false;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return cidrs.toString();
+    }
+}
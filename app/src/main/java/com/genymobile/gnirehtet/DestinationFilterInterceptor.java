@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2017 Genymobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.genymobile.gnirehtet;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Drop or reject locally the packets sent to the blocks of the current {@link DestinationFilters destination filter},
+ * so that they never cost a round trip through the tunnel.
+ */
+public class DestinationFilterInterceptor implements PacketInterceptor {
+
+    private final FilterAction action;
+    private final PacketSink deviceSink;
+    private final ForwarderStats stats;
+    private final ByteBuffer reply = ByteBuffer.allocate(IcmpPackets.MAX_ERROR_LENGTH);
+
+    public DestinationFilterInterceptor(FilterAction action, PacketSink deviceSink, ForwarderStats stats) {
+        this.action = action;
+        this.deviceSink = deviceSink;
+        this.stats = stats;
+    }
+
+    @Override
+    public boolean intercept(ByteBuffer packet, PacketSink upstream) throws IOException {
+        DestinationFilter filter = DestinationFilters.getCurrent();
+        int index = packet.position();
+        int length = packet.remaining();
+        if (length == 0 || !filter.matchesDestination(packet, index, length)) {
+            return false;
+        }
+        if (action == FilterAction.REJECT && IcmpPackets.canReplyWithError(packet, index, length)) {
+            IcmpPackets.buildUnreachable(packet, index, length, IcmpPackets.UNREACHABLE_PROHIBITED, reply);
+            deviceSink.write(reply);
+        }
+        stats.onFilteredPacket();
+        return true;
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2017 Genymobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.genymobile.gnirehtet;
+
+import android.util.Log;
+
+/**
+ * Hold the current {@link DestinationFilter}.
+ * <p>
+ * The filter is read on every packet, so replacing it applies to the running VPN immediately, without restarting it.
+ */
+public final class DestinationFilters {
+
+    private static final String TAG = DestinationFilters.class.getSimpleName();
+
+    private static volatile DestinationFilter current = DestinationFilter.EMPTY;
+
+    private DestinationFilters() {
+        // not instantiable
+    }
+
+    public static DestinationFilter getCurrent() {
+        return current;
+    }
+
+    /**
+     * Replace the current filter.
+     *
+     * @param rules the blocks, separated by commas or whitespaces
+     */
+    public static void update(String rules) {
+        DestinationFilter filter = DestinationFilter.parse(rules);
+        current = filter;
+        Log.i(TAG, "Destination filter: " + filter);
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2017 Genymobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.genymobile.gnirehtet;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Size-bounded LRU cache of DNS responses, honoring their TTL.
+ * <p>
+ * Responses are stored as received, and adapted to the query (ID, question case, decreased TTLs) on every hit. The cache
+ * is shared by the threads forwarding in both directions.
+ */
+public class DnsCache {
+
+    private static final String TAG = DnsCache.class.getSimpleName();
+
+    private static final int SNAPSHOT_VERSION = 1;
+
+    // do not trust absurd TTLs
+    private static final long MAX_TTL_S = 24 * 60 * 60;
+
+    private final Map<String, Entry> entries;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public DnsCache(int maxEntries) {
+        entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() > maxEntries) {
+                    ++evictions;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Return the cached response to the question, with TTLs decreased by the time elapsed since it was stored.
+     *
+     * @param question the question, as returned by {@link DnsMessages#readQuestion(ByteBuffer, int, int)}
+     * @param nowMs the current time
+     * @return a copy of the response, or {@code null} if there is none
+     */
+    public synchronized byte[] get(String question, long nowMs) {
+        Entry entry = entries.get(question);
+        if (entry == null) {
+            ++misses;
+            return null;
+        }
+        if (nowMs >= entry.expirationMs) {
+            entries.remove(question);
+            ++misses;
+            return null;
+        }
+        byte[] response = entry.response.clone();
+        long elapsedSeconds = Math.max(0, (nowMs - entry.storedMs) / 1000);
+        if (!DnsMessages.decreaseTtls(ByteBuffer.wrap(response), 0, response.length, elapsedSeconds)) {
+            // cannot happen, the response was parsed before being stored
+            entries.remove(question);
+            ++misses;
+            return null;
+        }
+        ++hits;
+        return response;
+    }
+
+    public synchronized void put(String question, byte[] response, long ttlSeconds, long nowMs) {
+        if (ttlSeconds <= 0) {
+            return;
+        }
+        long expirationMs = nowMs + Math.min(ttlSeconds, MAX_TTL_S) * 1000;
+        entries.put(question, new Entry(response, nowMs, expirationMs));
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Write the unexpired entries to a file, so that the next sessions start with a warm cache.
+     * <p>
+     * Times are stored as wall-clock times, so that they remain valid after a reboot.
+     *
+     * @param file the snapshot file
+     * @param nowMs the current wall-clock time
+     * @throws IOException if an I/O error occurs
+     */
+    public void save(File file, long nowMs) throws IOException {
+        Map<String, Entry> copy;
+        synchronized (this) {
+            copy = new LinkedHashMap<>(entries);
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeInt(copy.size());
+            for (Map.Entry<String, Entry> mapEntry : copy.entrySet()) {
+                Entry entry = mapEntry.getValue();
+                out.writeUTF(mapEntry.getKey());
+                out.writeLong(entry.storedMs);
+                out.writeLong(entry.expirationMs);
+                out.writeInt(entry.response.length);
+                out.write(entry.response);
+            }
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Cannot rename " + tmp + " to " + file);
+        }
+    }
+
+    /**
+     * Load the unexpired entries of a snapshot written by {@link #save(File, long)}.
+     *
+     * @param file the snapshot file
+     * @param nowMs the current wall-clock time
+     * @throws IOException if an I/O error occurs
+     */
+    public void load(File file, long nowMs) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            int version = in.readInt();
+            if (version != SNAPSHOT_VERSION) {
+                Log.w(TAG, "Ignoring DNS cache snapshot version " + version);
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; ++i) {
+                String question = in.readUTF();
+                long storedMs = in.readLong();
+                long expirationMs = in.readLong();
+                byte[] response = new byte[in.readInt()];
+                in.readFully(response);
+                if (expirationMs > nowMs && storedMs <= nowMs) {
+                    synchronized (this) {
+                        // entries learned during the current session are more recent
+                        if (!entries.containsKey(question)) {
+                            entries.put(question, new Entry(response, storedMs, expirationMs));
+                        }
+                    }
+                }
+            }
+        } catch (FileNotFoundException e) {
+            Log.d(TAG, "No DNS cache snapshot");
+        }
+    }
+
+    @NonNull
+    @Override
+    public synchronized String toString() {
+        return "entries=" + entries.size() + ", hits=" + hits + ", misses=" + misses + ", evictions=" + evictions;
+    }
+
+    private static final class Entry {
+
+        private final byte[] response;
+        private final long storedMs;
+        private final long expirationMs;
+
+        Entry(byte[] response, long storedMs, long expirationMs) {
+            this.response = response;
+            this.storedMs = storedMs;
+            this.expirationMs = expirationMs;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2017 Genymobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.genymobile.gnirehtet;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Answer the DNS queries sent to the configured DNS servers from the {@link DnsCache}, without crossing the tunnel.
+ * <p>
+ * On a miss, the query is forwarded, and the response fills the cache on its way back (see {@link DnsCachingSink}).
+ */
+public class DnsCacheInterceptor implements PacketInterceptor {
+
+    private static final int BUFSIZE = 0x10000;
+
+    private final DnsCache cache;
+    private final DnsServers dnsServers;
+    private final PacketSink deviceSink;
+    private final ByteBuffer reply = ByteBuffer.allocate(BUFSIZE);
+
+    public DnsCacheInterceptor(DnsCache cache, DnsServers dnsServers, PacketSink deviceSink) {
+        this.cache = cache;
+        this.dnsServers = dnsServers;
+        this.deviceSink = deviceSink;
+    }
+
+    @Override
+    public boolean intercept(ByteBuffer packet, PacketSink upstream) throws IOException {
+        int index = packet.position();
+        int end = packet.limit();
+        int dns = dnsServers.getQueryIndex(packet, index, end - index);
+        if (dns == -1 || !DnsMessages.isQuery(packet, dns, end)) {
+            return false;
+        }
+        String question = DnsMessages.readQuestion(packet, dns, end);
+        if (question == null) {
+            return false;
+        }
+        byte[] response = cache.get(question, System.currentTimeMillis());
+        if (response == null) {
+            return false;
+        }
+
+        ByteBuffer payload = ByteBuffer.wrap(response);
+        // same ID as the query
+        payload.putShort(0, packet.getShort(dns));
+        // same question as the query, the case may differ (the lengths are equal)
+        int questionEnd = DnsMessages.getQuestionEnd(packet, dns, end);
+        for (int i = DnsMessages.HEADER_LENGTH; i < questionEnd - dns; ++i) {
+            payload.put(i, packet.get(dns + i));
+        }
+
+        reply.clear();
+        UdpPackets.buildReply(packet, index, payload, reply);
+        deviceSink.write(reply);
+        return true;
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2017 Genymobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.genymobile.gnirehtet;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Fill the {@link DnsCache} with the DNS responses received from the configured DNS servers, then write them to the
+ * device.
+ */
+public class DnsCachingSink implements PacketSink {
+
+    private final PacketSink delegate;
+    private final DnsCache cache;
+    private final DnsServers dnsServers;
+
+    public DnsCachingSink(PacketSink delegate, DnsCache cache, DnsServers dnsServers) {
+        this.delegate = delegate;
+        this.cache = cache;
+        this.dnsServers = dnsServers;
+    }
+
+    @Override
+    public void write(ByteBuffer packet) throws IOException {
+        store(packet);
+        delegate.write(packet);
+    }
+
+    private void store(ByteBuffer packet) {
+        int index = packet.position();
+        int end = packet.limit();
+        int dns = dnsServers.getResponseIndex(packet, index, end - index);
+        if (dns == -1 || !DnsMessages.isResponse(packet, dns, end)) {
+            return;
+        }
+        String question = DnsMessages.readQuestion(packet, dns, end);
+        if (question == null) {
+            return;
+        }
+        long ttl = DnsMessages.getCacheTtl(packet, dns, end);
+        if (ttl <= 0) {
+            return;
+        }
+        byte[] response = new byte[end - dns];
+        for (int i = 0; i < response.length; ++i) {
+            response[i] = packet.get(dns + i);
+        }
+        cache.put(question, response, ttl, System.currentTimeMillis());
+    }
+}
@@ -0,0 +1,321 @@
+/*
+ * Copyright (C) 2017 Genymobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.genymobile.gnirehtet;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Helpers to parse DNS messages (RFC 1035), stored in a buffer from {@code dns} (the start of the message) to
+ * {@code end}.
+ */
+public final class DnsMessages {
+
+    public static final int DNS_PORT = 53;
+    public static final int HEADER_LENGTH = 12;
+    public static final int MAX_NAME_LENGTH = 255;
+
+    public static final int TYPE_SOA = 6;
+    public static final int TYPE_OPT = 41;
+
+    public static final int RCODE_NOERROR = 0;
+    public static final int RCODE_NXDOMAIN = 3;
+
+    private static final int FLAG_QR = 0x8000;
+    private static final int FLAG_TC = 0x0200;
+    private static final int FLAG_CD = 0x0010;
+    // in the TTL field of the OPT record (RFC 6891)
+    private static final int EDNS_FLAG_DO = 0x8000;
+    // MNAME and RNAME (at least 1 byte each), then 5 fields of 32 bits
+    private static final int SOA_MIN_DATA_LENGTH = 22;
+    private static final int OPCODE_MASK = 0x7800;
+    private static final int RCODE_MASK = 0x000f;
+
+    private DnsMessages() {
+        // not instantiable
+    }
+
+    @SuppressWarnings("checkstyle:MagicNumber")
+    private static int readFlags(ByteBuffer buffer, int dns) {
+        return Binary.unsigned(buffer.getShort(dns + 2));
+    }
+
+    @SuppressWarnings("checkstyle:MagicNumber")
+    private static int readCount(ByteBuffer buffer, int dns, int section) {
+        // QDCOUNT, ANCOUNT, NSCOUNT and ARCOUNT follow the flags
+        return Binary.unsigned(buffer.getShort(dns + 4 + 2 * section));
+    }
+
+    public static int readRcode(ByteBuffer buffer, int dns) {
+        return readFlags(buffer, dns) & RCODE_MASK;
+    }
+
+    /**
+     * Indicate whether the message is a standard query with a single question.
+     */
+    public static boolean isQuery(ByteBuffer buffer, int dns, int end) {
+        if (end - dns < HEADER_LENGTH) {
+            return false;
+        }
+        int flags = readFlags(buffer, dns);
+        return (flags & (FLAG_QR | OPCODE_MASK)) == 0 && readCount(buffer, dns, 0) == 1;
+    }
+
+    /**
+     * Indicate whether the message is a response (possibly truncated) to a query with a single question.
+     */
+    public static boolean isAnyResponse(ByteBuffer buffer, int dns, int end) {
+        if (end - dns < HEADER_LENGTH) {
+            return false;
+        }
+        int flags = readFlags(buffer, dns);
+        return (flags & (FLAG_QR | OPCODE_MASK)) == FLAG_QR && readCount(buffer, dns, 0) == 1;
+    }
+
+    /**
+     * Indicate whether the message is a complete response to a standard query with a single question.
+     */
+    public static boolean isResponse(ByteBuffer buffer, int dns, int end) {
+        if (end - dns < HEADER_LENGTH) {
+            return false;
+        }
+        int flags = readFlags(buffer, dns);
+        return (flags & (FLAG_QR | OPCODE_MASK | FLAG_TC)) == FLAG_QR && readCount(buffer, dns, 0) == 1;
+    }
+
+    /**
+     * Skip a (possibly compressed) domain name.
+     *
+     * @return the position following the name, or {@code -1} if it is invalid
+     */
+    @SuppressWarnings("checkstyle:MagicNumber")
+    public static int skipName(ByteBuffer buffer, int pos, int end) {
+        while (pos < end) {
+            int length = Binary.unsigned(buffer.get(pos));
+            if (length == 0) {
+                return pos + 1;
+            }
+            if ((length & 0xc0) == 0xc0) {
+                // a pointer terminates the name
+                return pos + 2 <= end ? pos + 2 : -1;
+            }
+            if ((length & 0xc0) != 0) {
+                return -1;
+            }
+            pos += 1 + length;
+        }
+        return -1;
+    }
+
+    /**
+     * Return the position following the (single) question.
+     *
+     * @return the position, or {@code -1} if the question is invalid
+     */
+    public static int getQuestionEnd(ByteBuffer buffer, int dns, int end) {
+        int pos = skipName(buffer, dns + HEADER_LENGTH, end);
+        if (pos == -1 || pos + 4 > end) {
+            return -1;
+        }
+        // QTYPE and QCLASS
+        return pos + 4;
+    }
+
+    /**
+     * Read the question as a case-insensitive string, like "example.com./1/1" (name, type and class).
+     * <p>
+     * Since the answers depend on them, "/cd" is appended if checking is disabled, and "/do" if DNSSEC records are
+     * requested (the DO bit of the OPT record, echoed in the response).
+     *
+     * @return the question, or {@code null} if it is invalid or compressed
+     */
+    @SuppressWarnings("checkstyle:MagicNumber")
+    public static String readQuestion(ByteBuffer buffer, int dns, int end) {
+        StringBuilder builder = new StringBuilder();
+        int pos = dns + HEADER_LENGTH;
+        while (true) {
+            if (pos >= end) {
+                return null;
+            }
+            int length = Binary.unsigned(buffer.get(pos++));
+            if (length == 0) {
+                break;
+            }
+            if ((length & 0xc0) != 0 || pos + length > end) {
+                return null;
+            }
+            for (int i = 0; i < length; ++i) {
+                builder.append(Character.toLowerCase((char) Binary.unsigned(buffer.get(pos + i))));
+            }
+            builder.append('.');
+            pos += length;
+        }
+        if (pos + 4 > end) {
+            return null;
+        }
+        builder.append('/').append(Binary.unsigned(buffer.getShort(pos)));
+        builder.append('/').append(Binary.unsigned(buffer.getShort(pos + 2)));
+        if ((readFlags(buffer, dns) & FLAG_CD) != 0) {
+            builder.append("/cd");
+        }
+        if (isDnssecOk(buffer, dns, pos + 4, end)) {
+            builder.append("/do");
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Indicate whether the message has an OPT record with the DO bit set (RFC 3225).
+     *
+     * @param pos the position following the question
+     */
+    @SuppressWarnings("checkstyle:MagicNumber")
+    private static boolean isDnssecOk(ByteBuffer buffer, int dns, int pos, int end) {
+        int records = readCount(buffer, dns, 1) + readCount(buffer, dns, 2) + readCount(buffer, dns, 3);
+        for (int i = 0; i < records; ++i) {
+            pos = skipName(buffer, pos, end);
+            if (pos == -1 || pos + 10 > end) {
+                return false;
+            }
+            if (Binary.unsigned(buffer.getShort(pos)) == TYPE_OPT) {
+                return (buffer.getInt(pos + 4) & EDNS_FLAG_DO) != 0;
+            }
+            pos += 10 + Binary.unsigned(buffer.getShort(pos + 8));
+        }
+        return false;
+    }
+
+    /**
+     * Read the name of the question, in lower case, with its labels reversed ("www.example.com" is read as
+     * "com.example.www").
+     *
+     * @param buffer the buffer
+     * @param dns the position of the DNS message
+     * @param end the end of the DNS message
+     * @param name the array to write the name to, at least {@link #MAX_NAME_LENGTH} bytes
+     * @return the length of the name, or {@code -1} if it is invalid or compressed
+     */
+    @SuppressWarnings("checkstyle:MagicNumber")
+    public static int readReversedQuestionName(ByteBuffer buffer, int dns, int end, byte[] name) {
+        // the first label is written at the end
+        int nameLength = -1;
+        int pos = dns + HEADER_LENGTH;
+        int labels = pos;
+        while (true) {
+            if (pos >= end) {
+                return -1;
+            }
+            int length = Binary.unsigned(buffer.get(pos));
+            if (length == 0) {
+                break;
+            }
+            if ((length & 0xc0) != 0 || pos + 1 + length > end) {
+                return -1;
+            }
+            nameLength += 1 + length;
+            pos += 1 + length;
+        }
+        if (nameLength <= 0 || nameLength > MAX_NAME_LENGTH) {
+            return nameLength == -1 ? 0 : -1;
+        }
+        int write = nameLength;
+        pos = labels;
+        while (true) {
+            int length = Binary.unsigned(buffer.get(pos++));
+            if (length == 0) {
+                break;
+            }
+            write -= length;
+            for (int i = 0; i < length; ++i) {
+                name[write + i] = (byte) Character.toLowerCase((char) Binary.unsigned(buffer.get(pos + i)));
+            }
+            pos += length;
+            if (write > 0) {
+                name[--write] = '.';
+            }
+        }
+        return nameLength;
+    }
+
+    /**
+     * Return how long the response may be cached: the minimal TTL of the answers for a positive response, or the
+     * negative caching TTL from the SOA record (RFC 2308) for a negative response.
+     *
+     * @return the TTL in seconds, or {@code -1} if the response must not be cached
+     */
+    @SuppressWarnings("checkstyle:MagicNumber")
+    public static long getCacheTtl(ByteBuffer buffer, int dns, int end) {
+        int rcode = readRcode(buffer, dns);
+        if (rcode != RCODE_NOERROR && rcode != RCODE_NXDOMAIN) {
+            return -1;
+        }
+        int answers = readCount(buffer, dns, 1);
+        int authorities = readCount(buffer, dns, 2);
+        int pos = getQuestionEnd(buffer, dns, end);
+        long minTtl = Long.MAX_VALUE;
+        for (int i = 0; i < answers + authorities && pos != -1; ++i) {
+            pos = skipName(buffer, pos, end);
+            if (pos == -1 || pos + 10 > end) {
+                return -1;
+            }
+            int type = Binary.unsigned(buffer.getShort(pos));
+            long ttl = Binary.unsigned(buffer.getInt(pos + 4));
+            int dataLength = Binary.unsigned(buffer.getShort(pos + 8));
+            int data = pos + 10;
+            pos = data + dataLength;
+            if (pos > end) {
+                return -1;
+            }
+            if (i < answers) {
+                if (rcode == RCODE_NOERROR) {
+                    minTtl = Math.min(minTtl, ttl);
+                }
+            } else if (answers == 0 && type == TYPE_SOA && dataLength >= SOA_MIN_DATA_LENGTH) {
+                // the SOA MINIMUM field is the last 32 bits of its data
+                long minimum = Binary.unsigned(buffer.getInt(pos - 4));
+                minTtl = Math.min(minTtl, Math.min(ttl, minimum));
+            }
+        }
+        if (pos == -1 || minTtl == Long.MAX_VALUE) {
+            return -1;
+        }
+        return minTtl;
+    }
+
+    /**
+     * Decrease the TTL of all the records (except OPT pseudo-records) of a response.
+     *
+     * @return {@code false} if the response is invalid
+     */
+    @SuppressWarnings("checkstyle:MagicNumber")
+    public static boolean decreaseTtls(ByteBuffer buffer, int dns, int end, long elapsedSeconds) {
+        int records = readCount(buffer, dns, 1) + readCount(buffer, dns, 2) + readCount(buffer, dns, 3);
+        int pos = getQuestionEnd(buffer, dns, end);
+        for (int i = 0; i < records && pos != -1; ++i) {
+            pos = skipName(buffer, pos, end);
+            if (pos == -1 || pos + 10 > end) {
+                return false;
+            }
+            int type = Binary.unsigned(buffer.getShort(pos));
+            if (type != TYPE_OPT) {
+                long ttl = Binary.unsigned(buffer.getInt(pos + 4));
+                buffer.putInt(pos + 4, (int) Math.max(0, ttl - elapsedSeconds));
+            }
+            pos += 10 + Binary.unsigned(buffer.getShort(pos + 8));
+        }
+        return pos != -1 && pos <= end;
+    }
+}
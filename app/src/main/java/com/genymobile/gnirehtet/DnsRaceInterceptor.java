@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2017 Genymobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.genymobile.gnirehtet;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Send a copy of every DNS query to the other DNS servers selected by the {@link DnsRacer}.
+ * <p>
+ * The original query is forwarded unless its server is excluded from the race.
+ */
+public class DnsRaceInterceptor implements PacketInterceptor {
+
+    private static final int BUFSIZE = 0x10000;
+
+    private final DnsRacer racer;
+    private final DnsServers dnsServers;
+    private final ByteBuffer copy = ByteBuffer.allocate(BUFSIZE);
+
+    public DnsRaceInterceptor(DnsRacer racer, DnsServers dnsServers) {
+        this.racer = racer;
+        this.dnsServers = dnsServers;
+    }
+
+    @Override
+    public boolean intercept(ByteBuffer packet, PacketSink upstream) throws IOException {
+        int index = packet.position();
+        int end = packet.limit();
+        int length = end - index;
+        int dns = dnsServers.getQueryIndex(packet, index, length);
+        if (dns == -1 || !DnsMessages.isQuery(packet, dns, end)) {
+            return false;
+        }
+        int udp = dns - UdpPackets.UDP_HEADER_LENGTH;
+        int originalServer = dnsServers.indexOfDestination(packet, index);
+        long key = DnsRacer.key(packet, index, UdpPackets.readSourcePort(packet, udp), dns);
+        int mask = racer.startRace(key, originalServer, System.nanoTime());
+
+        for (int i = 0; i < dnsServers.size(); ++i) {
+            if (i != originalServer && (mask & (1 << i)) != 0) {
+                copy.clear();
+                copy.put(packet.duplicate());
+                copy.flip();
+                UdpPackets.rewriteAddress(copy, 0, length, false, dnsServers.getAddress(i));
+                upstream.write(copy);
+            }
+        }
+        // consume the original query if its server is excluded
+        return (mask & (1 << originalServer)) == 0;
+    }
+}
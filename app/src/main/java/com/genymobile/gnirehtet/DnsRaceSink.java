@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2017 Genymobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.genymobile.gnirehtet;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Keep only the first valid response of every DNS race (see {@link DnsRacer}), as if it came from the server the query
+ * was sent to, then write it to the device.
+ */
+public class DnsRaceSink implements PacketSink {
+
+    private final PacketSink delegate;
+    private final DnsRacer racer;
+    private final DnsServers dnsServers;
+
+    public DnsRaceSink(PacketSink delegate, DnsRacer racer, DnsServers dnsServers) {
+        this.delegate = delegate;
+        this.racer = racer;
+        this.dnsServers = dnsServers;
+    }
+
+    @Override
+    public void write(ByteBuffer packet) throws IOException {
+        int index = packet.position();
+        int end = packet.limit();
+        int length = end - index;
+        int dns = dnsServers.getResponseIndex(packet, index, length);
+        if (dns != -1 && DnsMessages.isAnyResponse(packet, dns, end)) {
+            int udp = dns - UdpPackets.UDP_HEADER_LENGTH;
+            int server = dnsServers.indexOfSource(packet, index);
+            long key = DnsRacer.key(packet, index, UdpPackets.readDestinationPort(packet, udp), dns);
+            int rcode = DnsMessages.readRcode(packet, dns);
+            boolean valid = rcode == DnsMessages.RCODE_NOERROR || rcode == DnsMessages.RCODE_NXDOMAIN;
+            int result = racer.onResponse(key, server, valid, System.nanoTime());
+            if (result == DnsRacer.DROP) {
+                packet.position(end);
+                return;
+            }
+            if (result != DnsRacer.NOT_RACED && result != server) {
+                // the application expects the response from the server it queried
+                UdpPackets.rewriteAddress(packet, index, length, true, dnsServers.getAddress(result));
+            }
+        }
+        delegate.write(packet);
+    }
+}
@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2017 Genymobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.genymobile.gnirehtet;
+
+import androidx.annotation.NonNull;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Race every DNS query across the configured DNS servers, and keep the first valid answer.
+ * <p>
+ * The latency of every server is tracked, so that persistently slow (or unresponsive) servers are excluded from the
+ * races. Every {@link #PROBE_INTERVAL} queries, all the servers are queried, so that an excluded server may recover.
+ * <p>
+ * Expired races are kept for a while, so that late responses from servers the application did not query are still
+ * dropped, instead of reaching the device from an unexpected address.
+ * <p>
+ * It is shared by the device-to-tunnel thread ({@link DnsRaceInterceptor}) and the tunnel-to-device threads
+ * ({@link DnsRaceSink}).
+ */
+public class DnsRacer {
+
+    // the servers are stored as bits of an int
+    public static final int MAX_SERVERS = Integer.SIZE;
+
+    /**
+     * Returned by {@link #onResponse(long, int, boolean, long)} for a response which must be dropped.
+     */
+    public static final int DROP = -1;
+
+    /**
+     * Returned by {@link #onResponse(long, int, boolean, long)} for a response which is not part of a race.
+     */
+    public static final int NOT_RACED = -2;
+
+    private static final long RACE_TIMEOUT_NS = 5_000_000_000L;
+    private static final long TOMBSTONE_TIMEOUT_NS = 10_000_000_000L;
+    private static final int MAX_RACES = 1024;
+    private static final int PROBE_INTERVAL = 20;
+
+    private static final int MIN_SAMPLES = 5;
+    private static final double LATENCY_EWMA_WEIGHT = 0.2;
+    // a server is slow if its latency is both 3 times and 50ms more than the latency of the fastest server
+    private static final double SLOW_FACTOR = 3;
+    private static final double SLOW_MIN_DIFFERENCE_MS = 50;
+    private static final int MAX_CONSECUTIVE_TIMEOUTS = 3;
+
+    private final DnsServers dnsServers;
+    private final ServerStats[] serverStats;
+    // in insertion order, so the oldest races come first
+    private final Map<Long, Race> races = new LinkedHashMap<>();
+    // the expired races, also in insertion order
+    private final Map<Long, Race> tombstones = new LinkedHashMap<>();
+    private long queries;
+
+    public DnsRacer(DnsServers dnsServers) {
+        if (dnsServers.size() > MAX_SERVERS) {
+            throw new IllegalArgumentException("Too many DNS servers: " + dnsServers.size());
+        }
+        this.dnsServers = dnsServers;
+        serverStats = new ServerStats[dnsServers.size()];
+        for (int i = 0; i < serverStats.length; ++i) {
+            serverStats[i] = new ServerStats(dnsServers.getAddress(i));
+        }
+    }
+
+    /**
+     * Identify a query (or its responses) by IP version, client port and DNS ID.
+     */
+    public static long key(ByteBuffer buffer, int index, int clientPort, int dns) {
+        long version = IPPackets.readVersion(buffer, index);
+        return version << 32 | (long) clientPort << 16 | Binary.unsigned(buffer.getShort(dns));
+    }
+
+    /**
+     * Start a race for a query sent to {@code originalServer}.
+     *
+     * @param key the query key
+     * @param originalServer the index of the server the query is sent to
+     * @param nowNs the current time
+     * @return the set of servers to query, as a bit mask of server indices
+     */
+    public synchronized int startRace(long key, int originalServer, long nowNs) {
+        expireRaces(nowNs);
+
+        boolean probe = ++queries % PROBE_INTERVAL == 0;
+        int addressLength = dnsServers.getAddress(originalServer).length;
+        double bestLatency = getBestLatency();
+        int mask = 0;
+        for (int i = 0; i < serverStats.length; ++i) {
+            // the address family of the packet cannot change
+            if (dnsServers.getAddress(i).length == addressLength && (probe || !isExcluded(i, bestLatency))) {
+                mask |= 1 << i;
+            }
+        }
+        if (mask == 0) {
+            // all the servers are excluded, do not let the query fail
+            mask = 1 << originalServer;
+        }
+        tombstones.remove(key);
+        races.put(key, new Race(originalServer, mask, nowNs));
+        return mask;
+    }
+
+    private boolean isExcluded(int server, double bestLatency) {
+        ServerStats stats = serverStats[server];
+        if (stats.consecutiveTimeouts >= MAX_CONSECUTIVE_TIMEOUTS) {
+            return true;
+        }
+        return stats.samples >= MIN_SAMPLES && stats.latencyMs > bestLatency * SLOW_FACTOR
+                && stats.latencyMs - bestLatency > SLOW_MIN_DIFFERENCE_MS;
+    }
+
+    private double getBestLatency() {
+        double best = Double.MAX_VALUE;
+        for (ServerStats stats : serverStats) {
+            if (stats.samples >= MIN_SAMPLES && stats.consecutiveTimeouts < MAX_CONSECUTIVE_TIMEOUTS) {
+                best = Math.min(best, stats.latencyMs);
+            }
+        }
+        return best;
+    }
+
+    private void expireRaces(long nowNs) {
+        Iterator<Race> tombstoneIterator = tombstones.values().iterator();
+        while (tombstoneIterator.hasNext()) {
+            Race race = tombstoneIterator.next();
+            if (!isTombstoneExpired(race, nowNs) && tombstones.size() <= MAX_RACES) {
+                // the next tombstones are more recent
+                break;
+            }
+            tombstoneIterator.remove();
+        }
+
+        Iterator<Map.Entry<Long, Race>> iterator = races.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Long, Race> entry = iterator.next();
+            Race race = entry.getValue();
+            if (nowNs - race.startNs < RACE_TIMEOUT_NS && races.size() <= MAX_RACES) {
+                // the next races are more recent
+                break;
+            }
+            int unanswered = race.sentMask & ~race.respondedMask;
+            for (int i = 0; i < serverStats.length; ++i) {
+                if ((unanswered & (1 << i)) != 0) {
+                    ++serverStats[i].timeouts;
+                    ++serverStats[i].consecutiveTimeouts;
+                }
+            }
+            iterator.remove();
+            tombstones.put(entry.getKey(), race);
+        }
+    }
+
+    private static boolean isTombstoneExpired(Race race, long nowNs) {
+        return nowNs - race.startNs >= RACE_TIMEOUT_NS + TOMBSTONE_TIMEOUT_NS;
+    }
+
+    /**
+     * Handle a response from a DNS server.
+     *
+     * @param key the response key
+     * @param server the index of the server which sent the response
+     * @param valid {@code true} if the response is a valid answer (not a server failure)
+     * @param nowNs the current time
+     * @return the index of the server the response must appear to come from, {@link #DROP} or {@link #NOT_RACED}
+     */
+    public synchronized int onResponse(long key, int server, boolean valid, long nowNs) {
+        Race race = races.get(key);
+        if (race == null) {
+            return onLateResponse(key, server, nowNs);
+        }
+        if ((race.sentMask & (1 << server)) == 0) {
+            return NOT_RACED;
+        }
+        ServerStats stats = serverStats[server];
+        if ((race.respondedMask & (1 << server)) == 0) {
+            race.respondedMask |= 1 << server;
+            double latencyMs = (nowNs - race.startNs) / 1e6;
+            stats.latencyMs = stats.samples == 0 ? latencyMs
+                    : stats.latencyMs + LATENCY_EWMA_WEIGHT * (latencyMs - stats.latencyMs);
+            ++stats.samples;
+            stats.consecutiveTimeouts = 0;
+        }
+        boolean last = race.respondedMask == race.sentMask;
+        if (last) {
+            races.remove(key);
+        }
+        if (race.answered) {
+            return DROP;
+        }
+        if (!valid && !last) {
+            // another server may give a valid answer
+            return DROP;
+        }
+        race.answered = true;
+        ++stats.wins;
+        return race.originalServer;
+    }
+
+    private int onLateResponse(long key, int server, long nowNs) {
+        Race race = tombstones.get(key);
+        if (race == null || isTombstoneExpired(race, nowNs) || (race.sentMask & (1 << server)) == 0) {
+            return NOT_RACED;
+        }
+        if (race.answered || server != race.originalServer) {
+            // the application already got its answer, or never queried this server
+            return DROP;
+        }
+        race.answered = true;
+        return server;
+    }
+
+    @NonNull
+    @Override
+    public synchronized String toString() {
+        StringBuilder builder = new StringBuilder();
+        double bestLatency = getBestLatency();
+        for (int i = 0; i < serverStats.length; ++i) {
+            ServerStats stats = serverStats[i];
+            if (i != 0) {
+                builder.append(", ");
+            }
+            builder.append(stats.address.getHostAddress()).append(": ")
+                    .append(String.format("%.1f", stats.latencyMs)).append("ms (").append(stats.samples).append(" samples), ")
+                    .append(stats.wins).append(" wins, ").append(stats.timeouts).append(" timeouts");
+            if (isExcluded(i, bestLatency)) {
+                builder.append(" [excluded]");
+            }
+        }
+        return builder.toString();
+    }
+
+    private static final class Race {
+
+        private final int originalServer;
+        private final int sentMask;
+        private final long startNs;
+        private int respondedMask;
+        private boolean answered;
+
+        Race(int originalServer, int sentMask, long startNs) {
+            this.originalServer = originalServer;
+            this.sentMask = sentMask;
+            this.startNs = startNs;
+        }
+    }
+
+    private static final class ServerStats {
+
+        private final InetAddress address;
+        private double latencyMs;
+        private int samples;
+        private int wins;
+        private int timeouts;
+        private int consecutiveTimeouts;
+
+        ServerStats(byte[] address) {
+            this.address = Net.toInetAddress(address);
+        }
+    }
+}
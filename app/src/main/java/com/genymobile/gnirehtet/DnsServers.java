@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2017 Genymobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.genymobile.gnirehtet;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * The DNS servers configured on the VPN interface, to recognize DNS traffic without allocating.
+ * <p>
+ * They may be replaced when the VPN interface is, but their number never changes, so that a server index remains valid.
+ */
+public class DnsServers {
+
+    private volatile byte[][] addresses;
+
+    public DnsServers(InetAddress[] dnsServers) {
+        addresses = toAddresses(dnsServers);
+    }
+
+    private static byte[][] toAddresses(InetAddress[] dnsServers) {
+        byte[][] addresses = new byte[dnsServers.length][];
+        for (int i = 0; i < dnsServers.length; ++i) {
+            addresses[i] = dnsServers[i].getAddress();
+        }
+        return addresses;
+    }
+
+    /**
+     * Replace the DNS servers.
+     *
+     * @param dnsServers the new DNS servers, as many as the current ones
+     */
+    public void update(InetAddress[] dnsServers) {
+        if (dnsServers.length != addresses.length) {
+            throw new IllegalArgumentException("The number of DNS servers must not change");
+        }
+        addresses = toAddresses(dnsServers);
+    }
+
+    public int size() {
+        return addresses.length;
+    }
+
+    public byte[] getAddress(int serverIndex) {
+        return addresses[serverIndex];
+    }
+
+    /**
+     * Return the absolute position of the DNS message of the packet starting at {@code index}, if it is a datagram
+     * sent to a DNS server.
+     *
+     * @param buffer the buffer
+     * @param index the absolute position of the packet
+     * @param length the packet length
+     * @return the position of the DNS message, or {@code -1}
+     */
+    public int getQueryIndex(ByteBuffer buffer, int index, int length) {
+        int udp = UdpPackets.getUdpIndex(buffer, index, length);
+        if (udp == -1 || UdpPackets.readDestinationPort(buffer, udp) != DnsMessages.DNS_PORT) {
+            return -1;
+        }
+        return indexOfDestination(buffer, index) != -1 ? udp + UdpPackets.UDP_HEADER_LENGTH : -1;
+    }
+
+    /**
+     * Return the absolute position of the DNS message of the packet starting at {@code index}, if it is a datagram
+     * received from a DNS server.
+     *
+     * @param buffer the buffer
+     * @param index the absolute position of the packet
+     * @param length the packet length
+     * @return the position of the DNS message, or {@code -1}
+     */
+    public int getResponseIndex(ByteBuffer buffer, int index, int length) {
+        int udp = UdpPackets.getUdpIndex(buffer, index, length);
+        if (udp == -1 || UdpPackets.readSourcePort(buffer, udp) != DnsMessages.DNS_PORT) {
+            return -1;
+        }
+        return indexOfSource(buffer, index) != -1 ? udp + UdpPackets.UDP_HEADER_LENGTH : -1;
+    }
+
+    /**
+     * Return the index of the DNS server the packet starting at {@code index} is sent to.
+     *
+     * @return the server index, or {@code -1} if the destination is not a DNS server
+     */
+    public int indexOfDestination(ByteBuffer buffer, int index) {
+        boolean ipv6 = IPPackets.readVersion(buffer, index) == 6;
+        return indexOf(buffer, IPPackets.getDestinationAddressIndex(buffer, index), ipv6 ? 16 : 4);
+    }
+
+    /**
+     * Return the index of the DNS server the packet starting at {@code index} is received from.
+     *
+     * @return the server index, or {@code -1} if the source is not a DNS server
+     */
+    public int indexOfSource(ByteBuffer buffer, int index) {
+        boolean ipv6 = IPPackets.readVersion(buffer, index) == 6;
+        return indexOf(buffer, IPPackets.getSourceAddressIndex(buffer, index), ipv6 ? 16 : 4);
+    }
+
+    private int indexOf(ByteBuffer buffer, int addressIndex, int addressLength) {
+        byte[][] addresses = this.addresses;
+        for (int i = 0; i < addresses.length; ++i) {
+            byte[] address = addresses[i];
+            if (address.length == addressLength && matches(buffer, addressIndex, address)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean matches(ByteBuffer buffer, int addressIndex, byte[] address) {
+        for (int i = 0; i < address.length; ++i) {
+            if (buffer.get(addressIndex + i) != address[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2017 Genymobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.genymobile.gnirehtet;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Immutable set of blocked domains, matching the domains and all their subdomains.
+ * <p>
+ * Lists may contain hundreds of thousands of entries, so the domains are stored in a compact sorted table: the names,
+ * with their labels reversed ("ads.example.com" is stored as "com.example.ads") so that a domain and its subdomains
+ * share a prefix, are concatenated into a single byte array, indexed by a sorted array of offsets. A lookup is a binary
+ * search per label of the name.
+ */
+public final class DomainBlocklist {
+
+    public static final DomainBlocklist EMPTY = new DomainBlocklist(new byte[0], new int[] {0});
+
+    private static final int MAX_NAME_LENGTH = 253;
+
+    // the names, in sorted order
+    private final byte[] data;
+    // the name i is stored in data[offsets[i]..offsets[i + 1])
+    private final int[] offsets;
+
+    private DomainBlocklist(byte[] data, int[] offsets) {
+        this.data = data;
+        this.offsets = offsets;
+    }
+
+    /**
+     * Parse a hosts-style list: one entry per line, either a domain alone, or an address followed by domains.
+     * <p>
+     * Comments (starting with '#'), invalid names and local names are ignored.
+     *
+     * @param reader the list
+     * @return the blocklist
+     * @throws IOException if an I/O error occurs
+     */
+    public static DomainBlocklist parse(Reader reader) throws IOException {
+        List<String> names = new ArrayList<>();
+        BufferedReader bufferedReader = new BufferedReader(reader);
+        String line;
+        while ((line = bufferedReader.readLine()) != null) {
+            int comment = line.indexOf('#');
+            if (comment != -1) {
+                line = line.substring(0, comment);
+            }
+            String[] tokens = line.trim().split("\\s+");
+            // in hosts format, the first token is an address
+            int first = tokens.length > 1 ? 1 : 0;
+            for (int i = first; i < tokens.length; ++i) {
+                String name = normalize(tokens[i]);
+                if (name != null) {
+                    names.add(reverseLabels(name));
+                }
+            }
+        }
+        return build(names);
+    }
+
+    /**
+     * Create a blocklist from domain names.
+     *
+     * @param domains the domains
+     * @return the blocklist
+     */
+    public static DomainBlocklist of(Iterable<String> domains) {
+        List<String> names = new ArrayList<>();
+        for (String domain : domains) {
+            String name = normalize(domain);
+            if (name != null) {
+                names.add(reverseLabels(name));
+            }
+        }
+        return build(names);
+    }
+
+    private static DomainBlocklist build(List<String> names) {
+        // the names are ASCII, so the String order is the byte order
+        Collections.sort(names);
+        int count = 0;
+        int size = 0;
+        String previous = null;
+        for (String name : names) {
+            if (!name.equals(previous)) {
+                ++count;
+                size += name.length();
+                previous = name;
+            }
+        }
+        byte[] data = new byte[size];
+        int[] offsets = new int[count + 1];
+        int i = 0;
+        int offset = 0;
+        previous = null;
+        for (String name : names) {
+            if (!name.equals(previous)) {
+                offsets[i++] = offset;
+                byte[] bytes = name.getBytes(StandardCharsets.US_ASCII);
+                System.arraycopy(bytes, 0, data, offset, bytes.length);
+                offset += bytes.length;
+                previous = name;
+            }
+        }
+        offsets[count] = offset;
+        return new DomainBlocklist(data, offsets);
+    }
+
+    private static String normalize(String token) {
+        String name = token.toLowerCase(Locale.ROOT);
+        if (name.endsWith(".")) {
+            name = name.substring(0, name.length() - 1);
+        }
+        if (name.isEmpty() || name.length() > MAX_NAME_LENGTH || name.startsWith(".") || name.contains("..")) {
+            return null;
+        }
+        if (name.indexOf('.') == -1) {
+            // "localhost", "broadcasthost", top-level domains...
+            return null;
+        }
+        boolean digitsAndDotsOnly = true;
+        for (int i = 0; i < name.length(); ++i) {
+            char c = name.charAt(i);
+            boolean valid = (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '-' || c == '_' || c == '.';
+            if (!valid) {
+                return null;
+            }
+            if (c != '.' && (c < '0' || c > '9')) {
+                digitsAndDotsOnly = false;
+            }
+        }
+        // an address is not a domain
+        return digitsAndDotsOnly ? null : name;
+    }
+
+    private static String reverseLabels(String name) {
+        StringBuilder builder = new StringBuilder(name.length());
+        int end = name.length();
+        while (end > 0) {
+            int start = name.lastIndexOf('.', end - 1) + 1;
+            if (builder.length() != 0) {
+                builder.append('.');
+            }
+            builder.append(name, start, end);
+            end = start - 1;
+        }
+        return builder.toString();
+    }
+
+    public int size() {
+        return offsets.length - 1;
+    }
+
+    /**
+     * Indicate whether a domain is blocked.
+     *
+     * @param domain the domain, like "ads.example.com"
+     * @return {@code true} if the domain or one of its parents is in the list
+     */
+    public boolean isBlocked(String domain) {
+        String name = normalize(domain);
+        if (name == null) {
+            return false;
+        }
+        byte[] reversed = reverseLabels(name).getBytes(StandardCharsets.US_ASCII);
+        return isBlocked(reversed, reversed.length);
+    }
+
+    /**
+     * Indicate whether a name, with its labels already reversed, in lower case, is blocked.
+     *
+     * @param reversedName the name, like "com.example.ads"
+     * @param length the length of the name
+     * @return {@code true} if the name or one of its parents is in the list
+     */
+    public boolean isBlocked(byte[] reversedName, int length) {
+        if (size() == 0) {
+            return false;
+        }
+        for (int i = 0; i <= length; ++i) {
+            // every label boundary is a parent domain
+            if ((i == length || reversedName[i] == '.') && contains(reversedName, i)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean contains(byte[] key, int keyLength) {
+        int low = 0;
+        int high = size() - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int cmp = compare(middle, key, keyLength);
+            if (cmp < 0) {
+                low = middle + 1;
+            } else if (cmp > 0) {
+                high = middle - 1;
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int compare(int entry, byte[] key, int keyLength) {
+        int start = offsets[entry];
+        int entryLength = offsets[entry + 1] - start;
+        int length = Math.min(entryLength, keyLength);
+        for (int i = 0; i < length; ++i) {
+            int diff = (data[start + i] & 0xff) - (key[i] & 0xff);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return entryLength - keyLength;
+    }
+}
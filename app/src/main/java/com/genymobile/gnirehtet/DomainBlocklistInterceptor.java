@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2017 Genymobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.genymobile.gnirehtet;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Answer locally the DNS queries for the domains of the current {@link DomainBlocklists blocklist}.
+ * <p>
+ * All the queries to port 53 are checked, even if they are not sent to the configured DNS servers.
+ */
+public class DomainBlocklistInterceptor implements PacketInterceptor {
+
+    private static final int BUFSIZE = 0x10000;
+
+    private static final int TYPE_A = 1;
+    private static final int TYPE_AAAA = 28;
+    private static final int CLASS_IN = 1;
+    private static final int BLOCKED_TTL = 60;
+
+    private static final int FLAG_QR = 0x8000;
+    private static final int FLAG_RA = 0x0080;
+    // opcode and RD are copied from the query
+    private static final int QUERY_FLAGS_MASK = 0x7900;
+
+    private final BlockedDomainAnswer answer;
+    private final PacketSink deviceSink;
+    private final ForwarderStats stats;
+    private final byte[] name = new byte[DnsMessages.MAX_NAME_LENGTH];
+    private final ByteBuffer response = ByteBuffer.allocate(BUFSIZE);
+    private final ByteBuffer reply = ByteBuffer.allocate(BUFSIZE);
+
+    public DomainBlocklistInterceptor(BlockedDomainAnswer answer, PacketSink deviceSink, ForwarderStats stats) {
+        this.answer = answer;
+        this.deviceSink = deviceSink;
+        this.stats = stats;
+    }
+
+    @Override
+    public boolean intercept(ByteBuffer packet, PacketSink upstream) throws IOException {
+        DomainBlocklist blocklist = DomainBlocklists.getCurrent();
+        if (blocklist.size() == 0) {
+            return false;
+        }
+        int index = packet.position();
+        int end = packet.limit();
+        int udp = UdpPackets.getUdpIndex(packet, index, end - index);
+        if (udp == -1 || UdpPackets.readDestinationPort(packet, udp) != DnsMessages.DNS_PORT) {
+            return false;
+        }
+        int dns = udp + UdpPackets.UDP_HEADER_LENGTH;
+        if (!DnsMessages.isQuery(packet, dns, end)) {
+            return false;
+        }
+        int nameLength = DnsMessages.readReversedQuestionName(packet, dns, end, name);
+        if (nameLength <= 0 || !blocklist.isBlocked(name, nameLength)) {
+            return false;
+        }
+
+        if (!buildResponse(packet, dns, end)) {
+            // no room for QTYPE and QCLASS, let the DNS server answer
+            return false;
+        }
+        reply.clear();
+        UdpPackets.buildReply(packet, index, response, reply);
+        deviceSink.write(reply);
+        stats.onBlockedQuery();
+        return true;
+    }
+
+    /**
+     * Build the response to the query into {@link #response}.
+     *
+     * @return {@code false} if the question is invalid
+     */
+    @SuppressWarnings("checkstyle:MagicNumber")
+    private boolean buildResponse(ByteBuffer query, int dns, int end) {
+        int questionEnd = DnsMessages.getQuestionEnd(query, dns, end);
+        if (questionEnd == -1) {
+            return false;
+        }
+        int type = Binary.unsigned(query.getShort(questionEnd - 4));
+        int qclass = Binary.unsigned(query.getShort(questionEnd - 2));
+        int addressLength = 0;
+        if (answer == BlockedDomainAnswer.NULL_ADDRESS && qclass == CLASS_IN) {
+            if (type == TYPE_A) {
+                addressLength = 4;
+            } else if (type == TYPE_AAAA) {
+                addressLength = 16;
+            }
+        }
+        // without an address to answer, a NULL_ADDRESS response has no data (NOERROR without answer)
+        int rcode = answer == BlockedDomainAnswer.NXDOMAIN ? DnsMessages.RCODE_NXDOMAIN : DnsMessages.RCODE_NOERROR;
+        int flags = FLAG_QR | (Binary.unsigned(query.getShort(dns + 2)) & QUERY_FLAGS_MASK) | FLAG_RA | rcode;
+
+        response.clear();
+        response.putShort(query.getShort(dns)); // ID
+        response.putShort((short) flags);
+        response.putShort((short) 1); // QDCOUNT
+        response.putShort((short) (addressLength != 0 ? 1 : 0)); // ANCOUNT
+        response.putShort((short) 0); // NSCOUNT
+        response.putShort((short) 0); // ARCOUNT
+        for (int i = dns + DnsMessages.HEADER_LENGTH; i < questionEnd; ++i) {
+            response.put(query.get(i));
+        }
+        if (addressLength != 0) {
+            response.putShort((short) (0xc000 | DnsMessages.HEADER_LENGTH)); // pointer to the question name
+            response.putShort((short) type);
+            response.putShort((short) CLASS_IN);
+            response.putInt(BLOCKED_TTL);
+            response.putShort((short) addressLength);
+            for (int i = 0; i < addressLength; ++i) {
+                response.put((byte) 0);
+            }
+        }
+        response.flip();
+        return true;
+    }
+}
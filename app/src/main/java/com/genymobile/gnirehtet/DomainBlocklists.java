@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2017 Genymobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.genymobile.gnirehtet;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+
+import kotlinx.coroutines.flow.MutableStateFlow;
+import kotlinx.coroutines.flow.StateFlow;
+import kotlinx.coroutines.flow.StateFlowKt;
+
+/**
+ * Hold the current {@link DomainBlocklist}, loaded from a file in the application storage.
+ * <p>
+ * The blocklist is read on every DNS query, so reloading it applies to the running VPN immediately, without
+ * restarting it.
+ */
+public final class DomainBlocklists {
+
+    private static final String TAG = DomainBlocklists.class.getSimpleName();
+
+    private static final String FILE_NAME = "blocklist.txt";
+    private static final int BUFSIZE = 0x10000;
+
+    private static volatile DomainBlocklist current = DomainBlocklist.EMPTY;
+    private static volatile boolean loaded;
+    private static final MutableStateFlow<Integer> size = StateFlowKt.MutableStateFlow(0);
+
+    private DomainBlocklists() {
+        // not instantiable
+    }
+
+    public static DomainBlocklist getCurrent() {
+        return current;
+    }
+
+    // for the tests, to filter the queries without a file
+    static void setCurrent(DomainBlocklist blocklist) {
+        current = blocklist;
+        size.setValue(blocklist.size());
+    }
+
+    /**
+     * Return the number of domains of the current blocklist.
+     */
+    public static StateFlow<Integer> getSize() {
+        return size;
+    }
+
+    private static File getFile(Context context) {
+        return new File(context.getFilesDir(), FILE_NAME);
+    }
+
+    /**
+     * Replace the blocklist file, and load it. Blocking.
+     *
+     * @param context the context
+     * @param input the new list, in hosts format
+     * @throws IOException if an I/O error occurs
+     */
+    public static void importList(Context context, InputStream input) throws IOException {
+        File file = getFile(context);
+        File tmp = new File(file.getPath() + ".tmp");
+        try (OutputStream output = new FileOutputStream(tmp)) {
+            byte[] buffer = new byte[BUFSIZE];
+            int r;
+            while ((r = input.read(buffer)) != -1) {
+                output.write(buffer, 0, r);
+            }
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Cannot rename " + tmp + " to " + file);
+        }
+        reload(context);
+    }
+
+    /**
+     * Load the blocklist file, unless it is already loaded. Does not block.
+     *
+     * @param context the context
+     */
+    public static void loadIfNeeded(Context context) {
+        if (loaded) {
+            return;
+        }
+        // disk I/O must not block the main thread, queries are not filtered until it is loaded
+        new Thread(() -> {
+            try {
+                reload(context);
+            } catch (IOException e) {
+                Log.e(TAG, "Cannot load domain blocklist", e);
+            }
+        }, "blocklist-load").start();
+    }
+
+    /**
+     * Load the blocklist file, replacing the current blocklist. Blocking.
+     *
+     * @param context the context
+     * @throws IOException if an I/O error occurs
+     */
+    public static synchronized void reload(Context context) throws IOException {
+        long start = SystemClock.elapsedRealtime();
+        DomainBlocklist blocklist;
+        try (Reader reader = new InputStreamReader(new FileInputStream(getFile(context)), StandardCharsets.UTF_8)) {
+            blocklist = DomainBlocklist.parse(reader);
+        } catch (FileNotFoundException e) {
+            Log.d(TAG, "No domain blocklist");
+            blocklist = DomainBlocklist.EMPTY;
+        }
+        current = blocklist;
+        loaded = true;
+        size.setValue(blocklist.size());
+        Log.i(TAG, "Domain blocklist loaded: " + blocklist.size() + " domains in " + (SystemClock.elapsedRealtime() - start) + "ms");
+    }
+
+    /**
+     * Remove the blocklist file, and unload it.
+     *
+     * @param context the context
+     */
+    public static synchronized void clear(Context context) {
+        if (!getFile(context).delete()) {
+            Log.d(TAG, "No domain blocklist to delete");
+        }
+        current = DomainBlocklist.EMPTY;
+        loaded = true;
+        size.setValue(0);
+    }
+}
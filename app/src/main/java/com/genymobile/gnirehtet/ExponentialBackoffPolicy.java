@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2017 Genymobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.genymobile.gnirehtet;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Retry immediately once, then with exponentially increasing delays, up to a maximum.
+ * <p>
+ * A short loss of the relay server is recovered immediately, while a relay server which stays down is retried less and
+ * less often. The delays are randomized (between half and all of the nominal delay), so that the tunnels of the pool do
+ * not retry in lockstep.
+ */
+public class ExponentialBackoffPolicy implements ReconnectPolicy {
+
+    public static final ExponentialBackoffPolicy DEFAULT = new ExponentialBackoffPolicy(250, 15_000);
+
+    // enough to reach any maximum delay, without overflow
+    private static final int MAX_SHIFT = 30;
+
+    private final long initialDelayMs;
+    private final long maxDelayMs;
+
+    /**
+     * Create a policy.
+     *
+     * @param initialDelayMs the delay after the first failure
+     * @param maxDelayMs the maximum delay
+     */
+    public ExponentialBackoffPolicy(long initialDelayMs, long maxDelayMs) {
+        this.initialDelayMs = initialDelayMs;
+        this.maxDelayMs = maxDelayMs;
+    }
+
+    @Override
+    public long getDelay(int failures) {
+        if (failures == 0) {
+            return 0;
+        }
+        long delay = Math.min(initialDelayMs << Math.min(failures - 1, MAX_SHIFT), maxDelayMs);
+        long half = delay / 2;
+        return half + ThreadLocalRandom.current().nextLong(delay - half + 1);
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2017 Genymobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.genymobile.gnirehtet;
+
+import java.util.Locale;
+
+/**
+ * Immutable copy of a flow of a {@link FlowTable}, from the device point of view.
+ */
+@SuppressWarnings("checkstyle:MagicNumber")
+public final class FlowSnapshot {
+
+    public enum State {
+        SYN,
+        ESTABLISHED,
+        FIN,
+        CLOSED,
+    }
+
+    private final int protocol;
+    private final int sourceAddress;
+    private final int sourcePort;
+    private final int destinationAddress;
+    private final int destinationPort;
+    private final State state;
+    private final long upstreamPackets;
+    private final long upstreamBytes;
+    private final long downstreamPackets;
+    private final long downstreamBytes;
+    private final long firstSeen;
+    private final long lastSeen;
+
+    @SuppressWarnings("checkstyle:ParameterNumber")
+    FlowSnapshot(int protocol, int sourceAddress, int sourcePort, int destinationAddress, int destinationPort, State state,
+            long upstreamPackets, long upstreamBytes, long downstreamPackets, long downstreamBytes, long firstSeen, long lastSeen) {
+        this.protocol = protocol;
+        this.sourceAddress = sourceAddress;
+        this.sourcePort = sourcePort;
+        this.destinationAddress = destinationAddress;
+        this.destinationPort = destinationPort;
+        this.state = state;
+        this.upstreamPackets = upstreamPackets;
+        this.upstreamBytes = upstreamBytes;
+        this.downstreamPackets = downstreamPackets;
+        this.downstreamBytes = downstreamBytes;
+        this.firstSeen = firstSeen;
+        this.lastSeen = lastSeen;
+    }
+
+    public int getProtocol() {
+        return protocol;
+    }
+
+    public boolean isTcp() {
+        return protocol == IPPackets.PROTOCOL_TCP;
+    }
+
+    public int getSourceAddress() {
+        return sourceAddress;
+    }
+
+    public int getSourcePort() {
+        return sourcePort;
+    }
+
+    public int getDestinationAddress() {
+        return destinationAddress;
+    }
+
+    public int getDestinationPort() {
+        return destinationPort;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public long getUpstreamPackets() {
+        return upstreamPackets;
+    }
+
+    public long getUpstreamBytes() {
+        return upstreamBytes;
+    }
+
+    public long getDownstreamPackets() {
+        return downstreamPackets;
+    }
+
+    public long getDownstreamBytes() {
+        return downstreamBytes;
+    }
+
+    public long getTotalBytes() {
+        return upstreamBytes + downstreamBytes;
+    }
+
+    public long getFirstSeen() {
+        return firstSeen;
+    }
+
+    public long getLastSeen() {
+        return lastSeen;
+    }
+
+    private static String formatAddress(int address, int port) {
+        return (address >>> 24) + "." + ((address >> 16) & 0xff) + "." + ((address >> 8) & 0xff) + "." + (address & 0xff) + ":" + port;
+    }
+
+    public String getSource() {
+        return formatAddress(sourceAddress, sourcePort);
+    }
+
+    public String getDestination() {
+        return formatAddress(destinationAddress, destinationPort);
+    }
+
+    @Override
+    public String toString() {
+        String name = isTcp() ? "TCP" : "UDP";
+        return String.format(Locale.US, "%s %s -> %s %s up=%d/%dB down=%d/%dB", name, getSource(), getDestination(), state,
+                upstreamPackets, upstreamBytes, downstreamPackets, downstreamBytes);
+    }
+}
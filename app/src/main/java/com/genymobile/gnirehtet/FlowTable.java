@@ -0,0 +1,439 @@
+/*
+ * Copyright (C) 2017 Genymobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.genymobile.gnirehtet;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Table of the IPv4 TCP and UDP flows forwarded in both directions, with their counters and their state.
+ * <p>
+ * It is updated for every packet, so it must never allocate: flows are stored in parallel primitive arrays, forming an
+ * open-addressing hash table with linear probing. The key is the 5-tuple from the device point of view, packed into two
+ * longs. Removals shift the following entries back, so that no tombstone is ever needed.
+ * <p>
+ * The table is split into stripes, each having its own lock: the device-to-tunnel and tunnel-to-device threads only
+ * contend when they update flows of the same stripe, and a {@link #snapshot(long)} blocks them for one stripe at most.
+ * <p>
+ * Flows idle for too long are evicted when their stripe is full, and on every {@link #snapshot(long)}.
+ * <p>
+ * IPv6 packets are ignored: their flows are not listed, and their TCP connections are not reset when their tunnel is
+ * lost (they time out in the applications, as before). IPv6 is only forwarded if it is enabled in the settings.
+ */
+@SuppressWarnings("checkstyle:MagicNumber")
+public class FlowTable {
+
+    private static final String TAG = FlowTable.class.getSimpleName();
+
+    private static final int STRIPE_BITS = 4;
+    private static final int STRIPES = 1 << STRIPE_BITS;
+    private static final int STRIPE_CAPACITY = 1 << 10; // must be a power of 2
+    private static final int STRIPE_MAX_FLOWS = STRIPE_CAPACITY * 3 / 4;
+
+    private static final long TCP_IDLE_TIMEOUT_MS = 10 * 60 * 1000;
+    private static final long UDP_IDLE_TIMEOUT_MS = 60 * 1000;
+    private static final long CLOSED_IDLE_TIMEOUT_MS = 10 * 1000;
+
+    // flags of the flow state
+    private static final int FLAG_SYN = 1;
+    private static final int FLAG_ESTABLISHED = 1 << 1;
+    private static final int FLAG_UPSTREAM_FIN = 1 << 2;
+    private static final int FLAG_DOWNSTREAM_FIN = 1 << 3;
+    private static final int FLAG_DOWNSTREAM_SEEN = 1 << 4;
+
+    private static final int MASK = STRIPE_CAPACITY - 1;
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    public FlowTable() {
+        for (int i = 0; i < STRIPES; ++i) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * Record a packet sent by the device to a relay tunnel.
+     *
+     * @param packet the buffer
+     * @param index the absolute position of the packet
+     * @param length the packet length
+     * @param tunnelIndex the index of the tunnel in the pool
+     * @param nowMs the current time
+     */
+    public void onUpstreamPacket(ByteBuffer packet, int index, int length, int tunnelIndex, long nowMs) {
+        int transport = getTransportIndex(packet, index, length);
+        if (transport == -1) {
+            return;
+        }
+        int protocol = IPPackets.readProtocol(packet, index);
+        long addr = packAddresses(packet.getInt(index + 12), packet.getInt(index + 16));
+        long ports = packProtocolAndPorts(protocol, packet.getInt(transport));
+        boolean tcp = protocol == IPPackets.PROTOCOL_TCP;
+        int tcpFlags = tcp ? TcpPackets.readFlags(packet, transport) : 0;
+        int next = tcp ? TcpPackets.getNextSequenceNumber(packet, index, length, transport) : 0;
+
+        int hash = hash(addr, ports);
+        Stripe stripe = getStripe(hash);
+        synchronized (stripe) {
+            int slot = stripe.find(hash, addr, ports);
+            if (tcp && (tcpFlags & TcpPackets.FLAG_RST) != 0) {
+                if (slot != -1) {
+                    stripe.remove(slot);
+                }
+                return;
+            }
+            if (slot == -1) {
+                if (tcp && (tcpFlags & (TcpPackets.FLAG_SYN | TcpPackets.FLAG_ACK)) != TcpPackets.FLAG_SYN) {
+                    // only track TCP connections from their start, so that their state is known
+                    return;
+                }
+                slot = stripe.insert(hash, addr, ports, nowMs);
+                if (slot == -1) {
+                    return;
+                }
+                stripe.flags[slot] = tcp ? FLAG_SYN : FLAG_ESTABLISHED;
+            }
+            stripe.tunnelIndexes[slot] = tunnelIndex;
+            ++stripe.upstreamPackets[slot];
+            stripe.upstreamBytes[slot] += length;
+            stripe.lastSeen[slot] = nowMs;
+            if (tcp) {
+                stripe.upstreamNext[slot] = next;
+                if ((tcpFlags & TcpPackets.FLAG_FIN) != 0) {
+                    stripe.flags[slot] |= FLAG_UPSTREAM_FIN;
+                }
+            }
+        }
+    }
+
+    /**
+     * Record a packet received from a relay tunnel, to be written to the device.
+     *
+     * @param packet the buffer
+     * @param index the absolute position of the packet
+     * @param length the packet length
+     * @param nowMs the current time
+     */
+    public void onDownstreamPacket(ByteBuffer packet, int index, int length, long nowMs) {
+        int transport = getTransportIndex(packet, index, length);
+        if (transport == -1) {
+            return;
+        }
+        int protocol = IPPackets.readProtocol(packet, index);
+        // swap addresses and ports, the key is from the device point of view
+        long addr = packAddresses(packet.getInt(index + 16), packet.getInt(index + 12));
+        int rawPorts = packet.getInt(transport);
+        long ports = packProtocolAndPorts(protocol, (rawPorts << 16) | (rawPorts >>> 16));
+        boolean tcp = protocol == IPPackets.PROTOCOL_TCP;
+        int tcpFlags = tcp ? TcpPackets.readFlags(packet, transport) : 0;
+        int next = tcp ? TcpPackets.getNextSequenceNumber(packet, index, length, transport) : 0;
+
+        int hash = hash(addr, ports);
+        Stripe stripe = getStripe(hash);
+        synchronized (stripe) {
+            int slot = stripe.find(hash, addr, ports);
+            if (slot == -1) {
+                return;
+            }
+            ++stripe.downstreamPackets[slot];
+            stripe.downstreamBytes[slot] += length;
+            stripe.lastSeen[slot] = nowMs;
+            if (tcp) {
+                if ((tcpFlags & TcpPackets.FLAG_RST) != 0) {
+                    stripe.remove(slot);
+                    return;
+                }
+                stripe.downstreamNext[slot] = next;
+                stripe.flags[slot] |= FLAG_DOWNSTREAM_SEEN;
+                if ((tcpFlags & TcpPackets.FLAG_SYN) != 0) {
+                    stripe.flags[slot] |= FLAG_ESTABLISHED;
+                }
+                if ((tcpFlags & TcpPackets.FLAG_FIN) != 0) {
+                    stripe.flags[slot] |= FLAG_DOWNSTREAM_FIN;
+                }
+            }
+        }
+    }
+
+    private static int getTransportIndex(ByteBuffer packet, int index, int length) {
+        if (length < IPPackets.IPV4_MIN_HEADER_LENGTH || IPPackets.readVersion(packet, index) != 4) {
+            return -1;
+        }
+        int protocol = IPPackets.readProtocol(packet, index);
+        if (protocol == IPPackets.PROTOCOL_TCP) {
+            return TcpPackets.getTcpIndex(packet, index, length);
+        }
+        if (protocol == IPPackets.PROTOCOL_UDP) {
+            return UdpPackets.getUdpIndex(packet, index, length);
+        }
+        return -1;
+    }
+
+    static long packAddresses(int source, int destination) {
+        return ((long) source << 32) | (destination & 0xffffffffL);
+    }
+
+    static long packProtocolAndPorts(int protocol, int ports) {
+        return ((long) protocol << 32) | (ports & 0xffffffffL);
+    }
+
+    static int hash(long addr, long ports) {
+        long h = addr * 0x9e3779b97f4a7c15L + ports * 0xc2b2ae3d27d4eb4fL;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private Stripe getStripe(int hash) {
+        // the high bits select the stripe, the low bits the slot
+        return stripes[hash >>> (Integer.SIZE - STRIPE_BITS)];
+    }
+
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.size;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Write a RST segment to the device for every open TCP connection forwarded through a tunnel, and forget them.
+     * <p>
+     * The relay server holds the state of all the connections of a tunnel, so it is lost when the tunnel is invalidated.
+     * Applications would keep their sockets open until their own timeouts (often minutes); resetting the connections makes
+     * them reconnect immediately, over the new tunnel.
+     * <p>
+     * The segments are built under the lock of each stripe, but written once it is released.
+     *
+     * @param tunnelIndex the index of the tunnel in the pool
+     * @param deviceSink the sink to write the RST segments to
+     * @return the number of connections reset
+     */
+    public int resetTcpConnections(int tunnelIndex, PacketSink deviceSink) {
+        int count = 0;
+        List<ByteBuffer> resets = new ArrayList<>();
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                stripe.removeTcpConnections(tunnelIndex, resets);
+            }
+            for (ByteBuffer reset : resets) {
+                try {
+                    deviceSink.write(reset);
+                    ++count;
+                } catch (IOException e) {
+                    Log.w(TAG, "Cannot reset connection", e);
+                }
+            }
+            resets.clear();
+        }
+        return count;
+    }
+
+    /**
+     * Evict the idle flows, and return a copy of the remaining ones, the most active first.
+     *
+     * @param nowMs the current time
+     * @return the flows
+     */
+    public List<FlowSnapshot> snapshot(long nowMs) {
+        List<FlowSnapshot> flows = new ArrayList<>();
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                stripe.evictIdle(nowMs);
+                stripe.snapshot(flows);
+            }
+        }
+        Collections.sort(flows, (f1, f2) -> Long.compare(f2.getTotalBytes(), f1.getTotalBytes()));
+        return flows;
+    }
+
+    /**
+     * A part of the table, guarded by its own monitor.
+     */
+    private static final class Stripe {
+
+        // source address (high 32 bits) and destination address (low 32 bits)
+        private final long[] addresses = new long[STRIPE_CAPACITY];
+        // protocol (bits 32 to 39), source port (bits 16 to 31) and destination port (low 16 bits); 0 for an empty slot
+        private final long[] protocolAndPorts = new long[STRIPE_CAPACITY];
+        private final int[] flags = new int[STRIPE_CAPACITY];
+        private final int[] tunnelIndexes = new int[STRIPE_CAPACITY];
+        // the next TCP sequence numbers expected by each side
+        private final int[] upstreamNext = new int[STRIPE_CAPACITY];
+        private final int[] downstreamNext = new int[STRIPE_CAPACITY];
+        private final long[] upstreamPackets = new long[STRIPE_CAPACITY];
+        private final long[] upstreamBytes = new long[STRIPE_CAPACITY];
+        private final long[] downstreamPackets = new long[STRIPE_CAPACITY];
+        private final long[] downstreamBytes = new long[STRIPE_CAPACITY];
+        private final long[] firstSeen = new long[STRIPE_CAPACITY];
+        private final long[] lastSeen = new long[STRIPE_CAPACITY];
+        private int size;
+
+        private int find(int hash, long addr, long ports) {
+            int slot = hash & MASK;
+            while (protocolAndPorts[slot] != 0) {
+                if (protocolAndPorts[slot] == ports && addresses[slot] == addr) {
+                    return slot;
+                }
+                slot = (slot + 1) & MASK;
+            }
+            return -1;
+        }
+
+        private int insert(int hash, long addr, long ports, long nowMs) {
+            if (size >= STRIPE_MAX_FLOWS) {
+                evictIdle(nowMs);
+                if (size >= STRIPE_MAX_FLOWS) {
+                    Log.w(TAG, "Flow table full");
+                    return -1;
+                }
+            }
+            int slot = hash & MASK;
+            while (protocolAndPorts[slot] != 0) {
+                slot = (slot + 1) & MASK;
+            }
+            addresses[slot] = addr;
+            protocolAndPorts[slot] = ports;
+            upstreamPackets[slot] = 0;
+            upstreamBytes[slot] = 0;
+            downstreamPackets[slot] = 0;
+            downstreamBytes[slot] = 0;
+            firstSeen[slot] = nowMs;
+            ++size;
+            return slot;
+        }
+
+        private void remove(int slot) {
+            protocolAndPorts[slot] = 0;
+            --size;
+            // shift back the following entries of the cluster which could not be stored at their ideal slot
+            int hole = slot;
+            int next = (slot + 1) & MASK;
+            while (protocolAndPorts[next] != 0) {
+                int ideal = hash(addresses[next], protocolAndPorts[next]) & MASK;
+                // move if the ideal slot is not in the cyclic range (hole, next]
+                boolean movable = hole <= next ? (ideal <= hole || ideal > next) : (ideal <= hole && ideal > next);
+                if (movable) {
+                    move(next, hole);
+                    hole = next;
+                }
+                next = (next + 1) & MASK;
+            }
+        }
+
+        private void move(int from, int to) {
+            addresses[to] = addresses[from];
+            protocolAndPorts[to] = protocolAndPorts[from];
+            flags[to] = flags[from];
+            tunnelIndexes[to] = tunnelIndexes[from];
+            upstreamNext[to] = upstreamNext[from];
+            downstreamNext[to] = downstreamNext[from];
+            upstreamPackets[to] = upstreamPackets[from];
+            upstreamBytes[to] = upstreamBytes[from];
+            downstreamPackets[to] = downstreamPackets[from];
+            downstreamBytes[to] = downstreamBytes[from];
+            firstSeen[to] = firstSeen[from];
+            lastSeen[to] = lastSeen[from];
+            protocolAndPorts[from] = 0;
+        }
+
+        private long getIdleTimeout(int slot) {
+            int protocol = (int) (protocolAndPorts[slot] >>> 32);
+            if (protocol != IPPackets.PROTOCOL_TCP) {
+                return UDP_IDLE_TIMEOUT_MS;
+            }
+            return isClosed(slot) ? CLOSED_IDLE_TIMEOUT_MS : TCP_IDLE_TIMEOUT_MS;
+        }
+
+        private boolean isClosed(int slot) {
+            // the last ACK does not matter
+            return (flags[slot] & (FLAG_UPSTREAM_FIN | FLAG_DOWNSTREAM_FIN)) == (FLAG_UPSTREAM_FIN | FLAG_DOWNSTREAM_FIN);
+        }
+
+        private void evictIdle(long nowMs) {
+            int slot = 0;
+            while (slot < STRIPE_CAPACITY) {
+                if (protocolAndPorts[slot] != 0 && nowMs - lastSeen[slot] > getIdleTimeout(slot)) {
+                    remove(slot);
+                    // another entry may have been shifted into this slot
+                    continue;
+                }
+                ++slot;
+            }
+        }
+
+        /**
+         * Remove the open TCP connections forwarded through a tunnel, and build a RST segment for each of them.
+         */
+        private void removeTcpConnections(int tunnelIndex, List<ByteBuffer> resets) {
+            int slot = 0;
+            while (slot < STRIPE_CAPACITY) {
+                long ports = protocolAndPorts[slot];
+                if (ports == 0 || (int) (ports >>> 32) != IPPackets.PROTOCOL_TCP || tunnelIndexes[slot] != tunnelIndex
+                        || isClosed(slot)) {
+                    ++slot;
+                    continue;
+                }
+                int source = (int) (addresses[slot] >>> 32);
+                int destination = (int) addresses[slot];
+                int sourcePort = (int) (ports >>> 16) & 0xffff;
+                int destinationPort = (int) ports & 0xffff;
+                // from the remote peer to the device; before any response, the sequence number is ignored (SYN-SENT
+                // state)
+                int sequenceNumber = (flags[slot] & FLAG_DOWNSTREAM_SEEN) != 0 ? downstreamNext[slot] : 0;
+                ByteBuffer reset = ByteBuffer.allocate(IPPackets.IPV4_MIN_HEADER_LENGTH + TcpPackets.TCP_HEADER_LENGTH);
+                TcpPackets.buildReset(destination, destinationPort, source, sourcePort, sequenceNumber, upstreamNext[slot],
+                        reset);
+                resets.add(reset);
+                remove(slot);
+                // another entry may have been shifted into this slot
+            }
+        }
+
+        private void snapshot(List<FlowSnapshot> flows) {
+            for (int slot = 0; slot < STRIPE_CAPACITY; ++slot) {
+                long ports = protocolAndPorts[slot];
+                if (ports != 0) {
+                    flows.add(new FlowSnapshot((int) (ports >>> 32), (int) (addresses[slot] >>> 32),
+                            (int) (ports >>> 16) & 0xffff, (int) addresses[slot], (int) ports & 0xffff, getState(slot),
+                            upstreamPackets[slot], upstreamBytes[slot], downstreamPackets[slot], downstreamBytes[slot],
+                            firstSeen[slot], lastSeen[slot]));
+                }
+            }
+        }
+
+        private FlowSnapshot.State getState(int slot) {
+            int f = flags[slot];
+            if (isClosed(slot)) {
+                return FlowSnapshot.State.CLOSED;
+            }
+            if ((f & (FLAG_UPSTREAM_FIN | FLAG_DOWNSTREAM_FIN)) != 0) {
+                return FlowSnapshot.State.FIN;
+            }
+            if ((f & FLAG_ESTABLISHED) != 0) {
+                return FlowSnapshot.State.ESTABLISHED;
+            }
+            return FlowSnapshot.State.SYN;
+        }
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2017 Genymobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.genymobile.gnirehtet;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Record the packets received from the relay tunnels in a {@link FlowTable}, then write them.
+ * <p>
+ * Like the table, only IPv4 flows are tracked.
+ */
+public class FlowTrackingSink implements PacketSink {
+
+    private final PacketSink delegate;
+    private final FlowTable flowTable;
+
+    public FlowTrackingSink(PacketSink delegate, FlowTable flowTable) {
+        this.delegate = delegate;
+        this.flowTable = flowTable;
+    }
+
+    @Override
+    public void write(ByteBuffer packet) throws IOException {
+        flowTable.onDownstreamPacket(packet, packet.position(), packet.remaining(), System.currentTimeMillis());
+        delegate.write(packet);
+    }
+}
@@ -17,141 +17,365 @@
 package com.genymobile.gnirehtet;
 
 import android.net.VpnService;
+import android.os.Build;
+import android.os.SystemClock;
 import android.util.Log;
 
 import java.io.FileDescriptor;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InterruptedIOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Forwarder {
 
-    private static final ExecutorService EXECUTOR_SERVICE = Executors.newFixedThreadPool(3);
-
     private static final String TAG = Forwarder.class.getSimpleName();
 
     private static final int BUFSIZE = 0x10000;
 
-    private static final byte[] DUMMY_ADDRESS = {42, 42, 42, 42};
-    private static final int DUMMY_PORT = 4242;
+    // the forwarding threads are woken up explicitly, they terminate almost immediately
+    private static final long STOP_TIMEOUT_MS = 1000;
+
+    private static final AtomicInteger SESSION_COUNT = new AtomicInteger();
 
+    // the initial VPN interface, it may be replaced by switchVpnInterface()
     private final FileDescriptor vpnFileDescriptor;
-    private final PersistentRelayTunnel tunnel;
+    private final RelayTunnelPool pool;
+    private final VpnPacketSink deviceSink;
+    // the packets received from the tunnel
+    private final PacketSink downstreamSink;
+    private final DnsServers dnsServers;
+    private final DnsRacer dnsRacer;
+    private final FlowTable flowTable = new FlowTable();
+    // null if the owner of the connections cannot be found
+    private final UidResolver uidResolver;
+    private final AppTrafficAccounting appTrafficAccounting;
+    // a copy, never modified once published, replaced by switchVpnInterface()
+    private volatile ForwarderOptions options;
+    private final ForwardingEngine engine;
+    private final ForwarderStats stats = new ForwarderStats();
+    private final ForwardingThreads threads = new ForwardingThreads("forwarder-" + SESSION_COUNT.incrementAndGet());
+
+    private VpnPacketSource vpnPacketSource;
 
-    private Future<?> deviceToTunnelFuture;
-    private Future<?> tunnelToDeviceFuture;
+    private PollForwarder pollForwarder;
 
-    public Forwarder(VpnService vpnService, FileDescriptor vpnFileDescriptor, RelayTunnelListener listener) {
+    public Forwarder(VpnService vpnService, FileDescriptor vpnFileDescriptor, RelayTunnelListener listener, ForwarderOptions options) {
         this.vpnFileDescriptor = vpnFileDescriptor;
-        tunnel = new PersistentRelayTunnel(vpnService, listener);
+        this.options = new ForwarderOptions(options);
+        engine = options.getEngine();
+        deviceSink = new VpnPacketSink(vpnFileDescriptor);
+        dnsServers = new DnsServers(options.getDnsServers());
+        dnsRacer = createDnsRacer();
+        downstreamSink = createDownstreamSink();
+        RelayTunnelPool.InvalidationListener invalidationListener = options.isResetConnections() ? this::resetConnections : null;
+        pool = new RelayTunnelPool(vpnService, listener, options.getRelayConnections(), invalidationListener,
+                ExponentialBackoffPolicy.DEFAULT, stats);
+        // the benchmarks forward without VPN service
+        if (vpnService != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            uidResolver = new ConnectivityUidResolver(vpnService);
+            appTrafficAccounting = new AppTrafficAccounting(uidResolver);
+        } else {
+            uidResolver = null;
+            appTrafficAccounting = null;
+        }
     }
 
     public void forward() {
-        deviceToTunnelFuture = EXECUTOR_SERVICE.submit(() -> {
+        Log.d(TAG, "Forwarding with engine " + engine);
+        stats.expectFirstPacket(SystemClock.elapsedRealtime());
+        if (engine == ForwardingEngine.POLL) {
+            forwardPoll();
+            return;
+        }
+        boolean direct = engine == ForwardingEngine.DIRECT_BUFFER;
+        try {
+            vpnPacketSource = new VpnPacketSource(vpnFileDescriptor);
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot create VPN packet source", e);
+            return;
+        }
+        threads.start("device-to-tunnel", () -> {
             try {
-                forwardDeviceToTunnel(tunnel);
+                if (direct) {
+                    forwardDeviceToTunnelDirect();
+                } else {
+                    forwardDeviceToTunnel();
+                }
             } catch (InterruptedIOException e) {
                 Log.d(TAG, "Device to tunnel interrupted");
             } catch (IOException e) {
                 Log.e(TAG, "Device to tunnel exception", e);
+            } finally {
+                vpnPacketSource.close();
             }
         });
-        tunnelToDeviceFuture = EXECUTOR_SERVICE.submit(() -> {
+        // one thread per tunnel, so that a stalled connection does not block the others
+        for (int i = 0; i < pool.size(); ++i) {
+            PersistentRelayTunnel tunnel = pool.get(i);
+            threads.start("tunnel-" + i + "-to-device", () -> {
+                try {
+                    forwardTunnelToDevice(tunnel, direct);
+                } catch (InterruptedIOException e) {
+                    Log.d(TAG, "Device to tunnel interrupted");
+                } catch (IOException e) {
+                    Log.e(TAG, "Tunnel to device exception", e);
+                }
+            });
+        }
+    }
+
+    private void forwardPoll() {
+        try {
+            pollForwarder = new PollForwarder(vpnFileDescriptor, pool, createInterceptor(), flowTable, options, downstreamSink,
+                    stats, threads);
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot create poll forwarder", e);
+            return;
+        }
+        threads.start("poll", () -> {
             try {
-                forwardTunnelToDevice(tunnel);
+                pollForwarder.forward();
             } catch (InterruptedIOException e) {
-                Log.d(TAG, "Device to tunnel interrupted");
+                Log.d(TAG, "Poll forwarding interrupted");
             } catch (IOException e) {
-                Log.e(TAG, "Tunnel to device exception", e);
+                Log.e(TAG, "Poll forwarding exception", e);
             }
         });
     }
 
+    /**
+     * Stop forwarding, and wait for the forwarding threads to terminate.
+     */
     public void stop() {
-        tunnel.close();
-        tunnelToDeviceFuture.cancel(true);
-        deviceToTunnelFuture.cancel(true);
-        wakeUpReadWorkaround();
+        long start = SystemClock.elapsedRealtime();
+        pool.close();
+        if (pollForwarder != null) {
+            // no workaround needed, the poll loop is woken up explicitly
+            pollForwarder.stop();
+        }
+        if (vpnPacketSource != null) {
+            vpnPacketSource.stop();
+        }
+        threads.interrupt();
+        boolean terminated = threads.join(STOP_TIMEOUT_MS);
+        long teardownTime = SystemClock.elapsedRealtime() - start;
+        stats.onStopped(teardownTime);
+        if (terminated) {
+            Log.i(TAG, "Forwarding stopped in " + teardownTime + "ms");
+        } else {
+            Log.w(TAG, "Forwarding threads still running after " + teardownTime + "ms");
+        }
+    }
+
+    /**
+     * Attempt to reconnect to the relay server immediately, for example when the USB cable is plugged in.
+     */
+    public void reconnectNow() {
+        pool.reconnectNow();
+    }
+
+    /**
+     * Forward the packets of a new VPN interface, established to replace the current one, without reconnecting to the
+     * relay server.
+     * <p>
+     * The packets are written to the new VPN interface immediately. The packets already queued on the current one are
+     * still read, then {@code onPreviousDrained} is called (from a forwarding thread): the previous VPN interface must
+     * then be closed.
+     * <p>
+     * The DNS servers may have changed, but not their number (see {@link #canSwitchVpnInterface(ForwarderOptions)}).
+     *
+     * @param newVpnFileDescriptor the new VPN interface
+     * @param newOptions the options of the new VPN interface, only its DNS servers are used
+     * @param onPreviousDrained called once the previous VPN interface may be closed
+     */
+    public void switchVpnInterface(FileDescriptor newVpnFileDescriptor, ForwarderOptions newOptions,
+                                   Runnable onPreviousDrained) {
+        ForwarderOptions updated = new ForwarderOptions(options);
+        updated.setDnsServers(newOptions.getDnsServers().clone());
+        options = updated;
+        dnsServers.update(updated.getDnsServers());
+        deviceSink.setFileDescriptor(newVpnFileDescriptor);
+        if (engine == ForwardingEngine.POLL) {
+            pollForwarder.switchVpnInterface(newVpnFileDescriptor, onPreviousDrained);
+        } else {
+            vpnPacketSource.switchFileDescriptor(newVpnFileDescriptor, onPreviousDrained);
+        }
+    }
+
+    /**
+     * Tell whether {@link #switchVpnInterface(FileDescriptor, ForwarderOptions, Runnable)} may be used with new options, or if a new
+     * {@link Forwarder} is required.
+     *
+     * @param newOptions the options of the new VPN interface
+     * @return {@code true} if the running forwarder can handle the new options
+     */
+    public boolean canSwitchVpnInterface(ForwarderOptions newOptions) {
+        if ((engine == ForwardingEngine.POLL ? pollForwarder : vpnPacketSource) == null) {
+            // forward() failed
+            return false;
+        }
+        // the interceptors and the DNS racer are created for the initial options
+        ForwarderOptions options = this.options;
+        return newOptions.getDnsServers().length == options.getDnsServers().length
+                && Arrays.equals(newOptions.getRejectedUdpPorts(), options.getRejectedUdpPorts());
+    }
+
+    /**
+     * Return a copy of the current options.
+     */
+    public ForwarderOptions getOptions() {
+        return new ForwarderOptions(options);
+    }
+
+    /**
+     * Return the DNS racer, exposing the latency of every DNS server, or {@code null} if DNS racing is disabled.
+     */
+    public DnsRacer getDnsRacer() {
+        return dnsRacer;
+    }
+
+    public ForwarderStats getStats() {
+        return stats;
     }
 
-    @SuppressWarnings("checkstyle:MagicNumber")
-    private void forwardDeviceToTunnel(Tunnel tunnel) throws IOException {
+    public FlowTable getFlowTable() {
+        return flowTable;
+    }
+
+    /**
+     * Return the per-app traffic accounting, or {@code null} if the connection owners cannot be resolved (before Android 10).
+     */
+    public AppTrafficAccounting getAppTrafficAccounting() {
+        return appTrafficAccounting;
+    }
+
+    private void forwardDeviceToTunnel() throws IOException {
         Log.d(TAG, "Device to tunnel forwarding started");
-        try (FileInputStream vpnInput = new FileInputStream(vpnFileDescriptor)) {
-            byte[] buffer = new byte[BUFSIZE];
-            while (true) {
-                // blocking read
-                int r = vpnInput.read(buffer);
-                if (r == -1) {
-                    Log.d(TAG, "VPN closed");
-                    break;
-                }
-                if (r > 0) {
-                    int version = buffer[0] >> 4;
-                    if (version == 4) {
-                        // blocking send
-                        tunnel.send(buffer, r);
-                    } else {
-                        // see <https://github.com/Genymobile/gnirehtet/issues/69>
-                        Log.w(TAG, "Unexpected packet IP version: " + version);
-                    }
-                } else {
-                    Log.d(TAG, "Empty read");
-                }
+        TunnelSender sender = createTunnelSender(false);
+        byte[] buffer = new byte[BUFSIZE];
+        ByteBuffer packet = ByteBuffer.wrap(buffer);
+        while (true) {
+            // blocking read
+            int r = vpnPacketSource.read(buffer);
+            if (r == -1) {
+                Log.d(TAG, "VPN closed");
+                break;
             }
+            packet.limit(r);
+            packet.position(0);
+            sender.send(packet);
         }
         Log.d(TAG, "Device to tunnel forwarding stopped");
     }
 
-    private void forwardTunnelToDevice(Tunnel tunnel) throws IOException {
-        Log.d(TAG, "Tunnel to device forwarding started");
-        FileOutputStream vpnOutput = new FileOutputStream(vpnFileDescriptor);
-        IPPacketOutputStream packetOutputStream = new IPPacketOutputStream(vpnOutput);
+    private void resetConnections(int tunnelIndex) {
+        int count = flowTable.resetTcpConnections(tunnelIndex, deviceSink);
+        if (count != 0) {
+            Log.i(TAG, "Reset " + count + " connections of tunnel " + tunnelIndex);
+            stats.onConnectionsReset(count);
+        }
+    }
 
-        byte[] buffer = new byte[BUFSIZE];
+    private TunnelSender createTunnelSender(boolean direct) {
+        TunnelSender sender = new TunnelSender(pool, createInterceptor(), flowTable, options, direct, stats);
+        // flush the coalesced packets (blocking sends) as soon as the VPN interface has no more packets available
+        vpnPacketSource.setPendingOutput(sender);
+        return sender;
+    }
+
+    private DnsRacer createDnsRacer() {
+        if (!options.isDnsRace()) {
+            return null;
+        }
+        int count = dnsServers.size();
+        if (count < 2 || count > DnsRacer.MAX_SERVERS) {
+            Log.w(TAG, "Cannot race " + count + " DNS servers");
+            return null;
+        }
+        return new DnsRacer(dnsServers);
+    }
+
+    private PacketSink createDownstreamSink() {
+        PacketSink sink = new FlowTrackingSink(deviceSink, flowTable);
+        DnsCache dnsCache = options.getDnsCache();
+        if (dnsCache != null) {
+            sink = new DnsCachingSink(sink, dnsCache, dnsServers);
+        }
+        if (dnsRacer != null) {
+            // only the winning responses must reach the cache
+            sink = new DnsRaceSink(sink, dnsRacer, dnsServers);
+        }
+        return sink;
+    }
+
+    private PacketInterceptor createInterceptor() {
+        ForwarderOptions options = this.options;
+        List<PacketInterceptor> interceptors = new ArrayList<>();
+        if (uidResolver != null) {
+            // the apps blocked since the VPN started
+            interceptors.add(new AppFirewallInterceptor(uidResolver, deviceSink, stats));
+        }
+        if (options.getDestinationFilterAction() != null) {
+            interceptors.add(new DestinationFilterInterceptor(options.getDestinationFilterAction(), deviceSink, stats));
+        }
+        if (!options.isIPv6()) {
+            interceptors.add(new IPv6UnreachableInterceptor(deviceSink, stats));
+        }
+        // the relay only carries TCP and UDP
+        interceptors.add(new UnsupportedProtocolInterceptor(options.getGateways(), deviceSink, stats));
+        if (options.getRejectedUdpPorts().length != 0) {
+            interceptors.add(new UdpPortRejectInterceptor(options.getRejectedUdpPorts(), deviceSink, stats));
+        }
+        if (options.getBlockedDomainAnswer() != null) {
+            // blocked domains must never be answered from the cache nor by the DNS servers
+            interceptors.add(new DomainBlocklistInterceptor(options.getBlockedDomainAnswer(), deviceSink, stats));
+        }
+        if (options.getDnsCache() != null) {
+            interceptors.add(new DnsCacheInterceptor(options.getDnsCache(), dnsServers, deviceSink));
+        }
+        if (dnsRacer != null) {
+            interceptors.add(new DnsRaceInterceptor(dnsRacer, dnsServers));
+        }
+        return new PacketInterceptorChain(interceptors);
+    }
+
+    private void forwardTunnelToDevice(Tunnel tunnel, boolean direct) throws IOException {
+        Log.d(TAG, "Tunnel to device forwarding started");
+        IPPacketReassembler reassembler = new IPPacketReassembler(direct,
+                IPPacketReassembler.getMaxPacketLength(options.getMtu()), downstreamSink, stats);
         while (true) {
-            // blocking receive
-            int w = tunnel.receive(buffer);
+            // blocking receive and write
+            int w = reassembler.receive(tunnel);
             if (w == -1) {
                 Log.d(TAG, "Tunnel closed");
                 break;
             }
-            if (w > 0) {
-                // blocking write
-                packetOutputStream.write(buffer, 0, w);
-            } else {
+            if (w == 0) {
                 Log.d(TAG, "Empty write");
             }
         }
         Log.d(TAG, "Tunnel to device forwarding stopped");
     }
 
-    /**
-     * Neither vpnInterface.close() nor vpnInputStream.close() wake up a blocking
-     * vpnInputStream.read().
-     * <p>
-     * Therefore, we need to make Android send a packet to the VPN interface (here by sending a UDP
-     * packet), so that any blocking read will be woken up.
-     * <p>
-     * Since the tunnel is closed at this point, it will never reach the network.
-     */
-    private void wakeUpReadWorkaround() {
-        // network actions may not be called from the main thread
-        EXECUTOR_SERVICE.execute(() -> {
-            try (DatagramSocket socket = new DatagramSocket()) {
-                InetAddress dummyAddr = InetAddress.getByAddress(DUMMY_ADDRESS);
-                DatagramPacket packet = new DatagramPacket(new byte[0], 0, dummyAddr, DUMMY_PORT);
-                socket.send(packet);
-            } catch (IOException e) {
-                // ignore
+    private void forwardDeviceToTunnelDirect() throws IOException {
+        Log.d(TAG, "Device to tunnel forwarding started (direct buffer)");
+        TunnelSender sender = createTunnelSender(true);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFSIZE);
+        while (true) {
+            buffer.clear();
+            // blocking read
+            int r = vpnPacketSource.read(buffer);
+            if (r == -1) {
+                Log.d(TAG, "VPN closed");
+                break;
             }
-        });
+            buffer.flip();
+            sender.send(buffer);
+        }
+        Log.d(TAG, "Device to tunnel forwarding stopped (direct buffer)");
     }
 }
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2017 Genymobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.genymobile.gnirehtet;
+
+import java.net.InetAddress;
+
+/**
+ * Settings of a {@link Forwarder}, read from the preferences when the VPN starts.
+ * <p>
+ * The forwarder keeps its own copy, never modified once published to the forwarding threads: to change the options of
+ * a running forwarder, a new copy is swapped in (see {@link Forwarder#switchVpnInterface(java.io.FileDescriptor,
+ * ForwarderOptions, Runnable)}).
+ */
+public class ForwarderOptions {
+
+    private ForwardingEngine engine = ForwardingEngine.STREAM;
+    private boolean coalesceWrites;
+    private boolean prioritizeInteractive;
+    private int relayConnections = 1;
+    private int mtu = MtuTuner.DEFAULT_MTU;
+    private boolean ipv6;
+    private boolean resetConnections;
+    private InetAddress[] dnsServers = new InetAddress[0];
+    private InetAddress[] gateways = new InetAddress[0];
+    private int[] rejectedUdpPorts = new int[0];
+    private DnsCache dnsCache;
+    private boolean dnsRace;
+    private BlockedDomainAnswer blockedDomainAnswer;
+    private FilterAction destinationFilterAction;
+
+    public ForwarderOptions() {
+        // default options
+    }
+
+    /**
+     * Copy the options, including the arrays.
+     *
+     * @param other the options to copy
+     */
+    public ForwarderOptions(ForwarderOptions other) {
+        engine = other.engine;
+        coalesceWrites = other.coalesceWrites;
+        prioritizeInteractive = other.prioritizeInteractive;
+        relayConnections = other.relayConnections;
+        mtu = other.mtu;
+        ipv6 = other.ipv6;
+        resetConnections = other.resetConnections;
+        dnsServers = other.dnsServers.clone();
+        gateways = other.gateways.clone();
+        rejectedUdpPorts = other.rejectedUdpPorts.clone();
+        dnsCache = other.dnsCache;
+        dnsRace = other.dnsRace;
+        blockedDomainAnswer = other.blockedDomainAnswer;
+        destinationFilterAction = other.destinationFilterAction;
+    }
+
+    public ForwardingEngine getEngine() {
+        return engine;
+    }
+
+    public void setEngine(ForwardingEngine engine) {
+        this.engine = engine;
+    }
+
+    public boolean isCoalesceWrites() {
+        return coalesceWrites;
+    }
+
+    public void setCoalesceWrites(boolean coalesceWrites) {
+        this.coalesceWrites = coalesceWrites;
+    }
+
+    public boolean isPrioritizeInteractive() {
+        return prioritizeInteractive;
+    }
+
+    public void setPrioritizeInteractive(boolean prioritizeInteractive) {
+        this.prioritizeInteractive = prioritizeInteractive;
+    }
+
+    public int getRelayConnections() {
+        return relayConnections;
+    }
+
+    public void setRelayConnections(int relayConnections) {
+        this.relayConnections = relayConnections;
+    }
+
+    /**
+     * Return the MTU of the VPN interface.
+     */
+    public int getMtu() {
+        return mtu;
+    }
+
+    public void setMtu(int mtu) {
+        this.mtu = mtu;
+    }
+
+    public boolean isIPv6() {
+        return ipv6;
+    }
+
+    public void setIPv6(boolean ipv6) {
+        this.ipv6 = ipv6;
+    }
+
+    /**
+     * Indicate whether the TCP connections are reset when their relay tunnel is lost.
+     */
+    public boolean isResetConnections() {
+        return resetConnections;
+    }
+
+    public void setResetConnections(boolean resetConnections) {
+        this.resetConnections = resetConnections;
+    }
+
+    public InetAddress[] getDnsServers() {
+        return dnsServers;
+    }
+
+    public void setDnsServers(InetAddress[] dnsServers) {
+        this.dnsServers = dnsServers;
+    }
+
+    /**
+     * Return the addresses answering to ping locally.
+     */
+    public InetAddress[] getGateways() {
+        return gateways;
+    }
+
+    public void setGateways(InetAddress[] gateways) {
+        this.gateways = gateways;
+    }
+
+    public int[] getRejectedUdpPorts() {
+        return rejectedUdpPorts;
+    }
+
+    public void setRejectedUdpPorts(int[] rejectedUdpPorts) {
+        this.rejectedUdpPorts = rejectedUdpPorts;
+    }
+
+    /**
+     * Return the DNS cache, or {@code null} if DNS caching is disabled.
+     */
+    public DnsCache getDnsCache() {
+        return dnsCache;
+    }
+
+    public void setDnsCache(DnsCache dnsCache) {
+        this.dnsCache = dnsCache;
+    }
+
+    public boolean isDnsRace() {
+        return dnsRace;
+    }
+
+    public void setDnsRace(boolean dnsRace) {
+        this.dnsRace = dnsRace;
+    }
+
+    /**
+     * Return how to answer the queries for blocked domains, or {@code null} if domain blocking is disabled.
+     */
+    public BlockedDomainAnswer getBlockedDomainAnswer() {
+        return blockedDomainAnswer;
+    }
+
+    public void setBlockedDomainAnswer(BlockedDomainAnswer blockedDomainAnswer) {
+        this.blockedDomainAnswer = blockedDomainAnswer;
+    }
+
+    /**
+     * Return what to do with the packets matching the destination filter, or {@code null} if it is disabled.
+     */
+    public FilterAction getDestinationFilterAction() {
+        return destinationFilterAction;
+    }
+
+    public void setDestinationFilterAction(FilterAction destinationFilterAction) {
+        this.destinationFilterAction = destinationFilterAction;
+    }
+}
@@ -0,0 +1,324 @@
+/*
+ * Copyright (C) 2017 Genymobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.genymobile.gnirehtet;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters updated by the {@link Forwarder} of one VPN session.
+ */
+public class ForwarderStats {
+
+    private static final String TAG = ForwarderStats.class.getSimpleName();
+
+    // only the periods with traffic count to measure the throughput
+    private static final long ACTIVE_PERIOD_NS = 100_000_000;
+
+    private final AtomicLong upstreamPackets = new AtomicLong();
+    private final AtomicLong upstreamBytes = new AtomicLong();
+    private final AtomicLong downstreamPackets = new AtomicLong();
+    private final AtomicLong downstreamBytes = new AtomicLong();
+    private final AtomicInteger maxPacketLength = new AtomicInteger();
+    private final AtomicLong activePeriods = new AtomicLong();
+    private final AtomicLong lastActivePeriod = new AtomicLong(-1);
+    private final AtomicLong coalescedPackets = new AtomicLong();
+    private final AtomicLong coalescedFlushes = new AtomicLong();
+    private final AtomicLong prioritizedPackets = new AtomicLong();
+    private final AtomicLong rejectedIPv6Packets = new AtomicLong();
+    private final AtomicLong blockedQueries = new AtomicLong();
+    private final AtomicLong filteredPackets = new AtomicLong();
+    private final AtomicLong unsupportedProtocolPackets = new AtomicLong();
+    private final AtomicLong rejectedUdpPackets = new AtomicLong();
+    private final AtomicLong resetConnections = new AtomicLong();
+    private final AtomicLong firewalledPackets = new AtomicLong();
+    private final AtomicLong resyncs = new AtomicLong();
+    private final AtomicLong resyncDroppedBytes = new AtomicLong();
+    // the start of the (re)configuration waiting for its first packet (SystemClock.elapsedRealtime()), or -1
+    private volatile long firstPacketReference = -1;
+    private final AtomicLong timeToFirstPacket = new AtomicLong(-1);
+    private final AtomicLong teardownTime = new AtomicLong(-1);
+    private final AtomicLong relayConnectionAttempts = new AtomicLong();
+    private final AtomicLong relayConnectionFailures = new AtomicLong();
+    private final AtomicLong relayOutages = new AtomicLong();
+    private final AtomicLong relayOutageTime = new AtomicLong();
+    private final AtomicLong longestRelayOutage = new AtomicLong();
+
+    void onUpstreamPacket(int length) {
+        upstreamPackets.incrementAndGet();
+        upstreamBytes.addAndGet(length);
+        onPacket(length);
+        if (firstPacketReference != -1) {
+            onFirstPacket();
+        }
+    }
+
+    private void onFirstPacket() {
+        long reference = firstPacketReference;
+        firstPacketReference = -1;
+        if (reference != -1) {
+            long delay = SystemClock.elapsedRealtime() - reference;
+            timeToFirstPacket.set(delay);
+            Log.i(TAG, "Time to first packet: " + delay + "ms");
+        }
+    }
+
+    /**
+     * Measure the time from a (re)configuration of the VPN to the first packet forwarded to the relay server.
+     *
+     * @param referenceMs the start of the (re)configuration, from {@link SystemClock#elapsedRealtime()}
+     */
+    public void expectFirstPacket(long referenceMs) {
+        firstPacketReference = referenceMs;
+    }
+
+    void onStopped(long teardownMs) {
+        teardownTime.set(teardownMs);
+    }
+
+    void onRelayConnectionAttempt() {
+        relayConnectionAttempts.incrementAndGet();
+    }
+
+    void onRelayConnectionFailure() {
+        relayConnectionFailures.incrementAndGet();
+    }
+
+    void onRelayOutage(long durationMs) {
+        relayOutages.incrementAndGet();
+        relayOutageTime.addAndGet(durationMs);
+        long longest;
+        do {
+            longest = longestRelayOutage.get();
+        } while (durationMs > longest && !longestRelayOutage.compareAndSet(longest, durationMs));
+    }
+
+    void onDownstreamPacket(int length) {
+        downstreamPackets.incrementAndGet();
+        downstreamBytes.addAndGet(length);
+        onPacket(length);
+    }
+
+    private void onPacket(int length) {
+        int max;
+        do {
+            max = maxPacketLength.get();
+        } while (length > max && !maxPacketLength.compareAndSet(max, length));
+
+        long period = System.nanoTime() / ACTIVE_PERIOD_NS;
+        long last = lastActivePeriod.get();
+        if (period != last && lastActivePeriod.compareAndSet(last, period)) {
+            activePeriods.incrementAndGet();
+        }
+    }
+
+    void onCoalescedFlush(int packets) {
+        coalescedPackets.addAndGet(packets);
+        coalescedFlushes.incrementAndGet();
+    }
+
+    void onPrioritized() {
+        prioritizedPackets.incrementAndGet();
+    }
+
+    void onIPv6Rejected() {
+        rejectedIPv6Packets.incrementAndGet();
+    }
+
+    void onBlockedQuery() {
+        blockedQueries.incrementAndGet();
+    }
+
+    void onFilteredPacket() {
+        filteredPackets.incrementAndGet();
+    }
+
+    void onUnsupportedProtocol() {
+        unsupportedProtocolPackets.incrementAndGet();
+    }
+
+    void onRejectedUdp() {
+        rejectedUdpPackets.incrementAndGet();
+    }
+
+    void onConnectionsReset(int count) {
+        resetConnections.addAndGet(count);
+    }
+
+    void onFirewalledPacket() {
+        firewalledPackets.incrementAndGet();
+    }
+
+    void onResync(int droppedBytes) {
+        resyncs.incrementAndGet();
+        resyncDroppedBytes.addAndGet(droppedBytes);
+    }
+
+    public long getUpstreamPackets() {
+        return upstreamPackets.get();
+    }
+
+    public long getUpstreamBytes() {
+        return upstreamBytes.get();
+    }
+
+    public long getDownstreamPackets() {
+        return downstreamPackets.get();
+    }
+
+    public long getDownstreamBytes() {
+        return downstreamBytes.get();
+    }
+
+    public long getTotalBytes() {
+        return upstreamBytes.get() + downstreamBytes.get();
+    }
+
+    public double getAveragePacketLength() {
+        long packets = upstreamPackets.get() + downstreamPackets.get();
+        return packets == 0 ? 0 : (double) getTotalBytes() / packets;
+    }
+
+    public int getMaxPacketLength() {
+        return maxPacketLength.get();
+    }
+
+    /**
+     * Return the time during which packets were forwarded, at a resolution of 100ms.
+     *
+     * @return the active time, in milliseconds
+     */
+    public long getActiveTimeMs() {
+        return activePeriods.get() * ACTIVE_PERIOD_NS / 1_000_000;
+    }
+
+    public long getCoalescedPackets() {
+        return coalescedPackets.get();
+    }
+
+    public long getCoalescedFlushes() {
+        return coalescedFlushes.get();
+    }
+
+    public double getPacketsPerFlush() {
+        long flushes = coalescedFlushes.get();
+        return flushes == 0 ? 0 : (double) coalescedPackets.get() / flushes;
+    }
+
+    public long getPrioritizedPackets() {
+        return prioritizedPackets.get();
+    }
+
+    public long getRejectedIPv6Packets() {
+        return rejectedIPv6Packets.get();
+    }
+
+    public long getBlockedQueries() {
+        return blockedQueries.get();
+    }
+
+    public long getFilteredPackets() {
+        return filteredPackets.get();
+    }
+
+    public long getUnsupportedProtocolPackets() {
+        return unsupportedProtocolPackets.get();
+    }
+
+    public long getRejectedUdpPackets() {
+        return rejectedUdpPackets.get();
+    }
+
+    public long getResetConnections() {
+        return resetConnections.get();
+    }
+
+    public long getFirewalledPackets() {
+        return firewalledPackets.get();
+    }
+
+    /**
+     * Return the time to the first packet after the start of forwarding or the last (re)configuration, in milliseconds,
+     * or -1 if not measured.
+     */
+    public long getTimeToFirstPacket() {
+        return timeToFirstPacket.get();
+    }
+
+    /**
+     * Return the time from the request to stop forwarding to the termination of all the forwarding threads, in
+     * milliseconds, or -1 if not stopped.
+     */
+    public long getTeardownTime() {
+        return teardownTime.get();
+    }
+
+    public long getRelayConnectionAttempts() {
+        return relayConnectionAttempts.get();
+    }
+
+    public long getRelayConnectionFailures() {
+        return relayConnectionFailures.get();
+    }
+
+    /**
+     * Return the number of losses of a connected relay tunnel recovered by a reconnection.
+     */
+    public long getRelayOutages() {
+        return relayOutages.get();
+    }
+
+    /**
+     * Return the total time from the losses of the relay tunnels to their reconnection, in milliseconds.
+     */
+    public long getRelayOutageTime() {
+        return relayOutageTime.get();
+    }
+
+    public long getLongestRelayOutage() {
+        return longestRelayOutage.get();
+    }
+
+    public long getResyncs() {
+        return resyncs.get();
+    }
+
+    public long getResyncDroppedBytes() {
+        return resyncDroppedBytes.get();
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "up=" + getUpstreamPackets() + " packets/" + getUpstreamBytes() + " bytes, down=" + getDownstreamPackets()
+                + " packets/" + getDownstreamBytes() + " bytes, max packet=" + getMaxPacketLength() + ", active="
+                + getActiveTimeMs() + "ms, coalesced=" + getCoalescedPackets() + " packets in " + getCoalescedFlushes() + " writes ("
+                + String.format("%.2f", getPacketsPerFlush()) + " packets/write), prioritized=" + getPrioritizedPackets()
+                + ", rejected IPv6=" + getRejectedIPv6Packets() + ", blocked DNS=" + getBlockedQueries() + ", filtered=" + getFilteredPackets()
+                + ", unsupported protocol=" + getUnsupportedProtocolPackets() + ", rejected UDP=" + getRejectedUdpPackets()
+                + ", reset connections=" + getResetConnections() + ", firewalled=" + getFirewalledPackets()
+                + ", time to first packet=" + getTimeToFirstPacket() + "ms, teardown=" + getTeardownTime() + "ms"
+                + ", relay attempts=" + getRelayConnectionAttempts() + " (" + getRelayConnectionFailures() + " failed), outages="
+                + getRelayOutages() + " (" + getRelayOutageTime() + "ms, longest " + getLongestRelayOutage() + "ms)"
+                + ", resyncs=" + getResyncs() + " (" + getResyncDroppedBytes() + " bytes dropped)";
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2017 Genymobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.genymobile.gnirehtet;
+
+/**
+ * Strategy used by {@link Forwarder} to move packets between the VPN interface and the relay tunnel.
+ */
+public enum ForwardingEngine {
+
+    /**
+     * Blocking {@link java.io.FileInputStream}/{@link java.io.FileOutputStream} I/O on heap buffers.
+     */
+    STREAM("Stream"),
+
+    /**
+     * Blocking {@link android.system.Os} I/O on direct buffers, so that packets are never copied to a temporary
+     * native buffer.
+     */
+    DIRECT_BUFFER("Direct buffer"),
+
+    /**
+     * Single thread servicing both directions, waiting for events with {@link android.system.Os#poll}, and never
+     * blocking on the relay tunnels (they are connected by separate threads).
+     */
+    POLL("Poll");
+
+    private final String displayName;
+
+    ForwardingEngine(String displayName) {
+        this.displayName = displayName;
+    }
+
+    public String getDisplayName() {
+        return displayName;
+    }
+}
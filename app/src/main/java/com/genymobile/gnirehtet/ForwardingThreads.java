@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2017 Genymobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.genymobile.gnirehtet;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The threads of one forwarding session.
+ * <p>
+ * Every session owns its threads, so that a new session never waits for the threads of the previous one, possibly still
+ * blocked, to terminate.
+ */
+class ForwardingThreads {
+
+    private static final String TAG = ForwardingThreads.class.getSimpleName();
+
+    private final String sessionName;
+    private final List<Thread> threads = new ArrayList<>();
+
+    ForwardingThreads(String sessionName) {
+        this.sessionName = sessionName;
+    }
+
+    /**
+     * Start a forwarding thread, named after the session and the task.
+     *
+     * @param name the task name
+     * @param task the task
+     */
+    synchronized void start(String name, Runnable task) {
+        Thread thread = new Thread(() -> {
+            // the packets wait for these threads, they must not be delayed by background work
+            Process.setThreadPriority(Process.THREAD_PRIORITY_DISPLAY);
+            task.run();
+        }, sessionName + "-" + name);
+        threads.add(thread);
+        thread.start();
+    }
+
+    synchronized void interrupt() {
+        for (Thread thread : threads) {
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * Wait for all the threads to terminate.
+     *
+     * @param timeoutMs the maximum time to wait for all of them
+     * @return {@code true} if all the threads terminated
+     */
+    synchronized boolean join(long timeoutMs) {
+        // System.nanoTime() is monotonic too, and also works in the JVM tests
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        boolean interrupted = false;
+        boolean terminated = true;
+        for (Thread thread : threads) {
+            while (thread.isAlive()) {
+                long remainingNs = deadline - System.nanoTime();
+                if (remainingNs <= 0) {
+                    break;
+                }
+                try {
+                    // join(0) would wait forever
+                    thread.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(remainingNs)));
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (thread.isAlive()) {
+                Log.w(TAG, "Thread " + thread.getName() + " did not terminate");
+                terminated = false;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return terminated;
+    }
+}
@@ -28,6 +28,7 @@ public class GnirehtetActivity extends Activity {
     public static final String EXTRA_ROUTES = "routes";
     public static final String EXTRA_BLOCKED_PACKAGE_NAMES = "blockedPackageNames";
     public static final String EXTRA_STOP_ON_DISCONNECT = "stopOnDisconnect";
+    public static final String EXTRA_REJECTED_UDP_PORTS = "rejectedUdpPorts";
 
     private static final int VPN_REQUEST_CODE = 0;
 
@@ -69,8 +70,11 @@ public class GnirehtetActivity extends Activity {
         if (blockedPackageNames == null) {
             blockedPackageNames = new String[0];
         }
+        // null if not provided, the preferences apply
+        int[] rejectedUdpPorts = intent.getIntArrayExtra(EXTRA_REJECTED_UDP_PORTS);
         boolean stopOnDisconnect = intent.getBooleanExtra(EXTRA_STOP_ON_DISCONNECT, false);
-        return Gnirehtet.INSTANCE.createConfig(Net.toInetAddresses(dnsServers), Net.toCIDRs(routes), blockedPackageNames, stopOnDisconnect, true);
+        return Gnirehtet.INSTANCE.createConfig(Net.toInetAddresses(dnsServers), Net.toCIDRs(routes), blockedPackageNames, rejectedUdpPorts,
+                stopOnDisconnect, true);
     }
 
     private boolean startGnirehtet(VpnConfiguration config) {
@@ -26,17 +26,26 @@ import android.net.Network;
 import android.net.VpnService;
 import android.os.Build;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
 import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
 import android.util.Log;
 import android.widget.Toast;
 
+import com.genymobile.gnirehtet.settings.PreferencesManager;
 import com.genymobile.gnirehtet.settings.PreferencesManagerKt;
 
+import java.io.File;
 import java.io.IOException;
+import java.net.Inet6Address;
 import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import kotlinx.coroutines.flow.MutableStateFlow;
 import kotlinx.coroutines.flow.StateFlow;
@@ -48,27 +57,102 @@ public class GnirehtetService extends VpnService {
 
     private static final String ACTION_START_VPN = "com.genymobile.gnirehtet.START_VPN";
     private static final String ACTION_CLOSE_VPN = "com.genymobile.gnirehtet.CLOSE_VPN";
+    private static final String ACTION_RECONFIGURE_VPN = "com.genymobile.gnirehtet.RECONFIGURE_VPN";
     private static final String EXTRA_VPN_CONFIGURATION = "vpnConfiguration";
+    private static final String EXTRA_RESTART_TIME = "restartTime";
 
     private static final String TAG = GnirehtetService.class.getSimpleName();
 
     private static final InetAddress VPN_ADDRESS = Net.toInetAddress(new byte[] {10, 0, 0, 2});
-    // magic value: higher (like 0x8000 or 0xffff) or lower (like 1500) values show poorer performances
-    private static final int MTU = 0x4000;
+    private static final int DNS_CACHE_SIZE = 1024;
+    private static final String DNS_CACHE_SNAPSHOT = "dns-cache";
+
+    private static final InetAddress VPN_ADDRESS_V6 = Net.toInetAddress("fd67:6e69:7265:6874::2");
+    // not assigned to any interface, answer pings locally
+    private static final InetAddress VPN_GATEWAY = Net.toInetAddress(new byte[] {10, 0, 0, 1});
+    private static final InetAddress VPN_GATEWAY_V6 = Net.toInetAddress("fd67:6e69:7265:6874::1");
+
+    private static final long FLOWS_PUBLISH_INTERVAL_MS = 1000;
+    private static final int LOGGED_FLOWS = 10;
 
     private final Notifier notifier = new Notifier(this);
+    private final UsbConnectionHandler usbConnectionHandler = new UsbConnectionHandler(new BroadcastUsbConnectionSource(this),
+            new UsbConnectionHandler.Vpn() {
+                @Override
+                public boolean isRunning() {
+                    return GnirehtetService.isRunning().getValue();
+                }
+
+                @Override
+                public void reconnectNow() {
+                    if (forwarder != null) {
+                        forwarder.reconnectNow();
+                    }
+                }
+
+                @Override
+                public boolean isStartOnUsbConnectEnabled() {
+                    return PreferencesManagerKt.getPreferences().getGnirehtetStartOnUsbConnect().getValue();
+                }
+
+                @Override
+                public void startWithLastConfiguration() {
+                    startOnUsbConnection();
+                }
+            });
     private final RelayTunnelConnectionStateHandler handler = new RelayTunnelConnectionStateHandler(this);
 
     private ParcelFileDescriptor vpnInterface;
+    // the previous VPN interface after a reconfiguration, closed once drained
+    private volatile ParcelFileDescriptor drainingVpnInterface;
     private Forwarder forwarder;
+    // the network of the current VPN interface
+    private Network vpnNetwork;
+    // selected when the VPN starts, kept when it is reconfigured so that the measurements remain valid
+    private int mtu;
+    // kept across sessions, so that a restart does not lose it
+    private final DnsCache dnsCache = new DnsCache(DNS_CACHE_SIZE);
     private static final MutableStateFlow<Boolean> isRunning = StateFlowKt.MutableStateFlow(false);
     private static final MutableStateFlow<Boolean> isConnected = StateFlowKt.MutableStateFlow(false);
+    private static final MutableStateFlow<List<FlowSnapshot>> flows = StateFlowKt.MutableStateFlow(Collections.emptyList());
+    private static final MutableStateFlow<Map<Integer, AppTraffic>> appTraffic = StateFlowKt.MutableStateFlow(Collections.emptyMap());
+    private static final MutableStateFlow<Double> packetsPerWrite = StateFlowKt.MutableStateFlow(0.0);
     private static VpnConfiguration lastConfiguration;
 
+    // resolving the owners of the flows involves binder calls, keep them off the main thread
+    private HandlerThread flowsThread;
+    // a START request received while closing, run once closed
+    private Runnable afterClose;
+
     public static void start(Context context, VpnConfiguration config) {
+        start(context, config, -1);
+    }
+
+    /**
+     * Start the VPN, as part of a restart.
+     *
+     * @param restartTime the start of the restart, from {@link SystemClock#elapsedRealtime()}, to measure the time to the
+     *                    first packet, or {@code -1}
+     */
+    public static void start(Context context, VpnConfiguration config, long restartTime) {
         Intent intent = new Intent(context, GnirehtetService.class);
         intent.setAction(ACTION_START_VPN);
         intent.putExtra(GnirehtetService.EXTRA_VPN_CONFIGURATION, config);
+        intent.putExtra(GnirehtetService.EXTRA_RESTART_TIME, restartTime);
+        startService(context, intent);
+    }
+
+    /**
+     * Apply a new configuration to the running VPN, keeping the connection to the relay server if possible.
+     */
+    public static void reconfigure(Context context, VpnConfiguration config) {
+        Intent intent = new Intent(context, GnirehtetService.class);
+        intent.setAction(ACTION_RECONFIGURE_VPN);
+        intent.putExtra(GnirehtetService.EXTRA_VPN_CONFIGURATION, config);
+        startService(context, intent);
+    }
+
+    private static void startService(Context context, Intent intent) {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
             context.startForegroundService(intent);
         } else {
@@ -95,18 +179,23 @@ public class GnirehtetService extends VpnService {
         String action = intent.getAction();
         Log.d(TAG, "Received request " + action);
         if (ACTION_START_VPN.equals(action)) {
-            if (isRunning().getValue()) {
+            if (isClosing()) {
+                Log.d(TAG, "VPN closing, START request postponed");
+                afterClose = () -> startVpn(intent);
+            } else if (isRunning().getValue()) {
                 Log.d(TAG, "VPN already running, ignore START request");
             } else {
-                VpnConfiguration config = intent.getParcelableExtra(EXTRA_VPN_CONFIGURATION);
-                if (config == null) {
-                    config = new VpnConfiguration();
-                }
-                lastConfiguration = config;
-                startVpn(config);
+                startVpn(intent);
             }
         } else if (ACTION_CLOSE_VPN.equals(action)) {
-            close();
+            // a START request received while closing is obsolete
+            afterClose = null;
+            close(null);
+        } else if (ACTION_RECONFIGURE_VPN.equals(action)) {
+            VpnConfiguration config = intent.getParcelableExtra(EXTRA_VPN_CONFIGURATION);
+            if (config != null) {
+                reconfigureVpn(config);
+            }
         }
         return START_NOT_STICKY;
     }
@@ -119,43 +208,115 @@ public class GnirehtetService extends VpnService {
         return isConnected;
     }
 
+    /**
+     * Return the active flows of the running session, the most active first, refreshed every second.
+     */
+    public static StateFlow<List<FlowSnapshot>> getFlows() {
+        return flows;
+    }
+
+    /**
+     * Return the traffic of every app (by UID) during the running session, refreshed every second.
+     * <p>
+     * It is always empty before Android 10.
+     */
+    public static StateFlow<Map<Integer, AppTraffic>> getAppTraffic() {
+        return appTraffic;
+    }
+
+    /**
+     * Return the average number of packets per write to the relay server when coalescing, during the running session,
+     * refreshed every second.
+     * <p>
+     * It is 0 if coalescing is disabled or nothing was written yet.
+     */
+    public static StateFlow<Double> getPacketsPerWrite() {
+        return packetsPerWrite;
+    }
+
     public static VpnConfiguration getLastConfiguration() {
         return lastConfiguration;
     }
 
+    private void startVpn(Intent intent) {
+        VpnConfiguration config = intent.getParcelableExtra(EXTRA_VPN_CONFIGURATION);
+        if (config == null) {
+            config = new VpnConfiguration();
+        }
+        lastConfiguration = config;
+        startVpn(config);
+        long restartTime = intent.getLongExtra(EXTRA_RESTART_TIME, -1);
+        if (forwarder != null && restartTime != -1) {
+            forwarder.getStats().expectFirstPacket(restartTime);
+        }
+    }
+
     private void startVpn(VpnConfiguration config) {
-        if (setupVpn(config)) {
+        ForwarderOptions options = createForwarderOptions();
+        // the blocked apps are disallowed from the new VPN interface
+        AppFirewall.clear();
+        if (PreferencesManagerKt.getPreferences().getForwardingDnsCache().getValue()) {
+            options.setDnsCache(dnsCache);
+            loadDnsCacheSnapshot();
+        }
+        if (options.getBlockedDomainAnswer() != null) {
+            DomainBlocklists.loadIfNeeded(this);
+        }
+        if (options.getDestinationFilterAction() != null) {
+            DestinationFilters.update(PreferencesManagerKt.getPreferences().getForwardingDestinationFilterRules().getValue());
+        }
+        mtu = selectMtu();
+        options.setMtu(mtu);
+        if (setupVpn(config, options)) {
             notifier.start();
-            startForwarding();
+            startForwarding(options);
+            usbConnectionHandler.onVpnStarted();
         } else {
             Toast.makeText(this, "Failed to start Gnirehtet", Toast.LENGTH_SHORT).show();
         }
     }
 
+    private boolean setupVpn(VpnConfiguration config, ForwarderOptions options) {
+        prepareOptions(config, options);
+        vpnInterface = establishVpn(config, options);
+        isRunning.setValue(vpnInterface != null);
+        if (vpnInterface == null) {
+            Log.w(TAG, "VPN starting failed, please retry");
+            // establish() may return null if the application is not prepared or is revoked
+            return false;
+        }
+
+        setAsUndernlyingNetwork();
+        return true;
+    }
+
+    private static void prepareOptions(VpnConfiguration config, ForwarderOptions options) {
+        options.setGateways(new InetAddress[] {VPN_GATEWAY, VPN_GATEWAY_V6});
+        options.setDnsServers(selectDnsServers(config, options.isIPv6()));
+        options.setRejectedUdpPorts(config.getRejectedUdpPorts());
+    }
+
     @SuppressWarnings("checkstyle:MagicNumber")
-    private boolean setupVpn(VpnConfiguration config) {
+    private ParcelFileDescriptor establishVpn(VpnConfiguration config, ForwarderOptions options) {
         Builder builder = new Builder();
         builder.addAddress(VPN_ADDRESS, 32);
+        // even if IPv6 forwarding is disabled, so that IPv6 packets are rejected immediately instead of timing out
+        builder.addAddress(VPN_ADDRESS_V6, 128);
         builder.setSession(getString(R.string.app_name));
 
         CIDR[] routes = config.getRoutes();
         if (routes.length == 0) {
             // no routes defined, redirect the whole network traffic
             builder.addRoute("0.0.0.0", 0);
+            builder.addRoute("::", 0);
         } else {
             for (CIDR route : routes) {
                 builder.addRoute(route.getAddress(), route.getPrefixLength());
             }
         }
 
-        InetAddress[] dnsServers = config.getDnsServers();
-        if (dnsServers.length == 0) {
-            // no DNS server defined, use Google DNS
-            builder.addDnsServer("8.8.8.8");
-        } else {
-            for (InetAddress dnsServer : dnsServers) {
-                builder.addDnsServer(dnsServer);
-            }
+        for (InetAddress dnsServer : options.getDnsServers()) {
+            builder.addDnsServer(dnsServer);
         }
 
         for (String blockedApp : config.getBlockedPackageNames()) {
@@ -167,38 +328,134 @@ public class GnirehtetService extends VpnService {
         // non-blocking by default, but FileChannel is not selectable, that's stupid!
         // so switch to synchronous I/O to avoid polling
         builder.setBlocking(true);
-        builder.setMtu(MTU);
+        builder.setMtu(mtu);
 
-        vpnInterface = builder.establish();
-        isRunning.setValue(vpnInterface != null);
-        if (vpnInterface == null) {
-            Log.w(TAG, "VPN starting failed, please retry");
-            // establish() may return null if the application is not prepared or is revoked
-            return false;
+        return builder.establish();
+    }
+
+    /**
+     * Apply a new configuration without reconnecting to the relay server ("make before break").
+     * <p>
+     * The new VPN interface is established first: from then, the system routes the packets to it. The forwarder switches
+     * to it, and the previous VPN interface is closed once drained. If the forwarder cannot handle the new configuration,
+     * the VPN is restarted.
+     */
+    private void reconfigureVpn(VpnConfiguration config) {
+        if (!isRunning().getValue() || forwarder == null) {
+            return;
+        }
+        long start = SystemClock.elapsedRealtime();
+        ForwarderOptions newOptions = createForwarderOptions();
+        prepareOptions(config, newOptions);
+        if (!forwarder.canSwitchVpnInterface(newOptions)) {
+            Log.i(TAG, "Forwarder options changed, restarting VPN");
+            close(() -> {
+                lastConfiguration = config;
+                startVpn(config);
+                if (forwarder != null) {
+                    forwarder.getStats().expectFirstPacket(start);
+                }
+            });
+            return;
         }
 
+        // a copy, the forwarder switches to the new options with the new VPN interface
+        ForwarderOptions options = forwarder.getOptions();
+        options.setDnsServers(newOptions.getDnsServers());
+        ParcelFileDescriptor newInterface = establishVpn(config, options);
+        if (newInterface == null) {
+            Log.w(TAG, "Cannot establish the new VPN interface, keep the current one");
+            return;
+        }
+        ParcelFileDescriptor previousInterface = vpnInterface;
+        drainingVpnInterface = previousInterface;
+        vpnInterface = newInterface;
+        lastConfiguration = config;
+        removeDisallowedAppsFromFirewall(config);
+        forwarder.getStats().expectFirstPacket(start);
+        forwarder.switchVpnInterface(newInterface.getFileDescriptor(), options, () -> {
+            closeQuietly(previousInterface);
+            Log.d(TAG, "Previous VPN interface closed");
+        });
         setAsUndernlyingNetwork();
-        return true;
+        Log.i(TAG, "VPN interface replaced in " + (SystemClock.elapsedRealtime() - start) + "ms");
+    }
+
+    /**
+     * The traffic of the apps disallowed from the new VPN interface does not go through the VPN anymore, so they need not
+     * be blocked by the firewall. The other blocked apps are still filtered, until the next restart.
+     */
+    private void removeDisallowedAppsFromFirewall(VpnConfiguration config) {
+        if (AppFirewall.isEmpty()) {
+            return;
+        }
+        PackageManager packageManager = getPackageManager();
+        List<Integer> disallowedUids = new ArrayList<>();
+        for (String packageName : config.getBlockedPackageNames()) {
+            try {
+                disallowedUids.add(packageManager.getPackageUid(packageName, 0));
+            } catch (PackageManager.NameNotFoundException ignored) {}
+        }
+        AppFirewall.removeBlockedUids(disallowedUids);
+    }
+
+    private static void closeQuietly(ParcelFileDescriptor vpnInterface) {
+        try {
+            vpnInterface.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot close VPN file descriptor", e);
+        }
+    }
+
+    private static InetAddress[] selectDnsServers(VpnConfiguration config, boolean ipv6) {
+        List<InetAddress> dnsServers = new ArrayList<>();
+        if (config.getDnsServers().length == 0) {
+            // no DNS server defined, use Google DNS
+            dnsServers.add(Net.toInetAddress("8.8.8.8"));
+            if (ipv6) {
+                dnsServers.add(Net.toInetAddress("2001:4860:4860::8888"));
+            }
+        } else {
+            for (InetAddress dnsServer : config.getDnsServers()) {
+                if (dnsServer instanceof Inet6Address && !ipv6) {
+                    Log.w(TAG, "IPv6 is disabled, ignoring DNS server " + dnsServer.getHostAddress());
+                    continue;
+                }
+                dnsServers.add(dnsServer);
+            }
+        }
+        return dnsServers.toArray(new InetAddress[0]);
     }
 
     @SuppressWarnings("checkstyle:MagicNumber")
     private void setAsUndernlyingNetwork() {
         if (Build.VERSION.SDK_INT >= 22) {
-            Network vpnNetwork = findVpnNetwork();
-            if (vpnNetwork != null) {
+            // after a reconfiguration, the previous VPN interface has the same address until it is closed
+            Network network = findVpnNetwork(vpnNetwork);
+            if (network != null) {
+                vpnNetwork = network;
                 // so that applications knows that network is available
-                setUnderlyingNetworks(new Network[] {vpnNetwork});
+                setUnderlyingNetworks(new Network[] {network});
+            } else {
+                Log.w(TAG, "Cannot find the network of the VPN interface");
             }
         } else {
             Log.w(TAG, "Cannot set underlying network, API version " + Build.VERSION.SDK_INT + " < 22");
         }
     }
 
-    private Network findVpnNetwork() {
+    private Network findVpnNetwork(Network previousNetwork) {
         ConnectivityManager cm = (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
         Network[] networks = cm.getAllNetworks();
         for (Network network : networks) {
+            if (network.equals(previousNetwork)) {
+                continue;
+            }
             LinkProperties linkProperties = cm.getLinkProperties(network);
+            if (linkProperties == null) {
+                // disconnected meanwhile
+                continue;
+            }
             List<LinkAddress> addresses = linkProperties.getLinkAddresses();
             for (LinkAddress addr : addresses) {
                 if (addr.getAddress().equals(VPN_ADDRESS)) {
@@ -209,28 +466,216 @@ public class GnirehtetService extends VpnService {
         return null;
     }
 
-    private void startForwarding() {
-        forwarder = new Forwarder(this, vpnInterface.getFileDescriptor(), new RelayTunnelListener(handler));
+    private void startOnUsbConnection() {
+        if (lastConfiguration == null) {
+            return;
+        }
+        if (VpnService.prepare(this) != null) {
+            Log.w(TAG, "VPN not authorized, cannot start on USB connection");
+            return;
+        }
+        try {
+            start(this, lastConfiguration, SystemClock.elapsedRealtime());
+        } catch (IllegalStateException e) {
+            // starting a foreground service from the background may be forbidden
+            Log.w(TAG, "Cannot start VPN on USB connection", e);
+        }
+    }
+
+    private void startForwarding(ForwarderOptions options) {
+        forwarder = new Forwarder(this, vpnInterface.getFileDescriptor(), new RelayTunnelListener(handler), options);
         forwarder.forward();
+        startPublishingFlows(forwarder);
+    }
+
+    private void startPublishingFlows(Forwarder forwarder) {
+        flowsThread = new HandlerThread("flows");
+        flowsThread.start();
+        Handler flowsHandler = new Handler(flowsThread.getLooper());
+        flowsHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                long now = System.currentTimeMillis();
+                List<FlowSnapshot> snapshot = forwarder.getFlowTable().snapshot(now);
+                flows.setValue(snapshot);
+                AppTrafficAccounting accounting = forwarder.getAppTrafficAccounting();
+                if (accounting != null) {
+                    Map<Integer, AppTraffic> traffic = new HashMap<>();
+                    for (AppTraffic app : accounting.update(snapshot, now)) {
+                        traffic.put(app.getUid(), app);
+                    }
+                    appTraffic.setValue(traffic);
+                }
+                packetsPerWrite.setValue(forwarder.getStats().getPacketsPerFlush());
+                flowsHandler.postDelayed(this, FLOWS_PUBLISH_INTERVAL_MS);
+            }
+        });
+    }
+
+    private static void stopPublishingFlows(HandlerThread flowsThread) {
+        flowsThread.quitSafely();
+        try {
+            // wait for the snapshot in progress, if any, so that it is not published after the reset
+            flowsThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flows.setValue(Collections.emptyList());
+        appTraffic.setValue(Collections.emptyMap());
+        packetsPerWrite.setValue(0.0);
+    }
+
+    private static ForwarderOptions createForwarderOptions() {
+        PreferencesManager preferences = PreferencesManagerKt.getPreferences();
+        ForwarderOptions options = new ForwarderOptions();
+        options.setEngine(preferences.getForwardingEngine().getValue());
+        options.setCoalesceWrites(preferences.getForwardingCoalesceWrites().getValue());
+        options.setPrioritizeInteractive(preferences.getForwardingPrioritizeInteractive().getValue());
+        options.setRelayConnections(Math.max(1, preferences.getForwardingRelayConnections().getValue()));
+        options.setIPv6(preferences.getForwardingIPv6().getValue());
+        options.setResetConnections(preferences.getForwardingResetConnections().getValue());
+        options.setDnsRace(preferences.getForwardingDnsRace().getValue());
+        if (preferences.getForwardingBlocklist().getValue()) {
+            options.setBlockedDomainAnswer(preferences.getForwardingBlocklistAnswer().getValue());
+        }
+        if (preferences.getForwardingDestinationFilter().getValue()) {
+            options.setDestinationFilterAction(preferences.getForwardingDestinationFilterAction().getValue());
+        }
+        return options;
     }
 
-    private void close() {
-        if (!isRunning().getValue()) {
-            // already closed
+    private static int selectMtu() {
+        PreferencesManager preferences = PreferencesManagerKt.getPreferences();
+        MtuMode mode = preferences.getForwardingMtuMode().getValue();
+        int mtu = MtuTuner.parse(preferences.getForwardingMtuMeasurements().getValue()).selectMtu(mode);
+        Log.i(TAG, "Using MTU " + mtu + " (" + mode + ")");
+        return mtu;
+    }
+
+    private void recordMtuMeasurement(ForwarderStats stats) {
+        PreferencesManager preferences = PreferencesManagerKt.getPreferences();
+        if (preferences.getForwardingMtuMode().getValue() == MtuMode.FIXED) {
             return;
         }
+        MtuTuner tuner = MtuTuner.parse(preferences.getForwardingMtuMeasurements().getValue());
+        if (tuner.record(mtu, stats)) {
+            preferences.getForwardingMtuMeasurements().setValue(tuner.toString());
+            Log.i(TAG, "MTU measurements:\n" + tuner.getReport());
+        } else {
+            Log.d(TAG, "Not enough traffic to measure MTU " + mtu);
+        }
+    }
 
-        notifier.stop();
+    private boolean isDnsCacheSnapshotEnabled() {
+        return PreferencesManagerKt.getPreferences().getForwardingDnsCacheSnapshot().getValue();
+    }
 
+    private void loadDnsCacheSnapshot() {
+        if (!isDnsCacheSnapshotEnabled() || dnsCache.size() != 0) {
+            return;
+        }
+        File file = new File(getCacheDir(), DNS_CACHE_SNAPSHOT);
+        // disk I/O must not block the main thread, the cache is filled as soon as it is loaded
+        new Thread(() -> {
+            try {
+                dnsCache.load(file, System.currentTimeMillis());
+                Log.d(TAG, "DNS cache snapshot loaded: " + dnsCache.size() + " entries");
+            } catch (IOException e) {
+                Log.w(TAG, "Cannot load DNS cache snapshot", e);
+            }
+        }, "dns-cache-load").start();
+    }
+
+    private void saveDnsCacheSnapshot() {
+        if (!isDnsCacheSnapshotEnabled()) {
+            return;
+        }
+        // called from the closing thread, so that the next start loads it
+        File file = new File(getCacheDir(), DNS_CACHE_SNAPSHOT);
         try {
-            forwarder.stop();
-            forwarder = null;
-            vpnInterface.close();
-            vpnInterface = null;
-            isRunning.setValue(false);
-            isConnected.setValue(false);
+            dnsCache.save(file, System.currentTimeMillis());
         } catch (IOException e) {
-            Log.w(TAG, "Cannot close VPN file descriptor", e);
+            Log.w(TAG, "Cannot save DNS cache snapshot", e);
+        }
+    }
+
+    @Override
+    public void onDestroy() {
+        usbConnectionHandler.release();
+        super.onDestroy();
+    }
+
+    /**
+     * Close the VPN.
+     * <p>
+     * Stopping the forwarder joins its threads, so this is done on a separate thread, to keep the main thread responsive.
+     * The VPN is reported as not running once closed, then {@code onClosed} (if not {@code null}) and any START request
+     * received meanwhile are run on the main thread.
+     */
+    private void close(Runnable onClosed) {
+        if (!isRunning().getValue() || forwarder == null) {
+            // already closed or closing
+            return;
+        }
+
+        notifier.stop();
+        usbConnectionHandler.onVpnStopped();
+
+        Forwarder closedForwarder = forwarder;
+        HandlerThread closedFlowsThread = flowsThread;
+        ParcelFileDescriptor closedVpnInterface = vpnInterface;
+        ParcelFileDescriptor closedDrainingVpnInterface = drainingVpnInterface;
+        forwarder = null;
+        flowsThread = null;
+        vpnInterface = null;
+        drainingVpnInterface = null;
+        vpnNetwork = null;
+        new Thread(() -> {
+            stopPublishingFlows(closedFlowsThread);
+            closedForwarder.stop();
+            Log.i(TAG, "Forwarder stats: " + closedForwarder.getStats());
+            logTopFlows(closedForwarder.getFlowTable());
+            recordMtuMeasurement(closedForwarder.getStats());
+            if (closedForwarder.getDnsRacer() != null) {
+                Log.i(TAG, "DNS servers: " + closedForwarder.getDnsRacer());
+            }
+            if (closedForwarder.getOptions().getDnsCache() != null) {
+                Log.i(TAG, "DNS cache: " + dnsCache);
+                saveDnsCacheSnapshot();
+            }
+            if (closedDrainingVpnInterface != null) {
+                // the forwarder stopped before draining it, closing again is harmless
+                closeQuietly(closedDrainingVpnInterface);
+            }
+            closeQuietly(closedVpnInterface);
+            handler.post(() -> finishClose(onClosed));
+        }, "vpn-close").start();
+    }
+
+    private void finishClose(Runnable onClosed) {
+        isRunning.setValue(false);
+        isConnected.setValue(false);
+        Log.d(TAG, "VPN closed");
+        if (onClosed != null) {
+            onClosed.run();
+        }
+        Runnable start = afterClose;
+        afterClose = null;
+        if (start != null && !isRunning().getValue()) {
+            start.run();
+        }
+    }
+
+    private boolean isClosing() {
+        // the forwarder is reset as soon as the VPN starts closing
+        return isRunning().getValue() && forwarder == null;
+    }
+
+    private static void logTopFlows(FlowTable flowTable) {
+        List<FlowSnapshot> snapshot = flowTable.snapshot(System.currentTimeMillis());
+        Log.i(TAG, "Active flows: " + snapshot.size());
+        for (int i = 0; i < Math.min(LOGGED_FLOWS, snapshot.size()); ++i) {
+            Log.i(TAG, "  " + snapshot.get(i));
         }
     }
 
@@ -245,7 +690,7 @@ public class GnirehtetService extends VpnService {
 
         @Override
         public void handleMessage(Message message) {
-            if (!isRunning().getValue()) {
+            if (!isRunning().getValue() || vpnService.isClosing()) {
                 // if the VPN is not running anymore, ignore obsolete events
                 return;
             }
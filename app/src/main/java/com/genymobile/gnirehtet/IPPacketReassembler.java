@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2017 Genymobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.genymobile.gnirehtet;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Reassemble the IP packets received from the relay tunnel stream, and write them one at a time to a
+ * {@link PacketSink}.
+ * <p>
+ * Data is received directly into the internal buffer, and complete packets are written straight from it. Only a
+ * trailing partial packet is ever moved, when the space left at the end of the buffer could not hold a whole packet.
+ * Since the buffer is several times larger than a packet, and since it restarts from the beginning whenever it is
+ * fully consumed, this copy is rare.
+ * <p>
+ * Every header is validated before the packet is written. If the stream does not start with a valid IP header, the
+ * reassembler skips to the next plausible one, so that corrupted input costs one packet instead of the whole buffer.
+ * Since random bytes may look like an IPv6 header, the first packet found after skipping is only written once the
+ * packet following it is valid too (or once it ends exactly where the data received so far ends).
+ */
+@SuppressWarnings("checkstyle:MagicNumber")
+public class IPPacketReassembler {
+
+    private static final String TAG = IPPacketReassembler.class.getSimpleName();
+
+    private static final int MAX_IP_PACKET_LENGTH = 1 << 16; // packet length is stored on 16 bits
+    private static final int BUFFER_SIZE = 4 * MAX_IP_PACKET_LENGTH;
+
+    private final int maxPacketLength;
+    private final PacketSink sink;
+    private final ForwarderStats stats;
+    // pending data is stored in [head, buffer.position()), data is received in [buffer.position(), buffer.limit())
+    private final ByteBuffer buffer;
+    // view of the buffer exposing one packet at a time to the sink
+    private final ByteBuffer packetView;
+    private int head;
+    // the packet at head follows skipped data, so it must be confirmed by the next one
+    private boolean resynced;
+
+    /**
+     * Create a reassembler.
+     *
+     * @param direct whether the buffer is direct
+     * @param maxPacketLength the maximal length of a valid packet (see {@link #getMaxPacketLength(int)})
+     * @param sink the sink of the packets
+     * @param stats the stats
+     */
+    public IPPacketReassembler(boolean direct, int maxPacketLength, PacketSink sink, ForwarderStats stats) {
+        this.maxPacketLength = maxPacketLength;
+        this.sink = sink;
+        this.stats = stats;
+        buffer = direct ? ByteBuffer.allocateDirect(BUFFER_SIZE) : ByteBuffer.allocate(BUFFER_SIZE);
+        packetView = buffer.duplicate();
+    }
+
+    /**
+     * Return the maximal length of the packets received from the relay server.
+     *
+     * @param mtu the MTU of the VPN interface
+     * @return the maximal packet length
+     */
+    public static int getMaxPacketLength(int mtu) {
+        // the relay server builds its packets for the default MTU, whatever the MTU of the VPN interface
+        return Math.max(mtu, MtuTuner.DEFAULT_MTU);
+    }
+
+    /**
+     * Receive data from the tunnel directly into the internal buffer, and write all the complete packets.
+     *
+     * @param tunnel the tunnel to receive from
+     * @return the number of bytes received, or {@code -1} if the tunnel is closed
+     * @throws IOException if an I/O error occurs
+     */
+    public int receive(Tunnel tunnel) throws IOException {
+        // by design, there is always enough space to complete the pending packet
+        int r = tunnel.receive(buffer);
+        if (r > 0) {
+            sink();
+            makeRoom();
+        }
+        return r;
+    }
+
+    /**
+     * Discard the pending data, typically a partial packet from a lost connection.
+     */
+    public void reset() {
+        head = 0;
+        resynced = false;
+        buffer.clear();
+    }
+
+    private void sink() throws IOException {
+        // sink all packets
+        while (sinkPacket()) {
+            // continue
+        }
+    }
+
+    private boolean sinkPacket() throws IOException {
+        int tail = buffer.position();
+        int available = tail - head;
+        if (available == 0) {
+            // no packet at all
+            return false;
+        }
+        int packetLength = frame(head, available);
+        if (packetLength == IPPackets.INVALID) {
+            resync(tail);
+            return true;
+        }
+        if (packetLength == IPPackets.NEED_MORE_DATA || packetLength > available) {
+            // no packet, but do not wait for the end of a candidate which may not be a packet at all
+            return resynced && skipToConfirmedPacket(tail);
+        }
+        if (resynced) {
+            int nextLength = frameNext(head + packetLength, tail);
+            if (nextLength == IPPackets.INVALID) {
+                // not a packet after all
+                resync(tail);
+                return true;
+            }
+            if (nextLength == IPPackets.NEED_MORE_DATA) {
+                // wait for the next header
+                return false;
+            }
+            resynced = false;
+        }
+
+        int version = IPPackets.readVersion(buffer, head);
+        if (version == 4 || version == 6) {
+            packetView.limit(head + packetLength);
+            packetView.position(head);
+            sink.write(packetView);
+            stats.onDownstreamPacket(packetLength);
+        } else {
+            Log.w(TAG, "Unsupported packet received, IP version is: " + version);
+        }
+        head += packetLength;
+        return true;
+    }
+
+    /**
+     * Skip the invalid data at {@code head}, up to the next position which may be the start of an IP packet.
+     *
+     * @param tail the end of the pending data
+     */
+    private void resync(int tail) {
+        int index = head;
+        do {
+            ++index;
+        } while (index < tail && frame(index, tail - index) == IPPackets.INVALID);
+        skip(index);
+        resynced = true;
+    }
+
+    /**
+     * Skip the incomplete candidate at {@code head} if a complete packet, confirmed by the next one, follows.
+     *
+     * @param tail the end of the pending data
+     * @return {@code true} if the data has been skipped
+     */
+    private boolean skipToConfirmedPacket(int tail) {
+        for (int index = head + 1; index < tail; ++index) {
+            int packetLength = frame(index, tail - index);
+            if (packetLength > 0 && packetLength <= tail - index && frameNext(index + packetLength, tail) >= 0) {
+                skip(index);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void skip(int index) {
+        int dropped = index - head;
+        head = index;
+        stats.onResync(dropped);
+        Log.w(TAG, "Invalid IP header, skipped " + dropped + " bytes");
+    }
+
+    /**
+     * Frame the packet following the one ending at {@code next}.
+     *
+     * @return the packet length, {@code 0} if there is no more data, {@link IPPackets#NEED_MORE_DATA} or
+     * {@link IPPackets#INVALID}
+     */
+    private int frameNext(int next, int tail) {
+        return next == tail ? 0 : frame(next, tail - next);
+    }
+
+    private int frame(int index, int available) {
+        int packetLength = IPPackets.frame(buffer, index, available);
+        return packetLength > maxPacketLength ? IPPackets.INVALID : packetLength;
+    }
+
+    private void makeRoom() {
+        int tail = buffer.position();
+        if (head == tail) {
+            // everything has been consumed, restart from the beginning without any copy
+            head = 0;
+            buffer.clear();
+        } else if (buffer.capacity() - tail < MAX_IP_PACKET_LENGTH) {
+            // move the partial packet to the beginning
+            buffer.limit(tail);
+            buffer.position(head);
+            buffer.compact();
+            head = 0;
+        }
+    }
+}
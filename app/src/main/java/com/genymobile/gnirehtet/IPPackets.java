@@ -0,0 +1,384 @@
+/*
+ * Copyright (C) 2017 Genymobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.genymobile.gnirehtet;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Read and validate IP headers directly from a buffer, at absolute positions.
+ */
+@SuppressWarnings("checkstyle:MagicNumber")
+public final class IPPackets {
+
+    /**
+     * Returned by {@link #frame(ByteBuffer, int, int)} if more data is necessary to tell.
+     */
+    public static final int NEED_MORE_DATA = -1;
+
+    /**
+     * Returned by {@link #frame(ByteBuffer, int, int)} if the data cannot be the start of an IP packet.
+     */
+    public static final int INVALID = -2;
+
+    public static final int IPV4_MIN_HEADER_LENGTH = 20;
+    public static final int IPV6_HEADER_LENGTH = 40;
+
+    public static final int PROTOCOL_ICMP = 1;
+    public static final int PROTOCOL_TCP = 6;
+    public static final int PROTOCOL_UDP = 17;
+    public static final int PROTOCOL_ICMPV6 = 58;
+
+    // IPv6 extension headers
+    private static final int IPV6_HOP_BY_HOP_OPTIONS = 0;
+    private static final int IPV6_ROUTING = 43;
+    private static final int IPV6_FRAGMENT = 44;
+    private static final int IPV6_DESTINATION_OPTIONS = 60;
+
+    private static final int TCP_MIN_HEADER_LENGTH = 20;
+    // also the length of the smallest ICMPv6 message and of every extension header
+    private static final int UDP_HEADER_LENGTH = 8;
+
+    private IPPackets() {
+        // not instantiable
+    }
+
+    public static int readVersion(ByteBuffer buffer, int index) {
+        // version is stored in the 4 first bits
+        return (buffer.get(index) & 0xf0) >> 4;
+    }
+
+    /**
+     * Validate the header of the packet starting at {@code index}, and return the packet length.
+     * <p>
+     * For IPv4, the header length, the total length and the header checksum are checked. IPv6 has no header checksum,
+     * so the next header must be TCP, UDP, ICMPv6 or an extension header, and the payload must be large enough to hold
+     * it. The first fields of this header are checked too, if available. This is weaker, so after a resynchronization the caller should also check that the packet is followed by
+     * another valid one (see {@link IPPacketReassembler}).
+     *
+     * @param buffer the buffer
+     * @param index the absolute position of the packet
+     * @param available the number of bytes available from {@code index}
+     * @return the packet length, {@link #NEED_MORE_DATA} or {@link #INVALID}
+     */
+    public static int frame(ByteBuffer buffer, int index, int available) {
+        if (available < 1) {
+            return NEED_MORE_DATA;
+        }
+        int version = readVersion(buffer, index);
+        if (version == 4) {
+            return frameIPv4(buffer, index, available);
+        }
+        if (version == 6) {
+            return frameIPv6(buffer, index, available);
+        }
+        return INVALID;
+    }
+
+    private static int frameIPv4(ByteBuffer buffer, int index, int available) {
+        int headerLength = (buffer.get(index) & 0xf) * 4;
+        if (headerLength < IPV4_MIN_HEADER_LENGTH) {
+            return INVALID;
+        }
+        if (available < 4) {
+            return NEED_MORE_DATA;
+        }
+        // packet length is 16 bits starting at offset 2
+        int totalLength = Binary.unsigned(buffer.getShort(index + 2));
+        if (totalLength < headerLength) {
+            return INVALID;
+        }
+        if (available < headerLength) {
+            return NEED_MORE_DATA;
+        }
+        if (checksum(buffer, index, headerLength) != 0) {
+            // the sum of a header including its checksum field is 0
+            return INVALID;
+        }
+        return totalLength;
+    }
+
+    private static int frameIPv6(ByteBuffer buffer, int index, int available) {
+        if (available < 7) {
+            return NEED_MORE_DATA;
+        }
+        int minPayloadLength = getMinPayloadLength(Binary.unsigned(buffer.get(index + 6)));
+        if (minPayloadLength == -1) {
+            return INVALID;
+        }
+        // payload length is 16 bits starting at offset 4, the fixed header is not included
+        int payloadLength = Binary.unsigned(buffer.getShort(index + 4));
+        if (payloadLength < minPayloadLength || !isPlausibleIPv6Payload(buffer, index, available, payloadLength)) {
+            return INVALID;
+        }
+        return IPV6_HEADER_LENGTH + payloadLength;
+    }
+
+    /**
+     * Check the first header of the IPv6 payload against the payload length, if it is already available.
+     */
+    private static boolean isPlausibleIPv6Payload(ByteBuffer buffer, int index, int available, int payloadLength) {
+        int nextHeader = Binary.unsigned(buffer.get(index + 6));
+        int payload = index + IPV6_HEADER_LENGTH;
+        switch (nextHeader) {
+            case PROTOCOL_TCP:
+                if (available < IPV6_HEADER_LENGTH + 13) {
+                    return true;
+                }
+                // data offset, in 32-bit words
+                int dataOffset = (Binary.unsigned(buffer.get(payload + 12)) >> 4) * 4;
+                return dataOffset >= TCP_MIN_HEADER_LENGTH && dataOffset <= payloadLength;
+            case PROTOCOL_UDP:
+                if (available < IPV6_HEADER_LENGTH + 6) {
+                    return true;
+                }
+                return Binary.unsigned(buffer.getShort(payload + 4)) == payloadLength;
+            case PROTOCOL_ICMPV6:
+                if (available < IPV6_HEADER_LENGTH + 1) {
+                    return true;
+                }
+                // error messages are 1 to 4, informational messages 128 and above
+                int type = Binary.unsigned(buffer.get(payload));
+                return (type >= 1 && type <= 4) || type >= 128;
+            default:
+                // extension header
+                if (available < IPV6_HEADER_LENGTH + 2) {
+                    return true;
+                }
+                int extensionLength = getIPv6ExtensionHeaderLength(buffer, payload, nextHeader);
+                return getMinPayloadLength(Binary.unsigned(buffer.get(payload))) != -1 && extensionLength < payloadLength;
+        }
+    }
+
+    /**
+     * Return the minimal length of an IPv6 payload starting with the given header, or {@code -1} if the header is not
+     * expected in a packet.
+     */
+    private static int getMinPayloadLength(int nextHeader) {
+        switch (nextHeader) {
+            case PROTOCOL_TCP:
+                return TCP_MIN_HEADER_LENGTH;
+            case PROTOCOL_UDP:
+            case PROTOCOL_ICMPV6:
+            case IPV6_HOP_BY_HOP_OPTIONS:
+            case IPV6_ROUTING:
+            case IPV6_FRAGMENT:
+            case IPV6_DESTINATION_OPTIONS:
+                return UDP_HEADER_LENGTH;
+            default:
+                return -1;
+        }
+    }
+
+    private static boolean isIPv6ExtensionHeader(int nextHeader) {
+        return nextHeader == IPV6_HOP_BY_HOP_OPTIONS || nextHeader == IPV6_ROUTING || nextHeader == IPV6_FRAGMENT
+                || nextHeader == IPV6_DESTINATION_OPTIONS;
+    }
+
+    private static int getIPv6ExtensionHeaderLength(ByteBuffer buffer, int header, int nextHeader) {
+        // the fragment header has a fixed length, the others store it in 8-octet units, not including the first 8
+        return nextHeader == IPV6_FRAGMENT ? 8 : (Binary.unsigned(buffer.get(header + 1)) + 1) * 8;
+    }
+
+    /**
+     * Return the end of the IPv6 packet starting at {@code index}, according to its payload length, but never beyond
+     * {@code length}.
+     */
+    private static int getIPv6End(ByteBuffer buffer, int index, int length) {
+        int payloadLength = Binary.unsigned(buffer.getShort(index + 4));
+        return index + Math.min(length, IPV6_HEADER_LENGTH + payloadLength);
+    }
+
+    /**
+     * Return the absolute position of the "next header" field announcing the transport protocol of the IPv6 packet
+     * starting at {@code index}, after its extension headers (RFC 8200).
+     * <p>
+     * If the extension headers are truncated, the field of the last complete one is returned.
+     *
+     * @param buffer the buffer
+     * @param index the absolute position of the packet
+     * @param length the packet length, at least {@link #IPV6_HEADER_LENGTH}
+     * @return the position of the field, in the fixed header or in the last extension header
+     */
+    public static int getIPv6ProtocolIndex(ByteBuffer buffer, int index, int length) {
+        int end = getIPv6End(buffer, index, length);
+        int field = index + 6;
+        int header = index + IPV6_HEADER_LENGTH;
+        int nextHeader = Binary.unsigned(buffer.get(field));
+        // every extension header is at least 8 bytes long
+        while (isIPv6ExtensionHeader(nextHeader) && header + 8 <= end) {
+            field = header;
+            header += getIPv6ExtensionHeaderLength(buffer, header, nextHeader);
+            nextHeader = Binary.unsigned(buffer.get(field));
+        }
+        return field;
+    }
+
+    /**
+     * Return the transport protocol of the packet starting at {@code index}, up to the limit of the buffer.
+     * <p>
+     * For IPv6, the extension headers are skipped (see {@link #getIPv6ProtocolIndex(ByteBuffer, int, int)}).
+     *
+     * @param buffer the buffer
+     * @param index the absolute position of the packet
+     * @return the protocol number
+     */
+    @SuppressWarnings("checkstyle:MagicNumber")
+    public static int readProtocol(ByteBuffer buffer, int index) {
+        if (readVersion(buffer, index) == 6) {
+            int length = buffer.limit() - index;
+            int field = length >= IPV6_HEADER_LENGTH ? getIPv6ProtocolIndex(buffer, index, length) : index + 6;
+            return Binary.unsigned(buffer.get(field));
+        }
+        return Binary.unsigned(buffer.get(index + 9));
+    }
+
+    @SuppressWarnings("checkstyle:MagicNumber")
+    public static int getSourceAddressIndex(ByteBuffer buffer, int index) {
+        return readVersion(buffer, index) == 6 ? index + 8 : index + 12;
+    }
+
+    @SuppressWarnings("checkstyle:MagicNumber")
+    public static int getDestinationAddressIndex(ByteBuffer buffer, int index) {
+        return readVersion(buffer, index) == 6 ? index + 24 : index + 16;
+    }
+
+    /**
+     * Return the absolute position of the transport header of the packet starting at {@code index}.
+     * <p>
+     * For IPv6, the extension headers are skipped. Fragments other than the first one have no transport header, nor
+     * have packets whose headers are truncated.
+     *
+     * @param buffer the buffer
+     * @param index the absolute position of the packet
+     * @param length the packet length
+     * @return the position of the transport header, or {@code -1} if it cannot be found
+     */
+    @SuppressWarnings("checkstyle:MagicNumber")
+    public static int getTransportIndex(ByteBuffer buffer, int index, int length) {
+        int version = readVersion(buffer, index);
+        if (version == 4 && length >= IPV4_MIN_HEADER_LENGTH) {
+            if ((buffer.getShort(index + 6) & 0x1fff) != 0) {
+                // not the first fragment
+                return -1;
+            }
+            int headerLength = (buffer.get(index) & 0xf) * 4;
+            return headerLength <= length ? index + headerLength : -1;
+        }
+        if (version == 6 && length >= IPV6_HEADER_LENGTH) {
+            return getIPv6TransportIndex(buffer, index, length);
+        }
+        return -1;
+    }
+
+    private static int getIPv6TransportIndex(ByteBuffer buffer, int index, int length) {
+        int end = getIPv6End(buffer, index, length);
+        int header = index + IPV6_HEADER_LENGTH;
+        int nextHeader = Binary.unsigned(buffer.get(index + 6));
+        while (isIPv6ExtensionHeader(nextHeader)) {
+            if (header + 8 > end) {
+                return -1;
+            }
+            if (nextHeader == IPV6_FRAGMENT && (buffer.getShort(header + 2) & 0xfff8) != 0) {
+                // not the first fragment
+                return -1;
+            }
+            int headerLength = getIPv6ExtensionHeaderLength(buffer, header, nextHeader);
+            nextHeader = Binary.unsigned(buffer.get(header));
+            header += headerLength;
+        }
+        return header <= end ? header : -1;
+    }
+
+    /**
+     * Hash the 5-tuple (addresses, protocol and ports) of the IP packet starting at {@code index}.
+     * <p>
+     * Ports are ignored for fragments other than the first one and for protocols other than TCP and UDP. Other IP
+     * versions are hashed on the version only.
+     *
+     * @param buffer the buffer
+     * @param index the absolute position of the packet
+     * @param length the packet length
+     * @return the hash
+     */
+    @SuppressWarnings("checkstyle:MagicNumber")
+    public static int flowHash(ByteBuffer buffer, int index, int length) {
+        if (length == 0) {
+            return 0;
+        }
+        int version = readVersion(buffer, index);
+        int protocol;
+        int hash;
+        int transport;
+        if (version == 4 && length >= IPV4_MIN_HEADER_LENGTH) {
+            protocol = Binary.unsigned(buffer.get(index + 9));
+            hash = protocol;
+            hash = 31 * hash + buffer.getInt(index + 12); // source address
+            hash = 31 * hash + buffer.getInt(index + 16); // destination address
+            boolean fragment = (buffer.getShort(index + 6) & 0x1fff) != 0;
+            transport = fragment ? -1 : index + (buffer.get(index) & 0xf) * 4;
+        } else if (version == 6 && length >= IPV6_HEADER_LENGTH) {
+            protocol = Binary.unsigned(buffer.get(getIPv6ProtocolIndex(buffer, index, length)));
+            hash = protocol;
+            for (int i = index + 8; i < index + IPV6_HEADER_LENGTH; i += 4) {
+                hash = 31 * hash + buffer.getInt(i); // source and destination addresses
+            }
+            transport = getIPv6TransportIndex(buffer, index, length);
+        } else {
+            return version;
+        }
+        if ((protocol == PROTOCOL_TCP || protocol == PROTOCOL_UDP) && transport != -1 && index + length >= transport + 4) {
+            hash = 31 * hash + buffer.getInt(transport); // source and destination ports
+        }
+        // spread the bits, consecutive ports must not map to consecutive connections
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Compute the internet checksum (RFC 1071) of {@code length} bytes starting at {@code index}.
+     *
+     * @param buffer the buffer
+     * @param index the absolute position of the data
+     * @param length the data length
+     * @return the checksum, to be stored as is in a checksum field
+     */
+    public static int checksum(ByteBuffer buffer, int index, int length) {
+        return finishChecksum(sum(buffer, index, length, 0));
+    }
+
+    /**
+     * Add {@code length} bytes starting at {@code index} to a partial ones' complement sum.
+     */
+    static int sum(ByteBuffer buffer, int index, int length, int sum) {
+        int end = index + length;
+        int i = index;
+        for (; i < end - 1; i += 2) {
+            sum += Binary.unsigned(buffer.getShort(i));
+        }
+        if (i < end) {
+            // odd length, pad with 0
+            sum += Binary.unsigned(buffer.get(i)) << 8;
+        }
+        return sum;
+    }
+
+    static int finishChecksum(int sum) {
+        while ((sum & ~0xffff) != 0) {
+            sum = (sum & 0xffff) + (sum >>> 16);
+        }
+        return ~sum & 0xffff;
+    }
+}
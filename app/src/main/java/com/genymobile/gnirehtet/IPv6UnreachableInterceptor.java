@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2017 Genymobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.genymobile.gnirehtet;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Reply to IPv6 packets with an ICMPv6 "Destination Unreachable" message (RFC 4443), when IPv6 forwarding is disabled.
+ * <p>
+ * Without a reply, applications trying IPv6 first wait for a connection timeout before falling back to IPv4.
+ */
+public class IPv6UnreachableInterceptor implements PacketInterceptor {
+
+    private final PacketSink deviceSink;
+    private final ForwarderStats stats;
+    private final ByteBuffer reply = ByteBuffer.allocate(IcmpPackets.MAX_ERROR_LENGTH);
+
+    public IPv6UnreachableInterceptor(PacketSink deviceSink, ForwarderStats stats) {
+        this.deviceSink = deviceSink;
+        this.stats = stats;
+    }
+
+    @Override
+    public boolean intercept(ByteBuffer packet, PacketSink upstream) throws IOException {
+        int index = packet.position();
+        int length = packet.remaining();
+        if (length == 0 || IPPackets.readVersion(packet, index) != 6) {
+            return false;
+        }
+        if (IcmpPackets.canReplyWithError(packet, index, length)) {
+            IcmpPackets.buildUnreachable(packet, index, length, IcmpPackets.UNREACHABLE_NO_ROUTE, reply);
+            deviceSink.write(reply);
+            stats.onIPv6Rejected();
+        }
+        // never forward IPv6 packets, even if no reply is sent
+        return true;
+    }
+}
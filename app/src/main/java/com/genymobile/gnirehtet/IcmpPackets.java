@@ -0,0 +1,302 @@
+/*
+ * Copyright (C) 2017 Genymobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.genymobile.gnirehtet;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Build ICMP (RFC 792) and ICMPv6 (RFC 4443) messages in reply to packets which will not be forwarded.
+ * <p>
+ * Without a reply, applications wait for a timeout before failing or trying another way.
+ */
+@SuppressWarnings("checkstyle:MagicNumber")
+public final class IcmpPackets {
+
+    /**
+     * The maximum length of an error message built by this class.
+     */
+    public static final int MAX_ERROR_LENGTH = 1280;
+
+    public static final int UNREACHABLE_NO_ROUTE = 0;
+    public static final int UNREACHABLE_PROHIBITED = 1;
+    public static final int UNREACHABLE_PORT = 2;
+    public static final int UNREACHABLE_PROTOCOL = 3;
+
+    private static final int ICMP_HEADER_LENGTH = 8;
+    private static final int TTL = 64;
+    private static final int HOP_LIMIT = 255;
+
+    private static final int ICMP_TYPE_ECHO_REPLY = 0;
+    private static final int ICMP_TYPE_DESTINATION_UNREACHABLE = 3;
+    private static final int ICMP_TYPE_ECHO_REQUEST = 8;
+    // the codes of "Destination Unreachable" for each reason: network unreachable, communication administratively
+    // prohibited (RFC 1812), port unreachable, protocol unreachable
+    private static final int[] ICMP_CODES = {0, 13, 3, 2};
+    // an ICMP error message should not exceed the IPv4 minimum reassembly size (RFC 1812)
+    private static final int ICMP_MAX_ERROR_LENGTH = 576;
+
+    private static final int ICMPV6_TYPE_DESTINATION_UNREACHABLE = 1;
+    private static final int ICMPV6_TYPE_PARAMETER_PROBLEM = 4;
+    private static final int ICMPV6_TYPE_ECHO_REQUEST = 128;
+    private static final int ICMPV6_TYPE_ECHO_REPLY = 129;
+    // the codes of "Destination Unreachable" for each reason (an unknown protocol is a "Parameter Problem" instead)
+    private static final int[] ICMPV6_CODES = {0, 1, 4, 1};
+    // types below are error messages, which must never trigger another error
+    private static final int ICMPV6_FIRST_INFORMATIONAL_TYPE = 128;
+
+    private IcmpPackets() {
+        // not instantiable
+    }
+
+    /**
+     * Indicate whether an error message may be sent in reply to the packet starting at {@code index}.
+     * <p>
+     * No error is sent in reply to error messages, to packets sent to a multicast or broadcast address, from an
+     * unspecified address, or to fragments other than the first one.
+     *
+     * @param packet the buffer
+     * @param index the absolute position of the packet
+     * @param length the packet length
+     * @return {@code true} if an error message may be sent
+     */
+    public static boolean canReplyWithError(ByteBuffer packet, int index, int length) {
+        if (length == 0) {
+            return false;
+        }
+        int version = IPPackets.readVersion(packet, index);
+        if (version == 4) {
+            return canReplyWithErrorV4(packet, index, length);
+        }
+        if (version == 6) {
+            return canReplyWithErrorV6(packet, index, length);
+        }
+        return false;
+    }
+
+    private static boolean canReplyWithErrorV4(ByteBuffer packet, int index, int length) {
+        if (length < IPPackets.IPV4_MIN_HEADER_LENGTH) {
+            return false;
+        }
+        if (Binary.unsigned(packet.get(index + 16)) >= 224) {
+            // multicast, reserved or broadcast destination
+            return false;
+        }
+        if (packet.getInt(index + 12) == 0) {
+            // unspecified source address
+            return false;
+        }
+        int transport = IPPackets.getTransportIndex(packet, index, length);
+        if (transport == -1) {
+            // not the first fragment
+            return false;
+        }
+        if (IPPackets.readProtocol(packet, index) == IPPackets.PROTOCOL_ICMP && transport < index + length) {
+            return !isIcmpError(Binary.unsigned(packet.get(transport)));
+        }
+        return true;
+    }
+
+    private static boolean isIcmpError(int type) {
+        // destination unreachable, source quench, redirect, time exceeded, parameter problem
+        return type == 3 || type == 4 || type == 5 || type == 11 || type == 12;
+    }
+
+    private static boolean canReplyWithErrorV6(ByteBuffer packet, int index, int length) {
+        if (length < IPPackets.IPV6_HEADER_LENGTH) {
+            return false;
+        }
+        if (packet.get(index + 24) == (byte) 0xff) {
+            // multicast destination
+            return false;
+        }
+        if (packet.getLong(index + 8) == 0 && packet.getLong(index + 16) == 0) {
+            // unspecified source address
+            return false;
+        }
+        int transport = IPPackets.getTransportIndex(packet, index, length);
+        if (transport == -1) {
+            // not the first fragment, or truncated extension headers
+            return false;
+        }
+        if (IPPackets.readProtocol(packet, index) == IPPackets.PROTOCOL_ICMPV6 && transport < index + length) {
+            return Binary.unsigned(packet.get(transport)) >= ICMPV6_FIRST_INFORMATIONAL_TYPE;
+        }
+        return true;
+    }
+
+    /**
+     * Build a "Destination Unreachable" message in reply to the packet starting at {@code index}.
+     * <p>
+     * The caller must check {@link #canReplyWithError(ByteBuffer, int, int)} first. The reply buffer must have a
+     * capacity of at least {@link #MAX_ERROR_LENGTH}; it is flipped, ready to be written.
+     *
+     * @param packet the buffer
+     * @param index the absolute position of the packet
+     * @param length the packet length
+     * @param reason one of the {@code UNREACHABLE_*} constants
+     * @param reply the buffer to write the reply to
+     */
+    public static void buildUnreachable(ByteBuffer packet, int index, int length, int reason, ByteBuffer reply) {
+        reply.clear();
+        if (IPPackets.readVersion(packet, index) == 6) {
+            buildUnreachableV6(packet, index, length, reason, reply);
+        } else {
+            buildUnreachableV4(packet, index, length, reason, reply);
+        }
+        reply.flip();
+    }
+
+    private static void buildUnreachableV4(ByteBuffer packet, int index, int length, int reason, ByteBuffer reply) {
+        int invokingLength = Math.min(length, ICMP_MAX_ERROR_LENGTH - IPPackets.IPV4_MIN_HEADER_LENGTH - ICMP_HEADER_LENGTH);
+        int totalLength = IPPackets.IPV4_MIN_HEADER_LENGTH + ICMP_HEADER_LENGTH + invokingLength;
+
+        // IPv4 header, the checksum is computed below
+        reply.put((byte) 0x45);
+        reply.put((byte) 0);
+        reply.putShort((short) totalLength);
+        reply.putInt(0); // identification, flags and fragment offset
+        reply.put((byte) TTL);
+        reply.put((byte) IPPackets.PROTOCOL_ICMP);
+        reply.putShort((short) 0);
+        // swap source and destination
+        reply.putInt(packet.getInt(index + 16));
+        reply.putInt(packet.getInt(index + 12));
+        reply.putShort(10, (short) IPPackets.checksum(reply, 0, IPPackets.IPV4_MIN_HEADER_LENGTH));
+
+        // ICMP header, the checksum is computed below
+        reply.put((byte) ICMP_TYPE_DESTINATION_UNREACHABLE);
+        reply.put((byte) ICMP_CODES[reason]);
+        reply.putShort((short) 0);
+        reply.putInt(0);
+        // the invoking packet, at least its header and the first 8 bytes of its payload
+        for (int i = 0; i < invokingLength; ++i) {
+            reply.put(packet.get(index + i));
+        }
+
+        int checksum = IPPackets.checksum(reply, IPPackets.IPV4_MIN_HEADER_LENGTH, totalLength - IPPackets.IPV4_MIN_HEADER_LENGTH);
+        reply.putShort(IPPackets.IPV4_MIN_HEADER_LENGTH + 2, (short) checksum);
+    }
+
+    private static void buildUnreachableV6(ByteBuffer packet, int index, int length, int reason, ByteBuffer reply) {
+        int invokingLength = Math.min(length, MAX_ERROR_LENGTH - IPPackets.IPV6_HEADER_LENGTH - ICMP_HEADER_LENGTH);
+        int payloadLength = ICMP_HEADER_LENGTH + invokingLength;
+
+        // IPv6 header
+        reply.putInt(6 << 28);
+        reply.putShort((short) payloadLength);
+        reply.put((byte) IPPackets.PROTOCOL_ICMPV6);
+        reply.put((byte) HOP_LIMIT);
+        // swap source and destination
+        for (int i = 0; i < 16; ++i) {
+            reply.put(packet.get(index + 24 + i));
+        }
+        for (int i = 0; i < 16; ++i) {
+            reply.put(packet.get(index + 8 + i));
+        }
+        // ICMPv6 header, the checksum is computed below
+        if (reason == UNREACHABLE_PROTOCOL) {
+            reply.put((byte) ICMPV6_TYPE_PARAMETER_PROBLEM);
+            reply.put((byte) ICMPV6_CODES[reason]);
+            reply.putShort((short) 0);
+            // the offset of the unrecognized next header field
+            reply.putInt(IPPackets.getIPv6ProtocolIndex(packet, index, length) - index);
+        } else {
+            reply.put((byte) ICMPV6_TYPE_DESTINATION_UNREACHABLE);
+            reply.put((byte) ICMPV6_CODES[reason]);
+            reply.putShort((short) 0);
+            reply.putInt(0);
+        }
+        // as much of the invoking packet as possible
+        for (int i = 0; i < invokingLength; ++i) {
+            reply.put(packet.get(index + i));
+        }
+
+        // pseudo-header: addresses, upper-layer length and next header
+        int sum = IPPackets.sum(reply, 8, 32, 0);
+        sum += payloadLength + IPPackets.PROTOCOL_ICMPV6;
+        sum = IPPackets.sum(reply, IPPackets.IPV6_HEADER_LENGTH, payloadLength, sum);
+        reply.putShort(IPPackets.IPV6_HEADER_LENGTH + 2, (short) IPPackets.finishChecksum(sum));
+    }
+
+    /**
+     * Indicate whether the packet starting at {@code index} is a complete ICMP or ICMPv6 "Echo Request" (a ping).
+     *
+     * @param packet the buffer
+     * @param index the absolute position of the packet
+     * @param length the packet length
+     * @return {@code true} if the packet is an echo request
+     */
+    public static boolean isEchoRequest(ByteBuffer packet, int index, int length) {
+        int transport = IPPackets.getTransportIndex(packet, index, length);
+        if (transport == -1 || transport + ICMP_HEADER_LENGTH > index + length) {
+            return false;
+        }
+        int protocol = IPPackets.readProtocol(packet, index);
+        int type = Binary.unsigned(packet.get(transport));
+        if (IPPackets.readVersion(packet, index) == 6) {
+            return protocol == IPPackets.PROTOCOL_ICMPV6 && type == ICMPV6_TYPE_ECHO_REQUEST;
+        }
+        boolean moreFragments = (packet.getShort(index + 6) & 0x2000) != 0;
+        return protocol == IPPackets.PROTOCOL_ICMP && type == ICMP_TYPE_ECHO_REQUEST && !moreFragments;
+    }
+
+    /**
+     * Build the "Echo Reply" to an echo request, as if it was sent by its destination.
+     * <p>
+     * The caller must check {@link #isEchoRequest(ByteBuffer, int, int)} first. The reply buffer must have a capacity
+     * of at least {@code length}; it is flipped, ready to be written.
+     *
+     * @param packet the buffer
+     * @param index the absolute position of the packet
+     * @param length the packet length
+     * @param reply the buffer to write the reply to
+     */
+    public static void buildEchoReply(ByteBuffer packet, int index, int length, ByteBuffer reply) {
+        reply.clear();
+        for (int i = 0; i < length; ++i) {
+            reply.put(packet.get(index + i));
+        }
+        int transport = IPPackets.getTransportIndex(reply, 0, length);
+        if (IPPackets.readVersion(packet, index) == 6) {
+            // swap source and destination
+            for (int i = 0; i < 16; ++i) {
+                reply.put(8 + i, packet.get(index + 24 + i));
+                reply.put(24 + i, packet.get(index + 8 + i));
+            }
+            reply.put(7, (byte) HOP_LIMIT);
+            reply.put(transport, (byte) ICMPV6_TYPE_ECHO_REPLY);
+            reply.putShort(transport + 2, (short) 0);
+            // pseudo-header: addresses, upper-layer length and next header
+            int payloadLength = length - transport;
+            int sum = IPPackets.sum(reply, 8, 32, 0);
+            sum += payloadLength + IPPackets.PROTOCOL_ICMPV6;
+            sum = IPPackets.sum(reply, transport, payloadLength, sum);
+            reply.putShort(transport + 2, (short) IPPackets.finishChecksum(sum));
+        } else {
+            // swap source and destination
+            reply.putInt(12, packet.getInt(index + 16));
+            reply.putInt(16, packet.getInt(index + 12));
+            reply.put(8, (byte) TTL);
+            reply.putShort(10, (short) 0);
+            reply.putShort(10, (short) IPPackets.checksum(reply, 0, transport));
+            reply.put(transport, (byte) ICMP_TYPE_ECHO_REPLY);
+            reply.putShort(transport + 2, (short) 0);
+            reply.putShort(transport + 2, (short) IPPackets.checksum(reply, transport, length - transport));
+        }
+        reply.flip();
+    }
+}
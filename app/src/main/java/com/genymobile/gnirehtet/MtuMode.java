@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2017 Genymobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.genymobile.gnirehtet;
+
+/**
+ * How {@link GnirehtetService} selects the MTU of the VPN interface.
+ */
+public enum MtuMode {
+
+    /**
+     * Always use {@link MtuTuner#DEFAULT_MTU}.
+     */
+    FIXED("Fixed"),
+
+    /**
+     * Measure every candidate once, then use the one with the best measured throughput.
+     */
+    AUTO("Auto"),
+
+    /**
+     * Use the next candidate on every session, so that the same traffic can be measured for all of them.
+     */
+    SWEEP("Benchmark sweep");
+
+    private final String displayName;
+
+    MtuMode(String displayName) {
+        this.displayName = displayName;
+    }
+
+    public String getDisplayName() {
+        return displayName;
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2017 Genymobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.genymobile.gnirehtet;
+
+import android.util.Log;
+
+/**
+ * Select the MTU of the VPN interface from the throughput measured on previous sessions.
+ * <p>
+ * The best value depends on the device, the USB link and the relay host, so it cannot be hardcoded. The measurements
+ * are accumulated per candidate MTU, and persisted as a string (see {@link #toString()} and {@link #parse(String)}).
+ */
+public class MtuTuner {
+
+    private static final String TAG = MtuTuner.class.getSimpleName();
+
+    // magic value: higher (like 0x8000 or 0xffff) or lower (like 1500) values show poorer performances on most devices
+    public static final int DEFAULT_MTU = 0x4000;
+
+    // the default MTU first, so that it is measured first in AUTO mode
+    private static final int[] CANDIDATES = {DEFAULT_MTU, 1500, 0x1000, 0x2000, 0x8000};
+
+    // sessions with less traffic do not give a meaningful throughput
+    private static final long MIN_SESSION_BYTES = 1 << 20;
+    private static final long MIN_SESSION_ACTIVE_TIME_MS = 1000;
+
+    private final Measurement[] measurements = new Measurement[CANDIDATES.length];
+
+    public MtuTuner() {
+        for (int i = 0; i < CANDIDATES.length; ++i) {
+            measurements[i] = new Measurement(CANDIDATES[i]);
+        }
+    }
+
+    /**
+     * Parse measurements serialized by {@link #toString()}.
+     * <p>
+     * Invalid or obsolete entries are ignored.
+     *
+     * @param value the serialized measurements
+     * @return the tuner
+     */
+    public static MtuTuner parse(String value) {
+        MtuTuner tuner = new MtuTuner();
+        if (value.isEmpty()) {
+            return tuner;
+        }
+        for (String entry : value.split(";")) {
+            String[] fields = entry.split(":");
+            try {
+                if (fields.length != 4) {
+                    throw new NumberFormatException("Expected 4 fields");
+                }
+                Measurement measurement = tuner.find(Integer.parseInt(fields[0]));
+                int sessions = Integer.parseInt(fields[1]);
+                long bytes = Long.parseLong(fields[2]);
+                long activeTimeMs = Long.parseLong(fields[3]);
+                if (measurement != null) {
+                    measurement.sessions = sessions;
+                    measurement.bytes = bytes;
+                    measurement.activeTimeMs = activeTimeMs;
+                }
+            } catch (NumberFormatException e) {
+                Log.w(TAG, "Ignoring invalid MTU measurement: " + entry, e);
+            }
+        }
+        return tuner;
+    }
+
+    private Measurement find(int mtu) {
+        for (Measurement measurement : measurements) {
+            if (measurement.mtu == mtu) {
+                return measurement;
+            }
+        }
+        return null;
+    }
+
+    public int selectMtu(MtuMode mode) {
+        switch (mode) {
+            case AUTO:
+                return selectAuto();
+            case SWEEP:
+                return selectSweep();
+            default:
+                return DEFAULT_MTU;
+        }
+    }
+
+    private int selectAuto() {
+        Measurement best = null;
+        for (Measurement measurement : measurements) {
+            if (measurement.sessions == 0) {
+                // not measured yet
+                return measurement.mtu;
+            }
+            if (best == null || measurement.getThroughput() > best.getThroughput()) {
+                best = measurement;
+            }
+        }
+        return best.mtu;
+    }
+
+    private int selectSweep() {
+        Measurement next = measurements[0];
+        for (Measurement measurement : measurements) {
+            if (measurement.sessions < next.sessions) {
+                next = measurement;
+            }
+        }
+        return next.mtu;
+    }
+
+    /**
+     * Record the statistics of a session.
+     *
+     * @param mtu the MTU used during the session
+     * @param stats the statistics of the session
+     * @return {@code true} if the session had enough traffic to be recorded
+     */
+    public boolean record(int mtu, ForwarderStats stats) {
+        Measurement measurement = find(mtu);
+        if (measurement == null) {
+            return false;
+        }
+        long bytes = stats.getTotalBytes();
+        long activeTimeMs = stats.getActiveTimeMs();
+        if (bytes < MIN_SESSION_BYTES || activeTimeMs < MIN_SESSION_ACTIVE_TIME_MS) {
+            return false;
+        }
+        ++measurement.sessions;
+        measurement.bytes += bytes;
+        measurement.activeTimeMs += activeTimeMs;
+        return true;
+    }
+
+    /**
+     * Describe the measurements, one line per candidate MTU.
+     *
+     * @return the report
+     */
+    public String getReport() {
+        StringBuilder builder = new StringBuilder();
+        for (Measurement measurement : measurements) {
+            if (builder.length() != 0) {
+                builder.append('\n');
+            }
+            builder.append(measurement.mtu).append(": ");
+            if (measurement.sessions == 0) {
+                builder.append("not measured");
+            } else {
+                builder.append(measurement.getThroughput() / 1024).append(" KiB/s over ").append(measurement.sessions)
+                        .append(measurement.sessions == 1 ? " session" : " sessions");
+            }
+        }
+        return builder.toString();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (Measurement measurement : measurements) {
+            if (measurement.sessions == 0) {
+                continue;
+            }
+            if (builder.length() != 0) {
+                builder.append(';');
+            }
+            builder.append(measurement.mtu).append(':').append(measurement.sessions).append(':').append(measurement.bytes)
+                    .append(':').append(measurement.activeTimeMs);
+        }
+        return builder.toString();
+    }
+
+    private static final class Measurement {
+
+        private final int mtu;
+        private int sessions;
+        private long bytes;
+        private long activeTimeMs;
+
+        Measurement(int mtu) {
+            this.mtu = mtu;
+        }
+
+        /**
+         * Return the throughput while packets were forwarded, in bytes per second.
+         */
+        long getThroughput() {
+            return activeTimeMs == 0 ? 0 : bytes * 1000 / activeTimeMs;
+        }
+    }
+}
@@ -49,6 +49,12 @@ public final class Net {
         }
     }
 
+    @SuppressWarnings("checkstyle:MagicNumber")
+    public static InetAddress toInetAddress(int ipv4) {
+        byte[] raw = {(byte) (ipv4 >>> 24), (byte) (ipv4 >> 16), (byte) (ipv4 >> 8), (byte) ipv4};
+        return toInetAddress(raw);
+    }
+
     public static CIDR toCIDR(String cidr) {
         try {
             return CIDR.parse(cidr);
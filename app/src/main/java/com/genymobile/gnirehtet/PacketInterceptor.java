@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2017 Genymobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.genymobile.gnirehtet;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Handle locally some packets read from the VPN interface, instead of forwarding them to the relay server.
+ */
+public interface PacketInterceptor {
+
+    /**
+     * Handle the packet if it must not be forwarded.
+     * <p>
+     * The packet position and limit must be preserved. Local replies, if any, are written to the device directly.
+     * Additional packets may be sent to the tunnel through {@code upstream}, without being intercepted.
+     *
+     * @param packet the packet, from its position to its limit
+     * @param upstream the sink to send additional packets to the tunnel
+     * @return {@code true} if the packet is consumed, {@code false} if it must be forwarded
+     * @throws IOException if a packet cannot be written
+     */
+    boolean intercept(ByteBuffer packet, PacketSink upstream) throws IOException;
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2017 Genymobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.genymobile.gnirehtet;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Call several interceptors in order, until one consumes the packet.
+ */
+public class PacketInterceptorChain implements PacketInterceptor {
+
+    private final PacketInterceptor[] interceptors;
+
+    public PacketInterceptorChain(List<PacketInterceptor> interceptors) {
+        this.interceptors = interceptors.toArray(new PacketInterceptor[0]);
+    }
+
+    @Override
+    public boolean intercept(ByteBuffer packet, PacketSink upstream) throws IOException {
+        for (PacketInterceptor interceptor : interceptors) {
+            if (interceptor.intercept(packet, upstream)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
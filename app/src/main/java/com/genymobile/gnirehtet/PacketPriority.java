@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2017 Genymobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.genymobile.gnirehtet;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Classify packets read from the VPN interface by peeking at their headers.
+ * <p>
+ * Interactive packets (TCP connection control, pure ACKs, DNS queries and other small packets) are worth sending before
+ * MTU-sized upload segments, since a lot of latency depends on them.
+ */
+public final class PacketPriority {
+
+    private static final int TCP_FLAG_FIN = 0x01;
+    private static final int TCP_FLAG_SYN = 0x02;
+    private static final int TCP_FLAG_RST = 0x04;
+
+    private static final int DNS_PORT = 53;
+
+    // a TCP/IPv4 packet with some options but no payload, or a small datagram
+    private static final int SMALL_PACKET_LENGTH = 128;
+
+    private PacketPriority() {
+        // not instantiable
+    }
+
+    /**
+     * Indicate whether the IPv4 packet is interactive.
+     *
+     * @param buffer the buffer
+     * @param index the absolute position of the packet
+     * @param length the packet length
+     * @return {@code true} if the packet should be sent first
+     */
+    @SuppressWarnings("checkstyle:MagicNumber")
+    public static boolean isInteractive(ByteBuffer buffer, int index, int length) {
+        if (length < IPPackets.IPV4_MIN_HEADER_LENGTH || IPPackets.readVersion(buffer, index) != 4) {
+            return false;
+        }
+        if (length <= SMALL_PACKET_LENGTH) {
+            return true;
+        }
+        int headerLength = (buffer.get(index) & 0xf) * 4;
+        boolean fragment = (buffer.getShort(index + 6) & 0x1fff) != 0;
+        if (fragment) {
+            return false;
+        }
+        int protocol = Binary.unsigned(buffer.get(index + 9));
+        int transport = index + headerLength;
+        if (protocol == IPPackets.PROTOCOL_TCP && length >= headerLength + 20) {
+            int flags = Binary.unsigned(buffer.get(transport + 13));
+            if ((flags & (TCP_FLAG_SYN | TCP_FLAG_FIN | TCP_FLAG_RST)) != 0) {
+                return true;
+            }
+            int tcpHeaderLength = (Binary.unsigned(buffer.get(transport + 12)) >> 4) * 4;
+            // pure ACK
+            return length == headerLength + tcpHeaderLength;
+        }
+        if (protocol == IPPackets.PROTOCOL_UDP && length >= headerLength + 8) {
+            int destinationPort = Binary.unsigned(buffer.getShort(transport + 2));
+            return destinationPort == DNS_PORT;
+        }
+        return false;
+    }
+}
@@ -21,6 +21,7 @@ import android.util.Log;
 
 import java.io.IOException;
 import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
@@ -33,8 +34,29 @@ public class PersistentRelayTunnel implements Tunnel {
     private final RelayTunnelProvider provider;
     private final AtomicBoolean stopped = new AtomicBoolean();
 
-    public PersistentRelayTunnel(VpnService vpnService, RelayTunnelListener listener) {
-        provider = new RelayTunnelProvider(vpnService, listener);
+    /**
+     * Create a persistent tunnel.
+     *
+     * @param vpnService the VPN service
+     * @param listener the listener of the connection state, may be {@code null}
+     * @param invalidationListener called whenever the connected tunnel is lost (but not when this tunnel is closed),
+     * may be {@code null}
+     * @param reconnectPolicy the delays between the connection attempts
+     * @param stats the stats recording the connection attempts and the outages
+     */
+    public PersistentRelayTunnel(VpnService vpnService, RelayTunnelListener listener, Runnable invalidationListener,
+                                 ReconnectPolicy reconnectPolicy, ForwarderStats stats) {
+        Runnable onInvalidated = invalidationListener == null ? null : () -> {
+            if (!stopped.get()) {
+                invalidationListener.run();
+            }
+        };
+        provider = new RelayTunnelProvider(vpnService, listener, onInvalidated, reconnectPolicy, stats);
+    }
+
+    // for the tests, to connect to a fake relay server
+    PersistentRelayTunnel(RelayTunnelProvider provider) {
+        this.provider = provider;
     }
 
     @Override
@@ -78,6 +100,92 @@ public class PersistentRelayTunnel implements Tunnel {
         throw new InterruptedIOException("Persistent tunnel stopped");
     }
 
+    @Override
+    public void send(ByteBuffer packet) throws IOException {
+        int position = packet.position();
+        while (!stopped.get()) {
+            Tunnel tunnel = null;
+            try {
+                tunnel = provider.getCurrentTunnel();
+                tunnel.send(packet);
+                return;
+            } catch (IOException | InterruptedException e) {
+                Log.e(TAG, "Cannot send to tunnel", e);
+                if (tunnel != null) {
+                    provider.invalidateTunnel(tunnel);
+                }
+                // resend the whole content on the next tunnel
+                packet.position(position);
+            }
+        }
+        throw new InterruptedIOException("Persistent tunnel stopped");
+    }
+
+    @Override
+    public int receive(ByteBuffer packet) throws IOException {
+        while (!stopped.get()) {
+            Tunnel tunnel = null;
+            try {
+                tunnel = provider.getCurrentTunnel();
+                int r = tunnel.receive(packet);
+                if (r == -1) {
+                    Log.d(TAG, "Tunnel read EOF");
+                    provider.invalidateTunnel(tunnel);
+                    continue;
+                }
+                return r;
+            } catch (IOException | InterruptedException e) {
+                Log.e(TAG, "Cannot receive from tunnel", e);
+                if (tunnel != null) {
+                    provider.invalidateTunnel(tunnel);
+                }
+            }
+        }
+        throw new InterruptedIOException("Persistent tunnel stopped");
+    }
+
+    /**
+     * Return the current {@link RelayTunnel}, (re)connecting if necessary.
+     * <p>
+     * This allows callers to wait for events on the underlying socket. On error, they must call
+     * {@link #invalidateTunnel(Tunnel)}.
+     *
+     * @return the current relay tunnel
+     * @throws InterruptedIOException if the persistent tunnel is stopped
+     */
+    RelayTunnel getCurrentTunnel() throws InterruptedIOException {
+        while (!stopped.get()) {
+            try {
+                return provider.getCurrentTunnel();
+            } catch (IOException e) {
+                Log.e(TAG, "Cannot connect to tunnel", e);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+        throw new InterruptedIOException("Persistent tunnel stopped");
+    }
+
+    /**
+     * Return the current {@link RelayTunnel} if it is connected, without blocking.
+     *
+     * @return the connected relay tunnel, or {@code null} if none
+     */
+    RelayTunnel getConnectedTunnel() {
+        return provider.getConnectedTunnel();
+    }
+
+    void invalidateTunnel(Tunnel tunnel) {
+        provider.invalidateTunnel(tunnel);
+    }
+
+    /**
+     * If disconnected, attempt to reconnect immediately.
+     */
+    public void reconnectNow() {
+        provider.reconnectNow();
+    }
+
     @Override
     public void close() {
         stopped.set(true);
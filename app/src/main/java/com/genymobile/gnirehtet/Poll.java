@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2017 Genymobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.genymobile.gnirehtet;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructPollfd;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+
+public final class Poll {
+    private Poll() {
+        // not instantiable
+    }
+
+    public static StructPollfd createPollfd(FileDescriptor fd) {
+        StructPollfd pollfd = new StructPollfd();
+        pollfd.fd = fd;
+        pollfd.events = (short) OsConstants.POLLIN;
+        return pollfd;
+    }
+
+    /**
+     * Wait until at least one of the file descriptors is ready.
+     *
+     * @param pollfds the file descriptors to wait for
+     * @param timeoutMs the timeout in milliseconds, or {@code -1} to wait forever
+     * @return {@code false} if the call has been interrupted by a signal or timed out
+     * @throws IOException if an I/O error occurs
+     */
+    public static boolean poll(StructPollfd[] pollfds, int timeoutMs) throws IOException {
+        try {
+            return Os.poll(pollfds, timeoutMs) > 0;
+        } catch (ErrnoException e) {
+            if (e.errno == OsConstants.EINTR) {
+                return false;
+            }
+            throw e.rethrowAsIOException();
+        }
+    }
+
+    /**
+     * Tell whether a read on the file descriptor would not block, without waiting.
+     *
+     * @param fd the file descriptor
+     * @return {@code true} if the file descriptor is readable
+     * @throws IOException if an I/O error occurs
+     */
+    public static boolean isReadable(FileDescriptor fd) throws IOException {
+        StructPollfd[] pollfds = {createPollfd(fd)};
+        return poll(pollfds, 0) && (pollfds[0].revents & OsConstants.POLLIN) != 0;
+    }
+}
@@ -0,0 +1,501 @@
+/*
+ * Copyright (C) 2017 Genymobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.genymobile.gnirehtet;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructPollfd;
+import android.util.Log;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/**
+ * Forward packets in both directions from a single thread, waiting for events with {@link Os#poll(StructPollfd[], int)}.
+ * <p>
+ * The forwarding thread never blocks but in {@code poll()}:
+ * <ul>
+ * <li>only the relay sockets already connected are polled, the connections are established by one connector thread per
+ * tunnel, which also waits for the reconnection delays;</li>
+ * <li>the data sent to a tunnel is queued, and written without waiting as soon as the relay socket accepts it. While
+ * a queue cannot hold more packets, the VPN interface is not read, so that the packets wait in the kernel.</li>
+ * </ul>
+ * The data queued for a tunnel whose connection is lost is dropped, like the data written to the lost socket. The data
+ * queued while it is disconnected is sent once reconnected.
+ * <p>
+ * If coalescing is enabled, one packet is read from the VPN interface per iteration, and the packets are written at once
+ * when the next {@code poll()} (without timeout) reports that no more packets are available. Checking this costs no
+ * additional syscall.
+ * <p>
+ * To stop or to switch to a new VPN interface, the thread is woken up by writing to a pipe, polled along with the VPN
+ * interface and the relay sockets.
+ */
+public class PollForwarder {
+
+    private static final String TAG = PollForwarder.class.getSimpleName();
+
+    private static final int BUFSIZE = 0x10000;
+    // do not delay the coalesced packets indefinitely under a saturating upload
+    private static final int MAX_PACKETS_PER_FLUSH = 64;
+
+    // the VPN interface and the wake-up pipe come first
+    private static final int FIRST_RELAY_POLLFD = 2;
+
+    private static final int OUTPUT_SIZE = 8 * BUFSIZE;
+    // between two checks, the sender may write one packet, a whole batch when the next one does not fit, and a whole
+    // batch on the final flush (see TunnelSender)
+    private static final int MIN_OUTPUT_ROOM = 3 * BUFSIZE;
+
+    private FileDescriptor vpnFileDescriptor;
+    private final Relay[] relays;
+    private final TunnelSender sender;
+    private final ForwardingThreads threads;
+
+    private final FileDescriptor wakeUpReadFd;
+    private final FileDescriptor wakeUpWriteFd;
+
+    private final byte[] wakeUpBuffer = new byte[16];
+
+    private StructPollfd vpnPollfd;
+    private StructPollfd wakeUpPollfd;
+    private StructPollfd[] pollfds;
+    // the relay of every relay pollfd
+    private Relay[] polledRelays;
+    private boolean connectionsChanged = true;
+    // the packets read from the VPN interface since the last flush
+    private int unflushedPackets;
+
+    private final Queue<Switch> pendingSwitches = new ArrayDeque<>(); // protected by "this"
+    private volatile boolean switchPending;
+    private volatile boolean stopped;
+
+    private final boolean[] connectionRequests; // protected by itself
+
+    public PollForwarder(FileDescriptor vpnFileDescriptor, RelayTunnelPool pool, PacketInterceptor interceptor, FlowTable flowTable,
+                         ForwarderOptions options, PacketSink deviceSink, ForwarderStats stats, ForwardingThreads threads)
+            throws IOException {
+        this.vpnFileDescriptor = vpnFileDescriptor;
+        this.threads = threads;
+        relays = new Relay[pool.size()];
+        for (int i = 0; i < relays.length; ++i) {
+            // each tunnel has its own stream, so its own reassembler
+            relays[i] = new Relay(pool.get(i), new IPPacketReassembler(true,
+                    IPPacketReassembler.getMaxPacketLength(options.getMtu()), deviceSink, stats));
+        }
+        connectionRequests = new boolean[relays.length];
+        sender = new TunnelSender(pool, interceptor, flowTable, options, true, stats, this::queue);
+        try {
+            FileDescriptor[] pipe = Os.pipe();
+            wakeUpReadFd = pipe[0];
+            wakeUpWriteFd = pipe[1];
+        } catch (ErrnoException e) {
+            throw e.rethrowAsIOException();
+        }
+    }
+
+    public void forward() throws IOException {
+        Log.d(TAG, "Poll forwarding started");
+        for (int i = 0; i < relays.length; ++i) {
+            int index = i;
+            threads.start("connector-" + i, () -> connectOnRequest(index));
+        }
+        try {
+            loop();
+        } finally {
+            closeQuietly(wakeUpReadFd);
+            closeQuietly(wakeUpWriteFd);
+        }
+        Log.d(TAG, "Poll forwarding stopped");
+    }
+
+    private void loop() throws IOException {
+        ByteBuffer deviceBuffer = ByteBuffer.allocateDirect(BUFSIZE);
+        vpnPollfd = Poll.createPollfd(vpnFileDescriptor);
+        wakeUpPollfd = Poll.createPollfd(wakeUpReadFd);
+
+        while (!stopped) {
+            updateConnections();
+            updatePollEvents();
+
+            // while packets are coalesced, only check whether more packets are immediately available
+            boolean pending = sender.hasPending();
+            if (!Poll.poll(pollfds, pending ? 0 : -1)) {
+                if (pending) {
+                    flushDevicePackets();
+                }
+                // else interrupted by a signal, retry
+                continue;
+            }
+
+            if (wakeUpPollfd.revents != 0) {
+                if (stopped) {
+                    Log.d(TAG, "Wake up requested");
+                    break;
+                }
+                consumeWakeUp();
+            }
+
+            for (int i = FIRST_RELAY_POLLFD; i < pollfds.length; ++i) {
+                int revents = pollfds[i].revents;
+                if (revents != 0) {
+                    Relay relay = polledRelays[i - FIRST_RELAY_POLLFD];
+                    if ((revents & (OsConstants.POLLIN | OsConstants.POLLHUP | OsConstants.POLLERR | OsConstants.POLLNVAL)) != 0) {
+                        forwardTunnelToDevice(relay);
+                    }
+                    if ((revents & OsConstants.POLLOUT) != 0) {
+                        writeOutput(relay);
+                    }
+                }
+            }
+
+            boolean drained = vpnPollfd.revents == 0;
+            if (!drained) {
+                if (!forwardDevicePacket(deviceBuffer)) {
+                    Log.d(TAG, "VPN closed");
+                    break;
+                }
+                ++unflushedPackets;
+            }
+            if (unflushedPackets != 0 && (drained || !sender.hasPending() || unflushedPackets >= MAX_PACKETS_PER_FLUSH)) {
+                flushDevicePackets();
+            }
+
+            if (switchPending) {
+                switchIfDrained();
+            }
+        }
+    }
+
+    /**
+     * Track the connections and disconnections of the relay tunnels, and request the missing connections.
+     */
+    private void updateConnections() {
+        for (int i = 0; i < relays.length; ++i) {
+            Relay relay = relays[i];
+            RelayTunnel connected = relay.tunnel.getConnectedTunnel();
+            if (connected != null && connected.getFileDescriptor() == null) {
+                // closed meanwhile
+                relay.tunnel.invalidateTunnel(connected);
+                connected = null;
+            }
+            if (connected != relay.connected) {
+                relay.setConnected(connected);
+                connectionsChanged = true;
+            }
+            if (connected == null) {
+                // the connector may have connected a tunnel invalidated since, request again
+                requestConnection(i);
+            }
+        }
+        if (connectionsChanged) {
+            connectionsChanged = false;
+            rebuildPollfds();
+        }
+    }
+
+    private void rebuildPollfds() {
+        int count = 0;
+        for (Relay relay : relays) {
+            if (relay.connected != null) {
+                ++count;
+            }
+        }
+        pollfds = new StructPollfd[FIRST_RELAY_POLLFD + count];
+        polledRelays = new Relay[count];
+        pollfds[0] = vpnPollfd;
+        pollfds[1] = wakeUpPollfd;
+        int i = 0;
+        for (Relay relay : relays) {
+            if (relay.connected != null) {
+                pollfds[FIRST_RELAY_POLLFD + i] = Poll.createPollfd(relay.connected.getFileDescriptor());
+                polledRelays[i] = relay;
+                ++i;
+            }
+        }
+    }
+
+    private void updatePollEvents() {
+        // do not read packets that could not be queued, they wait in the VPN interface
+        vpnPollfd.events = hasOutputRoom() ? (short) OsConstants.POLLIN : 0;
+        for (int i = 0; i < polledRelays.length; ++i) {
+            int events = OsConstants.POLLIN;
+            if (polledRelays[i].output.position() != 0) {
+                events |= OsConstants.POLLOUT;
+            }
+            pollfds[FIRST_RELAY_POLLFD + i].events = (short) events;
+        }
+    }
+
+    /**
+     * Switch to the next pending VPN interface, once the current one has no more packets.
+     */
+    private void switchIfDrained() throws IOException {
+        Switch next;
+        synchronized (this) {
+            if (Poll.isReadable(vpnFileDescriptor)) {
+                // keep draining the previous VPN interface
+                return;
+            }
+            next = pendingSwitches.remove();
+            switchPending = !pendingSwitches.isEmpty();
+        }
+        Log.d(TAG, "Previous VPN interface drained");
+        vpnFileDescriptor = next.vpnFileDescriptor;
+        vpnPollfd.fd = vpnFileDescriptor;
+        next.onPreviousDrained.run();
+    }
+
+    private void consumeWakeUp() throws IOException {
+        try {
+            Os.read(wakeUpReadFd, wakeUpBuffer, 0, wakeUpBuffer.length);
+        } catch (ErrnoException e) {
+            throw e.rethrowAsIOException();
+        }
+    }
+
+    /**
+     * Forward one packet from the VPN interface, kept by the sender if coalescing is enabled.
+     *
+     * @return {@code false} if the VPN interface is closed
+     */
+    private boolean forwardDevicePacket(ByteBuffer buffer) throws IOException {
+        if (!readDevicePacket(buffer)) {
+            return false;
+        }
+        // never blocks, the packet is queued
+        sender.send(buffer);
+        return true;
+    }
+
+    private void flushDevicePackets() throws IOException {
+        sender.flush();
+        unflushedPackets = 0;
+        // write immediately, most of the time the relay sockets accept it
+        for (Relay relay : relays) {
+            writeOutput(relay);
+        }
+    }
+
+    private boolean hasOutputRoom() {
+        for (Relay relay : relays) {
+            if (relay.output.remaining() < MIN_OUTPUT_ROOM) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean readDevicePacket(ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        int r;
+        try {
+            // does not block, the VPN interface is readable
+            r = Os.read(vpnFileDescriptor, buffer);
+        } catch (ErrnoException e) {
+            throw e.rethrowAsIOException();
+        }
+        buffer.flip();
+        return r != 0;
+    }
+
+    /**
+     * Queue data for a tunnel, the room being checked before reading the packets.
+     */
+    private void queue(int index, ByteBuffer data) {
+        ByteBuffer output = relays[index].output;
+        if (data.remaining() > output.remaining()) {
+            // cannot happen, the VPN interface is not read without enough room
+            Log.w(TAG, "Tunnel " + index + " output full, dropping " + data.remaining() + " bytes");
+            data.position(data.limit());
+            return;
+        }
+        output.put(data);
+    }
+
+    /**
+     * Write as much queued data as the relay socket accepts without blocking.
+     */
+    private void writeOutput(Relay relay) {
+        ByteBuffer output = relay.output;
+        if (relay.connected == null || output.position() == 0) {
+            return;
+        }
+        output.flip();
+        try {
+            while (output.hasRemaining()
+                    && Os.sendto(relay.connected.getFileDescriptor(), output, OsConstants.MSG_DONTWAIT, null, 0) > 0) {
+                // continue
+            }
+        } catch (ErrnoException e) {
+            if (e.errno != OsConstants.EAGAIN) {
+                Log.e(TAG, "Cannot send to tunnel", e);
+                invalidate(relay);
+                return;
+            }
+            // the socket buffer is full, continue on POLLOUT
+        } catch (SocketException e) {
+            Log.e(TAG, "Cannot send to tunnel", e);
+            invalidate(relay);
+            return;
+        }
+        output.compact();
+    }
+
+    private void forwardTunnelToDevice(Relay relay) {
+        if (relay.connected == null) {
+            // invalidated by a write error meanwhile
+            return;
+        }
+        try {
+            // does not block, the relay socket is readable
+            int r = relay.reassembler.receive(relay.connected);
+            if (r == -1) {
+                Log.d(TAG, "Tunnel read EOF");
+                invalidate(relay);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot receive from tunnel", e);
+            invalidate(relay);
+        }
+    }
+
+    private void invalidate(Relay relay) {
+        relay.tunnel.invalidateTunnel(relay.connected);
+        relay.setConnected(null);
+        connectionsChanged = true;
+    }
+
+    private void requestConnection(int index) {
+        synchronized (connectionRequests) {
+            connectionRequests[index] = true;
+            connectionRequests.notifyAll();
+        }
+    }
+
+    /**
+     * Connect the tunnel whenever the forwarding thread requests it, then wake it up.
+     * <p>
+     * Run by the connector thread of the tunnel.
+     */
+    private void connectOnRequest(int index) {
+        PersistentRelayTunnel tunnel = relays[index].tunnel;
+        try {
+            while (true) {
+                synchronized (connectionRequests) {
+                    while (!connectionRequests[index] && !stopped) {
+                        connectionRequests.wait();
+                    }
+                    if (stopped) {
+                        break;
+                    }
+                    connectionRequests[index] = false;
+                }
+                // blocking, until connected or stopped
+                tunnel.getCurrentTunnel();
+                wakeUp();
+            }
+        } catch (InterruptedException | InterruptedIOException e) {
+            // stopped
+        }
+        Log.d(TAG, "Connector " + index + " stopped");
+    }
+
+    /**
+     * Read from a new VPN interface, once the packets already queued on the current one are read. Returns immediately.
+     *
+     * @param newVpnFileDescriptor the new VPN interface
+     * @param onPreviousDrained called from the forwarding thread once the previous VPN interface may be closed
+     */
+    public void switchVpnInterface(FileDescriptor newVpnFileDescriptor, Runnable onPreviousDrained) {
+        synchronized (this) {
+            pendingSwitches.add(new Switch(newVpnFileDescriptor, onPreviousDrained));
+            switchPending = true;
+        }
+        wakeUp();
+    }
+
+    /**
+     * Wake up the forwarding and connector threads and make them exit. Returns immediately.
+     * <p>
+     * A connector thread waiting for a connection exits once the pool is closed.
+     */
+    public void stop() {
+        stopped = true;
+        synchronized (connectionRequests) {
+            connectionRequests.notifyAll();
+        }
+        wakeUp();
+    }
+
+    private void wakeUp() {
+        try {
+            Os.write(wakeUpWriteFd, new byte[1], 0, 1);
+        } catch (ErrnoException | InterruptedIOException e) {
+            // the pipe is already closed if the forwarding thread exited
+            Log.d(TAG, "Cannot wake up forwarding thread", e);
+        }
+    }
+
+    private static void closeQuietly(FileDescriptor fd) {
+        try {
+            Os.close(fd);
+        } catch (ErrnoException e) {
+            // ignore
+        }
+    }
+
+    /**
+     * The state of a tunnel of the pool, accessed only by the forwarding thread.
+     */
+    private static final class Relay {
+        private final PersistentRelayTunnel tunnel;
+        private final IPPacketReassembler reassembler;
+        // the data queued for the tunnel, in [0, position)
+        private final ByteBuffer output = ByteBuffer.allocateDirect(OUTPUT_SIZE);
+        private RelayTunnel connected;
+
+        Relay(PersistentRelayTunnel tunnel, IPPacketReassembler reassembler) {
+            this.tunnel = tunnel;
+            this.reassembler = reassembler;
+        }
+
+        void setConnected(RelayTunnel newConnected) {
+            if (connected != null) {
+                // the data pending for the lost connection must not be mixed with the next stream
+                output.clear();
+                reassembler.reset();
+            }
+            connected = newConnected;
+        }
+    }
+
+    private static final class Switch {
+        private final FileDescriptor vpnFileDescriptor;
+        private final Runnable onPreviousDrained;
+
+        Switch(FileDescriptor vpnFileDescriptor, Runnable onPreviousDrained) {
+            this.vpnFileDescriptor = vpnFileDescriptor;
+            this.onPreviousDrained = onPreviousDrained;
+        }
+    }
+}
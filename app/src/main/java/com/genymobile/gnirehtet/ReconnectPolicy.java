@@ -0,0 +1,31 @@
+/*
+ * Copyright (C) 2017 Genymobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.genymobile.gnirehtet;
+
+/**
+ * Policy of the delays between the attempts to connect to the relay server.
+ */
+public interface ReconnectPolicy {
+
+    /**
+     * Return the delay before the next attempt.
+     *
+     * @param failures the number of consecutive failed attempts since the tunnel was lost (0 for the first attempt)
+     * @return the delay, in milliseconds
+     */
+    long getDelay(int failures);
+}
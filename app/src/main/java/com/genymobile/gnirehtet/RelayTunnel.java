@@ -19,22 +19,29 @@ package com.genymobile.gnirehtet;
 import android.net.LocalSocket;
 import android.net.LocalSocketAddress;
 import android.net.VpnService;
+import android.system.ErrnoException;
+import android.system.Os;
 import android.util.Log;
 
 import java.io.DataInputStream;
+import java.io.FileDescriptor;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 
-public final class RelayTunnel implements Tunnel {
+public class RelayTunnel implements Tunnel {
 
     private static final String TAG = RelayTunnel.class.getSimpleName();
 
     private static final String LOCAL_ABSTRACT_NAME = "gnirehtet";
 
+    // the relay server sends the client id immediately, a connection attempt must not hang
+    private static final int CLIENT_ID_TIMEOUT_MS = 2000;
+
     private final LocalSocket localSocket = new LocalSocket();
 
-    private RelayTunnel() {
-        // exposed through open() static method
+    RelayTunnel() {
+        // exposed through open() static method (and extended by the fake relay tunnels of the tests)
     }
 
     @SuppressWarnings("unused")
@@ -47,7 +54,18 @@ public final class RelayTunnel implements Tunnel {
 
     public void connect() throws IOException {
         localSocket.connect(new LocalSocketAddress(LOCAL_ABSTRACT_NAME));
+        localSocket.setSoTimeout(CLIENT_ID_TIMEOUT_MS);
         readClientId(localSocket.getInputStream());
+        localSocket.setSoTimeout(0);
+    }
+
+    /**
+     * Return the file descriptor of the underlying socket, so that it can be polled.
+     *
+     * @return the file descriptor, or {@code null} if the socket is not connected
+     */
+    public FileDescriptor getFileDescriptor() {
+        return localSocket.getFileDescriptor();
     }
 
     /**
@@ -90,6 +108,55 @@ public final class RelayTunnel implements Tunnel {
         return r;
     }
 
+    @Override
+    public void send(ByteBuffer packet) throws IOException {
+        if (GnirehtetService.VERBOSE) {
+            Log.v(TAG, "Sending packet: " + Binary.buildPacketString(packet));
+        }
+        if (packet.hasArray()) {
+            localSocket.getOutputStream().write(packet.array(), packet.arrayOffset() + packet.position(), packet.remaining());
+            packet.position(packet.limit());
+            return;
+        }
+        // write directly from native memory, the output stream would copy to a temporary buffer
+        FileDescriptor fd = localSocket.getFileDescriptor();
+        try {
+            while (packet.hasRemaining()) {
+                Os.write(fd, packet);
+            }
+        } catch (ErrnoException e) {
+            throw e.rethrowAsIOException();
+        }
+    }
+
+    @Override
+    public int receive(ByteBuffer packet) throws IOException {
+        int r;
+        if (packet.hasArray()) {
+            r = localSocket.getInputStream().read(packet.array(), packet.arrayOffset() + packet.position(), packet.remaining());
+            if (r > 0) {
+                packet.position(packet.position() + r);
+            }
+        } else {
+            try {
+                r = Os.read(localSocket.getFileDescriptor(), packet);
+            } catch (ErrnoException e) {
+                throw e.rethrowAsIOException();
+            }
+            if (r == 0 && packet.hasRemaining()) {
+                // the socket has been shut down
+                r = -1;
+            }
+        }
+        if (GnirehtetService.VERBOSE && r > 0) {
+            ByteBuffer received = packet.duplicate();
+            received.flip();
+            received.position(received.limit() - r);
+            Log.v(TAG, "Receiving packet: " + Binary.buildPacketString(received));
+        }
+        return r;
+    }
+
     @Override
     public void close() {
         try {
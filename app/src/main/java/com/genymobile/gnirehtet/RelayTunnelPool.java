@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2017 Genymobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.genymobile.gnirehtet;
+
+import android.net.VpnService;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Pool of {@link PersistentRelayTunnel}s to the relay server, so that independent flows do not share the same byte
+ * stream (a bulk download would otherwise delay DNS requests and interactive traffic).
+ * <p>
+ * Each packet is assigned to a connection from a hash of its 5-tuple, so that all the packets of a flow keep their
+ * order.
+ */
+public class RelayTunnelPool {
+
+    private final PersistentRelayTunnel[] tunnels;
+
+    /**
+     * Listener of the loss of the connected tunnels of the pool.
+     */
+    public interface InvalidationListener {
+        /**
+         * Called when the connected tunnel at {@code index} is lost, with all the connections it carried.
+         *
+         * @param index the index of the tunnel in the pool
+         */
+        void onTunnelInvalidated(int index);
+    }
+
+    public RelayTunnelPool(VpnService vpnService, RelayTunnelListener listener, int size, InvalidationListener invalidationListener,
+                           ReconnectPolicy reconnectPolicy, ForwarderStats stats) {
+        tunnels = new PersistentRelayTunnel[size];
+        int[] connectedCount = new int[1];
+        for (int i = 0; i < size; ++i) {
+            RelayTunnelListener tunnelListener = size == 1 ? listener : new PooledTunnelListener(listener, connectedCount);
+            int index = i;
+            Runnable onInvalidated = invalidationListener == null ? null : () -> invalidationListener.onTunnelInvalidated(index);
+            tunnels[i] = new PersistentRelayTunnel(vpnService, tunnelListener, onInvalidated, reconnectPolicy, stats);
+        }
+    }
+
+    // for the tests, to connect to a fake relay server
+    RelayTunnelPool(PersistentRelayTunnel[] tunnels) {
+        this.tunnels = tunnels;
+    }
+
+    public int size() {
+        return tunnels.length;
+    }
+
+    public PersistentRelayTunnel get(int index) {
+        return tunnels[index];
+    }
+
+    /**
+     * Select the tunnel for a packet.
+     *
+     * @param flowHash the hash of the packet 5-tuple, as returned by {@link IPPackets#flowHash(ByteBuffer, int, int)}
+     * @return the index of the tunnel
+     */
+    public int select(int flowHash) {
+        return (flowHash & Integer.MAX_VALUE) % tunnels.length;
+    }
+
+    /**
+     * Make the disconnected tunnels attempt to reconnect immediately.
+     */
+    public void reconnectNow() {
+        for (PersistentRelayTunnel tunnel : tunnels) {
+            tunnel.reconnectNow();
+        }
+    }
+
+    public void close() {
+        for (PersistentRelayTunnel tunnel : tunnels) {
+            tunnel.close();
+        }
+    }
+
+    /**
+     * Expose the state of the whole pool to the listener: connected as soon as one tunnel is connected, disconnected
+     * when none is.
+     */
+    private static final class PooledTunnelListener extends RelayTunnelListener {
+
+        private final RelayTunnelListener listener;
+        private final int[] connectedCount; // shared by all the tunnels of the pool, protected by itself
+        private boolean connected; // protected by connectedCount
+
+        PooledTunnelListener(RelayTunnelListener listener, int[] connectedCount) {
+            super(null);
+            this.listener = listener;
+            this.connectedCount = connectedCount;
+        }
+
+        @Override
+        public void notifyRelayTunnelConnected() {
+            synchronized (connectedCount) {
+                if (!connected) {
+                    connected = true;
+                    if (connectedCount[0]++ == 0 && listener != null) {
+                        listener.notifyRelayTunnelConnected();
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void notifyRelayTunnelDisconnected() {
+            synchronized (connectedCount) {
+                if (connected) {
+                    connected = false;
+                    --connectedCount[0];
+                }
+                if (connectedCount[0] == 0 && listener != null) {
+                    listener.notifyRelayTunnelDisconnected();
+                }
+            }
+        }
+    }
+}
@@ -17,108 +17,243 @@
 package com.genymobile.gnirehtet;
 
 import android.net.VpnService;
+import android.os.SystemClock;
+import android.util.Log;
 
 import java.io.IOException;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Provide a valid {@link RelayTunnel}, creating a new one if necessary.
+ * <p>
+ * Once connected, {@link #getCurrentTunnel()} costs a single volatile read, so that the sending and receiving
+ * threads do not contend on every packet. Only (re)connections take the blocking slow path.
+ * <p>
+ * A lost tunnel is reconnected immediately, then according to the {@link ReconnectPolicy}. The loss is notified to the
+ * listener only if the immediate reconnection fails, so that a short loss does not make the state flap.
  */
 public class RelayTunnelProvider {
 
-    private static final int DELAY_BETWEEN_ATTEMPTS_MS = 5000;
+    private static final String TAG = RelayTunnelProvider.class.getSimpleName();
 
-    private final Object getCurrentTunnelLock = new Object(); // protects getCurrentTunnel()
+    private final Object connectLock = new Object(); // serializes the slow path of getCurrentTunnel()
 
     private final VpnService vpnService;
     private final RelayTunnelListener listener;
-    private RelayTunnel tunnel; // protected both by "this" and "getCurrentTunnelLock"
-    private boolean first = true; // protected by "getCurrentTunnelLock"
-    private long lastFailureTimestamp; // protected by "this"
+    private final Runnable invalidationListener;
+    private final ReconnectPolicy reconnectPolicy;
+    private final ForwarderStats stats;
+    // the connected tunnel; a new instance is created on every connection, so its identity acts as a version
+    private final AtomicReference<RelayTunnel> currentTunnel = new AtomicReference<>();
+    private RelayTunnel connectingTunnel; // protected by "this"
+    // the first connection must either notify "connected" or "disconnected"
+    private boolean disconnectionPending = true; // protected by "this"
+    private int failures; // consecutive failed attempts, protected by "this"
+    private long nextAttemptTimestamp; // protected by "this"
+    private long outageStart = -1; // since the connected tunnel was lost, protected by "this"
 
-    public RelayTunnelProvider(VpnService vpnService, RelayTunnelListener listener) {
+    /**
+     * Create a provider.
+     *
+     * @param vpnService the VPN service
+     * @param listener the listener of the connection state, may be {@code null}
+     * @param invalidationListener called whenever a connected tunnel is invalidated, without holding the provider lock,
+     *                             may be {@code null}
+     * @param reconnectPolicy the delays between the connection attempts
+     * @param stats the stats recording the connection attempts and the outages
+     */
+    public RelayTunnelProvider(VpnService vpnService, RelayTunnelListener listener, Runnable invalidationListener,
+                               ReconnectPolicy reconnectPolicy, ForwarderStats stats) {
         this.vpnService = vpnService;
         this.listener = listener;
+        this.invalidationListener = invalidationListener;
+        this.reconnectPolicy = reconnectPolicy;
+        this.stats = stats;
     }
 
     public RelayTunnel getCurrentTunnel() throws IOException, InterruptedException {
+        RelayTunnel tunnel = currentTunnel.get();
+        if (tunnel != null) {
+            // fast path
+            return tunnel;
+        }
+        return connect();
+    }
+
+    /**
+     * Return the connected tunnel, without connecting.
+     *
+     * @return the connected tunnel, or {@code null} if none
+     */
+    public RelayTunnel getConnectedTunnel() {
+        return currentTunnel.get();
+    }
+
+    private RelayTunnel connect() throws IOException, InterruptedException {
         /*
          * To make sure that both the sending and receiving threads use the same tunnel, we must
-         * guarantee that this method may not be called several times concurrently.
+         * guarantee that only one connection is attempted at a time.
          *
          * However, since it executes potentially long-running blocking calls, we still want to be
          * able to call invalidateTunnel() concurrently, which requires to protect some fields.
          *
-         * Therefore, use one mutex ("getCurrentTunnelLock") to avoid concurrent calls to
-         * getCurrentTunnel(), and another one ("this") to protect fields shared with
-         * invalidateTunnel().
+         * Therefore, use one mutex ("connectLock") to avoid concurrent connections, and another one
+         * ("this") to protect fields shared with invalidateTunnel().
          */
-        synchronized (getCurrentTunnelLock) {
-            synchronized (this) {
-                if (tunnel != null) {
-                    return tunnel;
-                }
+        synchronized (connectLock) {
+            RelayTunnel tunnel = currentTunnel.get();
+            if (tunnel != null) {
+                // another thread connected while we were waiting for the lock
+                return tunnel;
+            }
 
+            synchronized (this) {
                 waitUntilNextAttemptSlot();
-
-                // "tunnel" has not changed during waiting (only getCurrentTunnel() may write it)
-                tunnel = RelayTunnel.open(vpnService);
+                tunnel = openTunnel();
+                // expose it to invalidateTunnel(), so that a pending connection may be interrupted
+                connectingTunnel = tunnel;
             }
 
-            // the first connection must either notify "connected" or "disconnected"
-            boolean notifyDisconnectedOnError = first;
-            first = false;
-            connectTunnel(notifyDisconnectedOnError);
+            connectTunnel(tunnel);
+            return tunnel;
         }
-        return tunnel;
     }
 
-    private void connectTunnel(boolean notifyDisconnectedOnError) throws IOException {
+    // overridden by the tests to connect to a fake relay server
+    RelayTunnel openTunnel() throws IOException {
+        return RelayTunnel.open(vpnService);
+    }
+
+    private void connectTunnel(RelayTunnel tunnel) throws IOException {
+        stats.onRelayConnectionAttempt();
         try {
             tunnel.connect();
-            notifyConnected();
         } catch (IOException e) {
-            touchFailure();
-            if (notifyDisconnectedOnError) {
+            boolean notifyDisconnected;
+            synchronized (this) {
+                connectingTunnel = null;
+                onFailure();
+                notifyDisconnected = disconnectionPending;
+                disconnectionPending = false;
+            }
+            tunnel.close();
+            if (notifyDisconnected) {
                 notifyDisconnected();
             }
             throw e;
         }
+
+        synchronized (this) {
+            if (connectingTunnel != tunnel) {
+                // invalidated (and closed) while connecting
+                throw new IOException("Relay tunnel invalidated during connection");
+            }
+            connectingTunnel = null;
+            failures = 0;
+            disconnectionPending = false;
+            if (outageStart != -1) {
+                long outage = SystemClock.elapsedRealtime() - outageStart;
+                outageStart = -1;
+                stats.onRelayOutage(outage);
+                Log.i(TAG, "Relay tunnel reconnected after " + outage + "ms");
+            }
+            currentTunnel.set(tunnel);
+        }
+        notifyConnected();
     }
 
-    public synchronized void invalidateTunnel() {
-        if (tunnel != null) {
-            touchFailure();
-            tunnel.close();
-            tunnel = null;
+    /**
+     * Close the tunnel, notifying its loss immediately.
+     * <p>
+     * A thread waiting for the next connection attempt is woken up, so that it does not wait for the end of the delay.
+     */
+    public void invalidateTunnel() {
+        boolean invalidated;
+        synchronized (this) {
+            invalidated = invalidate();
+            failures = 0;
+            nextAttemptTimestamp = 0;
+            // wake up waitUntilNextAttemptSlot()
+            notifyAll();
+        }
+        if (invalidated) {
+            // the listeners may take their own locks, they must not be called with "this" held
             notifyDisconnected();
+            notifyInvalidated();
         }
     }
 
     /**
-     * Call {@link #invalidateTunnel()} only if {@code tunnelToInvalidate} is the current tunnel (or
-     * is {@code null}).
+     * Invalidate the tunnel after an error, only if {@code tunnelToInvalidate} is the current tunnel (or is
+     * {@code null}).
+     * <p>
+     * The loss is notified only if the immediate reconnection fails.
      *
      * @param tunnelToInvalidate the tunnel to invalidate
      */
-    public synchronized void invalidateTunnel(Tunnel tunnelToInvalidate) {
-        if (tunnel == tunnelToInvalidate || tunnelToInvalidate == null) {
-            invalidateTunnel();
+    public void invalidateTunnel(Tunnel tunnelToInvalidate) {
+        boolean invalidated = false;
+        synchronized (this) {
+            if (currentTunnel.get() == tunnelToInvalidate || tunnelToInvalidate == null) {
+                invalidated = invalidate();
+                if (invalidated) {
+                    disconnectionPending = true;
+                }
+            }
+        }
+        if (invalidated) {
+            notifyInvalidated();
         }
     }
 
-    private synchronized void touchFailure() {
-        lastFailureTimestamp = System.currentTimeMillis();
+    /**
+     * Close the connecting and the connected tunnels. Must be called with "this" held.
+     *
+     * @return {@code true} if a connected tunnel has been closed
+     */
+    private boolean invalidate() {
+        if (connectingTunnel != null) {
+            connectingTunnel.close();
+            connectingTunnel = null;
+        }
+        RelayTunnel tunnel = currentTunnel.getAndSet(null);
+        if (tunnel == null) {
+            return false;
+        }
+        tunnel.close();
+        // retry immediately
+        failures = 0;
+        nextAttemptTimestamp = 0;
+        outageStart = SystemClock.elapsedRealtime();
+        return true;
     }
 
-    private void waitUntilNextAttemptSlot() throws InterruptedException {
-        if (first) {
-            // do not wait on first attempt
-            return;
+    /**
+     * Make the next connection attempt immediately, without waiting for the end of the current delay, typically because
+     * the relay server has probably become reachable.
+     */
+    public synchronized void reconnectNow() {
+        if (currentTunnel.get() == null) {
+            failures = 0;
+            nextAttemptTimestamp = 0;
+            // wake up waitUntilNextAttemptSlot()
+            notifyAll();
         }
-        long delay = lastFailureTimestamp + DELAY_BETWEEN_ATTEMPTS_MS - System.currentTimeMillis();
+    }
+
+    private synchronized void onFailure() {
+        stats.onRelayConnectionFailure();
+        ++failures;
+        long delay = reconnectPolicy.getDelay(failures);
+        nextAttemptTimestamp = SystemClock.elapsedRealtime() + delay;
+        Log.d(TAG, "Connection attempt " + failures + " failed, next attempt in " + delay + "ms");
+    }
+
+    private void waitUntilNextAttemptSlot() throws InterruptedException {
+        long delay = nextAttemptTimestamp - SystemClock.elapsedRealtime();
         while (delay > 0) {
             wait(delay);
-            delay = lastFailureTimestamp + DELAY_BETWEEN_ATTEMPTS_MS - System.currentTimeMillis();
+            delay = nextAttemptTimestamp - SystemClock.elapsedRealtime();
         }
     }
 
@@ -133,4 +268,10 @@ public class RelayTunnelProvider {
             listener.notifyRelayTunnelDisconnected();
         }
     }
+
+    private void notifyInvalidated() {
+        if (invalidationListener != null) {
+            invalidationListener.run();
+        }
+    }
 }
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2017 Genymobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.genymobile.gnirehtet;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Helpers to parse and build TCP segments over IPv4, for the packets handled locally.
+ */
+@SuppressWarnings("checkstyle:MagicNumber")
+public final class TcpPackets {
+
+    public static final int TCP_HEADER_LENGTH = 20;
+
+    public static final int FLAG_FIN = 0x01;
+    public static final int FLAG_SYN = 0x02;
+    public static final int FLAG_RST = 0x04;
+    public static final int FLAG_ACK = 0x10;
+
+    private static final int IPV4_HEADER_LENGTH = IPPackets.IPV4_MIN_HEADER_LENGTH;
+    private static final int TTL = 64;
+
+    private TcpPackets() {
+        // not instantiable
+    }
+
+    /**
+     * Return the absolute position of the TCP header of the IPv4 packet starting at {@code index}.
+     *
+     * @param buffer the buffer
+     * @param index the absolute position of the packet
+     * @param length the packet length
+     * @return the position of the TCP header, or {@code -1} if the packet is not an IPv4 TCP segment with a complete
+     * header
+     */
+    public static int getTcpIndex(ByteBuffer buffer, int index, int length) {
+        if (length < IPV4_HEADER_LENGTH || IPPackets.readVersion(buffer, index) != 4
+                || IPPackets.readProtocol(buffer, index) != IPPackets.PROTOCOL_TCP) {
+            return -1;
+        }
+        int tcp = IPPackets.getTransportIndex(buffer, index, length);
+        if (tcp == -1 || tcp + TCP_HEADER_LENGTH > index + length) {
+            return -1;
+        }
+        return tcp;
+    }
+
+    public static int readFlags(ByteBuffer buffer, int tcpIndex) {
+        return Binary.unsigned(buffer.get(tcpIndex + 13));
+    }
+
+    public static int readSequenceNumber(ByteBuffer buffer, int tcpIndex) {
+        return buffer.getInt(tcpIndex + 4);
+    }
+
+    /**
+     * Return the sequence number following the segment: its sequence number plus the length of its payload, plus one
+     * for SYN and for FIN.
+     *
+     * @param buffer the buffer
+     * @param index the absolute position of the packet
+     * @param length the packet length
+     * @param tcpIndex the absolute position of the TCP header
+     * @return the next sequence number
+     */
+    public static int getNextSequenceNumber(ByteBuffer buffer, int index, int length, int tcpIndex) {
+        int headerLength = (Binary.unsigned(buffer.get(tcpIndex + 12)) >> 4) * 4;
+        int payloadLength = Math.max(0, index + length - tcpIndex - headerLength);
+        int flags = readFlags(buffer, tcpIndex);
+        int next = readSequenceNumber(buffer, tcpIndex) + payloadLength;
+        if ((flags & FLAG_SYN) != 0) {
+            ++next;
+        }
+        if ((flags & FLAG_FIN) != 0) {
+            ++next;
+        }
+        return next;
+    }
+
+    /**
+     * Build a RST+ACK segment.
+     *
+     * @param sourceAddress the source IPv4 address
+     * @param sourcePort the source port
+     * @param destinationAddress the destination IPv4 address
+     * @param destinationPort the destination port
+     * @param sequenceNumber the sequence number
+     * @param acknowledgementNumber the acknowledgement number
+     * @param reset the buffer to write the segment to, from its position (flipped on return)
+     */
+    public static void buildReset(int sourceAddress, int sourcePort, int destinationAddress, int destinationPort, int sequenceNumber,
+                                  int acknowledgementNumber, ByteBuffer reset) {
+        int start = reset.position();
+        reset.put((byte) ((4 << 4) | (IPV4_HEADER_LENGTH / 4)));
+        reset.put((byte) 0); // type of service
+        reset.putShort((short) (IPV4_HEADER_LENGTH + TCP_HEADER_LENGTH));
+        reset.putShort((short) 0); // identification
+        reset.putShort((short) 0x4000); // don't fragment
+        reset.put((byte) TTL);
+        reset.put((byte) IPPackets.PROTOCOL_TCP);
+        reset.putShort((short) 0); // header checksum, computed below
+        reset.putInt(sourceAddress);
+        reset.putInt(destinationAddress);
+        reset.putShort(start + 10, (short) IPPackets.checksum(reset, start, IPV4_HEADER_LENGTH));
+
+        int tcp = reset.position();
+        reset.putShort((short) sourcePort);
+        reset.putShort((short) destinationPort);
+        reset.putInt(sequenceNumber);
+        reset.putInt(acknowledgementNumber);
+        reset.put((byte) ((TCP_HEADER_LENGTH / 4) << 4)); // data offset
+        reset.put((byte) (FLAG_RST | FLAG_ACK));
+        reset.putShort((short) 0); // window
+        reset.putShort((short) 0); // checksum, computed below
+        reset.putShort((short) 0); // urgent pointer
+
+        // pseudo-header: addresses, protocol and TCP length
+        int sum = IPPackets.sum(reset, start + 12, 8, 0);
+        sum += IPPackets.PROTOCOL_TCP + TCP_HEADER_LENGTH;
+        reset.putShort(tcp + 16, (short) IPPackets.finishChecksum(IPPackets.sum(reset, tcp, TCP_HEADER_LENGTH, sum)));
+        reset.limit(reset.position());
+        reset.position(start);
+    }
+}
@@ -17,6 +17,7 @@
 package com.genymobile.gnirehtet;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 public interface Tunnel {
 
@@ -26,6 +27,12 @@ public interface Tunnel {
     // blocking
     int receive(byte[] packet) throws IOException;
 
+    // blocking, consumes the whole remaining content of the buffer
+    void send(ByteBuffer packet) throws IOException;
+
+    // blocking, returns -1 on EOF
+    int receive(ByteBuffer packet) throws IOException;
+
     // blocking
     void close();
 }
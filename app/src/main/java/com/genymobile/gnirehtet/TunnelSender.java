@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2017 Genymobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.genymobile.gnirehtet;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Send the packets read from the VPN interface to the tunnels of the pool.
+ * <p>
+ * Each packet is first submitted to the interceptor, which may handle it locally. Then, if its IP version is supported,
+ * it is sent to the tunnel selected by {@link RelayTunnelPool#select(int)}.
+ * <p>
+ * If coalescing is enabled, packets are accumulated into one contiguous buffer per tunnel and written to the tunnel at
+ * once on {@link #flush()}. The caller must flush as soon as no more packets are immediately readable from the VPN
+ * interface, so that no latency is added.
+ * <p>
+ * If prioritization is enabled (which implies coalescing), the packets classified as interactive by
+ * {@link PacketPriority} are accumulated separately, and written before the others on {@link #flush()}. To keep the
+ * packets of a flow ordered, a packet is never prioritized over a pending packet of the same flow. To avoid starving
+ * bulk traffic, at most {@link #MAX_PRIORITIZED_PACKETS_PER_FLUSH} packets are prioritized per flush.
+ */
+public class TunnelSender implements VpnPacketSource.PendingOutput {
+
+    private static final String TAG = TunnelSender.class.getSimpleName();
+
+    private static final int BUFSIZE = 0x10000;
+    private static final int PRIORITY_BUFSIZE = 0x4000;
+
+    private static final int MAX_PRIORITIZED_PACKETS_PER_FLUSH = 64;
+
+    /**
+     * Destination of the data sent to each tunnel of the pool.
+     */
+    interface Output {
+        /**
+         * Write the whole remaining content of the buffer to the tunnel.
+         *
+         * @param index the index of the tunnel in the pool
+         * @param data the data
+         * @throws IOException if an I/O error occurs
+         */
+        void write(int index, ByteBuffer data) throws IOException;
+    }
+
+    private final RelayTunnelPool pool;
+    private final Output output;
+    private final PacketInterceptor interceptor;
+    private final FlowTable flowTable;
+    // the packets sent by the interceptor are not intercepted
+    private final PacketSink upstream = this::forward;
+    private final boolean ipv6;
+    private final ForwarderStats stats;
+    private final Batch[] batches;
+    private int totalPendingPackets;
+
+    public TunnelSender(RelayTunnelPool pool, PacketInterceptor interceptor, FlowTable flowTable, ForwarderOptions options,
+                        boolean direct, ForwarderStats stats) {
+        // blocking sends, reconnecting if necessary
+        this(pool, interceptor, flowTable, options, direct, stats, (index, data) -> pool.get(index).send(data));
+    }
+
+    /**
+     * Create a sender writing to a custom output, typically queueing the data instead of blocking.
+     */
+    TunnelSender(RelayTunnelPool pool, PacketInterceptor interceptor, FlowTable flowTable, ForwarderOptions options,
+                 boolean direct, ForwarderStats stats, Output output) {
+        this.pool = pool;
+        this.output = output;
+        this.interceptor = interceptor;
+        this.flowTable = flowTable;
+        this.stats = stats;
+        ipv6 = options.isIPv6();
+        boolean prioritize = options.isPrioritizeInteractive();
+        if (options.isCoalesceWrites() || prioritize) {
+            batches = new Batch[pool.size()];
+            for (int i = 0; i < batches.length; ++i) {
+                batches[i] = new Batch(prioritize, direct);
+            }
+        } else {
+            batches = null;
+        }
+    }
+
+    /**
+     * Send a packet, or queue it for the next {@link #flush()}.
+     *
+     * @param packet the packet, from its position to its limit
+     * @throws IOException if an I/O error occurs
+     */
+    public void send(ByteBuffer packet) throws IOException {
+        if (!interceptor.intercept(packet, upstream)) {
+            forward(packet);
+        }
+    }
+
+    private void forward(ByteBuffer packet) throws IOException {
+        if (!isSupported(packet)) {
+            return;
+        }
+        int position = packet.position();
+        int length = packet.remaining();
+        int flowHash = IPPackets.flowHash(packet, position, length);
+        int index = pool.select(flowHash);
+        stats.onUpstreamPacket(length);
+        flowTable.onUpstreamPacket(packet, position, length, index, System.currentTimeMillis());
+        if (batches == null) {
+            output.write(index, packet);
+            return;
+        }
+        Batch batch = batches[index];
+        boolean prioritized = batch.priorityBuffer != null
+                && batch.prioritizedPackets < MAX_PRIORITIZED_PACKETS_PER_FLUSH
+                && !batch.hasBulkPacket(flowHash)
+                && PacketPriority.isInteractive(packet, position, length);
+        ByteBuffer buffer = prioritized ? batch.priorityBuffer : batch.buffer;
+        if (length > buffer.remaining()) {
+            // the batch is empty after the flush, so the classification is still valid
+            flush(index);
+        }
+        buffer.put(packet);
+        if (prioritized) {
+            ++batch.prioritizedPackets;
+            stats.onPrioritized();
+        } else {
+            batch.addBulkPacket(flowHash);
+        }
+        ++batch.pendingPackets;
+        ++totalPendingPackets;
+    }
+
+    private boolean isSupported(ByteBuffer packet) {
+        if (!packet.hasRemaining()) {
+            Log.d(TAG, "Empty packet");
+            return false;
+        }
+        int version = IPPackets.readVersion(packet, packet.position());
+        if (version == 4 || (version == 6 && ipv6)) {
+            return true;
+        }
+        // see <https://github.com/Genymobile/gnirehtet/issues/69>
+        Log.w(TAG, "Unexpected packet IP version: " + version);
+        return false;
+    }
+
+    @Override
+    public boolean hasPending() {
+        return totalPendingPackets != 0;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (totalPendingPackets == 0) {
+            return;
+        }
+        // interactive packets of all the tunnels first
+        for (int i = 0; i < batches.length; ++i) {
+            writeBuffer(i, batches[i].priorityBuffer);
+        }
+        for (int i = 0; i < batches.length; ++i) {
+            flush(i);
+        }
+    }
+
+    private void flush(int index) throws IOException {
+        Batch batch = batches[index];
+        if (batch.pendingPackets == 0) {
+            return;
+        }
+        writeBuffer(index, batch.priorityBuffer);
+        writeBuffer(index, batch.buffer);
+        stats.onCoalescedFlush(batch.pendingPackets);
+        totalPendingPackets -= batch.pendingPackets;
+        batch.reset();
+    }
+
+    private void writeBuffer(int index, ByteBuffer buffer) throws IOException {
+        if (buffer == null || buffer.position() == 0) {
+            return;
+        }
+        buffer.flip();
+        output.write(index, buffer);
+        buffer.clear();
+    }
+
+    private static final class Batch {
+
+        private static final int BULK_FLOWS_BITS = 1024;
+
+        private final ByteBuffer buffer;
+        private final ByteBuffer priorityBuffer;
+        private int pendingPackets;
+        private int prioritizedPackets;
+        // bloom filter of the flows having a bulk packet in the batch (false positives only prevent prioritization)
+        private final long[] bulkFlows;
+
+        Batch(boolean prioritize, boolean direct) {
+            buffer = allocate(BUFSIZE, direct);
+            priorityBuffer = prioritize ? allocate(PRIORITY_BUFSIZE, direct) : null;
+            bulkFlows = prioritize ? new long[BULK_FLOWS_BITS / Long.SIZE] : null;
+        }
+
+        private static ByteBuffer allocate(int capacity, boolean direct) {
+            return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+        }
+
+        boolean hasBulkPacket(int flowHash) {
+            int bit = flowHash & (BULK_FLOWS_BITS - 1);
+            return (bulkFlows[bit / Long.SIZE] & (1L << bit)) != 0;
+        }
+
+        void addBulkPacket(int flowHash) {
+            if (bulkFlows != null) {
+                int bit = flowHash & (BULK_FLOWS_BITS - 1);
+                bulkFlows[bit / Long.SIZE] |= 1L << bit;
+            }
+        }
+
+        void reset() {
+            pendingPackets = 0;
+            prioritizedPackets = 0;
+            if (bulkFlows != null) {
+                Arrays.fill(bulkFlows, 0);
+            }
+        }
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2017 Genymobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.genymobile.gnirehtet;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Helpers to parse and build UDP datagrams (over IPv4 or IPv6), for the packets handled locally.
+ */
+public final class UdpPackets {
+
+    public static final int UDP_HEADER_LENGTH = 8;
+
+    private static final int IPV4_HEADER_LENGTH = IPPackets.IPV4_MIN_HEADER_LENGTH;
+    private static final int TTL = 64;
+
+    private UdpPackets() {
+        // not instantiable
+    }
+
+    /**
+     * Return the absolute position of the UDP header of the packet starting at {@code index}.
+     *
+     * @param buffer the buffer
+     * @param index the absolute position of the packet
+     * @param length the packet length
+     * @return the position of the UDP header, or {@code -1} if the packet is not a (complete) UDP datagram
+     */
+    public static int getUdpIndex(ByteBuffer buffer, int index, int length) {
+        if (length == 0 || IPPackets.readProtocol(buffer, index) != IPPackets.PROTOCOL_UDP) {
+            return -1;
+        }
+        int udp = IPPackets.getTransportIndex(buffer, index, length);
+        if (udp == -1 || udp + UDP_HEADER_LENGTH > index + length) {
+            return -1;
+        }
+        return udp;
+    }
+
+    public static int readSourcePort(ByteBuffer buffer, int udpIndex) {
+        return Binary.unsigned(buffer.getShort(udpIndex));
+    }
+
+    @SuppressWarnings("checkstyle:MagicNumber")
+    public static int readDestinationPort(ByteBuffer buffer, int udpIndex) {
+        return Binary.unsigned(buffer.getShort(udpIndex + 2));
+    }
+
+    /**
+     * Build the reply to a request datagram: addresses and ports are swapped.
+     *
+     * @param request the buffer containing the request
+     * @param index the absolute position of the request packet
+     * @param payload the payload of the reply, from its position to its limit (consumed)
+     * @param reply the buffer to write the reply to, from its position (flipped on return)
+     */
+    @SuppressWarnings("checkstyle:MagicNumber")
+    public static void buildReply(ByteBuffer request, int index, ByteBuffer payload, ByteBuffer reply) {
+        int requestUdp = IPPackets.getTransportIndex(request, index, request.limit() - index);
+        boolean ipv6 = IPPackets.readVersion(request, index) == 6;
+        int start = reply.position();
+        int udpLength = UDP_HEADER_LENGTH + payload.remaining();
+
+        int sum;
+        if (ipv6) {
+            reply.putInt(6 << 28);
+            reply.putShort((short) udpLength);
+            reply.put((byte) IPPackets.PROTOCOL_UDP);
+            reply.put((byte) TTL);
+            putBytes(reply, request, index + 24, 16); // source = request destination
+            putBytes(reply, request, index + 8, 16); // destination = request source
+            sum = IPPackets.sum(reply, start + 8, 32, 0);
+        } else {
+            reply.put((byte) ((4 << 4) | (IPV4_HEADER_LENGTH / 4)));
+            reply.put((byte) 0); // type of service
+            reply.putShort((short) (IPV4_HEADER_LENGTH + udpLength));
+            reply.putShort((short) 0); // identification
+            reply.putShort((short) 0x4000); // don't fragment
+            reply.put((byte) TTL);
+            reply.put((byte) IPPackets.PROTOCOL_UDP);
+            reply.putShort((short) 0); // header checksum, computed below
+            putBytes(reply, request, index + 16, 4); // source = request destination
+            putBytes(reply, request, index + 12, 4); // destination = request source
+            reply.putShort(start + 10, (short) IPPackets.checksum(reply, start, IPV4_HEADER_LENGTH));
+            sum = IPPackets.sum(reply, start + 12, 8, 0);
+        }
+        // pseudo-header: upper-layer length and protocol
+        sum += udpLength + IPPackets.PROTOCOL_UDP;
+
+        int udp = reply.position();
+        reply.putShort(request.getShort(requestUdp + 2)); // source port = request destination port
+        reply.putShort(request.getShort(requestUdp)); // destination port = request source port
+        reply.putShort((short) udpLength);
+        reply.putShort((short) 0); // checksum, computed below
+        reply.put(payload);
+
+        int checksum = IPPackets.finishChecksum(IPPackets.sum(reply, udp, udpLength, sum));
+        // a computed checksum of 0 is transmitted as all ones (RFC 768)
+        reply.putShort(udp + 6, (short) (checksum == 0 ? 0xffff : checksum));
+        reply.limit(reply.position());
+        reply.position(start);
+    }
+
+    /**
+     * Replace the source or destination address of the datagram starting at {@code index}, and update its checksums.
+     *
+     * @param buffer the buffer
+     * @param index the absolute position of the packet
+     * @param length the packet length
+     * @param source {@code true} to replace the source address, {@code false} for the destination address
+     * @param address the new address, of the same family as the packet
+     */
+    public static void rewriteAddress(ByteBuffer buffer, int index, int length, boolean source, byte[] address) {
+        int addressIndex = source ? IPPackets.getSourceAddressIndex(buffer, index)
+                : IPPackets.getDestinationAddressIndex(buffer, index);
+        for (int i = 0; i < address.length; ++i) {
+            buffer.put(addressIndex + i, address[i]);
+        }
+        updateChecksums(buffer, index, length);
+    }
+
+    /**
+     * Recompute the IPv4 header checksum (if any) and the UDP checksum of the datagram starting at {@code index}.
+     *
+     * @param buffer the buffer
+     * @param index the absolute position of the packet
+     * @param length the packet length
+     */
+    @SuppressWarnings("checkstyle:MagicNumber")
+    public static void updateChecksums(ByteBuffer buffer, int index, int length) {
+        int udp = IPPackets.getTransportIndex(buffer, index, length);
+        int udpLength = index + length - udp;
+        int sum;
+        if (IPPackets.readVersion(buffer, index) == 6) {
+            sum = IPPackets.sum(buffer, index + 8, 32, 0);
+        } else {
+            int headerLength = udp - index;
+            buffer.putShort(index + 10, (short) 0);
+            buffer.putShort(index + 10, (short) IPPackets.checksum(buffer, index, headerLength));
+            sum = IPPackets.sum(buffer, index + 12, 8, 0);
+        }
+        sum += udpLength + IPPackets.PROTOCOL_UDP;
+        buffer.putShort(udp + 6, (short) 0);
+        int checksum = IPPackets.finishChecksum(IPPackets.sum(buffer, udp, udpLength, sum));
+        buffer.putShort(udp + 6, (short) (checksum == 0 ? 0xffff : checksum));
+    }
+
+    private static void putBytes(ByteBuffer dst, ByteBuffer src, int index, int length) {
+        for (int i = 0; i < length; ++i) {
+            dst.put(src.get(index + i));
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2017 Genymobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.genymobile.gnirehtet;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+
+import kotlinx.coroutines.flow.MutableStateFlow;
+import kotlinx.coroutines.flow.StateFlow;
+import kotlinx.coroutines.flow.StateFlowKt;
+
+/**
+ * Reject the UDP packets sent to some ports with an ICMP "Port Unreachable" message.
+ * <p>
+ * UDP is relayed far less efficiently than TCP. Browsers try QUIC (UDP port 443) first, and only fall back to TCP after
+ * a timeout; an immediate rejection makes them switch at once.
+ */
+public class UdpPortRejectInterceptor implements PacketInterceptor {
+
+    private static final int MAX_PORT = 0xffff;
+
+    // counted across sessions, to be displayed
+    private static final MutableStateFlow<Long> hits = StateFlowKt.MutableStateFlow(0L);
+
+    private final BitSet ports = new BitSet(MAX_PORT + 1);
+    private final PacketSink deviceSink;
+    private final ForwarderStats stats;
+    private final ByteBuffer reply = ByteBuffer.allocate(IcmpPackets.MAX_ERROR_LENGTH);
+
+    public UdpPortRejectInterceptor(int[] ports, PacketSink deviceSink, ForwarderStats stats) {
+        for (int port : ports) {
+            if (port >= 0 && port <= MAX_PORT) {
+                this.ports.set(port);
+            }
+        }
+        this.deviceSink = deviceSink;
+        this.stats = stats;
+    }
+
+    /**
+     * Return the number of packets rejected since the application started.
+     */
+    public static StateFlow<Long> getHits() {
+        return hits;
+    }
+
+    @Override
+    public boolean intercept(ByteBuffer packet, PacketSink upstream) throws IOException {
+        int index = packet.position();
+        int length = packet.remaining();
+        int udp = UdpPackets.getUdpIndex(packet, index, length);
+        if (udp == -1 || !ports.get(UdpPackets.readDestinationPort(packet, udp))) {
+            return false;
+        }
+        if (IcmpPackets.canReplyWithError(packet, index, length)) {
+            IcmpPackets.buildUnreachable(packet, index, length, IcmpPackets.UNREACHABLE_PORT, reply);
+            deviceSink.write(reply);
+        }
+        stats.onRejectedUdp();
+        onHit();
+        return true;
+    }
+
+    private static void onHit() {
+        Long count;
+        do {
+            count = hits.getValue();
+        } while (!hits.compareAndSet(count, count + 1));
+    }
+}
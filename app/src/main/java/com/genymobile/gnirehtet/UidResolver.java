@@ -0,0 +1,41 @@
+/*
+ * Copyright (C) 2017 Genymobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.genymobile.gnirehtet;
+
+import java.net.InetSocketAddress;
+
+/**
+ * Find the application owning a connection.
+ * <p>
+ * This is an interface so that the traffic attribution does not depend on the Android framework.
+ */
+public interface UidResolver {
+
+    int UNKNOWN_UID = -1;
+
+    /**
+     * Return the UID owning a connection, or {@link #UNKNOWN_UID}.
+     * <p>
+     * This may be slow (it may be a binder call), so it must not be called on the per-packet path.
+     *
+     * @param protocol the protocol ({@link IPPackets#PROTOCOL_TCP} or {@link IPPackets#PROTOCOL_UDP})
+     * @param local the address of the connection on the device
+     * @param remote the address of the remote peer
+     * @return the UID
+     */
+    int getOwnerUid(int protocol, InetSocketAddress local, InetSocketAddress remote);
+}
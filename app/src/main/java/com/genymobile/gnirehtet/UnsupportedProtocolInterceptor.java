@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2017 Genymobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.genymobile.gnirehtet;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * Answer locally the packets of the protocols the relay cannot carry (anything but TCP and UDP).
+ * <p>
+ * Echo requests sent to the VPN gateway are answered with an echo reply, so that {@code ping} can check the VPN
+ * interface. Other packets are rejected with an ICMP "Destination Unreachable" message, so that applications and
+ * diagnostic tools fail immediately instead of waiting for a timeout.
+ */
+public class UnsupportedProtocolInterceptor implements PacketInterceptor {
+
+    private static final int BUFSIZE = 0x10000;
+
+    private final byte[][] gateways;
+    private final PacketSink deviceSink;
+    private final ForwarderStats stats;
+    private final ByteBuffer reply = ByteBuffer.allocate(BUFSIZE);
+
+    public UnsupportedProtocolInterceptor(InetAddress[] gateways, PacketSink deviceSink, ForwarderStats stats) {
+        this.gateways = new byte[gateways.length][];
+        for (int i = 0; i < gateways.length; ++i) {
+            this.gateways[i] = gateways[i].getAddress();
+        }
+        this.deviceSink = deviceSink;
+        this.stats = stats;
+    }
+
+    @Override
+    public boolean intercept(ByteBuffer packet, PacketSink upstream) throws IOException {
+        int index = packet.position();
+        int length = packet.remaining();
+        if (!isUnsupported(packet, index, length)) {
+            return false;
+        }
+        if (IcmpPackets.isEchoRequest(packet, index, length) && isGateway(packet, index)) {
+            IcmpPackets.buildEchoReply(packet, index, length, reply);
+            deviceSink.write(reply);
+        } else if (IcmpPackets.canReplyWithError(packet, index, length)) {
+            int protocol = IPPackets.readProtocol(packet, index);
+            boolean icmp = protocol == IPPackets.PROTOCOL_ICMP || protocol == IPPackets.PROTOCOL_ICMPV6;
+            // the protocol is known, but the destination cannot be reached
+            int reason = icmp ? IcmpPackets.UNREACHABLE_NO_ROUTE : IcmpPackets.UNREACHABLE_PROTOCOL;
+            IcmpPackets.buildUnreachable(packet, index, length, reason, reply);
+            deviceSink.write(reply);
+        }
+        stats.onUnsupportedProtocol();
+        return true;
+    }
+
+    private static boolean isUnsupported(ByteBuffer packet, int index, int length) {
+        if (length == 0) {
+            return false;
+        }
+        int version = IPPackets.readVersion(packet, index);
+        int minLength = version == 6 ? IPPackets.IPV6_HEADER_LENGTH : IPPackets.IPV4_MIN_HEADER_LENGTH;
+        if ((version != 4 && version != 6) || length < minLength) {
+            // not our business, the tunnel sender drops them
+            return false;
+        }
+        int protocol = IPPackets.readProtocol(packet, index);
+        return protocol != IPPackets.PROTOCOL_TCP && protocol != IPPackets.PROTOCOL_UDP;
+    }
+
+    @SuppressWarnings("checkstyle:MagicNumber")
+    private boolean isGateway(ByteBuffer packet, int index) {
+        int addressIndex = IPPackets.getDestinationAddressIndex(packet, index);
+        int addressLength = IPPackets.readVersion(packet, index) == 6 ? 16 : 4;
+        for (byte[] gateway : gateways) {
+            if (gateway.length == addressLength && equals(packet, addressIndex, gateway)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean equals(ByteBuffer packet, int addressIndex, byte[] address) {
+        for (int i = 0; i < address.length; ++i) {
+            if (packet.get(addressIndex + i) != address[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
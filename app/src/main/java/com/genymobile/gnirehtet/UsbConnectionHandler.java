@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2017 Genymobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.genymobile.gnirehtet;
+
+import android.util.Log;
+
+/**
+ * React to the USB cable attachments: the relay server is probably reachable again, so reconnect immediately, or
+ * restart the VPN if it was stopped and enabled to start on USB connection.
+ */
+class UsbConnectionHandler implements UsbConnectionSource.Listener {
+
+    private static final String TAG = UsbConnectionHandler.class.getSimpleName();
+
+    /**
+     * The VPN, as seen by the handler.
+     */
+    interface Vpn {
+        boolean isRunning();
+
+        /**
+         * Reconnect to the relay server without waiting for the backoff delay.
+         */
+        void reconnectNow();
+
+        boolean isStartOnUsbConnectEnabled();
+
+        /**
+         * Start the VPN again with the last configuration, if any and if authorized.
+         */
+        void startWithLastConfiguration();
+    }
+
+    private final UsbConnectionSource source;
+    private final Vpn vpn;
+
+    UsbConnectionHandler(UsbConnectionSource source, Vpn vpn) {
+        this.source = source;
+        this.vpn = vpn;
+    }
+
+    void onVpnStarted() {
+        source.start(this);
+    }
+
+    void onVpnStopped() {
+        if (!vpn.isStartOnUsbConnectEnabled()) {
+            // otherwise, keep watching to start again
+            source.stop();
+        }
+    }
+
+    void release() {
+        source.stop();
+    }
+
+    @Override
+    public void onUsbConnected() {
+        if (vpn.isRunning()) {
+            vpn.reconnectNow();
+            return;
+        }
+        if (vpn.isStartOnUsbConnectEnabled()) {
+            Log.i(TAG, "USB connected, starting VPN with the last configuration");
+            vpn.startWithLastConfiguration();
+        }
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2017 Genymobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.genymobile.gnirehtet;
+
+/**
+ * Source of the USB cable attachments, which may restore the connection to the relay server (through "adb reverse").
+ */
+public interface UsbConnectionSource {
+
+    interface Listener {
+        /**
+         * Called (on the main thread) when the device is plugged in.
+         */
+        void onUsbConnected();
+    }
+
+    void start(Listener listener);
+
+    void stop();
+}
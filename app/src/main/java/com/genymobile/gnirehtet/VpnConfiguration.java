@@ -27,6 +27,7 @@ public class VpnConfiguration implements Parcelable {
     private final InetAddress[] dnsServers;
     private final CIDR[] routes;
     private final String[] blockedPackageNames;
+    private final int[] rejectedUdpPorts;
     private boolean stopOnDisconnect;
     private final boolean startedByServer;
 
@@ -34,14 +35,17 @@ public class VpnConfiguration implements Parcelable {
         this.dnsServers = new InetAddress[0];
         this.routes = new CIDR[0];
         this.blockedPackageNames = new String[0];
+        this.rejectedUdpPorts = new int[0];
         this.stopOnDisconnect = false;
         this.startedByServer = true;
     }
 
-    public VpnConfiguration(InetAddress[] dnsServers, CIDR[] routes, String[] blockedPackageNames, boolean stopOnDisconnect, boolean startedByServer) {
+    public VpnConfiguration(InetAddress[] dnsServers, CIDR[] routes, String[] blockedPackageNames, int[] rejectedUdpPorts, boolean stopOnDisconnect,
+                            boolean startedByServer) {
         this.dnsServers = dnsServers;
         this.routes = routes;
         this.blockedPackageNames = blockedPackageNames;
+        this.rejectedUdpPorts = rejectedUdpPorts;
         this.stopOnDisconnect = stopOnDisconnect;
         this.startedByServer = startedByServer;
     }
@@ -58,6 +62,7 @@ public class VpnConfiguration implements Parcelable {
         }
         routes = source.createTypedArray(CIDR.CREATOR);
         blockedPackageNames = source.createStringArray();
+        rejectedUdpPorts = source.createIntArray();
         stopOnDisconnect = source.readByte() == 1;
         startedByServer = source.readByte() == 1;
     }
@@ -74,6 +79,13 @@ public class VpnConfiguration implements Parcelable {
         return blockedPackageNames;
     }
 
+    /**
+     * Return the UDP ports to reject immediately (typically 443, to make applications fall back from QUIC to TCP).
+     */
+    public int[] getRejectedUdpPorts() {
+        return rejectedUdpPorts;
+    }
+
     public boolean stopOnDisconnect() {
         return stopOnDisconnect;
     }
@@ -94,6 +106,7 @@ public class VpnConfiguration implements Parcelable {
         }
         dest.writeTypedArray(routes, 0);
         dest.writeStringArray(blockedPackageNames);
+        dest.writeIntArray(rejectedUdpPorts);
         dest.writeByte(stopOnDisconnect ? (byte) 1 : (byte) 0);
         dest.writeByte(startedByServer ? (byte) 1 : (byte) 0);
     }
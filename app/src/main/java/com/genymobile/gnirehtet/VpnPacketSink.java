@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2017 Genymobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.genymobile.gnirehtet;
+
+import android.system.ErrnoException;
+import android.system.Os;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Write IP packets to the VPN interface, one packet per write.
+ * <p>
+ * Heap buffers are written through a {@link FileOutputStream}, direct buffers through {@link Os#write(FileDescriptor,
+ * ByteBuffer)} to avoid any copy. Since every write is a whole packet, it may be shared by several threads.
+ * <p>
+ * The VPN interface may be replaced while packets are written, see {@link #setFileDescriptor(FileDescriptor)}.
+ */
+public class VpnPacketSink implements PacketSink {
+
+    // the file descriptor is retrieved from the stream, so that both are always replaced together
+    private volatile FileOutputStream vpnOutput;
+
+    public VpnPacketSink(FileDescriptor vpnFileDescriptor) {
+        vpnOutput = new FileOutputStream(vpnFileDescriptor);
+    }
+
+    /**
+     * Write the next packets to another VPN interface.
+     *
+     * @param vpnFileDescriptor the new VPN interface
+     */
+    public void setFileDescriptor(FileDescriptor vpnFileDescriptor) {
+        vpnOutput = new FileOutputStream(vpnFileDescriptor);
+    }
+
+    @Override
+    public void write(ByteBuffer packet) throws IOException {
+        FileOutputStream vpnOutput = this.vpnOutput;
+        if (packet.hasArray()) {
+            vpnOutput.write(packet.array(), packet.arrayOffset() + packet.position(), packet.remaining());
+            packet.position(packet.limit());
+            return;
+        }
+        try {
+            // a TUN device always writes a packet at once
+            Os.write(vpnOutput.getFD(), packet);
+        } catch (ErrnoException e) {
+            throw e.rethrowAsIOException();
+        }
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2017 Genymobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.genymobile.gnirehtet;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.StructPollfd;
+import android.util.Log;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/**
+ * Read IP packets from the VPN interface, for the blocking engines.
+ * <p>
+ * The reads wait for the VPN interface along with a wake-up pipe, so that the reading thread may be woken up to stop, or
+ * to switch to a new VPN interface (see {@link #switchFileDescriptor(FileDescriptor, Runnable)}).
+ * <p>
+ * If a {@link PendingOutput} is set, it is flushed whenever no packet is immediately available, before waiting. This
+ * check is the poll done before every read anyway, so coalescing costs no additional syscall.
+ * <p>
+ * All the methods except {@link #switchFileDescriptor(FileDescriptor, Runnable)} and {@link #stop()} must be called from
+ * the reading thread.
+ */
+public class VpnPacketSource {
+
+    private static final String TAG = VpnPacketSource.class.getSimpleName();
+
+    /**
+     * Data accumulated from the packets read, to be written once the VPN interface has no more packets available.
+     */
+    public interface PendingOutput {
+        boolean hasPending();
+
+        void flush() throws IOException;
+    }
+
+    private FileDescriptor vpnFileDescriptor;
+    private final FileDescriptor wakeUpReadFd;
+    private final FileDescriptor wakeUpWriteFd;
+    private final StructPollfd[] pollfds;
+    private final byte[] wakeUpBuffer = new byte[16];
+
+    private PendingOutput pendingOutput;
+
+    private final Queue<Switch> pendingSwitches = new ArrayDeque<>(); // protected by "this"
+    private volatile boolean stopped;
+
+    public VpnPacketSource(FileDescriptor vpnFileDescriptor) throws IOException {
+        this.vpnFileDescriptor = vpnFileDescriptor;
+        try {
+            FileDescriptor[] pipe = Os.pipe();
+            wakeUpReadFd = pipe[0];
+            wakeUpWriteFd = pipe[1];
+        } catch (ErrnoException e) {
+            throw e.rethrowAsIOException();
+        }
+        pollfds = new StructPollfd[] {Poll.createPollfd(vpnFileDescriptor), Poll.createPollfd(wakeUpReadFd)};
+    }
+
+    /**
+     * Read a packet, blocking until one is available.
+     *
+     * @param buffer the buffer
+     * @return the packet length, or {@code -1} if the source is stopped or the VPN interface is closed
+     * @throws IOException if an I/O error occurs
+     */
+    public int read(byte[] buffer) throws IOException {
+        if (!awaitReadable()) {
+            return -1;
+        }
+        try {
+            int r = Os.read(vpnFileDescriptor, buffer, 0, buffer.length);
+            return r == 0 ? -1 : r;
+        } catch (ErrnoException e) {
+            throw e.rethrowAsIOException();
+        }
+    }
+
+    /**
+     * Read a packet, blocking until one is available.
+     *
+     * @param buffer the buffer, filled from its position
+     * @return the packet length, or {@code -1} if the source is stopped or the VPN interface is closed
+     * @throws IOException if an I/O error occurs
+     */
+    public int read(ByteBuffer buffer) throws IOException {
+        if (!awaitReadable()) {
+            return -1;
+        }
+        try {
+            int r = Os.read(vpnFileDescriptor, buffer);
+            return r == 0 ? -1 : r;
+        } catch (ErrnoException e) {
+            throw e.rethrowAsIOException();
+        }
+    }
+
+    /**
+     * Flush the output before waiting for the next packets.
+     *
+     * @param pendingOutput the output, or {@code null}
+     */
+    public void setPendingOutput(PendingOutput pendingOutput) {
+        this.pendingOutput = pendingOutput;
+    }
+
+    private boolean awaitReadable() throws IOException {
+        while (!stopped) {
+            if (!switchIfDrained()) {
+                // the previous VPN interface is not drained yet
+                return true;
+            }
+            pollfds[0].fd = vpnFileDescriptor;
+            boolean pending = pendingOutput != null && pendingOutput.hasPending();
+            if (!Poll.poll(pollfds, pending ? 0 : -1)) {
+                if (pending) {
+                    // no packet immediately available, write the pending data before waiting
+                    pendingOutput.flush();
+                }
+                // else interrupted by a signal, retry
+                continue;
+            }
+            if (pollfds[1].revents != 0) {
+                consumeWakeUp();
+                continue;
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Switch to the next pending VPN interface, once the current one has no more packets.
+     *
+     * @return {@code false} if the current VPN interface is being drained
+     */
+    private boolean switchIfDrained() throws IOException {
+        Switch next;
+        synchronized (this) {
+            next = pendingSwitches.peek();
+            if (next == null) {
+                return true;
+            }
+            if (Poll.isReadable(vpnFileDescriptor)) {
+                return false;
+            }
+            pendingSwitches.remove();
+        }
+        Log.d(TAG, "Previous VPN interface drained");
+        vpnFileDescriptor = next.vpnFileDescriptor;
+        next.onPreviousDrained.run();
+        return true;
+    }
+
+    private void consumeWakeUp() throws IOException {
+        try {
+            Os.read(wakeUpReadFd, wakeUpBuffer, 0, wakeUpBuffer.length);
+        } catch (ErrnoException e) {
+            throw e.rethrowAsIOException();
+        }
+    }
+
+    private void wakeUp() {
+        try {
+            Os.write(wakeUpWriteFd, new byte[1], 0, 1);
+        } catch (ErrnoException | InterruptedIOException e) {
+            // the pipe is already closed if the reading thread exited
+            Log.d(TAG, "Cannot wake up reading thread", e);
+        }
+    }
+
+    /**
+     * Read from a new VPN interface, once the packets already queued on the current one are read.
+     * <p>
+     * Returns immediately.
+     *
+     * @param newVpnFileDescriptor the new VPN interface
+     * @param onPreviousDrained called from the reading thread once the previous VPN interface may be closed
+     */
+    public void switchFileDescriptor(FileDescriptor newVpnFileDescriptor, Runnable onPreviousDrained) {
+        synchronized (this) {
+            pendingSwitches.add(new Switch(newVpnFileDescriptor, onPreviousDrained));
+        }
+        wakeUp();
+    }
+
+    /**
+     * Wake up the reading thread and make it stop. Returns immediately.
+     */
+    public void stop() {
+        stopped = true;
+        wakeUp();
+    }
+
+    /**
+     * Release the wake-up pipe, once the reading thread exited.
+     */
+    public void close() {
+        closeQuietly(wakeUpReadFd);
+        closeQuietly(wakeUpWriteFd);
+    }
+
+    private static void closeQuietly(FileDescriptor fd) {
+        try {
+            Os.close(fd);
+        } catch (ErrnoException e) {
+            // ignore
+        }
+    }
+
+    private static final class Switch {
+        private final FileDescriptor vpnFileDescriptor;
+        private final Runnable onPreviousDrained;
+
+        Switch(FileDescriptor vpnFileDescriptor, Runnable onPreviousDrained) {
+            this.vpnFileDescriptor = vpnFileDescriptor;
+            this.onPreviousDrained = onPreviousDrained;
+        }
+    }
+}
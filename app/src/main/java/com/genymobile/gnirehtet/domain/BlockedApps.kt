@@ -1,8 +1,10 @@
 package com.genymobile.gnirehtet.domain
 
 import android.content.Context
+import com.genymobile.gnirehtet.AppFirewall
 import com.genymobile.gnirehtet.settings.Preferences
 import com.genymobile.gnirehtet.utils.ContextUtils
+import com.genymobile.gnirehtet.utils.getApplicationUidOrNull
 import java.io.File
 
 object BlockedApps {
@@ -56,8 +58,35 @@ object BlockedApps {
         writeFile()
 
         if (Gnirehtet.getLastConfiguration()?.isStartedByServer == false || Preferences.isOverwriteBlockedApps().value) {
-            Gnirehtet.restartGnirehtetIfRunning(context)
+            if (!updateFirewall(packageName, blocked)) {
+                Gnirehtet.reconfigureGnirehtetIfRunning(context)
+            }
+        }
+    }
+
+    /**
+     * Apply the change to the running VPN without restarting it, if possible.
+     *
+     * The apps disallowed from the VPN interface are only reconciled at the next restart.
+     */
+    private fun updateFirewall(packageName: String, blocked: Boolean): Boolean {
+        val config = Gnirehtet.getLastConfiguration()
+        if (!Gnirehtet.isRunning().value || config == null || !AppFirewall.isSupported()) {
+            return false
         }
+
+        val disallowed = config.blockedPackageNames.toSet()
+        if (!blocked && packageName in disallowed) {
+            // its traffic does not go through the VPN, it cannot be unblocked in place
+            return false
+        }
+
+        val packageManager = ContextUtils.PackageManager
+        val uids = blockedApps
+            .filter { it !in disallowed }
+            .mapNotNull { packageManager.getApplicationUidOrNull(it) }
+        AppFirewall.setBlockedUids(uids.toIntArray())
+        return true
     }
 
     private fun writeFile() {
@@ -4,6 +4,7 @@ import android.app.Activity
 import android.content.Context
 import android.content.Intent
 import android.net.VpnService
+import android.os.SystemClock
 import android.util.Log
 import androidx.activity.compose.ManagedActivityResultLauncher
 import androidx.activity.compose.rememberLauncherForActivityResult
@@ -15,23 +16,27 @@ import com.genymobile.gnirehtet.settings.Preferences
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.Job
-import kotlinx.coroutines.cancelAndJoin
-import kotlinx.coroutines.delay
+import kotlinx.coroutines.SupervisorJob
 import kotlinx.coroutines.flow.StateFlow
+import kotlinx.coroutines.flow.first
 import kotlinx.coroutines.launch
-import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withTimeoutOrNull
 import java.net.InetAddress
-import kotlin.time.Duration.Companion.milliseconds
+import kotlin.time.Duration.Companion.seconds
 
 object Gnirehtet {
 
     private const val TAG = "Gnirehtet"
+    // the forwarder threads are joined for up to 1 second, leave some margin
+    private val RESTART_STOP_TIMEOUT = 5.seconds
     private var lastRestartGnirehtetJob: Job? = null
+    private var reconfigurationActor: ReconfigurationActor? = null
 
     fun createConfig(
         intentDnsServers: Array<InetAddress>? = null,
         intentRoutes: Array<CIDR>? = null,
         intentBlockedPackageNames: Array<String>? = null,
+        intentRejectedUdpPorts: IntArray? = null,
         intentStopOnDisconnect: Boolean? = null,
         startedByServer: Boolean = false,
     ): VpnConfiguration {
@@ -47,6 +52,7 @@ object Gnirehtet {
         } else {
             BlockedApps.getBlockedApps().toList().toTypedArray()
         }
+        val rejectedUdpPorts = intentRejectedUdpPorts ?: Preferences.getRejectedUdpPorts()
         val stopOnDisconnect = if (intentStopOnDisconnect != null && !Preferences.isOverwriteStopOnDisconnect().value) {
             intentStopOnDisconnect
         } else {
@@ -57,6 +63,7 @@ object Gnirehtet {
             dnsServers,
             routes,
             blockedPackageNames,
+            rejectedUdpPorts,
             stopOnDisconnect,
             startedByServer,
         )
@@ -93,13 +100,17 @@ object Gnirehtet {
         receiver.launch(vpnIntent)
     }
 
-    private fun startWithNoVpnRequest(context: Context): Intent? {
+    private fun startWithNoVpnRequest(
+        context: Context,
+        config: VpnConfiguration = createConfig(),
+        restartTime: Long = -1,
+    ): Intent? {
         val vpnIntent = VpnService.prepare(context)
 
         if (vpnIntent == null) {
             Log.d(TAG, "VPN was already authorized")
             // we got the permission, start the service now
-            GnirehtetService.start(context, createConfig())
+            GnirehtetService.start(context, config, restartTime)
             return null
         }
 
@@ -110,33 +121,84 @@ object Gnirehtet {
         GnirehtetService.stop(context)
     }
 
+    /**
+     * Run a settings change off the main thread, after the previous one.
+     *
+     * The changes are applied to the running VPN by the [ReconfigurationActor], so successive changes result in a
+     * single reconfiguration.
+     */
     fun launchRestartGnirehtetScope(coroutineScope: CoroutineScope, block: suspend CoroutineScope.() -> Unit) {
-        lastRestartGnirehtetJob?.also { job ->
-            runBlocking {
-                job.cancelAndJoin()
-            }
-        }
+        val previousJob = lastRestartGnirehtetJob
 
         lastRestartGnirehtetJob = coroutineScope.launch(Dispatchers.IO) {
+            previousJob?.join()
             block(this)
         }
     }
 
-    suspend fun restartGnirehtetIfRunning(context: Context) {
-        if (isRunning().value) {
-            stop(context)
+    /**
+     * Restart the VPN, if it is running, so that the forwarding settings are read again.
+     */
+    fun restartGnirehtetIfRunning(context: Context) {
+        getReconfigurationActor(context).submit(ReconfigurationActor.Change.RESTART)
+    }
 
-            val start = System.currentTimeMillis()
+    /**
+     * Apply the current VPN configuration (DNS servers, blocked apps...) to the running VPN, without reconnecting to the
+     * relay server if possible.
+     */
+    fun reconfigureGnirehtetIfRunning(context: Context) {
+        getReconfigurationActor(context).submit(ReconfigurationActor.Change.RECONFIGURE)
+    }
 
-            while (System.currentTimeMillis() - start < 1000) {
-                if (!isRunning().value) {
-                    startWithNoVpnRequest(context)
-                    break
-                }
+    @Synchronized
+    private fun getReconfigurationActor(context: Context): ReconfigurationActor {
+        return reconfigurationActor ?: ReconfigurationActor(
+            CoroutineScope(SupervisorJob() + Dispatchers.Default),
+            ServiceController(context.applicationContext),
+        ).also { reconfigurationActor = it }
+    }
+
+    private class ServiceController(private val context: Context) : VpnServiceController {
+
+        override fun isRunning(): Boolean = GnirehtetService.isRunning().value
+
+        override fun getRunningConfiguration(): VpnConfiguration? = GnirehtetService.getLastConfiguration()
+
+        override fun createConfiguration(running: VpnConfiguration): VpnConfiguration {
+            if (!running.isStartedByServer) {
+                return createConfig()
+            }
+
+            return createConfig(
+                intentDnsServers = running.dnsServers,
+                intentRoutes = running.routes,
+                intentBlockedPackageNames = running.blockedPackageNames,
+                intentRejectedUdpPorts = running.rejectedUdpPorts,
+                intentStopOnDisconnect = running.stopOnDisconnect(),
+                startedByServer = true,
+            )
+        }
 
-                delay(10.milliseconds)
+        override fun reconfigure(config: VpnConfiguration) {
+            GnirehtetService.reconfigure(context, config)
+        }
+
+        override suspend fun restart(config: VpnConfiguration) {
+            val restartTime = SystemClock.elapsedRealtime()
+            stop(context)
+
+            // the service stops the forwarder in the background, wait until it is done
+            val stopped = withTimeoutOrNull(RESTART_STOP_TIMEOUT) {
+                GnirehtetService.isRunning().first { !it }
+            }
+            if (stopped == null) {
+                Log.w(TAG, "VPN still running after $RESTART_STOP_TIMEOUT, cannot restart")
+                return
             }
+            startWithNoVpnRequest(context, config, restartTime)
         }
+
     }
 
     fun isRunning(): StateFlow<Boolean> {
@@ -147,6 +209,10 @@ object Gnirehtet {
         return GnirehtetService.isConnected()
     }
 
+    fun getAppTraffic(): StateFlow<Map<Int, AppTraffic>> {
+        return GnirehtetService.getAppTraffic()
+    }
+
     fun getLastConfiguration(): VpnConfiguration? {
         return GnirehtetService.getLastConfiguration()
     }
@@ -0,0 +1,116 @@
+package com.genymobile.gnirehtet.domain
+
+import android.util.Log
+import com.genymobile.gnirehtet.VpnConfiguration
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.launch
+import kotlin.time.Duration
+import kotlin.time.Duration.Companion.milliseconds
+
+/**
+ * Apply the settings changes to the running VPN.
+ *
+ * The changes are collected until no change has been submitted for [quietPeriod] (or for [maxDelay] at most), then
+ * applied at once: toggling ten apps results in a single reconfiguration. A reconfiguration which would not change
+ * the running [VpnConfiguration] is skipped, a restart is performed at most once per batch.
+ *
+ * The changes are applied from the [scope], [submit] never blocks.
+ */
+class ReconfigurationActor(
+    scope: CoroutineScope,
+    private val controller: VpnServiceController,
+    private val quietPeriod: Duration = QUIET_PERIOD,
+    private val maxDelay: Duration = MAX_DELAY,
+) {
+
+    enum class Change {
+        /**
+         * The VPN configuration (DNS servers, blocked apps...) may have changed.
+         */
+        RECONFIGURE,
+
+        /**
+         * The forwarding settings, read when the VPN starts, have changed.
+         */
+        RESTART,
+    }
+
+    private val changes = Channel<Change>(Channel.UNLIMITED)
+
+    init {
+        scope.launch {
+            processChanges()
+        }
+    }
+
+    fun submit(change: Change) {
+        changes.trySend(change)
+    }
+
+    private suspend fun processChanges() {
+        for (first in changes) {
+            var restart = first == Change.RESTART
+            var waited = Duration.ZERO
+            do {
+                delay(quietPeriod)
+                waited += quietPeriod
+                var received = false
+                while (true) {
+                    val change = changes.tryReceive().getOrNull() ?: break
+                    restart = restart || change == Change.RESTART
+                    received = true
+                }
+            } while (received && waited < maxDelay)
+
+            try {
+                apply(restart)
+            } catch (e: CancellationException) {
+                throw e
+            } catch (e: Exception) {
+                Log.e(TAG, "Cannot apply the settings changes", e)
+            }
+        }
+    }
+
+    private suspend fun apply(restart: Boolean) {
+        val running = controller.getRunningConfiguration()
+        if (!controller.isRunning() || running == null) {
+            return
+        }
+
+        val config = controller.createConfiguration(running)
+        if (restart) {
+            Log.i(TAG, "Restarting VPN to apply the forwarding settings")
+            controller.restart(config)
+        } else if (!hasSameEffect(running, config)) {
+            Log.i(TAG, "Reconfiguring VPN")
+            controller.reconfigure(config)
+        } else {
+            Log.d(TAG, "VPN configuration unchanged")
+        }
+    }
+
+    companion object {
+        private const val TAG = "ReconfigurationActor"
+
+        private val QUIET_PERIOD = 300.milliseconds
+        private val MAX_DELAY = 1000.milliseconds
+
+        /**
+         * Indicate whether applying [config] would change nothing to the VPN running with [running].
+         *
+         * The order of the values does not matter. "Stop on disconnect" is applied without reconfiguring, so it is
+         * ignored.
+         */
+        fun hasSameEffect(running: VpnConfiguration, config: VpnConfiguration): Boolean {
+            return running.dnsServers.toSet() == config.dnsServers.toSet()
+                && running.routes.toSet() == config.routes.toSet()
+                && running.blockedPackageNames.toSet() == config.blockedPackageNames.toSet()
+                && running.rejectedUdpPorts.toSet() == config.rejectedUdpPorts.toSet()
+        }
+    }
+
+}
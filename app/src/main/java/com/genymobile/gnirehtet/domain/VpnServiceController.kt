@@ -0,0 +1,31 @@
+package com.genymobile.gnirehtet.domain
+
+import com.genymobile.gnirehtet.VpnConfiguration
+
+/**
+ * Control of the VPN service, as seen by the [ReconfigurationActor].
+ */
+interface VpnServiceController {
+
+    fun isRunning(): Boolean
+
+    fun getRunningConfiguration(): VpnConfiguration?
+
+    /**
+     * Create the configuration to apply from the current settings.
+     *
+     * The values received from the server are kept unless the settings overwrite them.
+     */
+    fun createConfiguration(running: VpnConfiguration): VpnConfiguration
+
+    /**
+     * Apply the configuration to the running VPN, without reconnecting to the relay server if possible.
+     */
+    fun reconfigure(config: VpnConfiguration)
+
+    /**
+     * Restart the VPN with the configuration, so that the forwarding settings are read again.
+     */
+    suspend fun restart(config: VpnConfiguration)
+
+}
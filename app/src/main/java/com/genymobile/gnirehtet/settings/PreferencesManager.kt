@@ -2,6 +2,11 @@ package com.genymobile.gnirehtet.settings
 
 import android.content.Context
 import android.content.SharedPreferences
+import com.genymobile.gnirehtet.BlockedDomainAnswer
+import com.genymobile.gnirehtet.DestinationFilters
+import com.genymobile.gnirehtet.FilterAction
+import com.genymobile.gnirehtet.ForwardingEngine
+import com.genymobile.gnirehtet.MtuMode
 import com.genymobile.gnirehtet.domain.BlockedApps
 import com.genymobile.gnirehtet.domain.Gnirehtet
 import com.genymobile.gnirehtet.settings.base.BasePreferenceManager
@@ -35,23 +40,39 @@ class PreferencesManager(
     private val gnirehtetStopOnDisconnect = booleanPreference("gnirehtet_stop_on_disconnect", true)
     val gnirehtetShowToastOnConnect = booleanPreference("gnirehtet_show_toast_on_connect", true)
     val gnirehtetShowToastOnDisconnect = booleanPreference("gnirehtet_show_toast_on_disconnect", true)
+    val gnirehtetStartOnUsbConnect = booleanPreference("gnirehtet_start_on_usb_connect", false)
     private val gnirehtetOverwriteDnsServers = booleanPreference("gnirehtet_overwrite_dns_servers", false)
     private val gnirehtetOverwriteStopOnDisconnect = booleanPreference("gnirehtet_overwrite_stop_on_disconnect", true)
     private val gnirehtetOverwriteBlockedApps = booleanPreference("gnirehtet_overwrite_blocked_apps", true)
 
+    // Forwarding
+    val forwardingEngine = enumPreference("forwarding_engine", ForwardingEngine.STREAM)
+    val forwardingCoalesceWrites = booleanPreference("forwarding_coalesce_writes", false)
+    val forwardingPrioritizeInteractive = booleanPreference("forwarding_prioritize_interactive", false)
+    val forwardingRelayConnections = intPreference("forwarding_relay_connections", 1)
+    val forwardingIPv6 = booleanPreference("forwarding_ipv6", false)
+    val forwardingDnsCache = booleanPreference("forwarding_dns_cache", false)
+    val forwardingDnsCacheSnapshot = booleanPreference("forwarding_dns_cache_snapshot", false)
+    val forwardingDnsRace = booleanPreference("forwarding_dns_race", false)
+    val forwardingBlocklist = booleanPreference("forwarding_blocklist", false)
+    val forwardingBlocklistAnswer = enumPreference("forwarding_blocklist_answer", BlockedDomainAnswer.NXDOMAIN)
+    val forwardingDestinationFilter = booleanPreference("forwarding_destination_filter", false)
+    val forwardingDestinationFilterAction = enumPreference("forwarding_destination_filter_action", FilterAction.REJECT)
+    val forwardingDestinationFilterRules = stringPreference("forwarding_destination_filter_rules", "")
+    val forwardingResetConnections = booleanPreference("forwarding_reset_connections", true)
+    val forwardingRejectUdp = booleanPreference("forwarding_reject_udp", false)
+    val forwardingRejectedUdpPorts = stringPreference("forwarding_rejected_udp_ports", "443")
+    val forwardingMtuMode = enumPreference("forwarding_mtu_mode", MtuMode.FIXED)
+    val forwardingMtuMeasurements = stringPreference("forwarding_mtu_measurements", "", isUserSetting = false)
+
     fun getGnirehtetDnsServers(): StateFlow<String> = gnirehtetDnsServers.stateFlow
 
     suspend fun setGnirehtetDnsServers(context: Context, dnsServers: String) {
         gnirehtetDnsServers.value = dnsServers
 
         if (Gnirehtet.getLastConfiguration()?.isStartedByServer == false || gnirehtetOverwriteDnsServers.value) {
-            val old = Gnirehtet.getLastConfiguration()!!.dnsServers.toHashSet()
-            val new = Gnirehtet.getCurrentDnsServers().toHashSet()
-            val isSame = old.size == new.size && old.containsAll(new)
-
-            if (!isSame) {
-                Gnirehtet.restartGnirehtetIfRunning(context)
-            }
+            // nothing is reconfigured if the DNS servers are the same
+            Gnirehtet.reconfigureGnirehtetIfRunning(context)
         }
     }
 
@@ -76,13 +97,7 @@ class PreferencesManager(
         gnirehtetOverwriteDnsServers.value = overwriteDnsServers
 
         if (overwriteDnsServers) {
-            val old = (Gnirehtet.getLastConfiguration()?.dnsServers ?: return).toHashSet()
-            val new = Gnirehtet.getCurrentDnsServers().toHashSet()
-            val isSame = old.size == new.size && old.containsAll(new)
-
-            if (!isSame) {
-                Gnirehtet.restartGnirehtetIfRunning(context)
-            }
+            Gnirehtet.reconfigureGnirehtetIfRunning(context)
         }
     }
 
@@ -102,17 +117,114 @@ class PreferencesManager(
         gnirehtetOverwriteBlockedApps.value = overwriteBlockedApps
 
         if (overwriteBlockedApps) {
-            val old = (Gnirehtet.getLastConfiguration()?.blockedPackageNames ?: return).toHashSet()
-            val new = BlockedApps.getBlockedApps().toHashSet()
-            val isSame = old.size == new.size && old.containsAll(new)
+            Gnirehtet.reconfigureGnirehtetIfRunning(context)
+        }
+    }
 
-            if (!isSame) {
-                Gnirehtet.restartGnirehtetIfRunning(context)
-            }
+    suspend fun setForwardingEngine(context: Context, engine: ForwardingEngine) {
+        setAndRestartIfChanged(context, forwardingEngine, engine)
+    }
+
+    suspend fun setForwardingCoalesceWrites(context: Context, coalesceWrites: Boolean) {
+        setAndRestartIfChanged(context, forwardingCoalesceWrites, coalesceWrites)
+    }
+
+    suspend fun setForwardingPrioritizeInteractive(context: Context, prioritizeInteractive: Boolean) {
+        setAndRestartIfChanged(context, forwardingPrioritizeInteractive, prioritizeInteractive)
+    }
+
+    suspend fun setForwardingRelayConnections(context: Context, relayConnections: Int) {
+        setAndRestartIfChanged(context, forwardingRelayConnections, relayConnections)
+    }
+
+    suspend fun setForwardingIPv6(context: Context, ipv6: Boolean) {
+        setAndRestartIfChanged(context, forwardingIPv6, ipv6)
+    }
+
+    suspend fun setForwardingDnsCache(context: Context, dnsCache: Boolean) {
+        setAndRestartIfChanged(context, forwardingDnsCache, dnsCache)
+    }
+
+    fun setForwardingDnsCacheSnapshot(dnsCacheSnapshot: Boolean) {
+        // read when the VPN starts and stops, no need to restart
+        forwardingDnsCacheSnapshot.value = dnsCacheSnapshot
+    }
+
+    suspend fun setForwardingDnsRace(context: Context, dnsRace: Boolean) {
+        setAndRestartIfChanged(context, forwardingDnsRace, dnsRace)
+    }
+
+    suspend fun setForwardingBlocklist(context: Context, blocklist: Boolean) {
+        setAndRestartIfChanged(context, forwardingBlocklist, blocklist)
+    }
+
+    suspend fun setForwardingBlocklistAnswer(context: Context, answer: BlockedDomainAnswer) {
+        setAndRestartIfChanged(context, forwardingBlocklistAnswer, answer)
+    }
+
+    suspend fun setForwardingDestinationFilter(context: Context, destinationFilter: Boolean) {
+        setAndRestartIfChanged(context, forwardingDestinationFilter, destinationFilter)
+    }
+
+    suspend fun setForwardingDestinationFilterAction(context: Context, action: FilterAction) {
+        setAndRestartIfChanged(context, forwardingDestinationFilterAction, action)
+    }
+
+    fun setForwardingDestinationFilterRules(rules: String) {
+        forwardingDestinationFilterRules.value = rules
+        // applied to the running VPN, no restart needed
+        DestinationFilters.update(rules)
+    }
+
+    suspend fun setForwardingResetConnections(context: Context, resetConnections: Boolean) {
+        setAndRestartIfChanged(context, forwardingResetConnections, resetConnections)
+    }
+
+    suspend fun setForwardingRejectUdp(context: Context, rejectUdp: Boolean) {
+        setAndRestartIfChanged(context, forwardingRejectUdp, rejectUdp)
+    }
+
+    suspend fun setForwardingRejectedUdpPorts(context: Context, ports: String) {
+        setAndRestartIfChanged(context, forwardingRejectedUdpPorts, ports)
+    }
+
+    /**
+     * Return the UDP ports to reject, or an empty array if UDP rejection is disabled.
+     */
+    fun getRejectedUdpPorts(): IntArray {
+        if (!forwardingRejectUdp.value) {
+            return IntArray(0)
+        }
+        return parseUdpPorts(forwardingRejectedUdpPorts.value) ?: IntArray(0)
+    }
+
+    suspend fun setForwardingMtuMode(context: Context, mtuMode: MtuMode) {
+        setAndRestartIfChanged(context, forwardingMtuMode, mtuMode)
+    }
+
+    fun resetForwardingMtuMeasurements() {
+        forwardingMtuMeasurements.reset()
+    }
+
+    /**
+     * Forwarding settings are read when the VPN starts, so restart it to apply them.
+     */
+    private suspend fun <T> setAndRestartIfChanged(context: Context, preference: Preference<T>, value: T) {
+        if (preference.value != value) {
+            preference.value = value
+            Gnirehtet.restartGnirehtetIfRunning(context)
         }
     }
 
     companion object {
+        /**
+         * Parse ports separated by commas, like "443, 8443", or return null if the list is invalid.
+         */
+        fun parseUdpPorts(ports: String): IntArray? {
+            val result = ports.split(',').filter { it.isNotBlank() }.map { it.trim().toIntOrNull() ?: return null }
+            return if (result.all { it in 1..65535 }) result.toIntArray() else null
+        }
+
         fun initialize(context: Context) {
             Preferences = PreferencesManager(context.getSharedPreferences("preferences", Context.MODE_PRIVATE))
         }
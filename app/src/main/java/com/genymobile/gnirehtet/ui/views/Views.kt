@@ -15,6 +15,7 @@ import com.genymobile.gnirehtet.ui.views.settings.about.AboutLicenseView
 import com.genymobile.gnirehtet.ui.views.settings.about.AboutSettingsView
 import com.genymobile.gnirehtet.ui.views.settings.appearance.AppearanceSettingsView
 import com.genymobile.gnirehtet.ui.views.settings.backup.BackupSettingsView
+import com.genymobile.gnirehtet.ui.views.settings.forwarding.ForwardingSettingsView
 import com.genymobile.gnirehtet.ui.views.settings.general.GeneralSettingsView
 import com.genymobile.gnirehtet.ui.views.settings.general.OverwriteSettingsView
 import com.genymobile.gnirehtet.ui.views.setup.RequestIgnoreBatteryOptimizationsView
@@ -60,6 +61,11 @@ sealed class Views(val id: String, val content: @Composable (NavHostController,
         OverwriteSettingsView(controller, backStack)
     })
 
+    @Keep
+    object SettingsForwarding : Views("settings-forwarding", { controller, backStack ->
+        ForwardingSettingsView(controller, backStack)
+    })
+
     @Keep
     object SettingsAppearance : Views("settings-appearance", { controller, backStack ->
         AppearanceSettingsView(controller, backStack)
@@ -5,6 +5,7 @@ import android.content.Context
 import android.content.pm.ApplicationInfo
 import android.content.pm.PackageInfo
 import android.content.pm.PackageManager
+import android.text.format.Formatter
 import androidx.compose.foundation.interaction.MutableInteractionSource
 import androidx.compose.foundation.layout.*
 import androidx.compose.foundation.lazy.LazyColumn
@@ -40,6 +41,7 @@ import androidx.compose.ui.unit.sp
 import androidx.lifecycle.compose.collectAsStateWithLifecycle
 import androidx.navigation.NavBackStackEntry
 import androidx.navigation.NavHostController
+import com.genymobile.gnirehtet.AppTraffic
 import com.genymobile.gnirehtet.domain.BlockedApps
 import com.genymobile.gnirehtet.ui.views.Views
 import com.genymobile.gnirehtet.ui.views.utils.LoadData
@@ -97,6 +99,14 @@ private fun loadInstalledAppsBlocking(): List<InstalledApp> {
         )
 }
 
+private fun formatTraffic(context: Context, traffic: AppTraffic): String {
+    val up = Formatter.formatShortFileSize(context, traffic.upstreamBytes)
+    val upRate = Formatter.formatShortFileSize(context, traffic.upstreamRate)
+    val down = Formatter.formatShortFileSize(context, traffic.downstreamBytes)
+    val downRate = Formatter.formatShortFileSize(context, traffic.downstreamRate)
+    return "↑ $up ($upRate/s) ↓ $down ($downRate/s)"
+}
+
 @Composable
 private fun loadInstalledApps(): MutableState<LoadStatus<List<InstalledApp>>> {
     return produceState<LoadStatus<List<InstalledApp>>>(initialValue = LoadStatus.Loading) {
@@ -116,6 +126,7 @@ fun MainView(navController: NavHostController, navBackStackEntry: NavBackStackEn
     val gnirehtetIsRunning by Gnirehtet.isRunning().collectAsStateWithLifecycle()
     val gnirehtetIsConnected by Gnirehtet.isConnected().collectAsStateWithLifecycle()
     val shouldStopOnDisconnect by Preferences.shouldStopOnDisconnect().collectAsStateWithLifecycle()
+    val appTraffic by Gnirehtet.getAppTraffic().collectAsStateWithLifecycle()
     val gnirehtetEnabled by remember {
         derivedStateOf {
             if (!gnirehtetIsConnected && shouldStopOnDisconnect) {
@@ -247,6 +258,11 @@ fun MainView(navController: NavHostController, navBackStackEntry: NavBackStackEn
                                         }
 
                                         Text("${installedApp.packageInfo.versionName} (${installedApp.packageInfo.versionCodeCompat})".trimStart(), fontSize = 10.sp, lineHeight = 12.sp)
+
+                                        val traffic = appTraffic[installedApp.packageInfo.applicationInfo.uid]
+                                        if (traffic != null) {
+                                            Text(formatTraffic(context, traffic), fontSize = 10.sp, lineHeight = 12.sp)
+                                        }
                                     }
                                 }
                                 Box(contentAlignment = Alignment.Center) {
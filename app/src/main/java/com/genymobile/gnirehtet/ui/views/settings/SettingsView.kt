@@ -10,6 +10,7 @@ import androidx.compose.material.icons.filled.Info
 import androidx.compose.material.icons.filled.Palette
 import androidx.compose.material.icons.filled.Save
 import androidx.compose.material.icons.filled.SettingsApplications
+import androidx.compose.material.icons.filled.SwapHoriz
 import androidx.compose.material3.*
 import androidx.compose.runtime.Composable
 import androidx.compose.runtime.remember
@@ -38,6 +39,15 @@ fun SettingsView(navController: NavHostController, navBackStackEntry: NavBackSta
                     navController.navigate(Views.SettingsGeneral)
                 }
             }
+            item {
+                SettingItem(
+                    title = "Forwarding",
+                    description = "Forwarding engine, write coalescing, relay connections",
+                    icon = Icons.Filled.SwapHoriz
+                ) {
+                    navController.navigate(Views.SettingsForwarding)
+                }
+            }
             item {
                 val description = remember {
                     if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
@@ -0,0 +1,708 @@
+package com.genymobile.gnirehtet.ui.views.settings.forwarding
+
+import android.text.format.Formatter
+import androidx.activity.compose.rememberLauncherForActivityResult
+import androidx.activity.result.contract.ActivityResultContracts
+import androidx.compose.foundation.layout.Column
+import androidx.compose.foundation.layout.Spacer
+import androidx.compose.foundation.layout.fillMaxWidth
+import androidx.compose.foundation.layout.height
+import androidx.compose.foundation.lazy.LazyColumn
+import androidx.compose.foundation.lazy.items
+import androidx.compose.material.icons.Icons
+import androidx.compose.material.icons.filled.Block
+import androidx.compose.material.icons.filled.Bolt
+import androidx.compose.material.icons.filled.Cached
+import androidx.compose.material.icons.filled.CallSplit
+import androidx.compose.material.icons.filled.Dns
+import androidx.compose.material.icons.filled.DoNotDisturbOn
+import androidx.compose.material.icons.filled.Error
+import androidx.compose.material.icons.filled.FileOpen
+import androidx.compose.material.icons.filled.FilterAlt
+import androidx.compose.material.icons.filled.Language
+import androidx.compose.material.icons.filled.LowPriority
+import androidx.compose.material.icons.filled.MergeType
+import androidx.compose.material.icons.filled.RestartAlt
+import androidx.compose.material.icons.filled.Rule
+import androidx.compose.material.icons.filled.Save
+import androidx.compose.material.icons.filled.Speed
+import androidx.compose.material.icons.filled.Straighten
+import androidx.compose.material.icons.filled.SwapHoriz
+import androidx.compose.material.icons.filled.Tag
+import androidx.compose.material.icons.filled.Timeline
+import androidx.compose.material3.*
+import androidx.compose.runtime.*
+import androidx.compose.runtime.saveable.rememberSaveable
+import androidx.compose.ui.Modifier
+import androidx.compose.ui.graphics.vector.ImageVector
+import androidx.compose.ui.platform.LocalContext
+import androidx.compose.ui.text.input.TextFieldValue
+import androidx.compose.ui.unit.dp
+import androidx.lifecycle.compose.collectAsStateWithLifecycle
+import androidx.navigation.NavBackStackEntry
+import androidx.navigation.NavHostController
+import com.genymobile.gnirehtet.BlockedDomainAnswer
+import com.genymobile.gnirehtet.CIDR
+import com.genymobile.gnirehtet.DestinationFilter
+import com.genymobile.gnirehtet.DomainBlocklists
+import com.genymobile.gnirehtet.FilterAction
+import com.genymobile.gnirehtet.GnirehtetService
+import com.genymobile.gnirehtet.ForwardingEngine
+import com.genymobile.gnirehtet.InvalidCIDRException
+import com.genymobile.gnirehtet.MtuMode
+import com.genymobile.gnirehtet.MtuTuner
+import com.genymobile.gnirehtet.UdpPortRejectInterceptor
+import com.genymobile.gnirehtet.domain.Gnirehtet
+import com.genymobile.gnirehtet.settings.Preferences
+import com.genymobile.gnirehtet.settings.PreferencesManager
+import com.genymobile.gnirehtet.ui.views.settings.BaseSettingsView
+import com.genymobile.gnirehtet.ui.views.settings.PreferenceSwitch
+import com.genymobile.gnirehtet.ui.views.settings.SettingItem
+import com.genymobile.gnirehtet.utils.toast
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
+import java.io.IOException
+
+private const val TEXT_MIME_TYPE = "text/*"
+private const val MAX_DISPLAYED_FLOWS = 50
+
+@Composable
+fun ForwardingSettingsView(navController: NavHostController, navBackStackEntry: NavBackStackEntry) {
+    BaseSettingsView(title = "Forwarding", navController = navController) {
+        LazyColumn {
+            item {
+                ForwardingEngineSettings()
+            }
+            item {
+                CoalesceWritesSettings()
+            }
+            item {
+                PrioritizeInteractiveSettings()
+            }
+            item {
+                RelayConnectionsSettings()
+            }
+            item {
+                IPv6Settings()
+            }
+            item {
+                ResetConnectionsSettings()
+            }
+            item {
+                DnsCacheSettings()
+            }
+            item {
+                DnsCacheSnapshotSettings()
+            }
+            item {
+                DnsRaceSettings()
+            }
+            item {
+                BlocklistSettings()
+            }
+            item {
+                BlocklistFileSettings()
+            }
+            item {
+                BlocklistAnswerSettings()
+            }
+            item {
+                DestinationFilterSettings()
+            }
+            item {
+                DestinationFilterRulesSettings()
+            }
+            item {
+                DestinationFilterActionSettings()
+            }
+            item {
+                RejectUdpSettings()
+            }
+            item {
+                RejectedUdpPortsSettings()
+            }
+            item {
+                MtuModeSettings()
+            }
+            item {
+                MtuMeasurementsSettings()
+            }
+            item {
+                ActiveFlowsSettings()
+            }
+        }
+    }
+}
+
+@Composable
+private fun ForwardingEngineSettings() {
+    val context = LocalContext.current
+    val restartGnirehtetCoroutineScope = rememberCoroutineScope()
+    val engine by Preferences.forwardingEngine.stateFlow.collectAsStateWithLifecycle()
+
+    ChoiceSettingItem(
+        title = "Forwarding engine",
+        description = engine.displayName,
+        icon = Icons.Filled.SwapHoriz,
+        choices = ForwardingEngine.values().toList(),
+        choiceTitle = { it.displayName }
+    ) {
+        Gnirehtet.launchRestartGnirehtetScope(restartGnirehtetCoroutineScope) {
+            Preferences.setForwardingEngine(context, it)
+        }
+    }
+}
+
+@Composable
+private fun CoalesceWritesSettings() {
+    val context = LocalContext.current
+    val restartGnirehtetCoroutineScope = rememberCoroutineScope()
+    val coalesceWrites by Preferences.forwardingCoalesceWrites.stateFlow.collectAsStateWithLifecycle()
+    val packetsPerWrite by GnirehtetService.getPacketsPerWrite().collectAsStateWithLifecycle()
+    val savings = if (packetsPerWrite > 0) " (%.2f packets per write)".format(packetsPerWrite) else ""
+
+    PreferenceSwitch(
+        title = "Coalesce writes",
+        description = "Send all the pending packets to the relay server with a single write$savings",
+        icon = Icons.Filled.MergeType,
+        isChecked = coalesceWrites,
+        onClick = { newValue ->
+            Gnirehtet.launchRestartGnirehtetScope(restartGnirehtetCoroutineScope) {
+                Preferences.setForwardingCoalesceWrites(context, newValue)
+            }
+        }
+    )
+}
+
+@Composable
+private fun PrioritizeInteractiveSettings() {
+    val context = LocalContext.current
+    val restartGnirehtetCoroutineScope = rememberCoroutineScope()
+    val prioritizeInteractive by Preferences.forwardingPrioritizeInteractive.stateFlow.collectAsStateWithLifecycle()
+
+    PreferenceSwitch(
+        title = "Prioritize interactive packets",
+        description = "Send ACKs, connection requests and DNS queries before pending uploads (implies coalescing)",
+        icon = Icons.Filled.LowPriority,
+        isChecked = prioritizeInteractive,
+        onClick = { newValue ->
+            Gnirehtet.launchRestartGnirehtetScope(restartGnirehtetCoroutineScope) {
+                Preferences.setForwardingPrioritizeInteractive(context, newValue)
+            }
+        }
+    )
+}
+
+private val relayConnectionsChoices = listOf(1, 2, 4, 8)
+
+@Composable
+private fun RelayConnectionsSettings() {
+    val context = LocalContext.current
+    val restartGnirehtetCoroutineScope = rememberCoroutineScope()
+    val relayConnections by Preferences.forwardingRelayConnections.stateFlow.collectAsStateWithLifecycle()
+
+    ChoiceSettingItem(
+        title = "Relay connections",
+        description = "$relayConnections (each flow always uses the same connection)",
+        icon = Icons.Filled.CallSplit,
+        choices = relayConnectionsChoices,
+        choiceTitle = { it.toString() }
+    ) {
+        Gnirehtet.launchRestartGnirehtetScope(restartGnirehtetCoroutineScope) {
+            Preferences.setForwardingRelayConnections(context, it)
+        }
+    }
+}
+
+@Composable
+private fun IPv6Settings() {
+    val context = LocalContext.current
+    val restartGnirehtetCoroutineScope = rememberCoroutineScope()
+    val ipv6 by Preferences.forwardingIPv6.stateFlow.collectAsStateWithLifecycle()
+
+    PreferenceSwitch(
+        title = "Forward IPv6",
+        description = "Requires a relay server supporting IPv6 (when disabled, IPv6 connections are refused immediately)",
+        icon = Icons.Filled.Language,
+        isChecked = ipv6,
+        onClick = { newValue ->
+            Gnirehtet.launchRestartGnirehtetScope(restartGnirehtetCoroutineScope) {
+                Preferences.setForwardingIPv6(context, newValue)
+            }
+        }
+    )
+}
+
+@Composable
+private fun ResetConnectionsSettings() {
+    val context = LocalContext.current
+    val restartGnirehtetCoroutineScope = rememberCoroutineScope()
+    val resetConnections by Preferences.forwardingResetConnections.stateFlow.collectAsStateWithLifecycle()
+
+    PreferenceSwitch(
+        title = "Reset connections on relay loss",
+        description = "Make applications reconnect immediately when the relay connection is lost",
+        icon = Icons.Filled.RestartAlt,
+        isChecked = resetConnections,
+        onClick = { newValue ->
+            Gnirehtet.launchRestartGnirehtetScope(restartGnirehtetCoroutineScope) {
+                Preferences.setForwardingResetConnections(context, newValue)
+            }
+        }
+    )
+}
+
+@Composable
+private fun DnsCacheSettings() {
+    val context = LocalContext.current
+    val restartGnirehtetCoroutineScope = rememberCoroutineScope()
+    val dnsCache by Preferences.forwardingDnsCache.stateFlow.collectAsStateWithLifecycle()
+
+    PreferenceSwitch(
+        title = "DNS cache",
+        description = "Answer repeated DNS lookups locally, according to their TTL",
+        icon = Icons.Filled.Cached,
+        isChecked = dnsCache,
+        onClick = { newValue ->
+            Gnirehtet.launchRestartGnirehtetScope(restartGnirehtetCoroutineScope) {
+                Preferences.setForwardingDnsCache(context, newValue)
+            }
+        }
+    )
+}
+
+@Composable
+private fun DnsCacheSnapshotSettings() {
+    val dnsCache by Preferences.forwardingDnsCache.stateFlow.collectAsStateWithLifecycle()
+    val dnsCacheSnapshot by Preferences.forwardingDnsCacheSnapshot.stateFlow.collectAsStateWithLifecycle()
+
+    PreferenceSwitch(
+        title = "Save DNS cache",
+        description = "Keep the DNS cache on disk to start the next sessions with a warm cache",
+        icon = Icons.Filled.Save,
+        enabled = dnsCache,
+        isChecked = dnsCacheSnapshot,
+        onClick = { newValue ->
+            Preferences.setForwardingDnsCacheSnapshot(newValue)
+        }
+    )
+}
+
+@Composable
+private fun DnsRaceSettings() {
+    val context = LocalContext.current
+    val restartGnirehtetCoroutineScope = rememberCoroutineScope()
+    val dnsRace by Preferences.forwardingDnsRace.stateFlow.collectAsStateWithLifecycle()
+
+    PreferenceSwitch(
+        title = "Race DNS servers",
+        description = "Send every DNS query to all the DNS servers and keep the fastest answer",
+        icon = Icons.Filled.Dns,
+        isChecked = dnsRace,
+        onClick = { newValue ->
+            Gnirehtet.launchRestartGnirehtetScope(restartGnirehtetCoroutineScope) {
+                Preferences.setForwardingDnsRace(context, newValue)
+            }
+        }
+    )
+}
+
+@Composable
+private fun BlocklistSettings() {
+    val context = LocalContext.current
+    val restartGnirehtetCoroutineScope = rememberCoroutineScope()
+    val blocklist by Preferences.forwardingBlocklist.stateFlow.collectAsStateWithLifecycle()
+
+    PreferenceSwitch(
+        title = "Block domains",
+        description = "Answer locally the DNS queries for the domains of the blocklist",
+        icon = Icons.Filled.Block,
+        isChecked = blocklist,
+        onClick = { newValue ->
+            Gnirehtet.launchRestartGnirehtetScope(restartGnirehtetCoroutineScope) {
+                Preferences.setForwardingBlocklist(context, newValue)
+            }
+        }
+    )
+}
+
+@Composable
+private fun BlocklistFileSettings() {
+    val context = LocalContext.current
+    val coroutineScope = rememberCoroutineScope()
+    val size by DomainBlocklists.getSize().collectAsStateWithLifecycle()
+
+    LaunchedEffect(Unit) {
+        DomainBlocklists.loadIfNeeded(context)
+    }
+
+    // the list is copied to the application storage, so it can be reloaded without keeping the permission on the uri
+    val receiver = rememberLauncherForActivityResult(contract = ActivityResultContracts.GetContent()) { result ->
+        result?.let { uri ->
+            coroutineScope.launch(Dispatchers.IO) {
+                val successful = try {
+                    context.contentResolver.openInputStream(uri)?.use { inputStream ->
+                        DomainBlocklists.importList(context, inputStream)
+                    } != null
+                } catch (e: IOException) {
+                    false
+                }
+
+                withContext(Dispatchers.Main) {
+                    if (successful) {
+                        context.toast("Blocklist loaded: ${DomainBlocklists.getCurrent().size()} domains")
+                    } else {
+                        context.toast("Failed to load blocklist")
+                    }
+                }
+            }
+        }
+    }
+
+    SettingItem(
+        title = "Import blocklist",
+        description = "$size domains (hosts file, applied immediately)",
+        icon = Icons.Filled.FileOpen
+    ) {
+        receiver.launch(TEXT_MIME_TYPE)
+    }
+}
+
+@Composable
+private fun BlocklistAnswerSettings() {
+    val context = LocalContext.current
+    val restartGnirehtetCoroutineScope = rememberCoroutineScope()
+    val blocklist by Preferences.forwardingBlocklist.stateFlow.collectAsStateWithLifecycle()
+    val answer by Preferences.forwardingBlocklistAnswer.stateFlow.collectAsStateWithLifecycle()
+
+    ChoiceSettingItem(
+        title = "Blocked domains answer",
+        description = if (blocklist) answer.displayName else "Domain blocking is disabled",
+        icon = Icons.Filled.DoNotDisturbOn,
+        choices = BlockedDomainAnswer.values().toList(),
+        choiceTitle = { it.displayName }
+    ) {
+        Gnirehtet.launchRestartGnirehtetScope(restartGnirehtetCoroutineScope) {
+            Preferences.setForwardingBlocklistAnswer(context, it)
+        }
+    }
+}
+
+@Composable
+private fun DestinationFilterSettings() {
+    val context = LocalContext.current
+    val restartGnirehtetCoroutineScope = rememberCoroutineScope()
+    val destinationFilter by Preferences.forwardingDestinationFilter.stateFlow.collectAsStateWithLifecycle()
+
+    PreferenceSwitch(
+        title = "Filter destinations",
+        description = "Stop locally the packets sent to the listed address blocks",
+        icon = Icons.Filled.FilterAlt,
+        isChecked = destinationFilter,
+        onClick = { newValue ->
+            Gnirehtet.launchRestartGnirehtetScope(restartGnirehtetCoroutineScope) {
+                Preferences.setForwardingDestinationFilter(context, newValue)
+            }
+        }
+    )
+}
+
+@Composable
+private fun DestinationFilterRulesSettings() {
+    val rules by Preferences.forwardingDestinationFilterRules.stateFlow.collectAsStateWithLifecycle()
+    val size = remember(rules) { DestinationFilter.parse(rules).cidrs.size }
+
+    TextSettingItem(
+        title = "Filtered destinations",
+        description = "$size address blocks (applied immediately)",
+        icon = Icons.Filled.Rule,
+        value = rules,
+        hint = "Enter the address blocks separated by a comma",
+        placeholder = "10.0.0.0/8, 2001:db8::/32",
+        isValid = { text ->
+            text.split(',', ' ', '\n').filter { it.isNotBlank() }.all { cidr ->
+                try {
+                    CIDR.parse(cidr.trim())
+                    true
+                } catch (_: InvalidCIDRException) {
+                    false
+                }
+            }
+        }
+    ) {
+        Preferences.setForwardingDestinationFilterRules(it)
+    }
+}
+
+@Composable
+private fun DestinationFilterActionSettings() {
+    val context = LocalContext.current
+    val restartGnirehtetCoroutineScope = rememberCoroutineScope()
+    val destinationFilter by Preferences.forwardingDestinationFilter.stateFlow.collectAsStateWithLifecycle()
+    val action by Preferences.forwardingDestinationFilterAction.stateFlow.collectAsStateWithLifecycle()
+
+    ChoiceSettingItem(
+        title = "Filtered packets",
+        description = if (destinationFilter) action.displayName else "Destination filtering is disabled",
+        icon = Icons.Filled.Block,
+        choices = FilterAction.values().toList(),
+        choiceTitle = { it.displayName }
+    ) {
+        Gnirehtet.launchRestartGnirehtetScope(restartGnirehtetCoroutineScope) {
+            Preferences.setForwardingDestinationFilterAction(context, it)
+        }
+    }
+}
+
+@Composable
+private fun RejectUdpSettings() {
+    val context = LocalContext.current
+    val restartGnirehtetCoroutineScope = rememberCoroutineScope()
+    val rejectUdp by Preferences.forwardingRejectUdp.stateFlow.collectAsStateWithLifecycle()
+
+    PreferenceSwitch(
+        title = "Reject UDP ports",
+        description = "Make applications fall back from QUIC to TCP immediately",
+        icon = Icons.Filled.Bolt,
+        isChecked = rejectUdp,
+        onClick = { newValue ->
+            Gnirehtet.launchRestartGnirehtetScope(restartGnirehtetCoroutineScope) {
+                Preferences.setForwardingRejectUdp(context, newValue)
+            }
+        }
+    )
+}
+
+@Composable
+private fun RejectedUdpPortsSettings() {
+    val context = LocalContext.current
+    val restartGnirehtetCoroutineScope = rememberCoroutineScope()
+    val ports by Preferences.forwardingRejectedUdpPorts.stateFlow.collectAsStateWithLifecycle()
+    val hits by UdpPortRejectInterceptor.getHits().collectAsStateWithLifecycle()
+
+    TextSettingItem(
+        title = "Rejected UDP ports",
+        description = "${ports.ifBlank { "None" }} ($hits packets rejected)",
+        icon = Icons.Filled.Tag,
+        value = ports,
+        hint = "Enter the UDP ports separated by a comma",
+        placeholder = "443",
+        isValid = { PreferencesManager.parseUdpPorts(it) != null }
+    ) {
+        Gnirehtet.launchRestartGnirehtetScope(restartGnirehtetCoroutineScope) {
+            Preferences.setForwardingRejectedUdpPorts(context, it)
+        }
+    }
+}
+
+@Composable
+private fun MtuModeSettings() {
+    val context = LocalContext.current
+    val restartGnirehtetCoroutineScope = rememberCoroutineScope()
+    val mtuMode by Preferences.forwardingMtuMode.stateFlow.collectAsStateWithLifecycle()
+
+    ChoiceSettingItem(
+        title = "MTU",
+        description = mtuMode.displayName,
+        icon = Icons.Filled.Straighten,
+        choices = MtuMode.values().toList(),
+        choiceTitle = { it.displayName }
+    ) {
+        Gnirehtet.launchRestartGnirehtetScope(restartGnirehtetCoroutineScope) {
+            Preferences.setForwardingMtuMode(context, it)
+        }
+    }
+}
+
+@Composable
+private fun MtuMeasurementsSettings() {
+    val measurements by Preferences.forwardingMtuMeasurements.stateFlow.collectAsStateWithLifecycle()
+    val report = remember(measurements) { MtuTuner.parse(measurements).report }
+
+    SettingItem(
+        title = "MTU measurements (tap to reset)",
+        description = report,
+        icon = Icons.Filled.Speed
+    ) {
+        Preferences.resetForwardingMtuMeasurements()
+    }
+}
+
+@Composable
+private fun ActiveFlowsSettings() {
+    val context = LocalContext.current
+    val flows by GnirehtetService.getFlows().collectAsStateWithLifecycle()
+    var showDialog by rememberSaveable { mutableStateOf(false) }
+
+    SettingItem(
+        title = "Active flows",
+        description = "${flows.size} TCP/UDP flows",
+        icon = Icons.Filled.Timeline
+    ) {
+        showDialog = true
+    }
+
+    if (showDialog) {
+        AlertDialog(
+            onDismissRequest = {
+                showDialog = false
+            },
+            title = { Text("Active flows") },
+            text = {
+                LazyColumn {
+                    items(items = flows.take(MAX_DISPLAYED_FLOWS)) {
+                        val up = Formatter.formatShortFileSize(context, it.upstreamBytes)
+                        val down = Formatter.formatShortFileSize(context, it.downstreamBytes)
+                        SettingItem(
+                            title = "${if (it.isTcp) "TCP" else "UDP"} ${it.destination}",
+                            description = "${it.state} ↑ $up ↓ $down"
+                        ) {}
+                    }
+                }
+            },
+            confirmButton = {},
+            dismissButton = {
+                TextButton(
+                    onClick = {
+                        showDialog = false
+                    }
+                ) {
+                    Text("Close".uppercase())
+                }
+            },
+        )
+    }
+}
+
+@Composable
+private fun <T> ChoiceSettingItem(
+    title: String,
+    description: String,
+    icon: ImageVector,
+    choices: List<T>,
+    choiceTitle: (T) -> String,
+    onChoice: (T) -> Unit
+) {
+    var showDialog by rememberSaveable { mutableStateOf(false) }
+
+    SettingItem(
+        title = title,
+        description = description,
+        icon = icon
+    ) {
+        showDialog = true
+    }
+
+    if (showDialog) {
+        AlertDialog(
+            onDismissRequest = {
+                showDialog = false
+            },
+            title = { Text(title) },
+            text = {
+                LazyColumn {
+                    items(items = choices) {
+                        SettingItem(title = choiceTitle(it)) {
+                            showDialog = false
+                            onChoice(it)
+                        }
+                    }
+                }
+            },
+            confirmButton = {},
+            dismissButton = {
+                TextButton(
+                    onClick = {
+                        showDialog = false
+                    }
+                ) {
+                    Text("Cancel".uppercase())
+                }
+            },
+        )
+    }
+}
+
+@Composable
+private fun TextSettingItem(
+    title: String,
+    description: String,
+    icon: ImageVector,
+    value: String,
+    hint: String,
+    placeholder: String,
+    isValid: (String) -> Boolean,
+    onSave: (String) -> Unit
+) {
+    var showDialog by rememberSaveable { mutableStateOf(false) }
+
+    SettingItem(
+        title = title,
+        description = description,
+        icon = icon
+    ) {
+        showDialog = true
+    }
+
+    if (showDialog) {
+        var textFieldValue by rememberSaveable(stateSaver = TextFieldValue.Saver) { mutableStateOf(TextFieldValue(text = value)) }
+        val isError by remember {
+            derivedStateOf {
+                !isValid(textFieldValue.text)
+            }
+        }
+
+        AlertDialog(
+            onDismissRequest = {
+                showDialog = false
+            },
+            title = { Text(title) },
+            text = {
+                Column(modifier = Modifier.fillMaxWidth()) {
+                    Text(hint)
+                    Spacer(modifier = Modifier.height(20.dp))
+                    TextField(
+                        value = textFieldValue,
+                        isError = isError,
+                        placeholder = {
+                            Text(placeholder)
+                        },
+                        trailingIcon = {
+                            if (isError) {
+                                Icon(
+                                    Icons.Filled.Error,
+                                    contentDescription = "Invalid input",
+                                    tint = MaterialTheme.colorScheme.error,
+                                )
+                            }
+                        },
+                        onValueChange = {
+                            textFieldValue = it
+                        }
+                    )
+                }
+            },
+            confirmButton = {
+                TextButton(
+                    enabled = !isError,
+                    onClick = {
+                        showDialog = false
+                        onSave(textFieldValue.text)
+                    }
+                ) {
+                    Text("Save".uppercase())
+                }
+            },
+            dismissButton = {
+                TextButton(
+                    onClick = {
+                        showDialog = false
+                    }
+                ) {
+                    Text("Cancel".uppercase())
+                }
+            }
+        )
+    }
+}
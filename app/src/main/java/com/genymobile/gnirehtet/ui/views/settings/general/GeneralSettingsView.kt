@@ -8,6 +8,7 @@ import androidx.compose.material.icons.filled.Dns
 import androidx.compose.material.icons.filled.Error
 import androidx.compose.material.icons.filled.FrontHand
 import androidx.compose.material.icons.filled.TipsAndUpdates
+import androidx.compose.material.icons.filled.Usb
 import androidx.compose.material3.*
 import androidx.compose.runtime.Composable
 import androidx.compose.runtime.*
@@ -44,6 +45,9 @@ fun GeneralSettingsView(navController: NavHostController, navBackStackEntry: Nav
             item {
                 StopOnDisconnectSettings()
             }
+            item {
+                StartOnUsbConnectSettings()
+            }
             item {
                 ShowToastOnConnectSettings()
             }
@@ -176,6 +180,21 @@ private fun StopOnDisconnectSettings() {
     )
 }
 
+@Composable
+private fun StartOnUsbConnectSettings() {
+    val startOnUsbConnect by Preferences.gnirehtetStartOnUsbConnect.stateFlow.collectAsStateWithLifecycle()
+
+    PreferenceSwitch(
+        title = "Start on USB connection",
+        description = "Start Gnirehtet again with the last configuration when the cable is plugged in",
+        icon = Icons.Filled.Usb,
+        isChecked = startOnUsbConnect,
+        onClick = {
+            Preferences.gnirehtetStartOnUsbConnect.value = it
+        }
+    )
+}
+
 @Composable
 private fun ShowToastOnConnectSettings() {
     val showToastOnConnect by Preferences.gnirehtetShowToastOnConnect.stateFlow.collectAsStateWithLifecycle()
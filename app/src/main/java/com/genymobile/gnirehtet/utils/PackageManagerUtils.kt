@@ -18,6 +18,16 @@ fun PackageManager.getInstalledPackagesCompat(flags: Int): List<PackageInfo> {
     }
 }
 
+fun PackageManager.getApplicationUidOrNull(packageName: String): Int? {
+    return runCatching {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+            getApplicationInfo(packageName, PackageManager.ApplicationInfoFlags.of(0))
+        } else {
+            @Suppress("DEPRECATION") getApplicationInfo(packageName, 0)
+        }
+    }.getOrNull()?.uid
+}
+
 val PackageInfo.versionCodeCompat: Long
     get() {
         return if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2017 Genymobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.genymobile.gnirehtet;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class AppFirewallInterceptorTest {
+
+    private static final int DEVICE = TestPackets.address(10, 0, 0, 2);
+    private static final int SERVER = TestPackets.address(93, 184, 216, 34);
+    private static final int BLOCKED_UID = 10001;
+    private static final int ALLOWED_UID = 10002;
+
+    /**
+     * Resolve the owner from the local port, and count the calls.
+     */
+    private static final class FakeUidResolver implements UidResolver {
+        private final Map<Integer, Integer> uidByPort = new HashMap<>();
+        private InetAddress device = Net.toInetAddress(DEVICE);
+        private InetAddress server = Net.toInetAddress(SERVER);
+        private int calls;
+
+        @Override
+        public int getOwnerUid(int protocol, InetSocketAddress local, InetSocketAddress remote) {
+            ++calls;
+            Assert.assertEquals(device, local.getAddress());
+            Assert.assertEquals(server, remote.getAddress());
+            Integer uid = uidByPort.get(local.getPort());
+            return uid != null ? uid : UNKNOWN_UID;
+        }
+    }
+
+    private final FakeUidResolver resolver = new FakeUidResolver();
+    private final List<ByteBuffer> replies = new ArrayList<>();
+    private final ForwarderStats stats = new ForwarderStats();
+    private final AppFirewallInterceptor interceptor = new AppFirewallInterceptor(resolver, packet -> {
+        ByteBuffer copy = ByteBuffer.allocate(packet.remaining());
+        copy.put(packet);
+        copy.flip();
+        replies.add(copy);
+    }, stats);
+    private final PacketSink upstream = packet -> Assert.fail("Unexpected packet sent upstream");
+
+    @After
+    public void tearDown() {
+        AppFirewall.clear();
+    }
+
+    private boolean intercept(ByteBuffer packet) throws IOException {
+        return interceptor.intercept(packet, upstream);
+    }
+
+    private static ByteBuffer tcp(int port, int flags) {
+        return tcp(port, flags, 1000);
+    }
+
+    private static ByteBuffer tcp(int port, int flags, int seq) {
+        return TestPackets.tcp(DEVICE, port, SERVER, 443, seq, 0, flags, 0);
+    }
+
+    @Test
+    public void testNothingBlocked() throws IOException {
+        resolver.uidByPort.put(40000, BLOCKED_UID);
+        Assert.assertFalse(intercept(tcp(40000, TestPackets.SYN)));
+        // the owner is not even resolved
+        Assert.assertEquals(0, resolver.calls);
+    }
+
+    @Test
+    public void testRejectBlockedApp() throws IOException {
+        AppFirewall.setBlockedUids(new int[] {BLOCKED_UID});
+        resolver.uidByPort.put(40000, BLOCKED_UID);
+        resolver.uidByPort.put(40001, ALLOWED_UID);
+
+        Assert.assertTrue(intercept(tcp(40000, TestPackets.SYN)));
+        Assert.assertFalse(intercept(tcp(40001, TestPackets.SYN)));
+        // unknown owner
+        Assert.assertFalse(intercept(tcp(40002, TestPackets.SYN)));
+        Assert.assertEquals(1, stats.getFirewalledPackets());
+
+        // "communication administratively prohibited" from the server to the device
+        Assert.assertEquals(1, replies.size());
+        ByteBuffer reply = replies.get(0);
+        Assert.assertEquals(0, TestPackets.ipChecksum(reply));
+        Assert.assertEquals(IPPackets.PROTOCOL_ICMP, IPPackets.readProtocol(reply, 0));
+        Assert.assertEquals(SERVER, reply.getInt(12));
+        Assert.assertEquals(DEVICE, reply.getInt(16));
+        Assert.assertEquals(3, reply.get(20));
+        Assert.assertEquals(13, reply.get(21));
+    }
+
+    @Test
+    public void testRejectBlockedUdp() throws IOException {
+        AppFirewall.setBlockedUids(new int[] {BLOCKED_UID});
+        resolver.uidByPort.put(50000, BLOCKED_UID);
+        Assert.assertTrue(intercept(TestPackets.udp(DEVICE, 50000, SERVER, 443, new byte[100])));
+        Assert.assertEquals(1, replies.size());
+    }
+
+    @Test
+    public void testResolveOncePerFlow() throws IOException {
+        AppFirewall.setBlockedUids(new int[] {BLOCKED_UID});
+        resolver.uidByPort.put(40000, ALLOWED_UID);
+
+        Assert.assertFalse(intercept(tcp(40000, TestPackets.SYN)));
+        for (int i = 0; i < 10; ++i) {
+            Assert.assertFalse(intercept(tcp(40000, TestPackets.ACK)));
+        }
+        Assert.assertEquals(1, resolver.calls);
+
+        // the blocked list applies immediately, even to the cached flows
+        AppFirewall.setBlockedUids(new int[] {ALLOWED_UID});
+        Assert.assertTrue(intercept(tcp(40000, TestPackets.ACK)));
+        Assert.assertEquals(1, resolver.calls);
+    }
+
+    @Test
+    public void testResolveAgainOnSyn() throws IOException {
+        AppFirewall.setBlockedUids(new int[] {BLOCKED_UID});
+        resolver.uidByPort.put(40000, ALLOWED_UID);
+        Assert.assertFalse(intercept(tcp(40000, TestPackets.SYN)));
+        Assert.assertFalse(intercept(tcp(40000, TestPackets.ACK)));
+
+        // the 5-tuple is reused by a blocked app
+        resolver.uidByPort.put(40000, BLOCKED_UID);
+        Assert.assertTrue(intercept(tcp(40000, TestPackets.SYN, 2000)));
+        Assert.assertTrue(intercept(tcp(40000, TestPackets.ACK, 2001)));
+        Assert.assertEquals(2, resolver.calls);
+    }
+
+    @Test
+    public void testSynRetransmissionCached() throws IOException {
+        AppFirewall.setBlockedUids(new int[] {BLOCKED_UID});
+        resolver.uidByPort.put(40000, BLOCKED_UID);
+        for (int i = 0; i < 5; ++i) {
+            Assert.assertTrue(intercept(tcp(40000, TestPackets.SYN, 1000)));
+        }
+        Assert.assertEquals(1, resolver.calls);
+    }
+
+    @Test
+    public void testCacheManyFlows() throws IOException {
+        AppFirewall.setBlockedUids(new int[] {BLOCKED_UID});
+        for (int round = 0; round < 3; ++round) {
+            for (int port = 40000; port < 40512; ++port) {
+                Assert.assertFalse(intercept(TestPackets.udp(DEVICE, port, SERVER, 443, new byte[8])));
+            }
+        }
+        // resolved once per flow
+        Assert.assertEquals(512, resolver.calls);
+    }
+
+    @Test
+    public void testRejectBlockedAppIPv6() throws IOException {
+        byte[] device = TestPackets.address6("fd00::2");
+        byte[] server = TestPackets.address6("2001:db8::1");
+        resolver.device = Net.toInetAddress(device);
+        resolver.server = Net.toInetAddress(server);
+        AppFirewall.setBlockedUids(new int[] {BLOCKED_UID});
+        resolver.uidByPort.put(40000, BLOCKED_UID);
+        resolver.uidByPort.put(40001, ALLOWED_UID);
+
+        Assert.assertTrue(intercept(TestPackets.tcp6(device, 40000, server, 443, 1000, 0, TestPackets.SYN, 0)));
+        Assert.assertTrue(intercept(TestPackets.tcp6(device, 40000, server, 443, 1001, 0, TestPackets.ACK, 0)));
+        Assert.assertFalse(intercept(TestPackets.udp6(device, 40001, server, 443, new byte[8])));
+        Assert.assertEquals(2, resolver.calls);
+
+        // "communication with destination administratively prohibited"
+        Assert.assertEquals(2, replies.size());
+        ByteBuffer reply = replies.get(0);
+        Assert.assertEquals(0, TestPackets.transportChecksum6(reply, IPPackets.PROTOCOL_ICMPV6));
+        Assert.assertEquals(1, reply.get(40));
+        Assert.assertEquals(1, reply.get(41));
+    }
+
+    @Test
+    public void testIPv4AndIPv6KeysDistinct() throws IOException {
+        AppFirewall.setBlockedUids(new int[] {BLOCKED_UID});
+        resolver.uidByPort.put(40000, ALLOWED_UID);
+        Assert.assertFalse(intercept(TestPackets.udp(DEVICE, 40000, SERVER, 443, new byte[8])));
+
+        // the same ports, and addresses whose first 8 bytes match the packed IPv4 addresses
+        byte[] device = new byte[16];
+        byte[] server = new byte[16];
+        ByteBuffer.wrap(device).putInt(DEVICE).putInt(SERVER);
+        resolver.device = Net.toInetAddress(device);
+        resolver.server = Net.toInetAddress(server);
+        resolver.uidByPort.put(40000, BLOCKED_UID);
+        Assert.assertTrue(intercept(TestPackets.udp6(device, 40000, server, 443, new byte[8])));
+        Assert.assertEquals(2, resolver.calls);
+    }
+
+    @Test
+    public void testIgnoreOtherProtocols() throws IOException {
+        AppFirewall.setBlockedUids(new int[] {BLOCKED_UID});
+        ByteBuffer icmp = TestPackets.udp(DEVICE, 40000, SERVER, 443, new byte[8]);
+        icmp.put(9, (byte) IPPackets.PROTOCOL_ICMP);
+        Assert.assertFalse(intercept(icmp));
+        Assert.assertEquals(0, resolver.calls);
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2017 Genymobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.genymobile.gnirehtet;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+public class AppFirewallTest {
+
+    @After
+    public void tearDown() {
+        AppFirewall.clear();
+    }
+
+    @Test
+    public void testBlockedUids() {
+        Assert.assertTrue(AppFirewall.isEmpty());
+        Assert.assertFalse(AppFirewall.isBlocked(10001));
+
+        int[] uids = {10005, 10001, 10003};
+        AppFirewall.setBlockedUids(uids);
+        Assert.assertFalse(AppFirewall.isEmpty());
+        Assert.assertTrue(AppFirewall.isBlocked(10001));
+        Assert.assertTrue(AppFirewall.isBlocked(10003));
+        Assert.assertTrue(AppFirewall.isBlocked(10005));
+        Assert.assertFalse(AppFirewall.isBlocked(10002));
+        Assert.assertFalse(AppFirewall.isBlocked(UidResolver.UNKNOWN_UID));
+        // the array is copied before being sorted
+        Assert.assertArrayEquals(new int[] {10005, 10001, 10003}, uids);
+
+        AppFirewall.setBlockedUids(new int[] {10002});
+        Assert.assertFalse(AppFirewall.isBlocked(10001));
+        Assert.assertTrue(AppFirewall.isBlocked(10002));
+
+        AppFirewall.clear();
+        Assert.assertTrue(AppFirewall.isEmpty());
+        Assert.assertFalse(AppFirewall.isBlocked(10002));
+    }
+
+    @Test
+    public void testRemoveBlockedUids() {
+        AppFirewall.setBlockedUids(new int[] {10003, 10001, 10002});
+        // 10004 is not blocked
+        AppFirewall.removeBlockedUids(Arrays.asList(10002, 10004));
+        Assert.assertTrue(AppFirewall.isBlocked(10001));
+        Assert.assertFalse(AppFirewall.isBlocked(10002));
+        Assert.assertTrue(AppFirewall.isBlocked(10003));
+
+        AppFirewall.removeBlockedUids(Arrays.asList(10001, 10003));
+        Assert.assertTrue(AppFirewall.isEmpty());
+    }
+}
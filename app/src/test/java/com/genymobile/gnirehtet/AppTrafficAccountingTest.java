@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2017 Genymobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.genymobile.gnirehtet;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class AppTrafficAccountingTest {
+
+    private static final int DEVICE = TestPackets.address(10, 0, 0, 2);
+    private static final int SERVER = TestPackets.address(93, 184, 216, 34);
+
+    /**
+     * Resolve the owner from the local port, and record the calls.
+     */
+    private static final class FakeUidResolver implements UidResolver {
+        private final Map<Integer, Integer> uidByPort = new HashMap<>();
+        private final List<String> calls = new ArrayList<>();
+
+        @Override
+        public int getOwnerUid(int protocol, InetSocketAddress local, InetSocketAddress remote) {
+            calls.add(protocol + " " + local.getAddress().getHostAddress() + ":" + local.getPort() + " "
+                    + remote.getAddress().getHostAddress() + ":" + remote.getPort());
+            Integer uid = uidByPort.get(local.getPort());
+            return uid != null ? uid : UNKNOWN_UID;
+        }
+    }
+
+    private static FlowSnapshot flow(int port, long upstreamBytes, long downstreamBytes, long firstSeen) {
+        return new FlowSnapshot(IPPackets.PROTOCOL_TCP, DEVICE, port, SERVER, 443, FlowSnapshot.State.ESTABLISHED, 1,
+                upstreamBytes, 1, downstreamBytes, firstSeen, firstSeen);
+    }
+
+    private static AppTraffic find(List<AppTraffic> traffic, int uid) {
+        for (AppTraffic app : traffic) {
+            if (app.getUid() == uid) {
+                return app;
+            }
+        }
+        return null;
+    }
+
+    @Test
+    public void testResolveOncePerFlow() {
+        FakeUidResolver resolver = new FakeUidResolver();
+        resolver.uidByPort.put(40000, 10001);
+        AppTrafficAccounting accounting = new AppTrafficAccounting(resolver);
+
+        accounting.update(Arrays.asList(flow(40000, 100, 1000, 0)), 0);
+        accounting.update(Arrays.asList(flow(40000, 200, 3000, 0)), 1000);
+        accounting.update(Arrays.asList(flow(40000, 300, 6000, 0)), 2000);
+
+        Assert.assertEquals(Arrays.asList("6 10.0.0.2:40000 93.184.216.34:443"), resolver.calls);
+    }
+
+    @Test
+    public void testAccountDeltasAndRates() {
+        FakeUidResolver resolver = new FakeUidResolver();
+        resolver.uidByPort.put(40000, 10001);
+        resolver.uidByPort.put(40001, 10001);
+        resolver.uidByPort.put(40002, 10002);
+        AppTrafficAccounting accounting = new AppTrafficAccounting(resolver);
+
+        List<AppTraffic> traffic = accounting.update(Arrays.asList(flow(40000, 100, 1000, 0), flow(40002, 10, 20, 0)), 0);
+        AppTraffic app1 = find(traffic, 10001);
+        Assert.assertEquals(100, app1.getUpstreamBytes());
+        Assert.assertEquals(1000, app1.getDownstreamBytes());
+        // no previous update, no rate
+        Assert.assertEquals(0, app1.getUpstreamRate());
+        Assert.assertEquals(0, app1.getDownstreamRate());
+
+        // two flows of the same app, 2 seconds later
+        traffic = accounting.update(Arrays.asList(flow(40000, 300, 5000, 0), flow(40001, 100, 1000, 1500),
+                flow(40002, 10, 20, 0)), 2000);
+        app1 = find(traffic, 10001);
+        Assert.assertEquals(400, app1.getUpstreamBytes());
+        Assert.assertEquals(6000, app1.getDownstreamBytes());
+        Assert.assertEquals((200 + 100) / 2, app1.getUpstreamRate());
+        Assert.assertEquals((4000 + 1000) / 2, app1.getDownstreamRate());
+
+        AppTraffic app2 = find(traffic, 10002);
+        Assert.assertEquals(10, app2.getUpstreamBytes());
+        Assert.assertEquals(20, app2.getDownstreamBytes());
+        Assert.assertEquals(0, app2.getUpstreamRate());
+        Assert.assertEquals(0, app2.getDownstreamRate());
+
+        // the closed flows are not in the table anymore, their bytes are kept
+        traffic = accounting.update(new ArrayList<>(), 3000);
+        app1 = find(traffic, 10001);
+        Assert.assertEquals(400, app1.getUpstreamBytes());
+        Assert.assertEquals(0, app1.getUpstreamRate());
+    }
+
+    @Test
+    public void testReusedFiveTuple() {
+        FakeUidResolver resolver = new FakeUidResolver();
+        resolver.uidByPort.put(40000, 10001);
+        AppTrafficAccounting accounting = new AppTrafficAccounting(resolver);
+        accounting.update(Arrays.asList(flow(40000, 100, 1000, 0)), 0);
+
+        // another connection, from another app, with the same 5-tuple
+        resolver.uidByPort.put(40000, 10002);
+        List<AppTraffic> traffic = accounting.update(Arrays.asList(flow(40000, 50, 60, 5000)), 6000);
+        Assert.assertEquals(2, resolver.calls.size());
+        Assert.assertEquals(100, find(traffic, 10001).getUpstreamBytes());
+        AppTraffic app2 = find(traffic, 10002);
+        // counted from the start of the new connection
+        Assert.assertEquals(50, app2.getUpstreamBytes());
+        Assert.assertEquals(60, app2.getDownstreamBytes());
+    }
+
+    @Test
+    public void testUnknownOwner() {
+        AppTrafficAccounting accounting = new AppTrafficAccounting(new FakeUidResolver());
+        List<AppTraffic> traffic = accounting.update(Arrays.asList(flow(40000, 100, 1000, 0)), 0);
+        Assert.assertEquals(1, traffic.size());
+        Assert.assertEquals(UidResolver.UNKNOWN_UID, traffic.get(0).getUid());
+    }
+
+    @Test
+    public void testBoundedCache() {
+        FakeUidResolver resolver = new FakeUidResolver();
+        AppTrafficAccounting accounting = new AppTrafficAccounting(resolver, 2);
+        accounting.update(Arrays.asList(flow(40000, 1, 1, 0), flow(40001, 1, 1, 0)), 0);
+        Assert.assertEquals(2, resolver.calls.size());
+        // the least recently updated flow is evicted
+        accounting.update(Arrays.asList(flow(40001, 2, 2, 0), flow(40002, 1, 1, 0)), 1000);
+        Assert.assertEquals(3, resolver.calls.size());
+        accounting.update(Arrays.asList(flow(40001, 3, 3, 0), flow(40002, 2, 2, 0)), 2000);
+        Assert.assertEquals(3, resolver.calls.size());
+        accounting.update(Arrays.asList(flow(40000, 2, 2, 0)), 3000);
+        Assert.assertEquals(4, resolver.calls.size());
+    }
+}
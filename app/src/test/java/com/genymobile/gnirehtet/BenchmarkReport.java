@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2017 Genymobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.genymobile.gnirehtet;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+
+/**
+ * Write the results of a benchmark to a file named after its class, in the directory given by the system property
+ * {@code gnirehtet.benchmark.dir} (set by the build).
+ */
+final class BenchmarkReport {
+
+    private static final String DIRECTORY_PROPERTY = "gnirehtet.benchmark.dir";
+
+    private final File file;
+
+    BenchmarkReport(Class<?> benchmark) {
+        String directory = System.getProperty(DIRECTORY_PROPERTY, "build/reports/benchmarks");
+        file = new File(directory, benchmark.getSimpleName() + ".txt");
+    }
+
+    /**
+     * Append a result line.
+     *
+     * @param format the format string (see {@link String#format(String, Object...)})
+     * @param args the arguments
+     * @throws IOException if the report cannot be written
+     */
+    void add(String format, Object... args) throws IOException {
+        File directory = file.getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        try (Writer writer = new FileWriter(file, true)) {
+            writer.write(String.format(Locale.US, format, args));
+            writer.write('\n');
+        }
+    }
+}
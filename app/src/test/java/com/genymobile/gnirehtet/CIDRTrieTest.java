@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2017 Genymobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.genymobile.gnirehtet;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+public class CIDRTrieTest {
+
+    private static CIDR cidr(String address, int prefixLength) throws UnknownHostException {
+        return new CIDR(InetAddress.getByName(address), prefixLength);
+    }
+
+    private static boolean matches(CIDRTrie trie, String address) throws UnknownHostException {
+        byte[] bytes = InetAddress.getByName(address).getAddress();
+        // not at the start of the buffer, like in a packet
+        ByteBuffer buffer = ByteBuffer.allocate(bytes.length + 3);
+        buffer.position(3);
+        buffer.put(bytes);
+        return trie.matches(buffer, 3);
+    }
+
+    @Test
+    public void testEmpty() throws UnknownHostException {
+        CIDRTrie trie = CIDRTrie.build(4, Collections.emptyList());
+        Assert.assertTrue(trie.isEmpty());
+        Assert.assertFalse(matches(trie, "10.0.0.1"));
+    }
+
+    @Test
+    public void testPrefixes() throws UnknownHostException {
+        CIDRTrie trie = CIDRTrie.build(4, Arrays.asList(
+                cidr("10.0.0.0", 8),
+                cidr("192.168.1.0", 24),
+                cidr("172.16.0.0", 12),
+                cidr("1.2.3.4", 32),
+                cidr("100.64.0.0", 10)));
+        Assert.assertFalse(trie.isEmpty());
+
+        Assert.assertTrue(matches(trie, "10.0.0.0"));
+        Assert.assertTrue(matches(trie, "10.255.255.255"));
+        Assert.assertFalse(matches(trie, "11.0.0.0"));
+        Assert.assertFalse(matches(trie, "9.255.255.255"));
+
+        Assert.assertTrue(matches(trie, "192.168.1.42"));
+        Assert.assertFalse(matches(trie, "192.168.0.42"));
+        Assert.assertFalse(matches(trie, "192.168.2.1"));
+
+        // prefix lengths not aligned on a byte
+        Assert.assertTrue(matches(trie, "172.31.255.255"));
+        Assert.assertFalse(matches(trie, "172.32.0.0"));
+        Assert.assertFalse(matches(trie, "172.15.255.255"));
+        Assert.assertTrue(matches(trie, "100.127.0.1"));
+        Assert.assertFalse(matches(trie, "100.128.0.1"));
+
+        Assert.assertTrue(matches(trie, "1.2.3.4"));
+        Assert.assertFalse(matches(trie, "1.2.3.5"));
+        Assert.assertFalse(matches(trie, "1.2.3.0"));
+    }
+
+    @Test
+    public void testNestedBlocks() throws UnknownHostException {
+        // whatever the order, the larger block contains the smaller ones
+        for (boolean largerFirst : new boolean[] {true, false}) {
+            List<CIDR> cidrs = new ArrayList<>(Arrays.asList(cidr("10.0.0.0", 8), cidr("10.1.2.0", 24), cidr("10.1.2.3", 32)));
+            if (!largerFirst) {
+                Collections.reverse(cidrs);
+            }
+            CIDRTrie trie = CIDRTrie.build(4, cidrs);
+            Assert.assertTrue(matches(trie, "10.1.2.3"));
+            Assert.assertTrue(matches(trie, "10.1.2.4"));
+            Assert.assertTrue(matches(trie, "10.200.0.1"));
+            Assert.assertFalse(matches(trie, "11.1.2.3"));
+        }
+    }
+
+    @Test
+    public void testSingleHostOnly() throws UnknownHostException {
+        // a single node merging all the bits
+        CIDRTrie trie = CIDRTrie.build(4, Collections.singletonList(cidr("203.0.113.7", 32)));
+        Assert.assertTrue(matches(trie, "203.0.113.7"));
+        Assert.assertFalse(matches(trie, "203.0.113.6"));
+        Assert.assertFalse(matches(trie, "75.0.113.7"));
+    }
+
+    @Test
+    public void testDefaultRoute() throws UnknownHostException {
+        CIDRTrie trie = CIDRTrie.build(4, Collections.singletonList(cidr("0.0.0.0", 0)));
+        Assert.assertTrue(matches(trie, "0.0.0.0"));
+        Assert.assertTrue(matches(trie, "255.255.255.255"));
+    }
+
+    @Test
+    public void testIPv6() throws UnknownHostException {
+        CIDRTrie trie = CIDRTrie.build(16, Arrays.asList(cidr("2001:db8::", 32), cidr("fe80::", 10), cidr("::1", 128)));
+        Assert.assertTrue(matches(trie, "2001:db8:1234::1"));
+        Assert.assertFalse(matches(trie, "2001:db9::1"));
+        Assert.assertTrue(matches(trie, "febf::1"));
+        Assert.assertFalse(matches(trie, "fec0::1"));
+        Assert.assertTrue(matches(trie, "::1"));
+        Assert.assertFalse(matches(trie, "::2"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMixedFamilies() throws UnknownHostException {
+        CIDRTrie.build(4, Arrays.asList(cidr("10.0.0.0", 8), cidr("2001:db8::", 32)));
+    }
+
+    @Test
+    public void testRandomBlocksAgainstLinearScan() {
+        Random random = new Random(42);
+        int[] addresses = new int[500];
+        int[] prefixLengths = new int[addresses.length];
+        List<CIDR> cidrs = new ArrayList<>();
+        for (int i = 0; i < addresses.length; ++i) {
+            prefixLengths[i] = 8 + random.nextInt(25);
+            addresses[i] = random.nextInt() & mask(prefixLengths[i]);
+            cidrs.add(new CIDR(toInetAddress(addresses[i]), prefixLengths[i]));
+        }
+        CIDRTrie trie = CIDRTrie.build(4, cidrs);
+
+        ByteBuffer buffer = ByteBuffer.allocate(4);
+        int matched = 0;
+        for (int i = 0; i < 100_000; ++i) {
+            // half of the addresses close to a block
+            int address = i % 2 == 0 ? addresses[random.nextInt(addresses.length)] ^ random.nextInt(1 << 12) : random.nextInt();
+            boolean expected = false;
+            for (int j = 0; j < addresses.length && !expected; ++j) {
+                expected = (address & mask(prefixLengths[j])) == addresses[j];
+            }
+            buffer.putInt(0, address);
+            Assert.assertEquals("Address " + Integer.toHexString(address), expected, trie.matches(buffer, 0));
+            if (expected) {
+                ++matched;
+            }
+        }
+        // both cases are covered
+        Assert.assertTrue(matched > 1000);
+        Assert.assertTrue(matched < 99_000);
+    }
+
+    private static int mask(int prefixLength) {
+        return prefixLength == 0 ? 0 : -1 << (32 - prefixLength);
+    }
+
+    private static InetAddress toInetAddress(int address) {
+        try {
+            return InetAddress.getByAddress(ByteBuffer.allocate(4).putInt(address).array());
+        } catch (UnknownHostException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2017 Genymobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.genymobile.gnirehtet;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * Measure the cost of answering a DNS query from the {@link DnsCache} ({@link DnsCacheInterceptor}), and of letting a
+ * query miss the cache.
+ */
+@Category(Benchmark.class)
+public class DnsCacheBenchmark {
+
+    private static final BenchmarkReport REPORT = new BenchmarkReport(DnsCacheBenchmark.class);
+
+    private static final int NAMES = 1000;
+    private static final int QUERIES = 1_000_000;
+
+    private static final int DEVICE = TestPackets.address(10, 0, 0, 2);
+    private static final int DNS_SERVER = TestPackets.address(8, 8, 8, 8);
+
+    @Test
+    public void compareHitAndMiss() throws IOException {
+        DnsCache cache = new DnsCache(NAMES * 2);
+        DnsServers dnsServers = new DnsServers(new InetAddress[] {InetAddress.getByAddress(new byte[] {8, 8, 8, 8})});
+        ByteBuffer[] replies = new ByteBuffer[1];
+        long[] replyCount = new long[1];
+        PacketSink deviceSink = packet -> {
+            replies[0] = packet;
+            ++replyCount[0];
+        };
+
+        // fill the cache from the responses received from the tunnel
+        PacketSink cachingSink = new DnsCachingSink(packet -> { }, cache, dnsServers);
+        ByteBuffer[] hits = new ByteBuffer[NAMES];
+        ByteBuffer[] misses = new ByteBuffer[NAMES];
+        for (int i = 0; i < NAMES; ++i) {
+            byte[] query = TestDns.query(i, "host" + i + ".example.com", TestDns.TYPE_A);
+            byte[] response = TestDns.response(query, TestDns.TYPE_A, 300, new byte[] {93, (byte) 184, (byte) 216, 34});
+            cachingSink.write(TestPackets.udp(DNS_SERVER, DnsMessages.DNS_PORT, DEVICE, 50000, response));
+            hits[i] = TestPackets.udp(DEVICE, 50000, DNS_SERVER, DnsMessages.DNS_PORT, query);
+            byte[] other = TestDns.query(i, "host" + i + ".example.org", TestDns.TYPE_A);
+            misses[i] = TestPackets.udp(DEVICE, 50000, DNS_SERVER, DnsMessages.DNS_PORT, other);
+        }
+        Assert.assertEquals(NAMES, cache.size());
+
+        DnsCacheInterceptor interceptor = new DnsCacheInterceptor(cache, dnsServers, deviceSink);
+        PacketSink upstream = packet -> Assert.fail("Unexpected packet sent upstream");
+
+        // warm up
+        run(interceptor, upstream, hits, true, QUERIES / 4);
+        run(interceptor, upstream, misses, false, QUERIES / 4);
+
+        replyCount[0] = 0;
+        long hitNs = run(interceptor, upstream, hits, true, QUERIES);
+        Assert.assertEquals(QUERIES, replyCount[0]);
+        long missNs = run(interceptor, upstream, misses, false, QUERIES);
+        Assert.assertEquals(QUERIES, replyCount[0]);
+
+        REPORT.add("DNS cache hit:  %d ns/query (reply built and written to the device)", hitNs);
+        REPORT.add("DNS cache miss: %d ns/query (query forwarded)", missNs);
+
+        // the last reply answers the last query, from the DNS server
+        ByteBuffer reply = replies[0];
+        int dns = dnsServers.getResponseIndex(reply, reply.position(), reply.remaining());
+        Assert.assertNotEquals(-1, dns);
+        Assert.assertEquals((QUERIES - 1) % NAMES, Binary.unsigned(reply.getShort(dns)));
+        Assert.assertEquals(DEVICE, reply.getInt(reply.position() + 16));
+        Assert.assertEquals(0, TestPackets.ipChecksum(reply.slice()));
+        Assert.assertEquals(0, TestPackets.transportChecksum(reply.slice(), IPPackets.PROTOCOL_UDP));
+    }
+
+    private static long run(PacketInterceptor interceptor, PacketSink upstream, ByteBuffer[] queries, boolean hit,
+                            int count) throws IOException {
+        long start = System.nanoTime();
+        for (int i = 0; i < count; ++i) {
+            ByteBuffer query = queries[i % queries.length];
+            query.position(0);
+            if (interceptor.intercept(query, upstream) != hit) {
+                Assert.fail("Unexpected cache " + (hit ? "miss" : "hit"));
+            }
+        }
+        return (System.nanoTime() - start) / count;
+    }
+}
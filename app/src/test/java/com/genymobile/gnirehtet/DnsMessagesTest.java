@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2017 Genymobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.genymobile.gnirehtet;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+public class DnsMessagesTest {
+
+    private static final byte[] ADDRESS = {93, (byte) 184, (byte) 216, 34};
+
+    @Test
+    public void testQuery() {
+        ByteBuffer query = ByteBuffer.wrap(TestDns.query(0x1234, "www.Example.com", TestDns.TYPE_A));
+        int end = query.limit();
+        Assert.assertTrue(DnsMessages.isQuery(query, 0, end));
+        Assert.assertFalse(DnsMessages.isResponse(query, 0, end));
+        Assert.assertFalse(DnsMessages.isAnyResponse(query, 0, end));
+        Assert.assertEquals(end, DnsMessages.getQuestionEnd(query, 0, end));
+        Assert.assertEquals("www.example.com./1/1", DnsMessages.readQuestion(query, 0, end));
+    }
+
+    @Test
+    public void testResponse() {
+        byte[] query = TestDns.query(1, "example.com", TestDns.TYPE_A);
+        ByteBuffer response = ByteBuffer.wrap(TestDns.response(query, TestDns.TYPE_A, 300, ADDRESS));
+        int end = response.limit();
+        Assert.assertFalse(DnsMessages.isQuery(response, 0, end));
+        Assert.assertTrue(DnsMessages.isResponse(response, 0, end));
+        Assert.assertEquals(DnsMessages.RCODE_NOERROR, DnsMessages.readRcode(response, 0));
+        Assert.assertEquals(query.length, DnsMessages.getQuestionEnd(response, 0, end));
+        Assert.assertEquals(300, DnsMessages.getCacheTtl(response, 0, end));
+
+        Assert.assertTrue(DnsMessages.decreaseTtls(response, 0, end, 100));
+        Assert.assertEquals(200, DnsMessages.getCacheTtl(response, 0, end));
+        // never negative
+        Assert.assertTrue(DnsMessages.decreaseTtls(response, 0, end, 1000));
+        Assert.assertEquals(0, DnsMessages.getCacheTtl(response, 0, end));
+    }
+
+    @Test
+    public void testTruncatedResponse() {
+        byte[] query = TestDns.query(1, "example.com", TestDns.TYPE_A);
+        byte[] response = TestDns.response(query, TestDns.TYPE_A, 300, ADDRESS);
+        // the answer data is incomplete
+        ByteBuffer buffer = ByteBuffer.wrap(response, 0, response.length - 2);
+        Assert.assertEquals(-1, DnsMessages.getCacheTtl(buffer, 0, buffer.limit()));
+        Assert.assertFalse(DnsMessages.decreaseTtls(buffer, 0, buffer.limit(), 1));
+    }
+
+    @Test
+    public void testQuestionWithoutTypeAndClass() {
+        ByteBuffer query = ByteBuffer.wrap(TestDns.truncatedQuery(1, "ads.example.com"));
+        int end = query.limit();
+        Assert.assertTrue(DnsMessages.isQuery(query, 0, end));
+        Assert.assertEquals(-1, DnsMessages.getQuestionEnd(query, 0, end));
+        Assert.assertNull(DnsMessages.readQuestion(query, 0, end));
+        // the name itself is complete
+        byte[] name = new byte[DnsMessages.MAX_NAME_LENGTH];
+        Assert.assertEquals("com.example.ads".length(), DnsMessages.readReversedQuestionName(query, 0, end, name));
+
+        // QTYPE only
+        ByteBuffer partial = ByteBuffer.wrap(TestDns.query(1, "ads.example.com", TestDns.TYPE_A), 0, end + 2);
+        Assert.assertEquals(-1, DnsMessages.getQuestionEnd(partial, 0, partial.limit()));
+        Assert.assertNull(DnsMessages.readQuestion(partial, 0, partial.limit()));
+    }
+
+    @Test
+    public void testTruncatedName() {
+        byte[] query = TestDns.query(1, "ads.example.com", TestDns.TYPE_A);
+        // cut in the middle of "example"
+        ByteBuffer buffer = ByteBuffer.wrap(query, 0, DnsMessages.HEADER_LENGTH + 7);
+        int end = buffer.limit();
+        Assert.assertEquals(-1, DnsMessages.skipName(buffer, DnsMessages.HEADER_LENGTH, end));
+        Assert.assertEquals(-1, DnsMessages.getQuestionEnd(buffer, 0, end));
+        Assert.assertNull(DnsMessages.readQuestion(buffer, 0, end));
+        Assert.assertEquals(-1, DnsMessages.readReversedQuestionName(buffer, 0, end, new byte[DnsMessages.MAX_NAME_LENGTH]));
+    }
+
+    @Test
+    public void testReadReversedQuestionName() {
+        ByteBuffer query = ByteBuffer.wrap(TestDns.query(1, "WWW.example.Com", TestDns.TYPE_AAAA));
+        byte[] name = new byte[DnsMessages.MAX_NAME_LENGTH];
+        int length = DnsMessages.readReversedQuestionName(query, 0, query.limit(), name);
+        Assert.assertEquals("com.example.www", new String(name, 0, length, StandardCharsets.US_ASCII));
+
+        ByteBuffer root = ByteBuffer.wrap(TestDns.query(1, "", TestDns.TYPE_A));
+        Assert.assertEquals(0, DnsMessages.readReversedQuestionName(root, 0, root.limit(), name));
+    }
+
+    @Test
+    public void testCompressedQuestion() {
+        byte[] query = TestDns.query(1, "example.com", TestDns.TYPE_A);
+        // replace the name by a pointer
+        query[DnsMessages.HEADER_LENGTH] = (byte) 0xc0;
+        ByteBuffer buffer = ByteBuffer.wrap(query);
+        Assert.assertNull(DnsMessages.readQuestion(buffer, 0, buffer.limit()));
+        Assert.assertEquals(-1, DnsMessages.readReversedQuestionName(buffer, 0, buffer.limit(), new byte[DnsMessages.MAX_NAME_LENGTH]));
+    }
+
+    @Test
+    public void testQuestionDependsOnDnssecFlags() {
+        byte[] query = TestDns.query(1, "example.com", TestDns.TYPE_A);
+        Assert.assertEquals("example.com./1/1", readQuestion(TestDns.withOpt(query, false)));
+        Assert.assertEquals("example.com./1/1/do", readQuestion(TestDns.withOpt(query, true)));
+        Assert.assertEquals("example.com./1/1/cd", readQuestion(TestDns.withCheckingDisabled(query)));
+        Assert.assertEquals("example.com./1/1/cd/do", readQuestion(TestDns.withCheckingDisabled(TestDns.withOpt(query, true))));
+
+        // the response echoes the flags, so it is stored under the same question
+        byte[] response = TestDns.response(query, TestDns.TYPE_A, 300, ADDRESS);
+        Assert.assertEquals("example.com./1/1/do", readQuestion(TestDns.withOpt(response, true)));
+    }
+
+    private static String readQuestion(byte[] message) {
+        return DnsMessages.readQuestion(ByteBuffer.wrap(message), 0, message.length);
+    }
+
+    @Test
+    public void testNegativeCacheTtl() {
+        byte[] query = TestDns.query(1, "unknown.example.com", TestDns.TYPE_A);
+        ByteBuffer response = ByteBuffer.wrap(TestDns.negativeResponse(query, DnsMessages.RCODE_NXDOMAIN, 3600,
+                TestDns.soaData(60)));
+        // the minimum of the SOA TTL and of its MINIMUM field
+        Assert.assertEquals(60, DnsMessages.getCacheTtl(response, 0, response.limit()));
+    }
+
+    @Test
+    public void testShortSoaRecordIgnored() {
+        byte[] query = TestDns.query(1, "unknown.example.com", TestDns.TYPE_A);
+        // too short to contain the MINIMUM field, which would be read from the record header
+        byte[] soaData = {0, 0, 0, 0};
+        ByteBuffer response = ByteBuffer.wrap(TestDns.negativeResponse(query, DnsMessages.RCODE_NXDOMAIN, 3600, soaData));
+        Assert.assertEquals(-1, DnsMessages.getCacheTtl(response, 0, response.limit()));
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2017 Genymobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.genymobile.gnirehtet;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+public class DnsRaceInterceptorTest {
+
+    private static final int RCODE_SERVFAIL = 2;
+
+    private static final int DEVICE = TestPackets.address(10, 0, 0, 2);
+    private static final int SERVER_0 = TestPackets.address(8, 8, 8, 8);
+    private static final int SERVER_1 = TestPackets.address(1, 1, 1, 1);
+    private static final byte[] DEVICE6 = TestPackets.address6("fd00::2");
+    private static final byte[] SERVER6_2 = TestPackets.address6("2001:4860:4860::8888");
+    private static final byte[] SERVER6_3 = TestPackets.address6("2606:4700:4700::1111");
+
+    private final DnsServers dnsServers = new DnsServers(Net.toInetAddresses("8.8.8.8", "1.1.1.1",
+            "2001:4860:4860::8888", "2606:4700:4700::1111"));
+    private final DnsRacer racer = new DnsRacer(dnsServers);
+
+    private final List<ByteBuffer> upstreamPackets = new ArrayList<>();
+    private final PacketSink upstream = packet -> upstreamPackets.add(copy(packet));
+    private final List<ByteBuffer> devicePackets = new ArrayList<>();
+    private final PacketSink deviceSink = packet -> devicePackets.add(copy(packet));
+
+    private static ByteBuffer copy(ByteBuffer packet) {
+        ByteBuffer copy = ByteBuffer.allocate(packet.remaining());
+        copy.put(packet);
+        copy.flip();
+        return copy;
+    }
+
+    private static byte[] getAddress6(ByteBuffer packet, int index) {
+        byte[] address = new byte[16];
+        for (int i = 0; i < address.length; ++i) {
+            address[i] = packet.get(index + i);
+        }
+        return address;
+    }
+
+    @Test
+    public void testRaceIPv4() throws IOException {
+        DnsRaceInterceptor interceptor = new DnsRaceInterceptor(racer, dnsServers);
+        byte[] query = TestDns.query(0x4242, "example.com", TestDns.TYPE_A);
+        ByteBuffer packet = TestPackets.udp(DEVICE, 50000, SERVER_0, DnsMessages.DNS_PORT, query);
+        // the original query is forwarded as is
+        Assert.assertFalse(interceptor.intercept(packet, upstream));
+        Assert.assertEquals(0, packet.position());
+        Assert.assertEquals(SERVER_0, packet.getInt(16));
+
+        Assert.assertEquals(1, upstreamPackets.size());
+        ByteBuffer copy = upstreamPackets.get(0);
+        Assert.assertEquals(DEVICE, copy.getInt(12));
+        Assert.assertEquals(SERVER_1, copy.getInt(16));
+        Assert.assertEquals(0, TestPackets.ipChecksum(copy));
+        Assert.assertEquals(0, TestPackets.transportChecksum(copy, IPPackets.PROTOCOL_UDP));
+
+        DnsRaceSink sink = new DnsRaceSink(deviceSink, racer, dnsServers);
+        byte[] response = TestDns.response(query, TestDns.TYPE_A, 60, new byte[] {93, (byte) 184, (byte) 216, 34});
+        sink.write(TestPackets.udp(SERVER_1, DnsMessages.DNS_PORT, DEVICE, 50000, response));
+        ByteBuffer late = TestPackets.udp(SERVER_0, DnsMessages.DNS_PORT, DEVICE, 50000, response);
+        sink.write(late);
+        // the late response is consumed
+        Assert.assertFalse(late.hasRemaining());
+
+        // the response of server 1 must appear to come from server 0
+        Assert.assertEquals(1, devicePackets.size());
+        ByteBuffer reply = devicePackets.get(0);
+        Assert.assertEquals(SERVER_0, reply.getInt(12));
+        Assert.assertEquals(DEVICE, reply.getInt(16));
+        Assert.assertEquals(0, TestPackets.ipChecksum(reply));
+        Assert.assertEquals(0, TestPackets.transportChecksum(reply, IPPackets.PROTOCOL_UDP));
+    }
+
+    @Test
+    public void testRaceIPv6() throws IOException {
+        DnsRaceInterceptor interceptor = new DnsRaceInterceptor(racer, dnsServers);
+        byte[] query = TestDns.query(0x4242, "example.com", TestDns.TYPE_AAAA);
+        ByteBuffer packet = TestPackets.udp6(DEVICE6, 50000, SERVER6_2, DnsMessages.DNS_PORT, query);
+        Assert.assertFalse(interceptor.intercept(packet, upstream));
+
+        Assert.assertEquals(1, upstreamPackets.size());
+        ByteBuffer copy = upstreamPackets.get(0);
+        Assert.assertArrayEquals(DEVICE6, getAddress6(copy, 8));
+        Assert.assertArrayEquals(SERVER6_3, getAddress6(copy, 24));
+        Assert.assertEquals(0, TestPackets.transportChecksum6(copy, IPPackets.PROTOCOL_UDP));
+
+        DnsRaceSink sink = new DnsRaceSink(deviceSink, racer, dnsServers);
+        byte[] response = TestDns.response(query, TestDns.TYPE_AAAA, 60, SERVER6_3);
+        sink.write(TestPackets.udp6(SERVER6_3, DnsMessages.DNS_PORT, DEVICE6, 50000, response));
+        sink.write(TestPackets.udp6(SERVER6_2, DnsMessages.DNS_PORT, DEVICE6, 50000, response));
+
+        Assert.assertEquals(1, devicePackets.size());
+        ByteBuffer reply = devicePackets.get(0);
+        Assert.assertArrayEquals(SERVER6_2, getAddress6(reply, 8));
+        Assert.assertArrayEquals(DEVICE6, getAddress6(reply, 24));
+        Assert.assertEquals(0, TestPackets.transportChecksum6(reply, IPPackets.PROTOCOL_UDP));
+    }
+
+    @Test
+    public void testServerFailureFallsThrough() throws IOException {
+        DnsRaceInterceptor interceptor = new DnsRaceInterceptor(racer, dnsServers);
+        byte[] query = TestDns.query(1, "example.com", TestDns.TYPE_A);
+        interceptor.intercept(TestPackets.udp(DEVICE, 50000, SERVER_0, DnsMessages.DNS_PORT, query), upstream);
+
+        DnsRaceSink sink = new DnsRaceSink(deviceSink, racer, dnsServers);
+        byte[] failure = TestDns.negativeResponse(query, RCODE_SERVFAIL, 0, TestDns.soaData(0));
+        sink.write(TestPackets.udp(SERVER_0, DnsMessages.DNS_PORT, DEVICE, 50000, failure));
+        Assert.assertTrue(devicePackets.isEmpty());
+
+        byte[] response = TestDns.response(query, TestDns.TYPE_A, 60, new byte[] {93, (byte) 184, (byte) 216, 34});
+        sink.write(TestPackets.udp(SERVER_1, DnsMessages.DNS_PORT, DEVICE, 50000, response));
+        Assert.assertEquals(1, devicePackets.size());
+        ByteBuffer reply = devicePackets.get(0);
+        Assert.assertEquals(SERVER_0, reply.getInt(12));
+        Assert.assertEquals(DnsMessages.RCODE_NOERROR, DnsMessages.readRcode(reply, 28));
+    }
+
+    @Test
+    public void testExcludedServerQueryConsumed() throws IOException {
+        // server 0 times out 3 times in a row
+        long now = System.nanoTime() - 60_000_000_000L;
+        for (int key = 1; key <= 3; ++key) {
+            racer.startRace(key, 1, now);
+            racer.onResponse(key, 1, true, now);
+            now += 10_000_000_000L;
+        }
+
+        DnsRaceInterceptor interceptor = new DnsRaceInterceptor(racer, dnsServers);
+        byte[] query = TestDns.query(1, "example.com", TestDns.TYPE_A);
+        Assert.assertTrue(interceptor.intercept(TestPackets.udp(DEVICE, 50000, SERVER_0, DnsMessages.DNS_PORT, query),
+                upstream));
+        // the query is only sent to server 1
+        Assert.assertEquals(1, upstreamPackets.size());
+        Assert.assertEquals(SERVER_1, upstreamPackets.get(0).getInt(16));
+    }
+
+    @Test
+    public void testNotDnsServer() throws IOException {
+        DnsRaceInterceptor interceptor = new DnsRaceInterceptor(racer, dnsServers);
+        byte[] query = TestDns.query(1, "example.com", TestDns.TYPE_A);
+        int other = TestPackets.address(192, 168, 0, 1);
+        Assert.assertFalse(interceptor.intercept(TestPackets.udp(DEVICE, 50000, other, DnsMessages.DNS_PORT, query),
+                upstream));
+        Assert.assertTrue(upstreamPackets.isEmpty());
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2017 Genymobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.genymobile.gnirehtet;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class DnsRacerTest {
+
+    private static final long MS = 1_000_000L;
+    private static final long SECOND = 1000 * MS;
+
+    private static DnsRacer createRacer() {
+        return new DnsRacer(new DnsServers(Net.toInetAddresses("8.8.8.8", "1.1.1.1", "9.9.9.9", "2001:4860:4860::8888")));
+    }
+
+    /**
+     * Run a race for which every server in {@code latenciesMs} responds, with a valid answer, after its latency.
+     */
+    private static int race(DnsRacer racer, long key, int originalServer, long startNs, long... latenciesMs) {
+        int mask = racer.startRace(key, originalServer, startNs);
+        for (int i = 0; i < latenciesMs.length; ++i) {
+            if ((mask & (1 << i)) != 0) {
+                racer.onResponse(key, i, true, startNs + latenciesMs[i] * MS);
+            }
+        }
+        return mask;
+    }
+
+    @Test
+    public void testRaceSameAddressFamily() {
+        DnsRacer racer = createRacer();
+        Assert.assertEquals(0b0111, racer.startRace(1, 0, 0));
+        Assert.assertEquals(0b1000, racer.startRace(2, 3, 0));
+    }
+
+    @Test
+    public void testFirstValidResponseWins() {
+        DnsRacer racer = createRacer();
+        racer.startRace(1, 1, 0);
+        // the response of server 2 must appear to come from server 1
+        Assert.assertEquals(1, racer.onResponse(1, 2, true, 10 * MS));
+        Assert.assertEquals(DnsRacer.DROP, racer.onResponse(1, 1, true, 20 * MS));
+        Assert.assertEquals(DnsRacer.DROP, racer.onResponse(1, 0, true, 30 * MS));
+    }
+
+    @Test
+    public void testServerFailureFallsThrough() {
+        DnsRacer racer = createRacer();
+        racer.startRace(1, 0, 0);
+        Assert.assertEquals(DnsRacer.DROP, racer.onResponse(1, 1, false, 10 * MS));
+        Assert.assertEquals(0, racer.onResponse(1, 2, true, 20 * MS));
+        Assert.assertEquals(DnsRacer.DROP, racer.onResponse(1, 0, true, 30 * MS));
+    }
+
+    @Test
+    public void testLastServerFailureForwarded() {
+        DnsRacer racer = createRacer();
+        racer.startRace(1, 0, 0);
+        Assert.assertEquals(DnsRacer.DROP, racer.onResponse(1, 1, false, 10 * MS));
+        Assert.assertEquals(DnsRacer.DROP, racer.onResponse(1, 0, false, 20 * MS));
+        // no server gave a valid answer, the application gets the last failure
+        Assert.assertEquals(0, racer.onResponse(1, 2, false, 30 * MS));
+    }
+
+    @Test
+    public void testNotRaced() {
+        DnsRacer racer = createRacer();
+        Assert.assertEquals(DnsRacer.NOT_RACED, racer.onResponse(1, 0, true, 0));
+        racer.startRace(2, 0, 0);
+        // server 3 was not part of the race
+        Assert.assertEquals(DnsRacer.NOT_RACED, racer.onResponse(2, 3, true, 0));
+    }
+
+    @Test
+    public void testSlowServerExcludedAndProbed() {
+        DnsRacer racer = createRacer();
+        long now = 0;
+        long key = 0;
+        for (int i = 0; i < 5; ++i) {
+            Assert.assertEquals(0b0111, race(racer, ++key, 0, now, 10, 20, 200));
+            now += SECOND;
+        }
+        // server 2 is both 3 times and 50ms slower than server 0
+        for (int i = 0; i < 14; ++i) {
+            Assert.assertEquals(0b0011, race(racer, ++key, 0, now, 10, 20, 200));
+            now += SECOND;
+        }
+        // every 20 queries, all the servers are queried
+        Assert.assertEquals(0b0111, race(racer, ++key, 0, now, 10, 20, 200));
+        now += SECOND;
+        Assert.assertEquals(0b0011, race(racer, ++key, 0, now, 10, 20, 200));
+    }
+
+    @Test
+    public void testUnresponsiveServerExcluded() {
+        DnsRacer racer = createRacer();
+        long now = 0;
+        for (int key = 1; key <= 3; ++key) {
+            // server 2 never responds
+            Assert.assertEquals(0b0111, race(racer, key, 0, now, 10, 20));
+            now += 10 * SECOND;
+        }
+        Assert.assertEquals(0b0011, race(racer, 4, 0, now, 10, 20));
+    }
+
+    @Test
+    public void testAllServersExcluded() {
+        DnsRacer racer = createRacer();
+        long now = 0;
+        for (int key = 1; key <= 3; ++key) {
+            // no server ever responds
+            Assert.assertEquals(0b0111, racer.startRace(key, 0, now));
+            now += 10 * SECOND;
+        }
+        // the query must still be sent to its original server
+        Assert.assertEquals(0b0010, racer.startRace(4, 1, now));
+    }
+
+    @Test
+    public void testLateResponseAfterAnswerDropped() {
+        DnsRacer racer = createRacer();
+        racer.startRace(1, 0, 0);
+        Assert.assertEquals(0, racer.onResponse(1, 1, true, 10 * MS));
+        // expire the race
+        racer.startRace(2, 0, 6 * SECOND);
+        Assert.assertEquals(DnsRacer.DROP, racer.onResponse(1, 2, true, 6 * SECOND));
+        Assert.assertEquals(DnsRacer.DROP, racer.onResponse(1, 0, true, 6 * SECOND));
+    }
+
+    @Test
+    public void testLateResponseWithoutAnswer() {
+        DnsRacer racer = createRacer();
+        racer.startRace(1, 0, 0);
+        racer.startRace(2, 0, 6 * SECOND);
+        // the application never queried server 1
+        Assert.assertEquals(DnsRacer.DROP, racer.onResponse(1, 1, true, 6 * SECOND));
+        // but it may still accept a late response from the server it queried
+        Assert.assertEquals(0, racer.onResponse(1, 0, true, 6 * SECOND));
+        Assert.assertEquals(DnsRacer.DROP, racer.onResponse(1, 2, true, 6 * SECOND));
+    }
+
+    @Test
+    public void testTombstoneExpired() {
+        DnsRacer racer = createRacer();
+        racer.startRace(1, 0, 0);
+        racer.startRace(2, 0, 6 * SECOND);
+        racer.startRace(3, 0, 20 * SECOND);
+        Assert.assertEquals(DnsRacer.NOT_RACED, racer.onResponse(1, 1, true, 20 * SECOND));
+    }
+
+    @Test
+    public void testNewRaceReplacesTombstone() {
+        DnsRacer racer = createRacer();
+        racer.startRace(1, 0, 0);
+        Assert.assertEquals(0, racer.onResponse(1, 0, true, 10 * MS));
+        // the same client port and DNS ID are reused for a new query
+        racer.startRace(1, 0, 6 * SECOND);
+        Assert.assertEquals(0, racer.onResponse(1, 1, true, 6 * SECOND + 10 * MS));
+    }
+}
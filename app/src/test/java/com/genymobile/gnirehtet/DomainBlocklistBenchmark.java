@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2017 Genymobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.genymobile.gnirehtet;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Measure the time to load a hosts-style blocklist, and the cost of a lookup, for lists of 100k and 1M domains.
+ */
+@Category(Benchmark.class)
+public class DomainBlocklistBenchmark {
+
+    private static final BenchmarkReport REPORT = new BenchmarkReport(DomainBlocklistBenchmark.class);
+
+    private static final int LOOKUPS = 2_000_000;
+    private static final String[] SUFFIXES = {"com", "net", "org", "io", "co.uk"};
+
+    @Test
+    public void benchmark100k() throws IOException {
+        run(100_000);
+    }
+
+    @Test
+    public void benchmark1M() throws IOException {
+        run(1_000_000);
+    }
+
+    private static String domain(int i) {
+        return "ads" + Integer.toHexString(i * 0x9e3779b1) + ".tracker" + (i % 997) + "." + SUFFIXES[i % SUFFIXES.length];
+    }
+
+    private static void run(int entries) throws IOException {
+        StringBuilder builder = new StringBuilder(entries * 40);
+        builder.append("# generated\n");
+        for (int i = 0; i < entries; ++i) {
+            builder.append("0.0.0.0 ").append(domain(i)).append('\n');
+        }
+        String list = builder.toString();
+
+        long start = System.nanoTime();
+        DomainBlocklist blocklist = DomainBlocklist.parse(new StringReader(list));
+        long loadMs = (System.nanoTime() - start) / 1_000_000;
+        Assert.assertEquals(entries, blocklist.size());
+
+        // the names as read from the DNS queries, reversed: subdomains of blocked domains, and unknown domains
+        Random random = new Random(42);
+        byte[][] names = new byte[1024][];
+        boolean[] expected = new boolean[names.length];
+        for (int i = 0; i < names.length; ++i) {
+            int entry = random.nextInt(entries);
+            expected[i] = i % 2 == 0;
+            String domain = expected[i] ? "cdn." + domain(entry) : "www.example" + entry + ".com";
+            names[i] = reverse(domain);
+        }
+
+        int blocked = 0;
+        // warm up
+        for (int i = 0; i < LOOKUPS / 4; ++i) {
+            byte[] name = names[i % names.length];
+            blocked += blocklist.isBlocked(name, name.length) ? 1 : 0;
+        }
+        start = System.nanoTime();
+        for (int i = 0; i < LOOKUPS; ++i) {
+            byte[] name = names[i % names.length];
+            if (blocklist.isBlocked(name, name.length) != expected[i % names.length]) {
+                Assert.fail("Unexpected lookup result for " + new String(name, StandardCharsets.US_ASCII));
+            }
+        }
+        long lookupNs = (System.nanoTime() - start) / LOOKUPS;
+
+        REPORT.add("Domain blocklist %d entries: loaded in %d ms, %d ns/lookup (%d blocked during warm up)", entries, loadMs,
+                lookupNs, blocked);
+    }
+
+    private static byte[] reverse(String domain) {
+        String[] labels = domain.split("\\.");
+        StringBuilder builder = new StringBuilder(domain.length());
+        for (int i = labels.length - 1; i >= 0; --i) {
+            builder.append(labels[i]);
+            if (i != 0) {
+                builder.append('.');
+            }
+        }
+        return builder.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+}
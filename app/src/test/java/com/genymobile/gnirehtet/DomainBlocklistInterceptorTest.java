@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2017 Genymobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.genymobile.gnirehtet;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class DomainBlocklistInterceptorTest {
+
+    private static final int DEVICE = TestPackets.address(10, 0, 0, 2);
+    private static final int DNS_SERVER = TestPackets.address(8, 8, 8, 8);
+
+    private final List<ByteBuffer> replies = new ArrayList<>();
+    private final PacketSink deviceSink = packet -> {
+        ByteBuffer copy = ByteBuffer.allocate(packet.remaining());
+        copy.put(packet);
+        copy.flip();
+        replies.add(copy);
+    };
+    private final PacketSink upstream = packet -> Assert.fail("Unexpected packet sent upstream");
+
+    @Before
+    public void setUp() {
+        DomainBlocklists.setCurrent(DomainBlocklist.of(Arrays.asList("ads.example.com")));
+    }
+
+    @After
+    public void tearDown() {
+        DomainBlocklists.setCurrent(DomainBlocklist.EMPTY);
+    }
+
+    private static ByteBuffer createQueryPacket(byte[] query) {
+        return TestPackets.udp(DEVICE, 50000, DNS_SERVER, DnsMessages.DNS_PORT, query);
+    }
+
+    @Test
+    public void testNxdomain() throws IOException {
+        ForwarderStats stats = new ForwarderStats();
+        DomainBlocklistInterceptor interceptor = new DomainBlocklistInterceptor(BlockedDomainAnswer.NXDOMAIN, deviceSink,
+                stats);
+        ByteBuffer packet = createQueryPacket(TestDns.query(0x4242, "www.ads.example.com", TestDns.TYPE_A));
+        Assert.assertTrue(interceptor.intercept(packet, upstream));
+        Assert.assertEquals(1, stats.getBlockedQueries());
+
+        Assert.assertEquals(1, replies.size());
+        ByteBuffer reply = replies.get(0);
+        Assert.assertEquals(0, TestPackets.ipChecksum(reply));
+        Assert.assertEquals(0, TestPackets.transportChecksum(reply, IPPackets.PROTOCOL_UDP));
+        Assert.assertEquals(DNS_SERVER, reply.getInt(12));
+        Assert.assertEquals(DEVICE, reply.getInt(16));
+        int dns = 28;
+        int end = reply.limit();
+        Assert.assertTrue(DnsMessages.isResponse(reply, dns, end));
+        Assert.assertEquals(0x4242, Binary.unsigned(reply.getShort(dns)));
+        Assert.assertEquals(DnsMessages.RCODE_NXDOMAIN, DnsMessages.readRcode(reply, dns));
+        Assert.assertEquals("www.ads.example.com./1/1", DnsMessages.readQuestion(reply, dns, end));
+    }
+
+    @Test
+    public void testNullAddress() throws IOException {
+        DomainBlocklistInterceptor interceptor = new DomainBlocklistInterceptor(BlockedDomainAnswer.NULL_ADDRESS,
+                deviceSink, new ForwarderStats());
+        ByteBuffer packet = createQueryPacket(TestDns.query(1, "ads.example.com", TestDns.TYPE_AAAA));
+        Assert.assertTrue(interceptor.intercept(packet, upstream));
+
+        ByteBuffer reply = replies.get(0);
+        int dns = 28;
+        int end = reply.limit();
+        Assert.assertEquals(DnsMessages.RCODE_NOERROR, DnsMessages.readRcode(reply, dns));
+        // one AAAA answer, with the unspecified address
+        Assert.assertEquals(1, Binary.unsigned(reply.getShort(dns + 6)));
+        int data = end - 16;
+        Assert.assertEquals(16, Binary.unsigned(reply.getShort(data - 2)));
+        for (int i = data; i < end; ++i) {
+            Assert.assertEquals(0, reply.get(i));
+        }
+    }
+
+    @Test
+    public void testNotBlocked() throws IOException {
+        DomainBlocklistInterceptor interceptor = new DomainBlocklistInterceptor(BlockedDomainAnswer.NXDOMAIN, deviceSink,
+                new ForwarderStats());
+        ByteBuffer packet = createQueryPacket(TestDns.query(1, "example.com", TestDns.TYPE_A));
+        Assert.assertFalse(interceptor.intercept(packet, upstream));
+        Assert.assertTrue(replies.isEmpty());
+    }
+
+    @Test
+    public void testBlockedQuestionWithoutTypeAndClass() throws IOException {
+        ForwarderStats stats = new ForwarderStats();
+        DomainBlocklistInterceptor interceptor = new DomainBlocklistInterceptor(BlockedDomainAnswer.NXDOMAIN, deviceSink,
+                stats);
+        ByteBuffer packet = createQueryPacket(TestDns.truncatedQuery(1, "ads.example.com"));
+        // must not throw, the query is forwarded as is
+        Assert.assertFalse(interceptor.intercept(packet, upstream));
+        Assert.assertTrue(replies.isEmpty());
+        Assert.assertEquals(0, stats.getBlockedQueries());
+    }
+}
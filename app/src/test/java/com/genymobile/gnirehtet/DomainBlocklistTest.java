@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2017 Genymobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.genymobile.gnirehtet;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+public class DomainBlocklistTest {
+
+    @Test
+    public void testParseHostsFormat() throws IOException {
+        String list = "# comment\n"
+                + "0.0.0.0 ads.example.com tracker.example.net # trailing comment\n"
+                + "127.0.0.1 localhost\n"
+                + "Example.ORG.\n"
+                + "\n"
+                + "  ads.example.com  \n"
+                + "0.0.0.0 192.168.0.1\n"
+                + "0.0.0.0 bad..name.com inv@lid.com .leading.com\n";
+        DomainBlocklist blocklist = DomainBlocklist.parse(new StringReader(list));
+        // duplicates are stored once, local names, addresses and invalid names are ignored
+        Assert.assertEquals(3, blocklist.size());
+        Assert.assertTrue(blocklist.isBlocked("ads.example.com"));
+        Assert.assertTrue(blocklist.isBlocked("tracker.example.net"));
+        Assert.assertTrue(blocklist.isBlocked("example.org"));
+        Assert.assertFalse(blocklist.isBlocked("localhost"));
+    }
+
+    @Test
+    public void testSubdomains() {
+        DomainBlocklist blocklist = DomainBlocklist.of(Arrays.asList("ads.example.com", "tracker.net"));
+        Assert.assertTrue(blocklist.isBlocked("ads.example.com"));
+        Assert.assertTrue(blocklist.isBlocked("x.ads.example.com"));
+        Assert.assertTrue(blocklist.isBlocked("a.b.c.tracker.net"));
+        Assert.assertFalse(blocklist.isBlocked("example.com"));
+        Assert.assertFalse(blocklist.isBlocked("www.example.com"));
+        // the parent must match on a label boundary
+        Assert.assertFalse(blocklist.isBlocked("bads.example.com"));
+        Assert.assertFalse(blocklist.isBlocked("nottracker.net"));
+        Assert.assertFalse(blocklist.isBlocked("tracker.network"));
+    }
+
+    @Test
+    public void testCaseAndTrailingDot() {
+        DomainBlocklist blocklist = DomainBlocklist.of(Arrays.asList("Ads.Example.COM."));
+        Assert.assertTrue(blocklist.isBlocked("ads.example.com"));
+        Assert.assertTrue(blocklist.isBlocked("ADS.EXAMPLE.COM."));
+    }
+
+    @Test
+    public void testReversedName() {
+        DomainBlocklist blocklist = DomainBlocklist.of(Arrays.asList("ads.example.com"));
+        byte[] name = "com.example.ads.x".getBytes(StandardCharsets.US_ASCII);
+        Assert.assertTrue(blocklist.isBlocked(name, name.length));
+        // only the first bytes are the name
+        Assert.assertTrue(blocklist.isBlocked(name, "com.example.ads".length()));
+        Assert.assertFalse(blocklist.isBlocked(name, "com.example".length()));
+    }
+
+    @Test
+    public void testEmpty() {
+        Assert.assertEquals(0, DomainBlocklist.EMPTY.size());
+        Assert.assertFalse(DomainBlocklist.EMPTY.isBlocked("example.com"));
+        Assert.assertEquals(0, DomainBlocklist.of(Arrays.asList("localhost", "com", "10.0.0.1")).size());
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2017 Genymobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.genymobile.gnirehtet;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+public class ExponentialBackoffPolicyTest {
+
+    private static final int SAMPLES = 1000;
+
+    private final ExponentialBackoffPolicy policy = new ExponentialBackoffPolicy(250, 15_000);
+
+    private void assertDelayBetween(int failures, long min, long max) {
+        for (int i = 0; i < SAMPLES; ++i) {
+            long delay = policy.getDelay(failures);
+            Assert.assertTrue(failures + " failures: " + delay, delay >= min && delay <= max);
+        }
+    }
+
+    @Test
+    public void testNoFailure() {
+        Assert.assertEquals(0, policy.getDelay(0));
+    }
+
+    @Test
+    public void testExponentialDelays() {
+        assertDelayBetween(1, 125, 250);
+        assertDelayBetween(2, 250, 500);
+        assertDelayBetween(3, 500, 1000);
+        assertDelayBetween(6, 4000, 8000);
+        // 16000 is capped
+        assertDelayBetween(7, 7500, 15_000);
+    }
+
+    @Test
+    public void testMaxDelay() {
+        // the shift must not overflow
+        for (int failures : new int[] {8, 30, 31, 32, 63, 64, 1000, Integer.MAX_VALUE}) {
+            assertDelayBetween(failures, 7500, 15_000);
+        }
+    }
+
+    @Test
+    public void testJitter() {
+        Set<Long> delays = new HashSet<>();
+        long sum = 0;
+        for (int i = 0; i < SAMPLES; ++i) {
+            long delay = policy.getDelay(10);
+            delays.add(delay);
+            sum += delay;
+        }
+        // spread over [7500, 15000], not in lockstep
+        Assert.assertTrue(delays.size() > SAMPLES / 2);
+        long mean = sum / SAMPLES;
+        Assert.assertTrue("Mean: " + mean, mean > 10_500 && mean < 12_000);
+    }
+}
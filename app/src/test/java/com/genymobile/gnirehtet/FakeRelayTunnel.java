@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2017 Genymobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.genymobile.gnirehtet;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link RelayTunnel} connected to an in-memory stand-in for the relay server.
+ * <p>
+ * It counts (and optionally records) what is sent, and receives what is queued by {@link #enqueue(byte[])}.
+ */
+class FakeRelayTunnel extends RelayTunnel {
+
+    private final BlockingQueue<byte[]> downstream = new LinkedBlockingQueue<>();
+    private final List<byte[]> sent = new ArrayList<>();
+    private final AtomicLong sends = new AtomicLong();
+    private final AtomicLong sentBytes = new AtomicLong();
+    private final boolean record;
+    private volatile boolean closed;
+    private byte[] pending;
+    private int pendingOffset;
+
+    FakeRelayTunnel(boolean record) {
+        this.record = record;
+    }
+
+    /**
+     * Create a pool of tunnels to a stand-in relay server, which accepts any number of connections.
+     *
+     * @param size the number of tunnels
+     * @param record {@code true} to record the content sent to the tunnels
+     * @param opened the list where the connected fake tunnels are added
+     * @return the pool
+     */
+    static RelayTunnelPool createPool(int size, boolean record, List<FakeRelayTunnel> opened) {
+        PersistentRelayTunnel[] tunnels = new PersistentRelayTunnel[size];
+        for (int i = 0; i < size; ++i) {
+            tunnels[i] = new PersistentRelayTunnel(createProvider(record, opened, ExponentialBackoffPolicy.DEFAULT, null));
+        }
+        return new RelayTunnelPool(tunnels);
+    }
+
+    static RelayTunnelProvider createProvider(boolean record, List<FakeRelayTunnel> opened, ReconnectPolicy policy,
+                                              Runnable invalidationListener) {
+        return new RelayTunnelProvider(null, null, invalidationListener, policy, new ForwarderStats()) {
+            @Override
+            RelayTunnel openTunnel() {
+                FakeRelayTunnel tunnel = new FakeRelayTunnel(record);
+                synchronized (opened) {
+                    opened.add(tunnel);
+                }
+                return tunnel;
+            }
+        };
+    }
+
+    @Override
+    public void connect() throws IOException {
+        if (closed) {
+            throw new IOException("Closed");
+        }
+    }
+
+    @Override
+    public void send(byte[] packet, int len) throws IOException {
+        onSend(ByteBuffer.wrap(packet, 0, len));
+    }
+
+    @Override
+    public void send(ByteBuffer packet) throws IOException {
+        onSend(packet);
+    }
+
+    private void onSend(ByteBuffer packet) throws IOException {
+        if (closed) {
+            throw new IOException("Closed");
+        }
+        sends.incrementAndGet();
+        sentBytes.addAndGet(packet.remaining());
+        if (record) {
+            byte[] data = new byte[packet.remaining()];
+            packet.get(data);
+            synchronized (sent) {
+                sent.add(data);
+            }
+        } else {
+            packet.position(packet.limit());
+        }
+    }
+
+    @Override
+    public int receive(byte[] packet) throws IOException {
+        return receive(ByteBuffer.wrap(packet));
+    }
+
+    @Override
+    public int receive(ByteBuffer packet) throws IOException {
+        try {
+            while (pending == null) {
+                if (closed) {
+                    return -1;
+                }
+                pending = downstream.poll(10, TimeUnit.MILLISECONDS);
+                pendingOffset = 0;
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+        int r = Math.min(packet.remaining(), pending.length - pendingOffset);
+        packet.put(pending, pendingOffset, r);
+        pendingOffset += r;
+        if (pendingOffset == pending.length) {
+            pending = null;
+        }
+        return r;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Queue data sent by the relay server to the device.
+     */
+    void enqueue(byte[] data) {
+        downstream.add(data);
+    }
+
+    long getSends() {
+        return sends.get();
+    }
+
+    long getSentBytes() {
+        return sentBytes.get();
+    }
+
+    List<byte[]> getSent() {
+        synchronized (sent) {
+            return new ArrayList<>(sent);
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2017 Genymobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.genymobile.gnirehtet;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Check how {@link IPPackets#flowHash(ByteBuffer, int, int)} spreads the flows over the tunnels of a
+ * {@link RelayTunnelPool}, and measure its cost.
+ */
+@Category(Benchmark.class)
+public class FlowHashBenchmark {
+
+    private static final BenchmarkReport REPORT = new BenchmarkReport(FlowHashBenchmark.class);
+
+    private static final int FLOWS = 4096;
+    private static final int SERVERS = 8;
+    private static final int HASHES = 10_000_000;
+    // maximal deviation of a tunnel from its fair share of the flows
+    private static final double MAX_IMBALANCE = 0.15;
+
+    @Test
+    public void distribution() throws IOException {
+        ByteBuffer[] packets = createFirstPackets();
+        for (int size : new int[] {2, 3, 4, 8}) {
+            RelayTunnelPool pool = FakeRelayTunnel.createPool(size, false, new ArrayList<>());
+            int[] flows = new int[size];
+            for (ByteBuffer packet : packets) {
+                ++flows[pool.select(IPPackets.flowHash(packet, 0, packet.remaining()))];
+            }
+            int min = Integer.MAX_VALUE;
+            int max = 0;
+            for (int count : flows) {
+                min = Math.min(min, count);
+                max = Math.max(max, count);
+            }
+            double share = (double) FLOWS / size;
+            REPORT.add("Flow hash over %d tunnels: %d to %d flows per tunnel (fair share %.0f)", size, min, max, share);
+            Assert.assertTrue(min >= share * (1 - MAX_IMBALANCE));
+            Assert.assertTrue(max <= share * (1 + MAX_IMBALANCE));
+        }
+    }
+
+    @Test
+    public void flowsStayOnOneTunnel() throws IOException {
+        List<FakeRelayTunnel> tunnels = new ArrayList<>();
+        RelayTunnelPool pool = FakeRelayTunnel.createPool(4, true, tunnels);
+        // one tunnel write per packet
+        TunnelSender sender = new TunnelSender(pool, (packet, upstream) -> false, new FlowTable(), new ForwarderOptions(),
+                false, new ForwarderStats());
+
+        int device = TestPackets.address(10, 0, 0, 2);
+        int server = TestPackets.address(93, 184, 216, 34);
+        for (int port = 40000; port < 40256; ++port) {
+            // the packets of a connection differ by their flags, sequence numbers and lengths, but not by their 5-tuple
+            sender.send(TestPackets.tcp(device, port, server, 443, 1000, 0, TestPackets.SYN, 0));
+            sender.send(TestPackets.tcp(device, port, server, 443, 1001, 1, TestPackets.ACK, 0));
+            sender.send(TestPackets.tcp(device, port, server, 443, 1001, 1, TestPackets.PSH | TestPackets.ACK, 517));
+            sender.send(TestPackets.tcp(device, port, server, 443, 1518, 1, TestPackets.FIN | TestPackets.ACK, 0));
+            sender.send(TestPackets.udp(device, port, server, 443, new byte[1200]));
+        }
+
+        Map<String, FakeRelayTunnel> tunnelByFlow = new HashMap<>();
+        int packets = 0;
+        for (FakeRelayTunnel tunnel : tunnels) {
+            for (byte[] data : tunnel.getSent()) {
+                ByteBuffer packet = ByteBuffer.wrap(data);
+                String flow = IPPackets.readProtocol(packet, 0) + ":" + Binary.unsigned(packet.getShort(20));
+                FakeRelayTunnel previous = tunnelByFlow.put(flow, tunnel);
+                Assert.assertTrue("Flow " + flow + " sent to several tunnels", previous == null || previous == tunnel);
+                ++packets;
+            }
+        }
+        Assert.assertEquals(256 * 5, packets);
+        Assert.assertEquals(256 * 2, tunnelByFlow.size());
+    }
+
+    @Test
+    public void hashCost() throws IOException {
+        ByteBuffer[] packets = createFirstPackets();
+        int sink = 0;
+        // warm up
+        for (int i = 0; i < HASHES / 4; ++i) {
+            ByteBuffer packet = packets[i % FLOWS];
+            sink += IPPackets.flowHash(packet, 0, packet.remaining());
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < HASHES; ++i) {
+            ByteBuffer packet = packets[i % FLOWS];
+            sink += IPPackets.flowHash(packet, 0, packet.remaining());
+        }
+        long elapsed = System.nanoTime() - start;
+        REPORT.add("Flow hash: %.1f ns/packet (%d)", (double) elapsed / HASHES, sink & 1);
+    }
+
+    /**
+     * Create the first packet of each flow: a single device opening connections to a few servers, from consecutive
+     * ports, as a browser does.
+     */
+    private static ByteBuffer[] createFirstPackets() {
+        ByteBuffer[] packets = new ByteBuffer[FLOWS];
+        int device = TestPackets.address(10, 0, 0, 2);
+        for (int i = 0; i < FLOWS; ++i) {
+            int server = TestPackets.address(93, 184, 216, 34 + i % SERVERS);
+            int port = 40000 + i / SERVERS;
+            packets[i] = i % 4 == 3
+                    ? TestPackets.udp(device, port, server, 53, new byte[32])
+                    : TestPackets.tcp(device, port, server, 443, 1000, 0, TestPackets.SYN, 0);
+        }
+        return packets;
+    }
+}
@@ -0,0 +1,311 @@
+/*
+ * Copyright (C) 2017 Genymobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.genymobile.gnirehtet;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+public class FlowTableTest {
+
+    private static final int DEVICE = TestPackets.address(10, 0, 0, 2);
+    private static final int SERVER = TestPackets.address(93, 184, 216, 34);
+
+    private static final class CapturingSink implements PacketSink {
+        private final List<ByteBuffer> packets = new ArrayList<>();
+
+        @Override
+        public void write(ByteBuffer packet) {
+            ByteBuffer copy = ByteBuffer.allocate(packet.remaining());
+            copy.put(packet);
+            copy.flip();
+            packets.add(copy);
+        }
+    }
+
+    private static void up(FlowTable table, ByteBuffer packet, int tunnelIndex) {
+        table.onUpstreamPacket(packet, 0, packet.limit(), tunnelIndex, 0);
+    }
+
+    private static void down(FlowTable table, ByteBuffer packet) {
+        table.onDownstreamPacket(packet, 0, packet.limit(), 0);
+    }
+
+    private static ByteBuffer fromDevice(int port, int seq, int ack, int flags, int payloadLength) {
+        return TestPackets.tcp(DEVICE, port, SERVER, 443, seq, ack, flags, payloadLength);
+    }
+
+    private static ByteBuffer toDevice(int port, int seq, int ack, int flags, int payloadLength) {
+        return TestPackets.tcp(SERVER, 443, DEVICE, port, seq, ack, flags, payloadLength);
+    }
+
+    private static void checkReset(ByteBuffer reset, int port, int seq, int ack) {
+        Assert.assertEquals(0, TestPackets.ipChecksum(reset));
+        Assert.assertEquals(0, TestPackets.transportChecksum(reset, IPPackets.PROTOCOL_TCP));
+        // from the server to the device
+        Assert.assertEquals(SERVER, reset.getInt(12));
+        Assert.assertEquals(DEVICE, reset.getInt(16));
+        Assert.assertEquals(443, Binary.unsigned(reset.getShort(20)));
+        Assert.assertEquals(port, Binary.unsigned(reset.getShort(22)));
+        Assert.assertEquals(seq, reset.getInt(24));
+        Assert.assertEquals(ack, reset.getInt(28));
+        Assert.assertEquals(TcpPackets.FLAG_RST | TcpPackets.FLAG_ACK, TcpPackets.readFlags(reset, 20));
+    }
+
+    @Test
+    public void testResetEstablishedConnection() throws IOException {
+        FlowTable table = new FlowTable();
+        up(table, fromDevice(40000, 1000, 0, TestPackets.SYN, 0), 0);
+        down(table, toDevice(40000, 5000, 1001, TestPackets.SYN | TestPackets.ACK, 0));
+        up(table, fromDevice(40000, 1001, 5001, TestPackets.ACK, 100), 0);
+        down(table, toDevice(40000, 5001, 1101, TestPackets.ACK, 200));
+        Assert.assertEquals(1, table.size());
+
+        CapturingSink sink = new CapturingSink();
+        Assert.assertEquals(1, table.resetTcpConnections(0, sink));
+        Assert.assertEquals(1, sink.packets.size());
+        // the next sequence numbers expected by each side
+        checkReset(sink.packets.get(0), 40000, 5201, 1101);
+        Assert.assertEquals(0, table.size());
+    }
+
+    @Test
+    public void testResetConnectionWithoutResponse() {
+        FlowTable table = new FlowTable();
+        up(table, fromDevice(40000, 1000, 0, TestPackets.SYN, 0), 0);
+
+        CapturingSink sink = new CapturingSink();
+        Assert.assertEquals(1, table.resetTcpConnections(0, sink));
+        // in SYN-SENT state, the sequence number of the RST is ignored, but the ACK must acknowledge the SYN
+        checkReset(sink.packets.get(0), 40000, 0, 1001);
+    }
+
+    @Test
+    public void testResetOnlyOpenConnectionsOfTheTunnel() {
+        FlowTable table = new FlowTable();
+        // on tunnel 0
+        up(table, fromDevice(40000, 1000, 0, TestPackets.SYN, 0), 0);
+        // on tunnel 1
+        up(table, fromDevice(40001, 2000, 0, TestPackets.SYN, 0), 1);
+        // closed in both directions
+        up(table, fromDevice(40002, 3000, 0, TestPackets.SYN, 0), 0);
+        down(table, toDevice(40002, 7000, 3001, TestPackets.SYN | TestPackets.ACK, 0));
+        up(table, fromDevice(40002, 3001, 7001, TestPackets.FIN | TestPackets.ACK, 0), 0);
+        down(table, toDevice(40002, 7001, 3002, TestPackets.FIN | TestPackets.ACK, 0));
+        // UDP
+        ByteBuffer datagram = TestPackets.udp(DEVICE, 40003, SERVER, 443, new byte[10]);
+        up(table, datagram, 0);
+        Assert.assertEquals(4, table.size());
+
+        CapturingSink sink = new CapturingSink();
+        Assert.assertEquals(1, table.resetTcpConnections(0, sink));
+        Assert.assertEquals(40000, Binary.unsigned(sink.packets.get(0).getShort(22)));
+        Assert.assertEquals(3, table.size());
+
+        Assert.assertEquals(0, table.resetTcpConnections(0, sink));
+        Assert.assertEquals(1, table.resetTcpConnections(1, sink));
+        Assert.assertEquals(40001, Binary.unsigned(sink.packets.get(1).getShort(22)));
+    }
+
+    @Test
+    public void testResetWriteFailure() {
+        FlowTable table = new FlowTable();
+        up(table, fromDevice(40000, 1000, 0, TestPackets.SYN, 0), 0);
+        up(table, fromDevice(40001, 1000, 0, TestPackets.SYN, 0), 0);
+        // the connections are forgotten anyway
+        Assert.assertEquals(0, table.resetTcpConnections(0, packet -> {
+            throw new IOException("Device closed");
+        }));
+        Assert.assertEquals(0, table.size());
+    }
+
+    @Test
+    public void testInsertAndUpdate() {
+        FlowTable table = new FlowTable();
+        up(table, fromDevice(40000, 1000, 0, TestPackets.SYN, 0), 2);
+        down(table, toDevice(40000, 5000, 1001, TestPackets.SYN | TestPackets.ACK, 0));
+        up(table, fromDevice(40000, 1001, 5001, TestPackets.ACK, 100), 2);
+        // not the same flow (another port)
+        down(table, toDevice(40001, 5000, 1001, TestPackets.ACK, 50));
+
+        List<FlowSnapshot> flows = table.snapshot(0);
+        Assert.assertEquals(1, flows.size());
+        FlowSnapshot flow = flows.get(0);
+        Assert.assertTrue(flow.isTcp());
+        Assert.assertEquals(DEVICE, flow.getSourceAddress());
+        Assert.assertEquals(40000, flow.getSourcePort());
+        Assert.assertEquals(SERVER, flow.getDestinationAddress());
+        Assert.assertEquals(443, flow.getDestinationPort());
+        Assert.assertEquals(FlowSnapshot.State.ESTABLISHED, flow.getState());
+        Assert.assertEquals(2, flow.getUpstreamPackets());
+        Assert.assertEquals(40 + 140, flow.getUpstreamBytes());
+        Assert.assertEquals(1, flow.getDownstreamPackets());
+        Assert.assertEquals(40, flow.getDownstreamBytes());
+    }
+
+    @Test
+    public void testTrackTcpFromSynOnly() {
+        FlowTable table = new FlowTable();
+        // a connection opened before the VPN (re)started
+        up(table, fromDevice(40000, 1000, 1, TestPackets.ACK, 100), 0);
+        Assert.assertEquals(0, table.size());
+        // UDP has no state
+        up(table, TestPackets.udp(DEVICE, 40000, SERVER, 53, new byte[10]), 0);
+        Assert.assertEquals(1, table.size());
+        // a datagram from the server is not a new flow
+        down(table, TestPackets.udp(SERVER, 53, DEVICE, 40001, new byte[10]));
+        Assert.assertEquals(1, table.size());
+    }
+
+    @Test
+    public void testRemoveOnReset() {
+        FlowTable table = new FlowTable();
+        up(table, fromDevice(40000, 1000, 0, TestPackets.SYN, 0), 0);
+        up(table, fromDevice(40001, 1000, 0, TestPackets.SYN, 0), 0);
+        Assert.assertEquals(2, table.size());
+        up(table, fromDevice(40000, 1001, 0, TestPackets.RST, 0), 0);
+        Assert.assertEquals(1, table.size());
+        down(table, toDevice(40001, 0, 1001, TestPackets.RST | TestPackets.ACK, 0));
+        Assert.assertEquals(0, table.size());
+        // unknown flows
+        up(table, fromDevice(40002, 1001, 0, TestPackets.RST, 0), 0);
+        down(table, toDevice(40002, 0, 1001, TestPackets.RST | TestPackets.ACK, 0));
+        Assert.assertEquals(0, table.size());
+    }
+
+    @Test
+    public void testRemoveShiftsBackClusters() {
+        // enough flows for long probing clusters, wrapping around the end of the table
+        int count = 12_000;
+        FlowTable table = new FlowTable();
+        for (int i = 0; i < count; ++i) {
+            up(table, TestPackets.tcp(DEVICE + i % 7, 1024 + i, SERVER + i % 5, 443, i, 0, TestPackets.SYN, 0), 0);
+        }
+        Assert.assertEquals(count, table.size());
+
+        Random random = new Random(42);
+        boolean[] removed = new boolean[count];
+        int remaining = count;
+        for (int i = 0; i < count; ++i) {
+            if (random.nextInt(3) == 0) {
+                removed[i] = true;
+                --remaining;
+                up(table, TestPackets.tcp(DEVICE + i % 7, 1024 + i, SERVER + i % 5, 443, i + 1, 0, TestPackets.RST, 0), 0);
+            }
+        }
+        Assert.assertEquals(remaining, table.size());
+
+        // every remaining flow must still be found, with its own counters
+        for (int i = 0; i < count; ++i) {
+            down(table, TestPackets.tcp(SERVER + i % 5, 443, DEVICE + i % 7, 1024 + i, 0, i + 1, TestPackets.ACK, i % 100));
+        }
+        Map<Integer, FlowSnapshot> flows = new HashMap<>();
+        for (FlowSnapshot flow : table.snapshot(0)) {
+            Assert.assertNull(flows.put(flow.getSourcePort() - 1024, flow));
+        }
+        Assert.assertEquals(remaining, flows.size());
+        for (int i = 0; i < count; ++i) {
+            FlowSnapshot flow = flows.get(i);
+            if (removed[i]) {
+                Assert.assertNull(flow);
+            } else {
+                Assert.assertEquals(DEVICE + i % 7, flow.getSourceAddress());
+                Assert.assertEquals(SERVER + i % 5, flow.getDestinationAddress());
+                Assert.assertEquals(1, flow.getUpstreamPackets());
+                Assert.assertEquals(1, flow.getDownstreamPackets());
+                Assert.assertEquals(40 + i % 100, flow.getDownstreamBytes());
+            }
+        }
+
+        // the removed flows may be inserted again
+        for (int i = 0; i < count; ++i) {
+            if (removed[i]) {
+                up(table, TestPackets.tcp(DEVICE + i % 7, 1024 + i, SERVER + i % 5, 443, i, 0, TestPackets.SYN, 0), 0);
+            }
+        }
+        Assert.assertEquals(count, table.size());
+    }
+
+    @Test
+    public void testEvictIdleFlowsWhenFull() {
+        FlowTable table = new FlowTable();
+        // UDP flows, idle after 1 minute
+        for (int i = 0; i < 20_000; ++i) {
+            table.onUpstreamPacket(TestPackets.udp(DEVICE, 1024 + i, SERVER, 443, new byte[0]), 0, 28, 0, 0);
+        }
+        int max = table.size();
+        Assert.assertTrue(max < 20_000);
+
+        // still active, the table is full
+        table.onUpstreamPacket(TestPackets.udp(DEVICE, 30000, SERVER, 443, new byte[0]), 0, 28, 0, 1000);
+        Assert.assertEquals(max, table.size());
+
+        // all idle, the flows of its stripe are evicted to make room
+        table.onUpstreamPacket(TestPackets.udp(DEVICE, 30000, SERVER, 443, new byte[0]), 0, 28, 0, 2 * 60 * 1000);
+        Assert.assertTrue(table.size() < max);
+        // the other stripes are evicted on snapshot
+        Assert.assertEquals(1, table.snapshot(2 * 60 * 1000).size());
+        Assert.assertEquals(1, table.size());
+    }
+
+    @Test
+    public void testResetWithoutBlockingForwarding() throws InterruptedException {
+        FlowTable table = new FlowTable();
+        for (int port = 40000; port < 40100; ++port) {
+            up(table, fromDevice(port, 1000, 0, TestPackets.SYN, 0), 0);
+        }
+
+        // while a RST is written, the packets of the same flows must still be recorded by the other threads
+        int[] recorded = new int[1];
+        PacketSink sink = packet -> {
+            int port = Binary.unsigned(packet.getShort(packet.position() + 22));
+            Thread thread = new Thread(() -> {
+                down(table, toDevice(port, 5000, 1001, TestPackets.RST, 0));
+                ++recorded[0];
+            });
+            thread.start();
+            try {
+                thread.join(1000);
+            } catch (InterruptedException e) {
+                throw new AssertionError(e);
+            }
+        };
+        Assert.assertEquals(100, table.resetTcpConnections(0, sink));
+        Assert.assertEquals(100, recorded[0]);
+        Assert.assertEquals(0, table.size());
+    }
+
+    @Test
+    public void testIgnoreIPv6() {
+        FlowTable table = new FlowTable();
+        ByteBuffer packet = ByteBuffer.allocate(60);
+        packet.put(0, (byte) 0x60);
+        packet.putShort(4, (short) 20); // payload length
+        packet.put(6, (byte) IPPackets.PROTOCOL_TCP);
+        packet.put(40 + 12, (byte) (5 << 4));
+        packet.put(40 + 13, (byte) TestPackets.SYN);
+        up(table, packet, 0);
+        Assert.assertEquals(0, table.size());
+    }
+}
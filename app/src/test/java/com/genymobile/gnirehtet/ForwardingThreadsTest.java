@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2017 Genymobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.genymobile.gnirehtet;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class ForwardingThreadsTest {
+
+    private static final int CYCLES = 200;
+    private static final int TASKS = 3;
+
+    private static int countThreads(String prefix) {
+        int count = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith(prefix)) {
+                ++count;
+            }
+        }
+        return count;
+    }
+
+    private static void blockUntilInterrupted(CountDownLatch started) {
+        started.countDown();
+        try {
+            Thread.sleep(Long.MAX_VALUE);
+        } catch (InterruptedException e) {
+            // stopped
+        }
+    }
+
+    @Test
+    public void testRestartCycles() throws InterruptedException {
+        for (int i = 0; i < CYCLES; ++i) {
+            ForwardingThreads threads = new ForwardingThreads("test-cycle-" + i);
+            CountDownLatch started = new CountDownLatch(TASKS);
+            for (int j = 0; j < TASKS; ++j) {
+                threads.start("task" + j, () -> blockUntilInterrupted(started));
+            }
+            Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+            Assert.assertEquals(TASKS, countThreads("test-cycle-" + i + "-"));
+
+            threads.interrupt();
+            Assert.assertTrue(threads.join(5000));
+        }
+        // no thread leaked
+        Assert.assertEquals(0, countThreads("test-cycle-"));
+    }
+
+    @Test
+    public void testJoinTimeout() throws InterruptedException {
+        ForwardingThreads threads = new ForwardingThreads("test-stuck");
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        threads.start("task", () -> {
+            started.countDown();
+            // ignore the interruptions, like a thread blocked on I/O
+            while (true) {
+                try {
+                    release.await();
+                    return;
+                } catch (InterruptedException e) {
+                    // keep waiting
+                }
+            }
+        });
+        Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        threads.interrupt();
+        long start = System.nanoTime();
+        Assert.assertFalse(threads.join(100));
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        Assert.assertTrue("Waited " + elapsedMs + "ms", elapsedMs >= 100 && elapsedMs < 2000);
+
+        // a new session does not wait for it
+        ForwardingThreads next = new ForwardingThreads("test-next");
+        next.start("task", () -> { });
+        Assert.assertTrue(next.join(5000));
+
+        release.countDown();
+        Assert.assertTrue(threads.join(5000));
+    }
+
+    @Test
+    public void testJoinPreservesInterruption() {
+        ForwardingThreads threads = new ForwardingThreads("test-interrupted");
+        threads.start("task", () -> { });
+        Thread.currentThread().interrupt();
+        Assert.assertTrue(threads.join(5000));
+        // the flag is restored for the caller
+        Assert.assertTrue(Thread.interrupted());
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2017 Genymobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.genymobile.gnirehtet;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Compare {@link IPPacketReassembler} with the previous implementation, which copied every received chunk into its
+ * buffer, then compacted it after writing the complete packets.
+ * <p>
+ * Both count the packets in the {@link ForwarderStats}, which costs more than the copies for small packets.
+ */
+@Category(Benchmark.class)
+public class IPPacketReassemblerBenchmark {
+
+    private static final BenchmarkReport REPORT = new BenchmarkReport(IPPacketReassemblerBenchmark.class);
+
+    private static final int STREAM_PACKETS = 4096;
+    private static final int CHUNK_SIZE = 8192;
+    private static final long STREAM_BYTES = 256L << 20;
+
+    /**
+     * The reassembly of the previous IPPacketOutputStream: copy, then flip(), write, compact().
+     */
+    private static final class CompactingReassembler {
+        private final ByteBuffer buffer = ByteBuffer.allocate(0x20000);
+        private final byte[] receiveBuffer = new byte[0x10000];
+        private final ByteBuffer packetView = buffer.duplicate();
+        private final PacketSink sink;
+        private final ForwarderStats stats;
+
+        CompactingReassembler(PacketSink sink, ForwarderStats stats) {
+            this.sink = sink;
+            this.stats = stats;
+        }
+
+        int receive(Tunnel tunnel) throws IOException {
+            int r = tunnel.receive(receiveBuffer);
+            if (r > 0) {
+                buffer.put(receiveBuffer, 0, r);
+                buffer.flip();
+                while (true) {
+                    int packetLength = IPPackets.frame(buffer, buffer.position(), buffer.remaining());
+                    if (packetLength <= 0 || packetLength > buffer.remaining()) {
+                        break;
+                    }
+                    packetView.limit(buffer.position() + packetLength);
+                    packetView.position(buffer.position());
+                    sink.write(packetView);
+                    stats.onDownstreamPacket(packetLength);
+                    buffer.position(buffer.position() + packetLength);
+                }
+                buffer.compact();
+            }
+            return r;
+        }
+    }
+
+    private interface Receiver {
+        int receive(Tunnel tunnel) throws IOException;
+    }
+
+    @Test
+    public void ackHeavy() throws IOException {
+        compare("ACK-heavy", createStream(new int[] {0}));
+    }
+
+    @Test
+    public void mtuSized() throws IOException {
+        compare("MTU-sized", createStream(new int[] {1460}));
+    }
+
+    @Test
+    public void mixed() throws IOException {
+        compare("mixed", createStream(new int[] {0, 0, 100, 536, 1460, 1460}));
+    }
+
+    @Test
+    public void corrupted() throws IOException {
+        // 7 zero bytes (an invalid IP version) every 64 packets
+        ByteBuffer garbage = ByteBuffer.allocate(7);
+        ByteBuffer[] parts = new ByteBuffer[STREAM_PACKETS + STREAM_PACKETS / 64];
+        int device = TestPackets.address(10, 0, 0, 2);
+        int server = TestPackets.address(93, 184, 216, 34);
+        int j = 0;
+        for (int i = 0; i < STREAM_PACKETS; ++i) {
+            if (i % 64 == 63) {
+                parts[j++] = garbage;
+            }
+            parts[j++] = TestPackets.tcp(server, 443, device, 40000, i, 1, TestPackets.ACK, 536);
+        }
+        byte[] stream = StreamTunnel.concat(parts);
+
+        long[] packets = new long[1];
+        ForwarderStats stats = new ForwarderStats();
+        IPPacketReassembler reassembler = new IPPacketReassembler(false, MtuTuner.DEFAULT_MTU, packet -> ++packets[0], stats);
+        Tunnel tunnel = new StreamTunnel(stream, CHUNK_SIZE, false);
+        long start = System.nanoTime();
+        while (reassembler.receive(tunnel) != -1) {
+            // continue
+        }
+        long elapsed = System.nanoTime() - start;
+
+        REPORT.add("Reassembler corrupted: %d packets, %d resyncs in %d us", packets[0], stats.getResyncs(), elapsed / 1000);
+        // every corruption costs no packet at all
+        Assert.assertEquals(STREAM_PACKETS, packets[0]);
+        Assert.assertTrue(stats.getResyncs() >= STREAM_PACKETS / 64);
+        Assert.assertEquals(STREAM_PACKETS / 64 * 7, stats.getResyncDroppedBytes());
+    }
+
+    private static void compare(String name, byte[] stream) throws IOException {
+        long[] packets = new long[1];
+        PacketSink sink = packet -> ++packets[0];
+
+        IPPacketReassembler reassembler = new IPPacketReassembler(false, MtuTuner.DEFAULT_MTU, sink, new ForwarderStats());
+        CompactingReassembler compacting = new CompactingReassembler(sink, new ForwarderStats());
+
+        // each reassembler keeps its pending partial packet between runs, so it must keep its tunnel
+        Tunnel inPlaceTunnel = new StreamTunnel(stream, CHUNK_SIZE, true);
+        Tunnel compactingTunnel = new StreamTunnel(stream, CHUNK_SIZE, true);
+
+        // warm up
+        run(reassembler::receive, inPlaceTunnel, STREAM_BYTES / 8);
+        run(compacting::receive, compactingTunnel, STREAM_BYTES / 8);
+
+        packets[0] = 0;
+        double inPlace = run(reassembler::receive, inPlaceTunnel, STREAM_BYTES);
+        long inPlacePackets = packets[0];
+        packets[0] = 0;
+        double compacted = run(compacting::receive, compactingTunnel, STREAM_BYTES);
+        long compactedPackets = packets[0];
+
+        REPORT.add("Reassembler %s: in place %.0f MB/s, compacting %.0f MB/s", name, inPlace, compacted);
+        Assert.assertTrue(inPlacePackets > 0);
+        // the same number of bytes from the same stream, give or take one packet at each end
+        Assert.assertEquals(compactedPackets, inPlacePackets, 2);
+    }
+
+    private static double run(Receiver receiver, Tunnel tunnel, long bytes) throws IOException {
+        long received = 0;
+        long start = System.nanoTime();
+        while (received < bytes) {
+            received += receiver.receive(tunnel);
+        }
+        long elapsed = System.nanoTime() - start;
+        return received * 1000.0 / elapsed;
+    }
+
+    private static byte[] createStream(int[] payloadLengths) {
+        Random random = new Random(42);
+        ByteBuffer[] packets = new ByteBuffer[STREAM_PACKETS];
+        int device = TestPackets.address(10, 0, 0, 2);
+        int server = TestPackets.address(93, 184, 216, 34);
+        for (int i = 0; i < packets.length; ++i) {
+            int payloadLength = payloadLengths[random.nextInt(payloadLengths.length)];
+            packets[i] = TestPackets.tcp(server, 443, device, 40000, i, 1, TestPackets.ACK, payloadLength);
+        }
+        return StreamTunnel.concat(packets);
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2017 Genymobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.genymobile.gnirehtet;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class IPPacketReassemblerTest {
+
+    private static final int DEVICE = TestPackets.address(10, 0, 0, 2);
+    private static final int SERVER = TestPackets.address(93, 184, 216, 34);
+    private static final byte[] DEVICE6 = TestPackets.address6("fd00::2");
+    private static final byte[] SERVER6 = TestPackets.address6("2001:db8::1");
+
+    // many lowercase letters start with 0x6, like an IPv6 header, and many uppercase letters with 0x4
+    private static final byte[] ASCII = ("HTTP/1.1 200 OK\r\nContent-Type: text/html; charset=utf-8\r\nServer: nginx\r\n\r\n"
+            + "<html><body>lorem ipsum dolor sit amet</body></html>").getBytes(StandardCharsets.US_ASCII);
+
+    private static final int[] CHUNK_SIZES = {8192, 1500, 100};
+
+    private static final class CapturingSink implements PacketSink {
+        private final List<ByteBuffer> packets = new ArrayList<>();
+
+        @Override
+        public void write(ByteBuffer packet) {
+            ByteBuffer copy = ByteBuffer.allocate(packet.remaining());
+            copy.put(packet);
+            copy.flip();
+            packets.add(copy);
+        }
+    }
+
+    private static ByteBuffer[] createPackets(int count) {
+        ByteBuffer[] packets = new ByteBuffer[count];
+        for (int i = 0; i < count; ++i) {
+            switch (i % 4) {
+                case 0:
+                    packets[i] = TestPackets.tcp(SERVER, 443, DEVICE, 40000, i, 1, TestPackets.ACK, 100 * i);
+                    break;
+                case 1:
+                    packets[i] = TestPackets.udp(SERVER, 53, DEVICE, 40001, new byte[i]);
+                    break;
+                case 2:
+                    packets[i] = TestPackets.tcp6(SERVER6, 443, DEVICE6, 40002, i, 1, TestPackets.ACK, 100 * i);
+                    break;
+                default:
+                    packets[i] = TestPackets.udp6(SERVER6, 53, DEVICE6, 40003, new byte[i]);
+                    break;
+            }
+        }
+        return packets;
+    }
+
+    private static byte[] randomGarbage(Random random) {
+        byte[] garbage = new byte[1 + random.nextInt(200)];
+        random.nextBytes(garbage);
+        return garbage;
+    }
+
+    private static List<ByteBuffer> reassemble(byte[] stream, int chunkSize, ForwarderStats stats) throws IOException {
+        CapturingSink sink = new CapturingSink();
+        IPPacketReassembler reassembler = new IPPacketReassembler(false, MtuTuner.DEFAULT_MTU, sink, stats);
+        Tunnel tunnel = new StreamTunnel(stream, chunkSize, false);
+        while (reassembler.receive(tunnel) != -1) {
+            // continue
+        }
+        return sink.packets;
+    }
+
+    private static void assertReceived(ByteBuffer[] expected, int lost, List<ByteBuffer> received) {
+        List<ByteBuffer> remaining = new ArrayList<>();
+        for (int i = 0; i < expected.length; ++i) {
+            if (i != lost) {
+                remaining.add(expected[i]);
+            }
+        }
+        Assert.assertEquals(remaining, received);
+    }
+
+    private static void checkGarbageBeforePacket(boolean ascii) throws IOException {
+        Random random = new Random(42);
+        ByteBuffer[] packets = createPackets(12);
+        for (int corrupted = 0; corrupted < packets.length; ++corrupted) {
+            ByteBuffer[] parts = new ByteBuffer[packets.length + 1];
+            System.arraycopy(packets, 0, parts, 0, corrupted);
+            parts[corrupted] = ByteBuffer.wrap(ascii ? ASCII : randomGarbage(random));
+            System.arraycopy(packets, corrupted, parts, corrupted + 1, packets.length - corrupted);
+            byte[] stream = StreamTunnel.concat(parts);
+            for (int chunkSize : CHUNK_SIZES) {
+                ForwarderStats stats = new ForwarderStats();
+                // no packet is lost
+                assertReceived(packets, -1, reassemble(stream, chunkSize, stats));
+                Assert.assertEquals(parts[corrupted].remaining(), stats.getResyncDroppedBytes());
+            }
+        }
+    }
+
+    @Test
+    public void testRandomBytesBeforePacket() throws IOException {
+        checkGarbageBeforePacket(false);
+    }
+
+    @Test
+    public void testAsciiBeforePacket() throws IOException {
+        checkGarbageBeforePacket(true);
+    }
+
+    private static void checkCorruptedPacket(boolean ascii) throws IOException {
+        Random random = new Random(42);
+        ByteBuffer[] packets = createPackets(12);
+        for (int corrupted = 0; corrupted < packets.length; ++corrupted) {
+            ByteBuffer[] parts = packets.clone();
+            // overwrite the beginning of the packet, including its header
+            ByteBuffer packet = ByteBuffer.allocate(packets[corrupted].remaining());
+            packet.put(packets[corrupted].duplicate());
+            byte[] garbage = ascii ? ASCII : randomGarbage(random);
+            packet.position(0);
+            packet.put(garbage, 0, Math.min(garbage.length, packet.capacity()));
+            packet.clear();
+            parts[corrupted] = packet;
+            byte[] stream = StreamTunnel.concat(parts);
+            for (int chunkSize : CHUNK_SIZES) {
+                assertReceived(packets, corrupted, reassemble(stream, chunkSize, new ForwarderStats()));
+            }
+        }
+    }
+
+    @Test
+    public void testRandomBytesInsteadOfHeader() throws IOException {
+        checkCorruptedPacket(false);
+    }
+
+    @Test
+    public void testAsciiInsteadOfHeader() throws IOException {
+        checkCorruptedPacket(true);
+    }
+
+    @Test
+    public void testWrongNextHeader() throws IOException {
+        ByteBuffer packet = TestPackets.udp6(SERVER6, 53, DEVICE6, 40000, new byte[10]);
+        Assert.assertEquals(58, IPPackets.frame(packet, 0, packet.remaining()));
+        // an IPv6 header announcing an unknown protocol is not plausible
+        packet.put(6, (byte) 0xfe);
+        Assert.assertEquals(IPPackets.INVALID, IPPackets.frame(packet, 0, packet.remaining()));
+    }
+
+    @Test
+    public void testPayloadTooShort() {
+        ByteBuffer packet = TestPackets.tcp6(SERVER6, 443, DEVICE6, 40000, 1, 1, TestPackets.ACK, 0);
+        Assert.assertEquals(60, IPPackets.frame(packet, 0, packet.remaining()));
+        // a TCP header takes at least 20 bytes
+        packet.putShort(4, (short) 12);
+        Assert.assertEquals(IPPackets.INVALID, IPPackets.frame(packet, 0, packet.remaining()));
+    }
+
+    @Test
+    public void testPacketTooLong() throws IOException {
+        ByteBuffer packet = TestPackets.udp6(SERVER6, 53, DEVICE6, 40000, new byte[MtuTuner.DEFAULT_MTU]);
+        ByteBuffer next = TestPackets.udp(SERVER, 53, DEVICE, 40000, new byte[10]);
+        List<ByteBuffer> received = reassemble(StreamTunnel.concat(packet, next), 8192, new ForwarderStats());
+        // larger than the relay server ever sends, so skipped as invalid
+        Assert.assertEquals(1, received.size());
+        Assert.assertEquals(next, received.get(0));
+    }
+}
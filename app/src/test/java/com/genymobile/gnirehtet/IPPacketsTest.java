@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2017 Genymobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.genymobile.gnirehtet;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+public class IPPacketsTest {
+
+    private static final int HOP_BY_HOP_OPTIONS = 0;
+    private static final int FRAGMENT = 44;
+    private static final int DESTINATION_OPTIONS = 60;
+    private static final int SCTP = 132;
+
+    private static final byte[] DEVICE = TestPackets.address6("fd00::2");
+    private static final byte[] SERVER = TestPackets.address6("2001:db8::1");
+
+    /**
+     * Build an 8-byte extension header (or fragment header) followed by {@code payload}.
+     */
+    private static byte[] withExtensionHeader(int nextHeader, int fragmentOffset, byte[] payload) {
+        byte[] data = new byte[8 + payload.length];
+        data[0] = (byte) nextHeader;
+        // for the fragment header, the offset is in 8-octet units, stored in the 13 high bits
+        data[2] = (byte) (fragmentOffset >> 5);
+        data[3] = (byte) (fragmentOffset << 3);
+        System.arraycopy(payload, 0, data, 8, payload.length);
+        return data;
+    }
+
+    @Test
+    public void testNoExtensionHeader() {
+        ByteBuffer packet = TestPackets.udp6(DEVICE, 50000, SERVER, 53, new byte[10]);
+        Assert.assertEquals(IPPackets.PROTOCOL_UDP, IPPackets.readProtocol(packet, 0));
+        Assert.assertEquals(6, IPPackets.getIPv6ProtocolIndex(packet, 0, packet.limit()));
+        Assert.assertEquals(40, IPPackets.getTransportIndex(packet, 0, packet.limit()));
+    }
+
+    @Test
+    public void testSkipExtensionHeaders() {
+        byte[] payload = withExtensionHeader(DESTINATION_OPTIONS, 0,
+                withExtensionHeader(IPPackets.PROTOCOL_UDP, 0, new byte[16]));
+        ByteBuffer packet = TestPackets.ip6(HOP_BY_HOP_OPTIONS, DEVICE, SERVER, payload);
+        Assert.assertEquals(IPPackets.PROTOCOL_UDP, IPPackets.readProtocol(packet, 0));
+        Assert.assertEquals(48, IPPackets.getIPv6ProtocolIndex(packet, 0, packet.limit()));
+        Assert.assertEquals(56, IPPackets.getTransportIndex(packet, 0, packet.limit()));
+    }
+
+    @Test
+    public void testFragments() {
+        ByteBuffer first = TestPackets.ip6(FRAGMENT, DEVICE, SERVER,
+                withExtensionHeader(IPPackets.PROTOCOL_UDP, 0, new byte[16]));
+        Assert.assertEquals(IPPackets.PROTOCOL_UDP, IPPackets.readProtocol(first, 0));
+        Assert.assertEquals(48, IPPackets.getTransportIndex(first, 0, first.limit()));
+
+        ByteBuffer next = TestPackets.ip6(FRAGMENT, DEVICE, SERVER,
+                withExtensionHeader(IPPackets.PROTOCOL_UDP, 2, new byte[16]));
+        Assert.assertEquals(IPPackets.PROTOCOL_UDP, IPPackets.readProtocol(next, 0));
+        Assert.assertEquals(-1, IPPackets.getTransportIndex(next, 0, next.limit()));
+    }
+
+    @Test
+    public void testUnknownProtocolAfterExtensionHeader() {
+        ByteBuffer packet = TestPackets.ip6(DESTINATION_OPTIONS, DEVICE, SERVER,
+                withExtensionHeader(SCTP, 0, new byte[16]));
+        Assert.assertEquals(SCTP, IPPackets.readProtocol(packet, 0));
+        Assert.assertEquals(40, IPPackets.getIPv6ProtocolIndex(packet, 0, packet.limit()));
+        Assert.assertEquals(48, IPPackets.getTransportIndex(packet, 0, packet.limit()));
+    }
+
+    @Test
+    public void testTruncatedExtensionHeader() {
+        ByteBuffer packet = TestPackets.ip6(HOP_BY_HOP_OPTIONS, DEVICE, SERVER, new byte[4]);
+        // the last complete header is the fixed header
+        Assert.assertEquals(HOP_BY_HOP_OPTIONS, IPPackets.readProtocol(packet, 0));
+        Assert.assertEquals(-1, IPPackets.getTransportIndex(packet, 0, packet.limit()));
+    }
+
+    @Test
+    public void testFlowHashSkipsExtensionHeaders() {
+        byte[] udp = TestPackets.udp6(DEVICE, 50000, SERVER, 53, new byte[8]).array();
+        byte[] segment = Arrays.copyOfRange(udp, 40, udp.length);
+        ByteBuffer plain = TestPackets.ip6(IPPackets.PROTOCOL_UDP, DEVICE, SERVER, segment);
+        ByteBuffer withOptions = TestPackets.ip6(DESTINATION_OPTIONS, DEVICE, SERVER,
+                withExtensionHeader(IPPackets.PROTOCOL_UDP, 0, segment));
+        Assert.assertEquals(IPPackets.flowHash(plain, 0, plain.limit()),
+                IPPackets.flowHash(withOptions, 0, withOptions.limit()));
+    }
+}
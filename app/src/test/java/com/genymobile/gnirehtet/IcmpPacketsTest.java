@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2017 Genymobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.genymobile.gnirehtet;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+public class IcmpPacketsTest {
+
+    private static final int DEVICE = TestPackets.address(10, 0, 0, 2);
+    private static final int SERVER = TestPackets.address(93, 184, 216, 34);
+    private static final byte[] DEVICE6 = TestPackets.address6("fd00::2");
+    private static final byte[] SERVER6 = TestPackets.address6("2001:db8::1");
+
+    private static final int FRAGMENT = 44;
+    private static final int DESTINATION_OPTIONS = 60;
+    private static final int GRE = 47;
+
+    private final ByteBuffer reply = ByteBuffer.allocate(IcmpPackets.MAX_ERROR_LENGTH);
+
+    private static byte[] icmp(int type, int payloadLength) {
+        byte[] message = new byte[8 + payloadLength];
+        message[0] = (byte) type;
+        return message;
+    }
+
+    private static boolean canReplyWithError(ByteBuffer packet) {
+        return IcmpPackets.canReplyWithError(packet, 0, packet.limit());
+    }
+
+    private void buildUnreachable(ByteBuffer packet, int reason) {
+        IcmpPackets.buildUnreachable(packet, 0, packet.limit(), reason, reply);
+    }
+
+    private static byte[] getAddress6(ByteBuffer packet, int index) {
+        byte[] address = new byte[16];
+        for (int i = 0; i < address.length; ++i) {
+            address[i] = packet.get(index + i);
+        }
+        return address;
+    }
+
+    @Test
+    public void testUnreachable() {
+        ByteBuffer packet = TestPackets.udp(DEVICE, 50000, SERVER, 443, new byte[100]);
+        Assert.assertTrue(canReplyWithError(packet));
+        buildUnreachable(packet, IcmpPackets.UNREACHABLE_PORT);
+
+        Assert.assertEquals(20 + 8 + 128, reply.limit());
+        Assert.assertEquals(reply.limit(), Binary.unsigned(reply.getShort(2)));
+        Assert.assertEquals(IPPackets.PROTOCOL_ICMP, IPPackets.readProtocol(reply, 0));
+        Assert.assertEquals(0, TestPackets.ipChecksum(reply));
+        Assert.assertEquals(0, TestPackets.icmpChecksum(reply));
+        // from the server to the device
+        Assert.assertEquals(SERVER, reply.getInt(12));
+        Assert.assertEquals(DEVICE, reply.getInt(16));
+        // "port unreachable"
+        Assert.assertEquals(3, reply.get(20));
+        Assert.assertEquals(3, reply.get(21));
+        // the invoking packet
+        for (int i = 0; i < packet.limit(); ++i) {
+            Assert.assertEquals(packet.get(i), reply.get(28 + i));
+        }
+    }
+
+    @Test
+    public void testUnreachableTruncated() {
+        ByteBuffer packet = TestPackets.udp(DEVICE, 50000, SERVER, 443, new byte[1000]);
+        buildUnreachable(packet, IcmpPackets.UNREACHABLE_PROHIBITED);
+        // never more than the IPv4 minimum reassembly size
+        Assert.assertEquals(576, reply.limit());
+        Assert.assertEquals(576, Binary.unsigned(reply.getShort(2)));
+        Assert.assertEquals(0, TestPackets.ipChecksum(reply));
+        Assert.assertEquals(0, TestPackets.icmpChecksum(reply));
+        Assert.assertEquals(3, reply.get(20));
+        Assert.assertEquals(13, reply.get(21));
+    }
+
+    @Test
+    public void testUnreachableV6() {
+        ByteBuffer packet = TestPackets.udp6(DEVICE6, 50000, SERVER6, 443, new byte[100]);
+        Assert.assertTrue(canReplyWithError(packet));
+        buildUnreachable(packet, IcmpPackets.UNREACHABLE_PORT);
+
+        Assert.assertEquals(40 + 8 + 148, reply.limit());
+        Assert.assertEquals(8 + 148, Binary.unsigned(reply.getShort(4)));
+        Assert.assertEquals(IPPackets.PROTOCOL_ICMPV6, IPPackets.readProtocol(reply, 0));
+        Assert.assertEquals(0, TestPackets.transportChecksum6(reply, IPPackets.PROTOCOL_ICMPV6));
+        Assert.assertArrayEquals(SERVER6, getAddress6(reply, 8));
+        Assert.assertArrayEquals(DEVICE6, getAddress6(reply, 24));
+        // "port unreachable"
+        Assert.assertEquals(1, reply.get(40));
+        Assert.assertEquals(4, reply.get(41));
+    }
+
+    @Test
+    public void testUnreachableV6Truncated() {
+        ByteBuffer packet = TestPackets.udp6(DEVICE6, 50000, SERVER6, 443, new byte[2000]);
+        buildUnreachable(packet, IcmpPackets.UNREACHABLE_NO_ROUTE);
+        // never more than the IPv6 minimum MTU
+        Assert.assertEquals(1280, reply.limit());
+        Assert.assertEquals(1280 - 40, Binary.unsigned(reply.getShort(4)));
+        Assert.assertEquals(0, TestPackets.transportChecksum6(reply, IPPackets.PROTOCOL_ICMPV6));
+        Assert.assertEquals(1, reply.get(40));
+        Assert.assertEquals(0, reply.get(41));
+    }
+
+    @Test
+    public void testParameterProblemV6() {
+        ByteBuffer packet = TestPackets.ip6(GRE, DEVICE6, SERVER6, new byte[16]);
+        buildUnreachable(packet, IcmpPackets.UNREACHABLE_PROTOCOL);
+        Assert.assertEquals(0, TestPackets.transportChecksum6(reply, IPPackets.PROTOCOL_ICMPV6));
+        // "unrecognized next header", pointing to the next header field of the fixed header
+        Assert.assertEquals(4, reply.get(40));
+        Assert.assertEquals(1, reply.get(41));
+        Assert.assertEquals(6, reply.getInt(44));
+    }
+
+    @Test
+    public void testParameterProblemAfterExtensionHeader() {
+        byte[] payload = new byte[24];
+        payload[0] = (byte) GRE;
+        ByteBuffer packet = TestPackets.ip6(DESTINATION_OPTIONS, DEVICE6, SERVER6, payload);
+        buildUnreachable(packet, IcmpPackets.UNREACHABLE_PROTOCOL);
+        Assert.assertEquals(0, TestPackets.transportChecksum6(reply, IPPackets.PROTOCOL_ICMPV6));
+        // the next header field of the destination options header
+        Assert.assertEquals(40, reply.getInt(44));
+    }
+
+    @Test
+    public void testNoErrorInReplyToError() {
+        Assert.assertTrue(canReplyWithError(TestPackets.ip(IPPackets.PROTOCOL_ICMP, DEVICE, SERVER, icmp(8, 8))));
+        // destination unreachable, time exceeded
+        Assert.assertFalse(canReplyWithError(TestPackets.ip(IPPackets.PROTOCOL_ICMP, DEVICE, SERVER, icmp(3, 28))));
+        Assert.assertFalse(canReplyWithError(TestPackets.ip(IPPackets.PROTOCOL_ICMP, DEVICE, SERVER, icmp(11, 28))));
+
+        Assert.assertTrue(canReplyWithError(TestPackets.ip6(IPPackets.PROTOCOL_ICMPV6, DEVICE6, SERVER6, icmp(128, 8))));
+        Assert.assertFalse(canReplyWithError(TestPackets.ip6(IPPackets.PROTOCOL_ICMPV6, DEVICE6, SERVER6, icmp(1, 48))));
+        // behind an extension header
+        byte[] payload = new byte[8 + 56];
+        payload[0] = (byte) IPPackets.PROTOCOL_ICMPV6;
+        payload[8] = 1;
+        Assert.assertFalse(canReplyWithError(TestPackets.ip6(DESTINATION_OPTIONS, DEVICE6, SERVER6, payload)));
+    }
+
+    @Test
+    public void testNoErrorToMulticastOrBroadcast() {
+        int multicast = TestPackets.address(224, 0, 0, 251);
+        int broadcast = TestPackets.address(255, 255, 255, 255);
+        Assert.assertFalse(canReplyWithError(TestPackets.udp(DEVICE, 5353, multicast, 5353, new byte[10])));
+        Assert.assertFalse(canReplyWithError(TestPackets.udp(DEVICE, 68, broadcast, 67, new byte[10])));
+        byte[] multicast6 = TestPackets.address6("ff02::fb");
+        Assert.assertFalse(canReplyWithError(TestPackets.udp6(DEVICE6, 5353, multicast6, 5353, new byte[10])));
+    }
+
+    @Test
+    public void testNoErrorFromUnspecifiedAddress() {
+        Assert.assertFalse(canReplyWithError(TestPackets.udp(0, 68, SERVER, 67, new byte[10])));
+        byte[] unspecified = new byte[16];
+        Assert.assertFalse(canReplyWithError(TestPackets.udp6(unspecified, 546, SERVER6, 547, new byte[10])));
+    }
+
+    @Test
+    public void testNoErrorToNonFirstFragment() {
+        ByteBuffer packet = TestPackets.udp(DEVICE, 50000, SERVER, 443, new byte[100]);
+        // more fragments, offset 0
+        packet.putShort(6, (short) 0x2000);
+        Assert.assertTrue(canReplyWithError(packet));
+        // offset 1480
+        packet.putShort(6, (short) (1480 / 8));
+        Assert.assertFalse(canReplyWithError(packet));
+
+        byte[] payload = new byte[8 + 100];
+        payload[0] = (byte) IPPackets.PROTOCOL_UDP;
+        payload[3] = 1; // more fragments, offset 0
+        Assert.assertTrue(canReplyWithError(TestPackets.ip6(FRAGMENT, DEVICE6, SERVER6, payload)));
+        payload[2] = 1; // offset 256 * 8 bytes
+        Assert.assertFalse(canReplyWithError(TestPackets.ip6(FRAGMENT, DEVICE6, SERVER6, payload)));
+    }
+
+    @Test
+    public void testEchoReply() {
+        ByteBuffer packet = TestPackets.ip(IPPackets.PROTOCOL_ICMP, DEVICE, SERVER, icmp(8, 56));
+        Assert.assertTrue(IcmpPackets.isEchoRequest(packet, 0, packet.limit()));
+        ByteBuffer echo = ByteBuffer.allocate(packet.limit());
+        IcmpPackets.buildEchoReply(packet, 0, packet.limit(), echo);
+        Assert.assertEquals(packet.limit(), echo.limit());
+        Assert.assertEquals(0, TestPackets.ipChecksum(echo));
+        Assert.assertEquals(0, TestPackets.icmpChecksum(echo));
+        Assert.assertEquals(SERVER, echo.getInt(12));
+        Assert.assertEquals(DEVICE, echo.getInt(16));
+        Assert.assertEquals(0, echo.get(20));
+    }
+
+    @Test
+    public void testEchoReplyV6() {
+        ByteBuffer packet = TestPackets.ip6(IPPackets.PROTOCOL_ICMPV6, DEVICE6, SERVER6, icmp(128, 56));
+        Assert.assertTrue(IcmpPackets.isEchoRequest(packet, 0, packet.limit()));
+        ByteBuffer echo = ByteBuffer.allocate(packet.limit());
+        IcmpPackets.buildEchoReply(packet, 0, packet.limit(), echo);
+        Assert.assertEquals(0, TestPackets.transportChecksum6(echo, IPPackets.PROTOCOL_ICMPV6));
+        Assert.assertArrayEquals(SERVER6, getAddress6(echo, 8));
+        Assert.assertArrayEquals(DEVICE6, getAddress6(echo, 24));
+        Assert.assertEquals((byte) 129, echo.get(40));
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2017 Genymobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.genymobile.gnirehtet;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measure the cost of the destination filter at realistic rule-set sizes, and the overhead of the whole interceptor
+ * chain on the packets it lets through.
+ */
+@Category(Benchmark.class)
+public class InterceptorChainBenchmark {
+
+    private static final BenchmarkReport REPORT = new BenchmarkReport(InterceptorChainBenchmark.class);
+
+    private static final int LOOKUPS = 5_000_000;
+    private static final int PACKETS = 2_000_000;
+
+    private static final int DEVICE = TestPackets.address(10, 0, 0, 2);
+    private static final int DNS_SERVER = TestPackets.address(8, 8, 8, 8);
+
+    @Test
+    public void destinationFilterLookup() throws IOException {
+        for (int size : new int[] {100, 1000, 10_000, 100_000}) {
+            Random random = new Random(size);
+            int[] addresses = new int[size];
+            int[] masks = new int[size];
+            List<CIDR> cidrs = new ArrayList<>(size);
+            for (int i = 0; i < size; ++i) {
+                // from /8 to /32, mostly /24 and longer, like the published lists of bad ranges
+                int prefixLength = random.nextInt(4) == 0 ? 8 + random.nextInt(16) : 24 + random.nextInt(9);
+                masks[i] = -1 << (32 - prefixLength);
+                addresses[i] = random.nextInt() & masks[i];
+                cidrs.add(new CIDR(toInetAddress(addresses[i]), prefixLength));
+            }
+            DestinationFilter filter = new DestinationFilter(cidrs);
+
+            // half of the destinations in a block
+            ByteBuffer[] packets = new ByteBuffer[1024];
+            boolean[] expected = new boolean[packets.length];
+            for (int i = 0; i < packets.length; ++i) {
+                int destination = i % 2 == 0 ? addresses[random.nextInt(size)] | 1 : random.nextInt();
+                for (int j = 0; j < size && !expected[i]; ++j) {
+                    expected[i] = (destination & masks[j]) == addresses[j];
+                }
+                packets[i] = TestPackets.tcp(DEVICE, 40000, destination, 443, 0, 0, TestPackets.ACK, 0);
+            }
+
+            int matches = 0;
+            // warm up
+            for (int i = 0; i < LOOKUPS / 4; ++i) {
+                ByteBuffer packet = packets[i % packets.length];
+                matches += filter.matchesDestination(packet, 0, packet.limit()) ? 1 : 0;
+            }
+            long start = System.nanoTime();
+            for (int i = 0; i < LOOKUPS; ++i) {
+                ByteBuffer packet = packets[i % packets.length];
+                if (filter.matchesDestination(packet, 0, packet.limit()) != expected[i % packets.length]) {
+                    Assert.fail("Unexpected filter result for packet " + i % packets.length);
+                }
+            }
+            long trieNs = (System.nanoTime() - start) * 1000 / LOOKUPS;
+
+            // the naive alternative, a scan of the blocks (a few lookups are enough)
+            int scans = Math.max(1000, LOOKUPS / size);
+            matches += scan(packets, addresses, masks, scans);
+            start = System.nanoTime();
+            matches += scan(packets, addresses, masks, scans);
+            long scanNs = (System.nanoTime() - start) / scans;
+
+            REPORT.add("Destination filter %d blocks: trie %.1f ns/packet, linear scan %d ns/packet (%d)", size, trieNs / 1000.0,
+                    scanNs, matches & 1);
+        }
+    }
+
+    private static int scan(ByteBuffer[] packets, int[] addresses, int[] masks, int count) {
+        int matches = 0;
+        for (int i = 0; i < count; ++i) {
+            int destination = packets[i % packets.length].getInt(16);
+            boolean found = false;
+            for (int j = 0; j < addresses.length && !found; ++j) {
+                found = (destination & masks[j]) == addresses[j];
+            }
+            matches += found ? 1 : 0;
+        }
+        return matches;
+    }
+
+    @Test
+    public void chainOverhead() throws IOException {
+        ByteBuffer[] packets = createForwardedPackets();
+        PacketSink deviceSink = packet -> Assert.fail("Unexpected reply");
+        ForwarderStats stats = new ForwarderStats();
+
+        // what is always installed
+        PacketInterceptor minimal = new PacketInterceptorChain(Collections.singletonList(
+                new UnsupportedProtocolInterceptor(new InetAddress[0], deviceSink, stats)));
+
+        StringBuilder rules = new StringBuilder();
+        Random random = new Random(42);
+        for (int i = 0; i < 10_000; ++i) {
+            // never 198.51.100.0/24, the destination of the packets
+            rules.append(1 + random.nextInt(190)).append('.').append(random.nextInt(256)).append('.')
+                    .append(random.nextInt(256)).append(".0/24 ");
+        }
+        List<String> domains = new ArrayList<>();
+        for (int i = 0; i < 100_000; ++i) {
+            domains.add("ads" + i + ".example.com");
+        }
+        DomainBlocklists.setCurrent(DomainBlocklist.of(domains));
+        DestinationFilters.update(rules.toString());
+        try {
+            DnsServers dnsServers = new DnsServers(new InetAddress[] {InetAddress.getByAddress(new byte[] {8, 8, 8, 8})});
+            PacketInterceptor full = new PacketInterceptorChain(Arrays.asList(
+                    new DestinationFilterInterceptor(FilterAction.REJECT, deviceSink, stats),
+                    new IPv6UnreachableInterceptor(deviceSink, stats),
+                    new UnsupportedProtocolInterceptor(new InetAddress[0], deviceSink, stats),
+                    new UdpPortRejectInterceptor(new int[] {443}, deviceSink, stats),
+                    new DomainBlocklistInterceptor(BlockedDomainAnswer.NXDOMAIN, deviceSink, stats),
+                    new DnsCacheInterceptor(new DnsCache(1000), dnsServers, deviceSink)));
+
+            long minimalNs = run(minimal, packets);
+            long fullNs = run(full, packets);
+            REPORT.add("Interceptor chain, minimal: %d ns/packet", minimalNs);
+            REPORT.add("Interceptor chain, full:    %d ns/packet (10k destination blocks, 100k domains)", fullNs);
+        } finally {
+            DestinationFilters.update("");
+            DomainBlocklists.setCurrent(DomainBlocklist.EMPTY);
+        }
+        Assert.assertEquals(0, stats.getFilteredPackets());
+        Assert.assertEquals(0, stats.getBlockedQueries());
+    }
+
+    private static long run(PacketInterceptor interceptor, ByteBuffer[] packets) throws IOException {
+        PacketSink upstream = packet -> Assert.fail("Unexpected packet sent upstream");
+        for (int i = 0; i < PACKETS / 4; ++i) {
+            intercept(interceptor, packets[i % packets.length], upstream);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < PACKETS; ++i) {
+            intercept(interceptor, packets[i % packets.length], upstream);
+        }
+        return (System.nanoTime() - start) / PACKETS;
+    }
+
+    private static void intercept(PacketInterceptor interceptor, ByteBuffer packet, PacketSink upstream)
+            throws IOException {
+        packet.position(0);
+        if (interceptor.intercept(packet, upstream)) {
+            Assert.fail("Unexpected interception");
+        }
+    }
+
+    /**
+     * Create packets which no interceptor consumes: TCP segments, QUIC datagrams and DNS queries for names neither
+     * blocked nor cached.
+     */
+    private static ByteBuffer[] createForwardedPackets() {
+        ByteBuffer[] packets = new ByteBuffer[1024];
+        int server = TestPackets.address(198, 51, 100, 1);
+        for (int i = 0; i < packets.length; ++i) {
+            if (i % 10 == 0) {
+                byte[] query = TestDns.query(i, "www" + i + ".example.org", TestDns.TYPE_A);
+                packets[i] = TestPackets.udp(DEVICE, 50000 + i, DNS_SERVER, DnsMessages.DNS_PORT, query);
+            } else if (i % 10 == 1) {
+                packets[i] = TestPackets.udp(DEVICE, 50000 + i, server, 4433, new byte[1200]);
+            } else {
+                packets[i] = TestPackets.tcp(DEVICE, 40000 + i % 64, server, 443, i, 1, TestPackets.ACK, i % 4 == 0 ? 0 : 1400);
+            }
+        }
+        return packets;
+    }
+
+    private static InetAddress toInetAddress(int address) {
+        try {
+            return InetAddress.getByAddress(ByteBuffer.allocate(4).putInt(address).array());
+        } catch (UnknownHostException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
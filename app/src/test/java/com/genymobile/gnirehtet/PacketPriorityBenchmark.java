@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2017 Genymobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.genymobile.gnirehtet;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measure the queueing delay of the interactive packets (DNS queries, ACKs of a download) sent during a saturating
+ * upload, with and without {@link ForwarderOptions#setPrioritizeInteractive(boolean) prioritization}.
+ * <p>
+ * The delay of a packet is the number of bytes written to the tunnel before it by the flush which sends it, converted
+ * to a duration at {@link #LINK_MBPS}.
+ */
+@Category(Benchmark.class)
+public class PacketPriorityBenchmark {
+
+    private static final BenchmarkReport REPORT = new BenchmarkReport(PacketPriorityBenchmark.class);
+
+    private static final int BURSTS = 10_000;
+    // the number of packets read from the VPN interface before it is drained
+    private static final int BURST = 32;
+    private static final int UPLOAD_SEGMENT = 1400;
+    private static final int LINK_MBPS = 100;
+
+    private static final int UPLOAD_PORT = 40000;
+    private static final int DOWNLOAD_PORT = 40001;
+    private static final int DNS_PORT = 53;
+
+    @Test
+    public void compareQueueingDelays() throws IOException {
+        Result fifo = run(false);
+        Result prioritized = run(true);
+
+        REPORT.add("Interactive packets, FIFO:        %s", fifo);
+        REPORT.add("Interactive packets, prioritized: %s", prioritized);
+
+        Assert.assertEquals(fifo.interactivePackets, prioritized.interactivePackets);
+        Assert.assertTrue(prioritized.percentile(99) < fifo.percentile(50));
+    }
+
+    private static Result run(boolean prioritize) throws IOException {
+        List<FakeRelayTunnel> tunnels = new ArrayList<>();
+        RelayTunnelPool pool = FakeRelayTunnel.createPool(1, true, tunnels);
+        ForwarderOptions options = new ForwarderOptions();
+        options.setCoalesceWrites(true);
+        options.setPrioritizeInteractive(prioritize);
+        TunnelSender sender = new TunnelSender(pool, (packet, upstream) -> false, new FlowTable(), options, false,
+                new ForwarderStats());
+
+        int device = TestPackets.address(10, 0, 0, 2);
+        int server = TestPackets.address(93, 184, 216, 34);
+        int resolver = TestPackets.address(8, 8, 8, 8);
+        Random random = new Random(42);
+        int uploadSeq = 0;
+        int downloadAck = 0;
+        for (int i = 0; i < BURSTS; ++i) {
+            for (int j = 0; j < BURST; ++j) {
+                ByteBuffer packet;
+                int kind = random.nextInt(16);
+                if (kind == 0) {
+                    packet = TestPackets.udp(device, 50000 + i % 1000, resolver, DNS_PORT, new byte[40]);
+                } else if (kind < 4) {
+                    downloadAck += UPLOAD_SEGMENT;
+                    packet = TestPackets.tcp(device, DOWNLOAD_PORT, server, 443, 1, downloadAck, TestPackets.ACK, 0);
+                } else {
+                    packet = TestPackets.tcp(device, UPLOAD_PORT, server, 443, uploadSeq, 1, TestPackets.ACK,
+                            UPLOAD_SEGMENT);
+                    uploadSeq += UPLOAD_SEGMENT;
+                }
+                sender.send(packet);
+            }
+            sender.flush();
+        }
+
+        return analyze(tunnels.get(0).getSent());
+    }
+
+    /**
+     * Split the tunnel writes into flushes, and compute the bytes written before each interactive packet of its
+     * flush. Also check that the upload segments are still in order.
+     */
+    private static Result analyze(List<byte[]> writes) {
+        long[] delays = new long[BURSTS * BURST];
+        int interactivePackets = 0;
+        int flushBytes = 0;
+        int packetsInFlush = 0;
+        int expectedSeq = 0;
+        for (byte[] write : writes) {
+            ByteBuffer stream = ByteBuffer.wrap(write);
+            while (stream.hasRemaining()) {
+                int position = stream.position();
+                int length = IPPackets.frame(stream, position, stream.remaining());
+                int sourcePort = Binary.unsigned(stream.getShort(position + 20));
+                if (sourcePort == UPLOAD_PORT) {
+                    Assert.assertEquals(expectedSeq, stream.getInt(position + 24));
+                    expectedSeq += UPLOAD_SEGMENT;
+                } else {
+                    delays[interactivePackets++] = flushBytes;
+                }
+                flushBytes += length;
+                stream.position(position + length);
+                if (++packetsInFlush == BURST) {
+                    packetsInFlush = 0;
+                    flushBytes = 0;
+                }
+            }
+        }
+        Assert.assertEquals(0, packetsInFlush);
+        return new Result(Arrays.copyOf(delays, interactivePackets));
+    }
+
+    private static final class Result {
+        private final long[] delays;
+        private final int interactivePackets;
+
+        Result(long[] delays) {
+            this.delays = delays;
+            interactivePackets = delays.length;
+            Arrays.sort(delays);
+        }
+
+        long percentile(int p) {
+            return delays[(int) ((long) (delays.length - 1) * p / 100)];
+        }
+
+        private static String format(long bytes) {
+            // bytes * 8 bits / LINK_MBPS = microseconds
+            return bytes + " B (" + bytes * 8 / LINK_MBPS + " us)";
+        }
+
+        @Override
+        public String toString() {
+            return interactivePackets + " packets, p50 " + format(percentile(50)) + ", p90 " + format(percentile(90))
+                    + ", p99 " + format(percentile(99)) + " at " + LINK_MBPS + " Mbit/s";
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2017 Genymobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.genymobile.gnirehtet;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Measure the per-packet cost of {@link RelayTunnelProvider#getCurrentTunnel()} while the sending and receiving threads
+ * call it concurrently, compared to a lookup taking two nested monitors (as it did before the lock-free fast path).
+ */
+@Category(Benchmark.class)
+public class RelayTunnelProviderBenchmark {
+
+    private static final BenchmarkReport REPORT = new BenchmarkReport(RelayTunnelProviderBenchmark.class);
+
+    private static final int THREADS = 2;
+    private static final int CALLS = 5_000_000;
+
+    private interface Lookup {
+        Object get() throws Exception;
+    }
+
+    /**
+     * The previous implementation: the lock serializing connections, then the lock protecting the current tunnel.
+     */
+    private static final class LockedLookup implements Lookup {
+        private final Object connectLock = new Object();
+        private final Object tunnel;
+
+        LockedLookup(Object tunnel) {
+            this.tunnel = tunnel;
+        }
+
+        @Override
+        public Object get() {
+            synchronized (connectLock) {
+                synchronized (this) {
+                    return tunnel;
+                }
+            }
+        }
+    }
+
+    @Test
+    public void compareLookups() throws Exception {
+        List<FakeRelayTunnel> opened = new ArrayList<>();
+        RelayTunnelProvider provider = FakeRelayTunnel.createProvider(false, opened, ExponentialBackoffPolicy.DEFAULT, null);
+        RelayTunnel tunnel = provider.getCurrentTunnel();
+        LockedLookup locked = new LockedLookup(tunnel);
+
+        // warm up
+        measure(provider::getCurrentTunnel, tunnel, CALLS / 10);
+        measure(locked, tunnel, CALLS / 10);
+
+        double lockFree = measure(provider::getCurrentTunnel, tunnel, CALLS);
+        double nestedLocks = measure(locked, tunnel, CALLS);
+        REPORT.add("Tunnel lookup with %d threads: lock-free %.1f ns/call, nested locks %.1f ns/call", THREADS, lockFree,
+                nestedLocks);
+
+        // a single connection for all the calls
+        Assert.assertEquals(1, opened.size());
+    }
+
+    private static double measure(Lookup lookup, Object expected, int calls) throws Exception {
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[THREADS];
+        Throwable[] errors = new Throwable[THREADS];
+        for (int i = 0; i < THREADS; ++i) {
+            int index = i;
+            threads[i] = new Thread(() -> {
+                try {
+                    start.await();
+                    for (int j = 0; j < calls; ++j) {
+                        if (lookup.get() != expected) {
+                            throw new AssertionError("Unexpected tunnel");
+                        }
+                    }
+                } catch (Throwable e) {
+                    errors[index] = e;
+                }
+            });
+            threads[i].start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long elapsed = System.nanoTime() - begin;
+        for (Throwable error : errors) {
+            if (error != null) {
+                throw new AssertionError(error);
+            }
+        }
+        return (double) elapsed / calls;
+    }
+}
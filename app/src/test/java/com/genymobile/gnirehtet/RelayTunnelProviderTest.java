@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2017 Genymobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.genymobile.gnirehtet;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class RelayTunnelProviderTest {
+
+    private static final class CheckingListener extends RelayTunnelListener {
+        private final AtomicInteger connected = new AtomicInteger();
+        private final AtomicInteger disconnected = new AtomicInteger();
+        private Object lock;
+
+        CheckingListener() {
+            super(null);
+        }
+
+        @Override
+        public void notifyRelayTunnelConnected() {
+            Assert.assertFalse(Thread.holdsLock(lock));
+            connected.incrementAndGet();
+        }
+
+        @Override
+        public void notifyRelayTunnelDisconnected() {
+            Assert.assertFalse(Thread.holdsLock(lock));
+            disconnected.incrementAndGet();
+        }
+    }
+
+    @Test
+    public void testListenersCalledWithoutLock() throws IOException, InterruptedException {
+        CheckingListener listener = new CheckingListener();
+        AtomicInteger invalidations = new AtomicInteger();
+        List<FakeRelayTunnel> opened = new ArrayList<>();
+        RelayTunnelProvider[] holder = new RelayTunnelProvider[1];
+        Runnable invalidationListener = () -> {
+            // the invalidation listener of the pool takes other locks, it must not be called with the provider locked
+            Assert.assertFalse(Thread.holdsLock(holder[0]));
+            invalidations.incrementAndGet();
+        };
+        RelayTunnelProvider provider = new RelayTunnelProvider(null, listener, invalidationListener,
+                ExponentialBackoffPolicy.DEFAULT, new ForwarderStats()) {
+            @Override
+            RelayTunnel openTunnel() {
+                FakeRelayTunnel tunnel = new FakeRelayTunnel(false);
+                opened.add(tunnel);
+                return tunnel;
+            }
+        };
+        holder[0] = provider;
+        listener.lock = provider;
+
+        RelayTunnel tunnel = provider.getCurrentTunnel();
+        Assert.assertEquals(1, listener.connected.get());
+
+        // an error on another tunnel does not invalidate the current one
+        provider.invalidateTunnel(new FakeRelayTunnel(false));
+        Assert.assertEquals(0, invalidations.get());
+        Assert.assertFalse(opened.get(0).isClosed());
+
+        // the loss of the tunnel after an error is not notified, the next connection is attempted immediately
+        provider.invalidateTunnel(tunnel);
+        Assert.assertEquals(1, invalidations.get());
+        Assert.assertEquals(0, listener.disconnected.get());
+        Assert.assertTrue(opened.get(0).isClosed());
+
+        // already invalidated
+        provider.invalidateTunnel(tunnel);
+        Assert.assertEquals(1, invalidations.get());
+
+        provider.getCurrentTunnel();
+        Assert.assertEquals(2, listener.connected.get());
+
+        // an explicit invalidation is notified immediately
+        provider.invalidateTunnel();
+        Assert.assertEquals(2, invalidations.get());
+        Assert.assertEquals(1, listener.disconnected.get());
+        Assert.assertTrue(opened.get(1).isClosed());
+
+        // nothing to invalidate
+        provider.invalidateTunnel();
+        Assert.assertEquals(2, invalidations.get());
+        Assert.assertEquals(1, listener.disconnected.get());
+    }
+
+    @Test
+    public void testInvalidateWakesUpWaitingThread() throws IOException, InterruptedException {
+        AtomicInteger attempts = new AtomicInteger();
+        // the next attempt would not happen before the end of the test
+        ReconnectPolicy policy = failures -> 60000;
+        RelayTunnelProvider provider = new RelayTunnelProvider(null, null, null, policy, new ForwarderStats()) {
+            @Override
+            RelayTunnel openTunnel() {
+                FakeRelayTunnel tunnel = new FakeRelayTunnel(false);
+                if (attempts.getAndIncrement() == 0) {
+                    // the first connection fails
+                    tunnel.close();
+                }
+                return tunnel;
+            }
+        };
+
+        try {
+            provider.getCurrentTunnel();
+            Assert.fail("The first connection must fail");
+        } catch (IOException e) {
+            // expected
+        }
+
+        Thread thread = new Thread(() -> {
+            try {
+                provider.getCurrentTunnel();
+            } catch (IOException | InterruptedException e) {
+                // the thread is checked to have terminated
+            }
+        });
+        thread.start();
+        thread.join(100);
+        Assert.assertTrue(thread.isAlive());
+
+        provider.invalidateTunnel();
+        thread.join(5000);
+        Assert.assertFalse(thread.isAlive());
+        Assert.assertEquals(2, attempts.get());
+    }
+}
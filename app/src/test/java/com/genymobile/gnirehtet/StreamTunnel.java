@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2017 Genymobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.genymobile.gnirehtet;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A tunnel receiving a fixed stream, in chunks of at most {@code chunkSize} bytes, as a socket would.
+ */
+class StreamTunnel implements Tunnel {
+
+    private final byte[] stream;
+    private final int chunkSize;
+    private final boolean loop;
+    private int offset;
+
+    /**
+     * Create a tunnel.
+     *
+     * @param stream the content received from the tunnel
+     * @param chunkSize the maximum number of bytes returned by a single receive
+     * @param loop {@code true} to receive the stream again and again, {@code false} to reach EOF at the end
+     */
+    StreamTunnel(byte[] stream, int chunkSize, boolean loop) {
+        this.stream = stream;
+        this.chunkSize = chunkSize;
+        this.loop = loop;
+    }
+
+    static byte[] concat(ByteBuffer... packets) {
+        int length = 0;
+        for (ByteBuffer packet : packets) {
+            length += packet.remaining();
+        }
+        byte[] stream = new byte[length];
+        int offset = 0;
+        for (ByteBuffer packet : packets) {
+            int r = packet.remaining();
+            packet.duplicate().get(stream, offset, r);
+            offset += r;
+        }
+        return stream;
+    }
+
+    @Override
+    public void send(byte[] packet, int len) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void send(ByteBuffer packet) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int receive(byte[] packet) throws IOException {
+        return receive(ByteBuffer.wrap(packet));
+    }
+
+    @Override
+    public int receive(ByteBuffer packet) throws IOException {
+        if (offset == stream.length) {
+            if (!loop) {
+                return -1;
+            }
+            offset = 0;
+        }
+        int r = Math.min(Math.min(chunkSize, packet.remaining()), stream.length - offset);
+        packet.put(stream, offset, r);
+        offset += r;
+        return r;
+    }
+
+    @Override
+    public void close() {
+        // nothing to do
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2017 Genymobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.genymobile.gnirehtet;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+public class TcpPacketsTest {
+
+    private static final int DEVICE = TestPackets.address(10, 0, 0, 2);
+    private static final int SERVER = TestPackets.address(93, 184, 216, 34);
+
+    @Test
+    public void testBuildReset() {
+        ByteBuffer reset = ByteBuffer.allocate(40);
+        TcpPackets.buildReset(SERVER, 443, DEVICE, 40000, 0x12345678, 0xfedcba98, reset);
+        Assert.assertEquals(0, reset.position());
+        Assert.assertEquals(40, reset.limit());
+        checkReset(reset, 0x12345678, 0xfedcba98);
+    }
+
+    @Test
+    public void testBuildResetAtPosition() {
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        buffer.position(7);
+        TcpPackets.buildReset(SERVER, 443, DEVICE, 40000, 1, 0, buffer);
+        Assert.assertEquals(7, buffer.position());
+        Assert.assertEquals(47, buffer.limit());
+        checkReset(buffer.slice(), 1, 0);
+    }
+
+    @Test
+    public void testBuildResetChecksumCarry() {
+        // all ones, so that the sums overflow 16 bits several times
+        ByteBuffer reset = ByteBuffer.allocate(40);
+        TcpPackets.buildReset(0xffffffff, 0xffff, 0xfffffffe, 0xffff, -1, -1, reset);
+        Assert.assertEquals(0, TestPackets.ipChecksum(reset));
+        Assert.assertEquals(0, TestPackets.transportChecksum(reset, IPPackets.PROTOCOL_TCP));
+    }
+
+    private static void checkReset(ByteBuffer reset, int sequenceNumber, int acknowledgementNumber) {
+        Assert.assertEquals(40, IPPackets.frame(reset, 0, reset.remaining()));
+        Assert.assertEquals(0, TestPackets.ipChecksum(reset));
+        Assert.assertEquals(0, TestPackets.transportChecksum(reset, IPPackets.PROTOCOL_TCP));
+        Assert.assertEquals(IPPackets.PROTOCOL_TCP, IPPackets.readProtocol(reset, 0));
+        Assert.assertEquals(SERVER, reset.getInt(12));
+        Assert.assertEquals(DEVICE, reset.getInt(16));
+        Assert.assertEquals(443, Binary.unsigned(reset.getShort(20)));
+        Assert.assertEquals(40000, Binary.unsigned(reset.getShort(22)));
+        Assert.assertEquals(sequenceNumber, reset.getInt(24));
+        Assert.assertEquals(acknowledgementNumber, reset.getInt(28));
+        Assert.assertEquals(TcpPackets.FLAG_RST | TcpPackets.FLAG_ACK, TcpPackets.readFlags(reset, 20));
+    }
+
+    @Test
+    public void testGetNextSequenceNumber() {
+        ByteBuffer syn = TestPackets.tcp(DEVICE, 40000, SERVER, 443, 1000, 0, TestPackets.SYN, 0);
+        Assert.assertEquals(1001, TcpPackets.getNextSequenceNumber(syn, 0, syn.limit(), 20));
+        ByteBuffer data = TestPackets.tcp(DEVICE, 40000, SERVER, 443, 1001, 1, TestPackets.ACK | TestPackets.PSH, 100);
+        Assert.assertEquals(1101, TcpPackets.getNextSequenceNumber(data, 0, data.limit(), 20));
+        ByteBuffer fin = TestPackets.tcp(DEVICE, 40000, SERVER, 443, 1101, 1, TestPackets.ACK | TestPackets.FIN, 10);
+        Assert.assertEquals(1112, TcpPackets.getNextSequenceNumber(fin, 0, fin.limit(), 20));
+        // wraps around
+        ByteBuffer last = TestPackets.tcp(DEVICE, 40000, SERVER, 443, -1, 1, TestPackets.ACK, 2);
+        Assert.assertEquals(1, TcpPackets.getNextSequenceNumber(last, 0, last.limit(), 20));
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2017 Genymobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.genymobile.gnirehtet;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Build DNS messages for the tests.
+ */
+final class TestDns {
+
+    static final int TYPE_A = 1;
+    static final int TYPE_AAAA = 28;
+    static final int CLASS_IN = 1;
+
+    private static final int FLAG_RD = 0x0100;
+    private static final int FLAG_QR = 0x8000;
+    private static final int FLAG_RA = 0x0080;
+    private static final int FLAG_CD = 0x0010;
+    private static final int TYPE_OPT = 41;
+
+    private TestDns() {
+        // not instantiable
+    }
+
+    /**
+     * Build a standard query with a single question.
+     */
+    static byte[] query(int id, String name, int type) {
+        ByteBuffer message = ByteBuffer.allocate(DnsMessages.HEADER_LENGTH + DnsMessages.MAX_NAME_LENGTH + 5);
+        putHeader(message, id, FLAG_RD, 0);
+        putName(message, name);
+        message.putShort((short) type);
+        message.putShort((short) CLASS_IN);
+        return toArray(message);
+    }
+
+    /**
+     * Build a query whose question ends with the name, without QTYPE and QCLASS.
+     */
+    static byte[] truncatedQuery(int id, String name) {
+        ByteBuffer message = ByteBuffer.allocate(DnsMessages.HEADER_LENGTH + DnsMessages.MAX_NAME_LENGTH + 1);
+        putHeader(message, id, FLAG_RD, 0);
+        putName(message, name);
+        return toArray(message);
+    }
+
+    /**
+     * Build the response to a query, with a single answer whose name points to the question.
+     */
+    static byte[] response(byte[] query, int type, long ttl, byte[] data) {
+        ByteBuffer message = ByteBuffer.allocate(query.length + 12 + data.length);
+        message.put(query);
+        message.putShort(2, (short) (FLAG_QR | FLAG_RD | FLAG_RA));
+        message.putShort(6, (short) 1); // ANCOUNT
+        message.putShort((short) (0xc000 | DnsMessages.HEADER_LENGTH)); // pointer to the question name
+        message.putShort((short) type);
+        message.putShort((short) CLASS_IN);
+        message.putInt((int) ttl);
+        message.putShort((short) data.length);
+        message.put(data);
+        return toArray(message);
+    }
+
+    /**
+     * Build a negative response to a query, with a single SOA record in the authority section.
+     */
+    static byte[] negativeResponse(byte[] query, int rcode, long ttl, byte[] soaData) {
+        ByteBuffer message = ByteBuffer.allocate(query.length + 12 + soaData.length);
+        message.put(query);
+        message.putShort(2, (short) (FLAG_QR | FLAG_RD | FLAG_RA | rcode));
+        message.putShort(8, (short) 1); // NSCOUNT
+        message.putShort((short) (0xc000 | DnsMessages.HEADER_LENGTH)); // pointer to the question name
+        message.putShort((short) DnsMessages.TYPE_SOA);
+        message.putShort((short) CLASS_IN);
+        message.putInt((int) ttl);
+        message.putShort((short) soaData.length);
+        message.put(soaData);
+        return toArray(message);
+    }
+
+    /**
+     * Build the data of a SOA record with root names, so the shortest possible.
+     */
+    static byte[] soaData(long minimum) {
+        ByteBuffer data = ByteBuffer.allocate(22);
+        data.put((byte) 0); // MNAME
+        data.put((byte) 0); // RNAME
+        data.putInt(1); // SERIAL
+        data.putInt(3600); // REFRESH
+        data.putInt(600); // RETRY
+        data.putInt(86400); // EXPIRE
+        data.putInt((int) minimum);
+        return data.array();
+    }
+
+    /**
+     * Append an OPT record to the additional section of a message.
+     */
+    static byte[] withOpt(byte[] message, boolean dnssecOk) {
+        ByteBuffer result = ByteBuffer.allocate(message.length + 11);
+        result.put(message);
+        result.putShort(10, (short) (result.getShort(10) + 1)); // ARCOUNT
+        result.put((byte) 0); // root name
+        result.putShort((short) TYPE_OPT);
+        result.putShort((short) 1232); // UDP payload size
+        result.putInt(dnssecOk ? 0x8000 : 0); // extended RCODE, version and flags
+        result.putShort((short) 0); // no options
+        return result.array();
+    }
+
+    /**
+     * Set the CD (checking disabled) flag of a message.
+     */
+    static byte[] withCheckingDisabled(byte[] message) {
+        byte[] result = message.clone();
+        ByteBuffer.wrap(result).putShort(2, (short) (ByteBuffer.wrap(message).getShort(2) | FLAG_CD));
+        return result;
+    }
+
+    private static void putHeader(ByteBuffer message, int id, int flags, int answers) {
+        message.putShort((short) id);
+        message.putShort((short) flags);
+        message.putShort((short) 1); // QDCOUNT
+        message.putShort((short) answers); // ANCOUNT
+        message.putShort((short) 0); // NSCOUNT
+        message.putShort((short) 0); // ARCOUNT
+    }
+
+    private static void putName(ByteBuffer message, String name) {
+        if (!name.isEmpty()) {
+            for (String label : name.split("\\.")) {
+                byte[] bytes = label.getBytes(StandardCharsets.US_ASCII);
+                message.put((byte) bytes.length);
+                message.put(bytes);
+            }
+        }
+        message.put((byte) 0);
+    }
+
+    private static byte[] toArray(ByteBuffer message) {
+        byte[] array = new byte[message.position()];
+        message.flip();
+        message.get(array);
+        return array;
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2017 Genymobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.genymobile.gnirehtet;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+
+/**
+ * Build IPv4 and IPv6 packets for the tests, with valid checksums.
+ */
+final class TestPackets {
+
+    static final int FIN = 0x01;
+    static final int SYN = 0x02;
+    static final int RST = 0x04;
+    static final int PSH = 0x08;
+    static final int ACK = 0x10;
+
+    private static final int IPV4_HEADER_LENGTH = 20;
+    private static final int IPV6_HEADER_LENGTH = 40;
+    private static final int TCP_HEADER_LENGTH = 20;
+    private static final int UDP_HEADER_LENGTH = 8;
+
+    private TestPackets() {
+        // not instantiable
+    }
+
+    static int address(int a, int b, int c, int d) {
+        return (a << 24) | (b << 16) | (c << 8) | d;
+    }
+
+    static byte[] address6(String address) {
+        try {
+            return InetAddress.getByName(address).getAddress();
+        } catch (UnknownHostException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    static ByteBuffer tcp(int source, int sourcePort, int destination, int destinationPort, int sequenceNumber,
+                          int acknowledgementNumber, int flags, int payloadLength) {
+        int length = IPV4_HEADER_LENGTH + TCP_HEADER_LENGTH + payloadLength;
+        ByteBuffer packet = ByteBuffer.allocate(length);
+        putIPv4Header(packet, IPPackets.PROTOCOL_TCP, source, destination, length);
+        putTcpHeader(packet, sourcePort, destinationPort, sequenceNumber, acknowledgementNumber, flags, payloadLength);
+        packet.putShort(IPV4_HEADER_LENGTH + 16, (short) transportChecksum(packet, IPPackets.PROTOCOL_TCP));
+        packet.flip();
+        return packet;
+    }
+
+    static ByteBuffer tcp6(byte[] source, int sourcePort, byte[] destination, int destinationPort, int sequenceNumber,
+                           int acknowledgementNumber, int flags, int payloadLength) {
+        int segmentLength = TCP_HEADER_LENGTH + payloadLength;
+        ByteBuffer packet = ByteBuffer.allocate(IPV6_HEADER_LENGTH + segmentLength);
+        putIPv6Header(packet, IPPackets.PROTOCOL_TCP, source, destination, segmentLength);
+        putTcpHeader(packet, sourcePort, destinationPort, sequenceNumber, acknowledgementNumber, flags, payloadLength);
+        packet.putShort(IPV6_HEADER_LENGTH + 16, (short) transportChecksum6(packet, IPPackets.PROTOCOL_TCP));
+        packet.flip();
+        return packet;
+    }
+
+    private static void putTcpHeader(ByteBuffer packet, int sourcePort, int destinationPort, int sequenceNumber,
+                                     int acknowledgementNumber, int flags, int payloadLength) {
+        packet.putShort((short) sourcePort);
+        packet.putShort((short) destinationPort);
+        packet.putInt(sequenceNumber);
+        packet.putInt(acknowledgementNumber);
+        packet.put((byte) (5 << 4));
+        packet.put((byte) flags);
+        packet.putShort((short) 0xffff); // window
+        packet.putShort((short) 0); // checksum
+        packet.putShort((short) 0); // urgent pointer
+        for (int i = 0; i < payloadLength; ++i) {
+            packet.put((byte) i);
+        }
+    }
+
+    static ByteBuffer udp(int source, int sourcePort, int destination, int destinationPort, byte[] payload) {
+        int length = IPV4_HEADER_LENGTH + UDP_HEADER_LENGTH + payload.length;
+        ByteBuffer packet = ByteBuffer.allocate(length);
+        putIPv4Header(packet, IPPackets.PROTOCOL_UDP, source, destination, length);
+        putUdpHeader(packet, sourcePort, destinationPort, payload);
+        packet.putShort(IPV4_HEADER_LENGTH + 6, (short) transportChecksum(packet, IPPackets.PROTOCOL_UDP));
+        packet.flip();
+        return packet;
+    }
+
+    static ByteBuffer udp6(byte[] source, int sourcePort, byte[] destination, int destinationPort, byte[] payload) {
+        int segmentLength = UDP_HEADER_LENGTH + payload.length;
+        ByteBuffer packet = ByteBuffer.allocate(IPV6_HEADER_LENGTH + segmentLength);
+        putIPv6Header(packet, IPPackets.PROTOCOL_UDP, source, destination, segmentLength);
+        putUdpHeader(packet, sourcePort, destinationPort, payload);
+        packet.putShort(IPV6_HEADER_LENGTH + 6, (short) transportChecksum6(packet, IPPackets.PROTOCOL_UDP));
+        packet.flip();
+        return packet;
+    }
+
+    /**
+     * Build an IPv4 packet of any protocol, the payload is written as is.
+     */
+    static ByteBuffer ip(int protocol, int source, int destination, byte[] payload) {
+        int length = IPV4_HEADER_LENGTH + payload.length;
+        ByteBuffer packet = ByteBuffer.allocate(length);
+        putIPv4Header(packet, protocol, source, destination, length);
+        packet.put(payload);
+        packet.flip();
+        return packet;
+    }
+
+    /**
+     * Build an IPv6 packet of any next header, the payload (including extension headers) is written as is.
+     */
+    static ByteBuffer ip6(int nextHeader, byte[] source, byte[] destination, byte[] payload) {
+        ByteBuffer packet = ByteBuffer.allocate(IPV6_HEADER_LENGTH + payload.length);
+        putIPv6Header(packet, nextHeader, source, destination, payload.length);
+        packet.put(payload);
+        packet.flip();
+        return packet;
+    }
+
+    private static void putUdpHeader(ByteBuffer packet, int sourcePort, int destinationPort, byte[] payload) {
+        packet.putShort((short) sourcePort);
+        packet.putShort((short) destinationPort);
+        packet.putShort((short) (UDP_HEADER_LENGTH + payload.length));
+        packet.putShort((short) 0); // checksum
+        packet.put(payload);
+    }
+
+    private static void putIPv4Header(ByteBuffer packet, int protocol, int source, int destination, int length) {
+        packet.put((byte) 0x45);
+        packet.put((byte) 0); // type of service
+        packet.putShort((short) length);
+        packet.putShort((short) 0); // identification
+        packet.putShort((short) 0); // flags and fragment offset
+        packet.put((byte) 64); // TTL
+        packet.put((byte) protocol);
+        packet.putShort((short) 0); // checksum
+        packet.putInt(source);
+        packet.putInt(destination);
+        packet.putShort(10, (short) checksum(packet, 0, IPV4_HEADER_LENGTH, 0));
+    }
+
+    private static void putIPv6Header(ByteBuffer packet, int nextHeader, byte[] source, byte[] destination,
+                                      int payloadLength) {
+        packet.putInt(6 << 28); // version, traffic class and flow label
+        packet.putShort((short) payloadLength);
+        packet.put((byte) nextHeader);
+        packet.put((byte) 64); // hop limit
+        packet.put(source);
+        packet.put(destination);
+    }
+
+    /**
+     * Compute the checksum of the transport segment of an IPv4 packet written from position 0 to the current position.
+     * <p>
+     * A packet with valid checksums has a checksum of 0.
+     */
+    static int transportChecksum(ByteBuffer packet, int protocol) {
+        int length = packet.getShort(2) & 0xffff;
+        int segmentLength = length - IPV4_HEADER_LENGTH;
+        // pseudo-header
+        int sum = sum(packet, 12, 8, 0);
+        sum += protocol;
+        sum += segmentLength;
+        return checksum(packet, IPV4_HEADER_LENGTH, segmentLength, sum);
+    }
+
+    /**
+     * Compute the checksum of the transport segment of an IPv6 packet without extension headers, starting at position 0.
+     */
+    static int transportChecksum6(ByteBuffer packet, int protocol) {
+        int segmentLength = packet.getShort(4) & 0xffff;
+        // pseudo-header
+        int sum = sum(packet, 8, 32, 0);
+        sum += protocol;
+        sum += segmentLength;
+        return checksum(packet, IPV6_HEADER_LENGTH, segmentLength, sum);
+    }
+
+    /**
+     * Compute the checksum of the ICMP message of an IPv4 packet (without pseudo-header).
+     */
+    static int icmpChecksum(ByteBuffer packet) {
+        int length = packet.getShort(2) & 0xffff;
+        return checksum(packet, IPV4_HEADER_LENGTH, length - IPV4_HEADER_LENGTH, 0);
+    }
+
+    static int ipChecksum(ByteBuffer packet) {
+        return checksum(packet, 0, IPV4_HEADER_LENGTH, 0);
+    }
+
+    private static int checksum(ByteBuffer buffer, int index, int length, int initialSum) {
+        int sum = sum(buffer, index, length, initialSum);
+        while ((sum & ~0xffff) != 0) {
+            sum = (sum & 0xffff) + (sum >>> 16);
+        }
+        return ~sum & 0xffff;
+    }
+
+    private static int sum(ByteBuffer buffer, int index, int length, int sum) {
+        for (int i = 0; i < length / 2; ++i) {
+            sum += buffer.getShort(index + 2 * i) & 0xffff;
+        }
+        if ((length & 1) != 0) {
+            sum += (buffer.get(index + length - 1) & 0xff) << 8;
+        }
+        return sum;
+    }
+}
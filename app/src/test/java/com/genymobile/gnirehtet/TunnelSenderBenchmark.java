@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2017 Genymobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.genymobile.gnirehtet;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compare the upstream send paths on heap and direct buffers: one tunnel write per packet, or coalesced writes.
+ * <p>
+ * The tunnels are in-memory fakes, so this measures the per-packet overhead of the forwarding code, not the relay socket.
+ */
+@Category(Benchmark.class)
+public class TunnelSenderBenchmark {
+
+    private static final BenchmarkReport REPORT = new BenchmarkReport(TunnelSenderBenchmark.class);
+
+    private static final int PACKETS = 200_000;
+    private static final int FLOWS = 64;
+    // the number of packets read from the VPN interface before it is drained
+    private static final int BURST = 16;
+
+    @Test
+    public void compareSendPaths() throws IOException {
+        ByteBuffer[] heapPackets = createPackets(false);
+        ByteBuffer[] directPackets = createPackets(true);
+
+        Result perPacketHeap = run(heapPackets, false, false);
+        Result perPacketDirect = run(directPackets, true, false);
+        Result coalescedHeap = run(heapPackets, false, true);
+        Result coalescedDirect = run(directPackets, true, true);
+
+        REPORT.add("TunnelSender per-packet heap:   %s", perPacketHeap);
+        REPORT.add("TunnelSender per-packet direct: %s", perPacketDirect);
+        REPORT.add("TunnelSender coalesced heap:    %s", coalescedHeap);
+        REPORT.add("TunnelSender coalesced direct:  %s", coalescedDirect);
+
+        Assert.assertEquals(PACKETS, perPacketHeap.writes);
+        Assert.assertEquals(perPacketHeap.bytes, coalescedDirect.bytes);
+        Assert.assertEquals(perPacketHeap.bytes, coalescedHeap.bytes);
+        Assert.assertTrue(coalescedHeap.writes <= PACKETS / BURST * 2);
+    }
+
+    private static ByteBuffer[] createPackets(boolean direct) {
+        ByteBuffer[] packets = new ByteBuffer[1024];
+        int source = TestPackets.address(10, 0, 0, 2);
+        int destination = TestPackets.address(93, 184, 216, 34);
+        for (int i = 0; i < packets.length; ++i) {
+            // mostly MTU-sized segments, with some pure ACKs
+            int payloadLength = i % 4 == 0 ? 0 : 1400;
+            ByteBuffer packet = TestPackets.tcp(source, 40000 + i % FLOWS, destination, 443, i * 1400, 1, TestPackets.ACK,
+                    payloadLength);
+            if (direct) {
+                ByteBuffer copy = ByteBuffer.allocateDirect(packet.remaining());
+                copy.put(packet);
+                copy.flip();
+                packet = copy;
+            }
+            packets[i] = packet;
+        }
+        return packets;
+    }
+
+    private static Result run(ByteBuffer[] packets, boolean direct, boolean coalesce) throws IOException {
+        // warm up, then measure
+        send(packets, direct, coalesce, PACKETS / 4);
+        return send(packets, direct, coalesce, PACKETS);
+    }
+
+    private static Result send(ByteBuffer[] packets, boolean direct, boolean coalesce, int count) throws IOException {
+        List<FakeRelayTunnel> tunnels = new ArrayList<>();
+        RelayTunnelPool pool = FakeRelayTunnel.createPool(1, false, tunnels);
+        ForwarderOptions options = new ForwarderOptions();
+        options.setCoalesceWrites(coalesce);
+        TunnelSender sender = new TunnelSender(pool, (packet, upstream) -> false, new FlowTable(), options, direct,
+                new ForwarderStats());
+
+        long start = System.nanoTime();
+        for (int i = 0; i < count; ++i) {
+            ByteBuffer packet = packets[i % packets.length];
+            packet.position(0);
+            sender.send(packet);
+            if (coalesce && i % BURST == BURST - 1) {
+                sender.flush();
+            }
+        }
+        if (coalesce) {
+            sender.flush();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        FakeRelayTunnel tunnel = tunnels.get(0);
+        return new Result(elapsed / count, tunnel.getSends(), tunnel.getSentBytes());
+    }
+
+    private static final class Result {
+        private final long nsPerPacket;
+        private final long writes;
+        private final long bytes;
+
+        Result(long nsPerPacket, long writes, long bytes) {
+            this.nsPerPacket = nsPerPacket;
+            this.writes = writes;
+            this.bytes = bytes;
+        }
+
+        @Override
+        public String toString() {
+            return nsPerPacket + " ns/packet, " + writes + " tunnel writes, " + bytes + " bytes";
+        }
+    }
+}
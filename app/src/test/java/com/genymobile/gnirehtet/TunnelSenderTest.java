@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2017 Genymobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.genymobile.gnirehtet;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+public class TunnelSenderTest {
+
+    private static final int DEVICE = TestPackets.address(10, 0, 0, 2);
+    private static final int SERVER = TestPackets.address(198, 51, 100, 1);
+
+    private final List<Integer> writeLengths = new ArrayList<>();
+    private final ByteArrayOutputStream written = new ByteArrayOutputStream();
+
+    private TunnelSender createSender(ForwarderOptions options) {
+        RelayTunnelPool pool = FakeRelayTunnel.createPool(1, false, null);
+        return new TunnelSender(pool, (packet, upstream) -> false, new FlowTable(), options, false, new ForwarderStats(),
+                (index, data) -> {
+                    Assert.assertEquals(0, index);
+                    writeLengths.add(data.remaining());
+                    written.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+                    data.position(data.limit());
+                });
+    }
+
+    private static ByteBuffer packet(int i) {
+        return TestPackets.udp(DEVICE, 40000 + i % 16, SERVER, 443, new byte[1372]);
+    }
+
+    @Test
+    public void testWritePerPacket() throws IOException {
+        TunnelSender sender = createSender(new ForwarderOptions());
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        for (int i = 0; i < 3; ++i) {
+            ByteBuffer packet = packet(i);
+            expected.write(packet.array(), 0, packet.limit());
+            sender.send(packet);
+        }
+        Assert.assertFalse(sender.hasPending());
+        Assert.assertEquals(3, writeLengths.size());
+        Assert.assertArrayEquals(expected.toByteArray(), written.toByteArray());
+    }
+
+    @Test
+    public void testCoalescedWrites() throws IOException {
+        ForwarderOptions options = new ForwarderOptions();
+        options.setCoalesceWrites(true);
+        options.setPrioritizeInteractive(true);
+        TunnelSender sender = createSender(options);
+        int total = 0;
+        for (int i = 0; i < 500; ++i) {
+            ByteBuffer packet = packet(i);
+            total += packet.remaining();
+            sender.send(packet);
+        }
+        Assert.assertTrue(sender.hasPending());
+        sender.flush();
+        Assert.assertFalse(sender.hasPending());
+
+        Assert.assertEquals(total, written.size());
+        // the poll engine reserves room for a few such writes before reading a packet
+        for (int length : writeLengths) {
+            Assert.assertTrue(length <= 0x10000);
+        }
+        Assert.assertTrue(writeLengths.size() < 500 / 10);
+    }
+}
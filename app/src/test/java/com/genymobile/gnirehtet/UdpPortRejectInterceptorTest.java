@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2017 Genymobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.genymobile.gnirehtet;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+public class UdpPortRejectInterceptorTest {
+
+    private static final int DEVICE = TestPackets.address(10, 0, 0, 2);
+    private static final int SERVER = TestPackets.address(93, 184, 216, 34);
+    private static final byte[] DEVICE6 = TestPackets.address6("fd00::2");
+    private static final byte[] SERVER6 = TestPackets.address6("2001:db8::1");
+
+    private final List<ByteBuffer> replies = new ArrayList<>();
+    private final ForwarderStats stats = new ForwarderStats();
+    private final UdpPortRejectInterceptor interceptor = new UdpPortRejectInterceptor(new int[] {443, 3478}, packet -> {
+        ByteBuffer copy = ByteBuffer.allocate(packet.remaining());
+        copy.put(packet);
+        copy.flip();
+        replies.add(copy);
+    }, stats);
+    private final PacketSink upstream = packet -> Assert.fail("Unexpected packet sent upstream");
+
+    private boolean intercept(ByteBuffer packet) throws IOException {
+        return interceptor.intercept(packet, upstream);
+    }
+
+    @Test
+    public void testPortMatch() throws IOException {
+        Assert.assertTrue(intercept(TestPackets.udp(DEVICE, 50000, SERVER, 443, new byte[100])));
+        Assert.assertTrue(intercept(TestPackets.udp(DEVICE, 50000, SERVER, 3478, new byte[100])));
+        Assert.assertFalse(intercept(TestPackets.udp(DEVICE, 50000, SERVER, 53, new byte[100])));
+        // the source port does not matter
+        Assert.assertFalse(intercept(TestPackets.udp(DEVICE, 443, SERVER, 4433, new byte[100])));
+        // only UDP is rejected
+        Assert.assertFalse(intercept(TestPackets.tcp(DEVICE, 50000, SERVER, 443, 1000, 0, TestPackets.SYN, 0)));
+        Assert.assertEquals(2, stats.getRejectedUdpPackets());
+    }
+
+    @Test
+    public void testPortUnreachable() throws IOException {
+        Assert.assertTrue(intercept(TestPackets.udp(DEVICE, 50000, SERVER, 443, new byte[1200])));
+        Assert.assertEquals(1, replies.size());
+        ByteBuffer reply = replies.get(0);
+        Assert.assertEquals(576, reply.limit());
+        Assert.assertEquals(0, TestPackets.ipChecksum(reply));
+        Assert.assertEquals(0, TestPackets.icmpChecksum(reply));
+        Assert.assertEquals(SERVER, reply.getInt(12));
+        Assert.assertEquals(DEVICE, reply.getInt(16));
+        // "port unreachable"
+        Assert.assertEquals(3, reply.get(20));
+        Assert.assertEquals(3, reply.get(21));
+    }
+
+    @Test
+    public void testPortUnreachableV6() throws IOException {
+        Assert.assertTrue(intercept(TestPackets.udp6(DEVICE6, 50000, SERVER6, 443, new byte[100])));
+        Assert.assertEquals(1, replies.size());
+        ByteBuffer reply = replies.get(0);
+        Assert.assertEquals(0, TestPackets.transportChecksum6(reply, IPPackets.PROTOCOL_ICMPV6));
+        // "port unreachable"
+        Assert.assertEquals(1, reply.get(40));
+        Assert.assertEquals(4, reply.get(41));
+    }
+
+    @Test
+    public void testNoReplyToBroadcast() throws IOException {
+        int broadcast = TestPackets.address(255, 255, 255, 255);
+        // rejected, but silently
+        Assert.assertTrue(intercept(TestPackets.udp(DEVICE, 50000, broadcast, 443, new byte[100])));
+        Assert.assertTrue(replies.isEmpty());
+    }
+
+    @Test
+    public void testHits() throws IOException {
+        // counted across sessions, so only the difference matters
+        long hits = UdpPortRejectInterceptor.getHits().getValue();
+        intercept(TestPackets.udp(DEVICE, 50000, SERVER, 443, new byte[100]));
+        intercept(TestPackets.udp(DEVICE, 50000, SERVER, 53, new byte[100]));
+        intercept(TestPackets.udp6(DEVICE6, 50000, SERVER6, 443, new byte[100]));
+        Assert.assertEquals(hits + 2, (long) UdpPortRejectInterceptor.getHits().getValue());
+    }
+}
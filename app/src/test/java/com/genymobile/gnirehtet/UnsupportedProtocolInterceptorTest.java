@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2017 Genymobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.genymobile.gnirehtet;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+public class UnsupportedProtocolInterceptorTest {
+
+    private static final int DEVICE = TestPackets.address(10, 0, 0, 2);
+    private static final int GATEWAY = TestPackets.address(10, 0, 0, 1);
+    private static final int SERVER = TestPackets.address(93, 184, 216, 34);
+    private static final byte[] DEVICE6 = TestPackets.address6("fd00::2");
+    private static final byte[] GATEWAY6 = TestPackets.address6("fd00::1");
+    private static final byte[] SERVER6 = TestPackets.address6("2001:db8::1");
+
+    private static final int GRE = 47;
+    private static final int HOP_BY_HOP_OPTIONS = 0;
+
+    private final List<ByteBuffer> replies = new ArrayList<>();
+    private final ForwarderStats stats = new ForwarderStats();
+    private final UnsupportedProtocolInterceptor interceptor = new UnsupportedProtocolInterceptor(
+            Net.toInetAddresses("10.0.0.1", "fd00::1"), packet -> {
+                ByteBuffer copy = ByteBuffer.allocate(packet.remaining());
+                copy.put(packet);
+                copy.flip();
+                replies.add(copy);
+            }, stats);
+    private final PacketSink upstream = packet -> Assert.fail("Unexpected packet sent upstream");
+
+    private boolean intercept(ByteBuffer packet) throws IOException {
+        return interceptor.intercept(packet, upstream);
+    }
+
+    private static byte[] icmp(int type, int payloadLength) {
+        byte[] message = new byte[8 + payloadLength];
+        message[0] = (byte) type;
+        return message;
+    }
+
+    @Test
+    public void testTcpAndUdpNotIntercepted() throws IOException {
+        Assert.assertFalse(intercept(TestPackets.tcp(DEVICE, 40000, SERVER, 443, 1000, 0, TestPackets.SYN, 0)));
+        Assert.assertFalse(intercept(TestPackets.udp(DEVICE, 50000, SERVER, 443, new byte[10])));
+        Assert.assertFalse(intercept(TestPackets.udp6(DEVICE6, 50000, SERVER6, 443, new byte[10])));
+        Assert.assertTrue(replies.isEmpty());
+        Assert.assertEquals(0, stats.getUnsupportedProtocolPackets());
+    }
+
+    @Test
+    public void testUdpAfterExtensionHeaderNotIntercepted() throws IOException {
+        byte[] payload = new byte[8 + 16];
+        payload[0] = (byte) IPPackets.PROTOCOL_UDP;
+        Assert.assertFalse(intercept(TestPackets.ip6(HOP_BY_HOP_OPTIONS, DEVICE6, SERVER6, payload)));
+        Assert.assertTrue(replies.isEmpty());
+    }
+
+    @Test
+    public void testPingGateway() throws IOException {
+        Assert.assertTrue(intercept(TestPackets.ip(IPPackets.PROTOCOL_ICMP, DEVICE, GATEWAY, icmp(8, 56))));
+        Assert.assertTrue(intercept(TestPackets.ip6(IPPackets.PROTOCOL_ICMPV6, DEVICE6, GATEWAY6, icmp(128, 56))));
+        Assert.assertEquals(2, stats.getUnsupportedProtocolPackets());
+
+        Assert.assertEquals(2, replies.size());
+        ByteBuffer reply = replies.get(0);
+        Assert.assertEquals(0, TestPackets.ipChecksum(reply));
+        Assert.assertEquals(0, TestPackets.icmpChecksum(reply));
+        Assert.assertEquals(GATEWAY, reply.getInt(12));
+        Assert.assertEquals(DEVICE, reply.getInt(16));
+        // echo reply
+        Assert.assertEquals(0, reply.get(20));
+
+        ByteBuffer reply6 = replies.get(1);
+        Assert.assertEquals(0, TestPackets.transportChecksum6(reply6, IPPackets.PROTOCOL_ICMPV6));
+        Assert.assertEquals((byte) 129, reply6.get(40));
+    }
+
+    @Test
+    public void testPingOtherHost() throws IOException {
+        Assert.assertTrue(intercept(TestPackets.ip(IPPackets.PROTOCOL_ICMP, DEVICE, SERVER, icmp(8, 56))));
+        Assert.assertEquals(1, replies.size());
+        ByteBuffer reply = replies.get(0);
+        Assert.assertEquals(0, TestPackets.icmpChecksum(reply));
+        Assert.assertEquals(SERVER, reply.getInt(12));
+        // "network unreachable"
+        Assert.assertEquals(3, reply.get(20));
+        Assert.assertEquals(0, reply.get(21));
+    }
+
+    @Test
+    public void testUnsupportedProtocol() throws IOException {
+        Assert.assertTrue(intercept(TestPackets.ip(GRE, DEVICE, SERVER, new byte[1000])));
+        Assert.assertTrue(intercept(TestPackets.ip6(GRE, DEVICE6, SERVER6, new byte[2000])));
+        Assert.assertEquals(2, stats.getUnsupportedProtocolPackets());
+
+        Assert.assertEquals(2, replies.size());
+        ByteBuffer reply = replies.get(0);
+        Assert.assertEquals(576, reply.limit());
+        Assert.assertEquals(0, TestPackets.ipChecksum(reply));
+        Assert.assertEquals(0, TestPackets.icmpChecksum(reply));
+        // "protocol unreachable"
+        Assert.assertEquals(3, reply.get(20));
+        Assert.assertEquals(2, reply.get(21));
+
+        ByteBuffer reply6 = replies.get(1);
+        Assert.assertEquals(1280, reply6.limit());
+        Assert.assertEquals(0, TestPackets.transportChecksum6(reply6, IPPackets.PROTOCOL_ICMPV6));
+        // "parameter problem"
+        Assert.assertEquals(4, reply6.get(40));
+    }
+
+    @Test
+    public void testNoReplyToErrors() throws IOException {
+        Assert.assertTrue(intercept(TestPackets.ip(IPPackets.PROTOCOL_ICMP, DEVICE, SERVER, icmp(3, 28))));
+        Assert.assertTrue(intercept(TestPackets.ip6(IPPackets.PROTOCOL_ICMPV6, DEVICE6, SERVER6, icmp(1, 48))));
+        int multicast = TestPackets.address(224, 0, 0, 22);
+        Assert.assertTrue(intercept(TestPackets.ip(2, DEVICE, multicast, new byte[8]))); // IGMP
+        // dropped silently
+        Assert.assertTrue(replies.isEmpty());
+        Assert.assertEquals(3, stats.getUnsupportedProtocolPackets());
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2017 Genymobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.genymobile.gnirehtet;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class UsbConnectionHandlerTest {
+
+    private static final class FakeUsbConnectionSource implements UsbConnectionSource {
+        private Listener listener;
+
+        @Override
+        public void start(Listener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void stop() {
+            listener = null;
+        }
+
+        boolean isStarted() {
+            return listener != null;
+        }
+
+        void attach() {
+            if (listener != null) {
+                listener.onUsbConnected();
+            }
+        }
+    }
+
+    private static final class FakeVpn implements UsbConnectionHandler.Vpn {
+        private boolean running;
+        private boolean startOnUsbConnect;
+        private int reconnections;
+        private int starts;
+
+        @Override
+        public boolean isRunning() {
+            return running;
+        }
+
+        @Override
+        public void reconnectNow() {
+            ++reconnections;
+        }
+
+        @Override
+        public boolean isStartOnUsbConnectEnabled() {
+            return startOnUsbConnect;
+        }
+
+        @Override
+        public void startWithLastConfiguration() {
+            ++starts;
+            running = true;
+        }
+    }
+
+    private final FakeUsbConnectionSource source = new FakeUsbConnectionSource();
+    private final FakeVpn vpn = new FakeVpn();
+    private final UsbConnectionHandler handler = new UsbConnectionHandler(source, vpn);
+
+    @Test
+    public void testReconnectWhenRunning() {
+        vpn.running = true;
+        handler.onVpnStarted();
+        source.attach();
+        source.attach();
+        Assert.assertEquals(2, vpn.reconnections);
+        Assert.assertEquals(0, vpn.starts);
+    }
+
+    @Test
+    public void testStopWatchingWhenStopped() {
+        vpn.running = true;
+        handler.onVpnStarted();
+        vpn.running = false;
+        handler.onVpnStopped();
+        Assert.assertFalse(source.isStarted());
+        source.attach();
+        Assert.assertEquals(0, vpn.reconnections);
+        Assert.assertEquals(0, vpn.starts);
+    }
+
+    @Test
+    public void testStartOnUsbConnect() {
+        vpn.startOnUsbConnect = true;
+        vpn.running = true;
+        handler.onVpnStarted();
+        vpn.running = false;
+        handler.onVpnStopped();
+        // keep watching to start again
+        Assert.assertTrue(source.isStarted());
+
+        source.attach();
+        Assert.assertEquals(1, vpn.starts);
+        Assert.assertEquals(0, vpn.reconnections);
+
+        // now running
+        source.attach();
+        Assert.assertEquals(1, vpn.starts);
+        Assert.assertEquals(1, vpn.reconnections);
+    }
+
+    @Test
+    public void testStartOnUsbConnectDisabledMeanwhile() {
+        vpn.startOnUsbConnect = true;
+        handler.onVpnStarted();
+        handler.onVpnStopped();
+        vpn.startOnUsbConnect = false;
+        source.attach();
+        Assert.assertEquals(0, vpn.starts);
+    }
+
+    @Test
+    public void testRelease() {
+        vpn.startOnUsbConnect = true;
+        handler.onVpnStarted();
+        handler.release();
+        Assert.assertFalse(source.isStarted());
+    }
+}
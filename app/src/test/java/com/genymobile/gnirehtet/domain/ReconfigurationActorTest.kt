@@ -0,0 +1,167 @@
+package com.genymobile.gnirehtet.domain
+
+import com.genymobile.gnirehtet.CIDR
+import com.genymobile.gnirehtet.VpnConfiguration
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withTimeout
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.net.InetAddress
+import kotlin.time.Duration.Companion.milliseconds
+
+class ReconfigurationActorTest {
+
+    private class FakeController(
+        var running: VpnConfiguration?,
+        var next: VpnConfiguration?,
+    ) : VpnServiceController {
+        val reconfigured = mutableListOf<VpnConfiguration>()
+        val restarted = mutableListOf<VpnConfiguration>()
+
+        override fun isRunning() = running != null
+
+        override fun getRunningConfiguration() = running
+
+        override fun createConfiguration(running: VpnConfiguration) = next ?: running
+
+        override fun reconfigure(config: VpnConfiguration) {
+            reconfigured += config
+            running = config
+        }
+
+        override suspend fun restart(config: VpnConfiguration) {
+            restarted += config
+            running = config
+        }
+    }
+
+    private fun runActor(controller: FakeController, block: suspend (ReconfigurationActor) -> Unit) = runBlocking {
+        val job = Job(coroutineContext[Job])
+        val actor = ReconfigurationActor(CoroutineScope(coroutineContext + job), controller, QUIET_PERIOD, MAX_DELAY)
+        try {
+            block(actor)
+        } finally {
+            job.cancel()
+        }
+    }
+
+    private suspend fun awaitApplied(controller: FakeController) {
+        withTimeout(TIMEOUT) {
+            while (controller.reconfigured.isEmpty() && controller.restarted.isEmpty()) {
+                delay(QUIET_PERIOD / 5)
+            }
+        }
+        // nothing else must be applied
+        delay(MAX_DELAY * 2)
+    }
+
+    @Test
+    fun testBatchReconfigurations() {
+        val controller = FakeController(config(blocked = arrayOf("a")), config(blocked = arrayOf("a", "b")))
+        runActor(controller) { actor ->
+            repeat(10) {
+                actor.submit(ReconfigurationActor.Change.RECONFIGURE)
+            }
+            awaitApplied(controller)
+        }
+        assertEquals(1, controller.reconfigured.size)
+        assertEquals(0, controller.restarted.size)
+    }
+
+    @Test
+    fun testRestartOnce() {
+        val controller = FakeController(config(blocked = arrayOf("a")), config(blocked = arrayOf("a", "b")))
+        runActor(controller) { actor ->
+            actor.submit(ReconfigurationActor.Change.RECONFIGURE)
+            actor.submit(ReconfigurationActor.Change.RESTART)
+            actor.submit(ReconfigurationActor.Change.RECONFIGURE)
+            actor.submit(ReconfigurationActor.Change.RESTART)
+            awaitApplied(controller)
+        }
+        assertEquals(0, controller.reconfigured.size)
+        assertEquals(1, controller.restarted.size)
+    }
+
+    @Test
+    fun testApplyAfterMaxDelay() {
+        val controller = FakeController(config(blocked = arrayOf("a")), config(blocked = arrayOf("a", "b")))
+        runActor(controller) { actor ->
+            // never quiet
+            withTimeout(TIMEOUT) {
+                while (controller.reconfigured.isEmpty()) {
+                    actor.submit(ReconfigurationActor.Change.RECONFIGURE)
+                    delay(QUIET_PERIOD / 5)
+                }
+            }
+        }
+        assertEquals(1, controller.reconfigured.size)
+    }
+
+    @Test
+    fun testSkipUnchangedConfiguration() {
+        val controller = FakeController(config(dns = arrayOf("8.8.8.8", "1.1.1.1")), config(dns = arrayOf("1.1.1.1", "8.8.8.8")))
+        runActor(controller) { actor ->
+            actor.submit(ReconfigurationActor.Change.RECONFIGURE)
+            delay(MAX_DELAY * 2)
+        }
+        assertEquals(0, controller.reconfigured.size)
+    }
+
+    @Test
+    fun testNotRunning() {
+        val controller = FakeController(null, config(blocked = arrayOf("a")))
+        runActor(controller) { actor ->
+            actor.submit(ReconfigurationActor.Change.RECONFIGURE)
+            actor.submit(ReconfigurationActor.Change.RESTART)
+            delay(MAX_DELAY * 2)
+        }
+        assertEquals(0, controller.reconfigured.size)
+        assertEquals(0, controller.restarted.size)
+    }
+
+    @Test
+    fun testHasSameEffect() {
+        val running = config(arrayOf("8.8.8.8", "1.1.1.1"), arrayOf("10.0.0.0/8", "192.168.0.0/16"), arrayOf("a", "b"), intArrayOf(53, 123))
+        val reordered = config(arrayOf("1.1.1.1", "8.8.8.8"), arrayOf("192.168.0.0/16", "10.0.0.0/8"), arrayOf("b", "a"), intArrayOf(123, 53),
+            stopOnDisconnect = true)
+        assertTrue(ReconfigurationActor.hasSameEffect(running, reordered))
+
+        assertFalse(ReconfigurationActor.hasSameEffect(running, config(arrayOf("8.8.8.8"), arrayOf("10.0.0.0/8", "192.168.0.0/16"),
+            arrayOf("a", "b"), intArrayOf(53, 123))))
+        assertFalse(ReconfigurationActor.hasSameEffect(running, config(arrayOf("8.8.8.8", "1.1.1.1"), arrayOf("10.0.0.0/8"),
+            arrayOf("a", "b"), intArrayOf(53, 123))))
+        assertFalse(ReconfigurationActor.hasSameEffect(running, config(arrayOf("8.8.8.8", "1.1.1.1"), arrayOf("10.0.0.0/8", "192.168.0.0/16"),
+            arrayOf("a", "c"), intArrayOf(53, 123))))
+        assertFalse(ReconfigurationActor.hasSameEffect(running, config(arrayOf("8.8.8.8", "1.1.1.1"), arrayOf("10.0.0.0/8", "192.168.0.0/16"),
+            arrayOf("a", "b"), intArrayOf(53))))
+    }
+
+    companion object {
+        private val QUIET_PERIOD = 50.milliseconds
+        private val MAX_DELAY = 150.milliseconds
+        private val TIMEOUT = 5000.milliseconds
+
+        private fun config(
+            dns: Array<String> = emptyArray(),
+            routes: Array<String> = emptyArray(),
+            blocked: Array<String> = emptyArray(),
+            rejectedUdpPorts: IntArray = IntArray(0),
+            stopOnDisconnect: Boolean = false,
+        ): VpnConfiguration {
+            return VpnConfiguration(
+                dns.map { InetAddress.getByName(it) }.toTypedArray(),
+                routes.map { CIDR.parse(it) }.toTypedArray(),
+                blocked,
+                rejectedUdpPorts,
+                stopOnDisconnect,
+                false,
+            )
+        }
+    }
+
+}